@@ -0,0 +1,71 @@
+package edu.scripps.yates.ip2tomassive.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import edu.scripps.yates.ip2tomassive.StreamDigester;
+import edu.scripps.yates.ip2tomassive.TransferPipeline;
+
+/**
+ * Helpers shared by the benchmarks
+ *
+ * @author salvador
+ *
+ */
+public class BenchmarkStreams {
+	public static final String NONE = "none";
+	public static final String PIPELINE = "pipeline";
+	public static final String DIGEST = "digest";
+	public static final String PIPELINE_DIGEST = "pipeline+digest";
+
+	/**
+	 *
+	 * @param out
+	 * @param wrapper one of {@link #NONE}, {@link #PIPELINE}, {@link #DIGEST} or
+	 *                {@link #PIPELINE_DIGEST}, the wrappers that the transfers
+	 *                put around the stream to the destination
+	 * @return
+	 */
+	public static OutputStream wrap(OutputStream out, String wrapper) {
+		if (NONE.equals(wrapper)) {
+			return out;
+		} else if (PIPELINE.equals(wrapper)) {
+			return new TransferPipeline("benchmark", 8, 256 * 1024).wrap(out);
+		} else if (DIGEST.equals(wrapper)) {
+			return new StreamDigester("benchmark").wrap(out);
+		} else if (PIPELINE_DIGEST.equals(wrapper)) {
+			return new StreamDigester("benchmark").wrap(new TransferPipeline("benchmark", 8, 256 * 1024).wrap(out));
+		}
+		throw new IllegalArgumentException("Unknown wrapper " + wrapper);
+	}
+
+	/**
+	 * Creates a temporary file with random content, that is deleted on exit
+	 *
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	public static File createPayload(long size) throws IOException {
+		final File file = File.createTempFile("ip2-benchmark-", ".raw");
+		file.deleteOnExit();
+		final Random random = new Random(size);
+		final byte[] buffer = new byte[1024 * 1024];
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			long written = 0l;
+			while (written < size) {
+				random.nextBytes(buffer);
+				final int n = (int) Math.min(buffer.length, size - written);
+				out.write(buffer, 0, n);
+				written += n;
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
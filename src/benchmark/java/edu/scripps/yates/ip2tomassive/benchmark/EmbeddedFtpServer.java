@@ -0,0 +1,108 @@
+package edu.scripps.yates.ip2tomassive.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.DataConnectionConfigurationFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.ftplet.FileSystemFactory;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.UserManager;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+/**
+ * FTP server in the loopback interface, writing into a local folder, to stand
+ * in for the MassIVE FTP server
+ *
+ * @author salvador
+ *
+ */
+public class EmbeddedFtpServer {
+	public static final String USER_NAME = "massive";
+	public static final String PASSWORD = "massive";
+	private static final String LISTENER_NAME = "default";
+	private final FtpServerFactory serverFactory;
+	private final FtpServer ftpServer;
+
+	/**
+	 *
+	 * @param rootFolder     folder where the uploaded files are written
+	 * @param maxConnections maximum number of connections open at the same time
+	 * @throws FtpException
+	 */
+	public EmbeddedFtpServer(File rootFolder, int maxConnections) throws FtpException {
+		this(rootFolder, maxConnections, new NativeFileSystemFactory());
+	}
+
+	/**
+	 *
+	 * @param rootFolder        folder where the uploaded files are written
+	 * @param maxConnections    maximum number of connections open at the same
+	 *                          time
+	 * @param fileSystemFactory file system of the users, for example to drop the
+	 *                          connection in the middle of an upload
+	 * @throws FtpException
+	 */
+	public EmbeddedFtpServer(File rootFolder, int maxConnections, FileSystemFactory fileSystemFactory)
+			throws FtpException {
+		serverFactory = new FtpServerFactory();
+		serverFactory.setFileSystem(fileSystemFactory);
+		final ListenerFactory listenerFactory = new ListenerFactory();
+		listenerFactory.setServerAddress("127.0.0.1");
+		listenerFactory.setPort(0);
+		final DataConnectionConfigurationFactory dataConnectionFactory = new DataConnectionConfigurationFactory();
+		dataConnectionFactory.setPassiveAddress("127.0.0.1");
+		dataConnectionFactory.setPassiveExternalAddress("127.0.0.1");
+		listenerFactory.setDataConnectionConfiguration(dataConnectionFactory.createDataConnectionConfiguration());
+		serverFactory.addListener(LISTENER_NAME, listenerFactory.createListener());
+
+		final ConnectionConfigFactory connectionConfigFactory = new ConnectionConfigFactory();
+		connectionConfigFactory.setAnonymousLoginEnabled(false);
+		connectionConfigFactory.setMaxLogins(maxConnections);
+		connectionConfigFactory.setMaxThreads(maxConnections);
+		serverFactory.setConnectionConfig(connectionConfigFactory.createConnectionConfig());
+
+		final UserManager userManager = new PropertiesUserManagerFactory().createUserManager();
+		final BaseUser user = new BaseUser();
+		user.setName(USER_NAME);
+		user.setPassword(PASSWORD);
+		user.setHomeDirectory(rootFolder.getAbsolutePath());
+		final List<Authority> authorities = new ArrayList<Authority>();
+		authorities.add(new WritePermission());
+		authorities.add(new ConcurrentLoginPermission(maxConnections, maxConnections));
+		user.setAuthorities(authorities);
+		userManager.save(user);
+		serverFactory.setUserManager(userManager);
+
+		ftpServer = serverFactory.createServer();
+		ftpServer.start();
+	}
+
+	public String getHost() {
+		return "127.0.0.1";
+	}
+
+	/**
+	 *
+	 * @return the port in which the server is listening, chosen when it was
+	 *         started
+	 */
+	public int getPort() {
+		final Listener listener = serverFactory.getListeners().get(LISTENER_NAME);
+		return listener.getPort();
+	}
+
+	public void stop() {
+		ftpServer.stop();
+	}
+}
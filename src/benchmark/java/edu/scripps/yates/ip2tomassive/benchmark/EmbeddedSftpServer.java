@@ -0,0 +1,78 @@
+package edu.scripps.yates.ip2tomassive.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+/**
+ * SFTP server in the loopback interface, serving a local folder, to stand in
+ * for the IP2 server
+ *
+ * @author salvador
+ *
+ */
+public class EmbeddedSftpServer {
+	public static final String USER_NAME = "ip2";
+	public static final String PASSWORD = "ip2";
+	private final SshServer sshServer;
+	private final SftpSubsystemFactory sftpSubsystemFactory = new SftpSubsystemFactory();
+
+	/**
+	 *
+	 * @param rootFolder folder served as the root of the SFTP server
+	 * @throws IOException
+	 */
+	public EmbeddedSftpServer(File rootFolder) throws IOException {
+		sshServer = SshServer.setUpDefaultServer();
+		sshServer.setHost("127.0.0.1");
+		sshServer.setPort(0);
+		final File hostKeyFile = File.createTempFile("ip2-benchmark-hostkey", ".ser");
+		hostKeyFile.delete();
+		hostKeyFile.deleteOnExit();
+		final SimpleGeneratorHostKeyProvider hostKeyProvider = new SimpleGeneratorHostKeyProvider(
+				hostKeyFile.toPath());
+		// RSA, because old JSch versions don't support other host keys
+		hostKeyProvider.setAlgorithm("RSA");
+		sshServer.setKeyPairProvider(hostKeyProvider);
+		sshServer.setPasswordAuthenticator(new PasswordAuthenticator() {
+
+			@Override
+			public boolean authenticate(String username, String password, ServerSession session) {
+				return USER_NAME.equals(username) && PASSWORD.equals(password);
+			}
+		});
+		sshServer.setSubsystemFactories(Collections.singletonList(sftpSubsystemFactory));
+		sshServer.setFileSystemFactory(new VirtualFileSystemFactory(rootFolder.toPath()));
+		sshServer.start();
+	}
+
+	public String getHost() {
+		return sshServer.getHost();
+	}
+
+	/**
+	 * Adds a listener of the SFTP requests, for example to see the offsets read
+	 * or to drop the connection in the middle of a transfer
+	 *
+	 * @param listener
+	 */
+	public void addSftpEventListener(SftpEventListener listener) {
+		sftpSubsystemFactory.addSftpEventListener(listener);
+	}
+
+	public int getPort() {
+		return sshServer.getPort();
+	}
+
+	public void stop() throws IOException {
+		sshServer.stop(true);
+	}
+}
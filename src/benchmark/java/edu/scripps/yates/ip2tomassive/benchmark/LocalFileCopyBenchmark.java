@@ -0,0 +1,153 @@
+package edu.scripps.yates.ip2tomassive.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy loops of a local file to a socket, as in
+ * MultipleProjectIP2ToMassive.transferLocalFile, sweeping payload sizes,
+ * buffer sizes and the wrappers put around the stream to the destination.
+ *
+ * @author salvador
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalFileCopyBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Payload {
+		@Param({ "1", "64", "512" })
+		public int payloadMB;
+		public File file;
+		public LoopbackSink sink;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			file = BenchmarkStreams.createPayload(payloadMB * 1024l * 1024l);
+			sink = new LoopbackSink();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			sink.close();
+			file.delete();
+		}
+
+		private void checkDrained() throws InterruptedException {
+			final long drained = sink.awaitDrained();
+			if (drained != file.length()) {
+				throw new IllegalStateException(drained + " bytes received instead of " + file.length());
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Buffer {
+		@Param({ "4", "64", "256", "1024" })
+		public int bufferKB;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Wrapper {
+		@Param({ BenchmarkStreams.NONE, BenchmarkStreams.PIPELINE, BenchmarkStreams.DIGEST,
+				BenchmarkStreams.PIPELINE_DIGEST })
+		public String wrapper;
+	}
+
+	/**
+	 * IOUtils.copyLarge from a FileInputStream to the socket output stream, as
+	 * done now
+	 */
+	@Benchmark
+	public long copyLarge(Payload payload, Buffer buffer, Wrapper wrapper) throws IOException, InterruptedException {
+		final SocketChannel channel = payload.sink.connect();
+		final OutputStream out = BenchmarkStreams.wrap(channel.socket().getOutputStream(), wrapper.wrapper);
+		final FileInputStream in = new FileInputStream(payload.file);
+		final long copied;
+		try {
+			copied = IOUtils.copyLarge(in, out, new byte[buffer.bufferKB * 1024]);
+		} finally {
+			in.close();
+			out.close();
+			channel.close();
+		}
+		payload.checkDrained();
+		return copied;
+	}
+
+	/**
+	 * FileChannel.transferTo to the socket channel, letting the kernel copy the
+	 * file without user space buffers
+	 */
+	@Benchmark
+	public long transferTo(Payload payload) throws IOException, InterruptedException {
+		final SocketChannel channel = payload.sink.connect();
+		final RandomAccessFile file = new RandomAccessFile(payload.file, "r");
+		long copied = 0l;
+		try {
+			final FileChannel fileChannel = file.getChannel();
+			final long size = fileChannel.size();
+			while (copied < size) {
+				copied += fileChannel.transferTo(copied, size - copied, channel);
+			}
+		} finally {
+			file.close();
+			channel.close();
+		}
+		payload.checkDrained();
+		return copied;
+	}
+
+	/**
+	 * FileChannel read into a direct buffer that is written to the socket
+	 * channel
+	 */
+	@Benchmark
+	public long directBuffer(Payload payload, Buffer buffer) throws IOException, InterruptedException {
+		final SocketChannel channel = payload.sink.connect();
+		final RandomAccessFile file = new RandomAccessFile(payload.file, "r");
+		long copied = 0l;
+		try {
+			final FileChannel fileChannel = file.getChannel();
+			final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(buffer.bufferKB * 1024);
+			while (fileChannel.read(byteBuffer) != -1) {
+				byteBuffer.flip();
+				while (byteBuffer.hasRemaining()) {
+					copied += channel.write(byteBuffer);
+				}
+				byteBuffer.clear();
+			}
+		} finally {
+			file.close();
+			channel.close();
+		}
+		payload.checkDrained();
+		return copied;
+	}
+}
@@ -0,0 +1,102 @@
+package edu.scripps.yates.ip2tomassive.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Stand-in for the data connection of an FTP upload: a server socket in the
+ * loopback interface that reads and discards everything sent to it, so that
+ * the cost of the copy loops can be measured including the socket writes but
+ * without a real server.
+ *
+ * @author salvador
+ *
+ */
+public class LoopbackSink {
+	private final ServerSocket serverSocket;
+	private final Thread acceptor;
+	private final BlockingQueue<Long> drainedBytes = new ArrayBlockingQueue<Long>(16);
+	private volatile boolean closed = false;
+
+	public LoopbackSink() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						final Socket socket = serverSocket.accept();
+						drain(socket);
+					} catch (final IOException e) {
+						if (!closed) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		}, "loopback-sink");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void drain(final Socket socket) {
+		final Thread drainer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				long bytes = 0l;
+				final byte[] buffer = new byte[256 * 1024];
+				try {
+					final InputStream inputStream = socket.getInputStream();
+					int read;
+					while ((read = inputStream.read(buffer)) != -1) {
+						bytes += read;
+					}
+					socket.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+					bytes = -1l;
+				}
+				drainedBytes.add(bytes);
+			}
+		}, "loopback-sink-drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 *
+	 * @return a new connection to the sink. Its output stream can be taken from
+	 *         its socket.
+	 * @throws IOException
+	 */
+	public SocketChannel connect() throws IOException {
+		final SocketChannel channel = SocketChannel
+				.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+		channel.socket().setSendBufferSize(256 * 1024);
+		return channel;
+	}
+
+	/**
+	 * Waits until the other side of a closed connection has read everything
+	 *
+	 * @return the number of bytes read from the connection
+	 * @throws InterruptedException
+	 */
+	public long awaitDrained() throws InterruptedException {
+		return drainedBytes.take();
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+	}
+}
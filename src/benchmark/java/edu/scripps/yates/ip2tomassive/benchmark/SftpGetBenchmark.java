@@ -0,0 +1,186 @@
+package edu.scripps.yates.ip2tomassive.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+import edu.scripps.yates.ip2tomassive.SftpChannelPool;
+import edu.scripps.yates.ip2tomassive.StripedSftpReader;
+
+/**
+ * Copy loops of a file read by SFTP from an {@link EmbeddedSftpServer} to a
+ * socket, as in MultipleProjectIP2ToMassive.transferFile, sweeping payload
+ * sizes, buffer sizes, the wrappers put around the stream to the destination
+ * and the number of channels of the striped reads.
+ *
+ * @author salvador
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SftpGetBenchmark {
+	private static final String FILE_NAME = "payload.raw";
+
+	@State(Scope.Benchmark)
+	public static class Server {
+		@Param({ "1", "64", "512" })
+		public int payloadMB;
+		public File folder;
+		public EmbeddedSftpServer sftpServer;
+		public Session session;
+		public ChannelSftp channel;
+		public LoopbackSink sink;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException, JSchException {
+			final File payload = BenchmarkStreams.createPayload(payloadMB * 1024l * 1024l);
+			folder = payload.getParentFile();
+			final File file = new File(folder, FILE_NAME);
+			file.delete();
+			if (!payload.renameTo(file)) {
+				throw new IOException("Cannot create " + file.getAbsolutePath());
+			}
+			file.deleteOnExit();
+			sftpServer = new EmbeddedSftpServer(folder);
+			session = new JSch().getSession(EmbeddedSftpServer.USER_NAME, sftpServer.getHost(),
+					sftpServer.getPort());
+			session.setPassword(EmbeddedSftpServer.PASSWORD);
+			session.setConfig("StrictHostKeyChecking", "no");
+			session.connect();
+			channel = (ChannelSftp) session.openChannel("sftp");
+			channel.connect();
+			sink = new LoopbackSink();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			channel.disconnect();
+			session.disconnect();
+			sftpServer.stop();
+			sink.close();
+			new File(folder, FILE_NAME).delete();
+		}
+
+		private void checkDrained() throws InterruptedException {
+			final long drained = sink.awaitDrained();
+			if (drained != payloadMB * 1024l * 1024l) {
+				throw new IllegalStateException(drained + " bytes received instead of " + payloadMB + " MB");
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Buffer {
+		@Param({ "32", "256", "1024" })
+		public int bufferKB;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Wrapper {
+		@Param({ BenchmarkStreams.NONE, BenchmarkStreams.PIPELINE, BenchmarkStreams.DIGEST,
+				BenchmarkStreams.PIPELINE_DIGEST })
+		public String wrapper;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Striped {
+		@Param({ "2", "4" })
+		public int channels;
+		public SftpChannelPool pool;
+
+		@Setup(Level.Trial)
+		public void setup(Server server) {
+			pool = SftpChannelPool.getInstance(server.sftpServer.getHost(), EmbeddedSftpServer.USER_NAME,
+					EmbeddedSftpServer.PASSWORD, server.sftpServer.getPort(), 1, channels, 60000l);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			pool.close();
+		}
+	}
+
+	/**
+	 * ChannelSftp.get writing to the output stream, as done now
+	 */
+	@Benchmark
+	public void get(Server server, Wrapper wrapper) throws IOException, SftpException, InterruptedException {
+		final SocketChannel socketChannel = server.sink.connect();
+		final OutputStream out = BenchmarkStreams.wrap(socketChannel.socket().getOutputStream(), wrapper.wrapper);
+		try {
+			server.channel.get(FILE_NAME, out);
+		} finally {
+			out.close();
+			socketChannel.close();
+		}
+		server.checkDrained();
+	}
+
+	/**
+	 * ChannelSftp.get returning an input stream that is copied with
+	 * IOUtils.copyLarge
+	 */
+	@Benchmark
+	public long getInputStream(Server server, Buffer buffer)
+			throws IOException, SftpException, InterruptedException {
+		final SocketChannel socketChannel = server.sink.connect();
+		final OutputStream out = socketChannel.socket().getOutputStream();
+		final InputStream in = server.channel.get(FILE_NAME);
+		final long copied;
+		try {
+			copied = IOUtils.copyLarge(in, out, new byte[buffer.bufferKB * 1024]);
+		} finally {
+			in.close();
+			out.close();
+			socketChannel.close();
+		}
+		server.checkDrained();
+		return copied;
+	}
+
+	/**
+	 * {@link StripedSftpReader} reading 8 MB chunks over several channels
+	 */
+	@Benchmark
+	public long striped(Server server, Striped striped) throws IOException, SftpException, InterruptedException {
+		final SocketChannel socketChannel = server.sink.connect();
+		final OutputStream out = socketChannel.socket().getOutputStream();
+		final long copied;
+		try {
+			copied = new StripedSftpReader(striped.pool, striped.channels, 8 * 1024 * 1024).read(server.channel,
+					FILE_NAME, 0l, server.payloadMB * 1024l * 1024l, out, null);
+		} finally {
+			out.close();
+			socketChannel.close();
+		}
+		server.checkDrained();
+		return copied;
+	}
+}
@@ -0,0 +1,300 @@
+package edu.scripps.yates.ip2tomassive.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.scripps.yates.ip2tomassive.FileType;
+import edu.scripps.yates.ip2tomassive.IP2ToMassive;
+import edu.scripps.yates.ip2tomassive.MetricsRegistry;
+import edu.scripps.yates.ip2tomassive.MultipleProjectIP2ToMassive;
+import edu.scripps.yates.ip2tomassive.MultipleProjectIP2ToSftp;
+import edu.scripps.yates.ip2tomassive.MySftpProgressMonitor;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * End to end throughput harness: it generates a synthetic IP2 project tree and
+ * its remote paths file, serves the tree with an {@link EmbeddedSftpServer},
+ * and runs {@link MultipleProjectIP2ToMassive#transferDatasets()} against an
+ * {@link EmbeddedFtpServer}, or {@link MultipleProjectIP2ToSftp} against
+ * another {@link EmbeddedSftpServer} with destination=sftp, reporting the
+ * files/s, MB/s and the time spent in each phase.<br>
+ * Usage: TransferHarness scenario [destination=ftp|sftp] [property=value
+ * ...]<br>
+ * where the scenario is one of:
+ * <ul>
+ * <li>small: 10000 files of 16 KB in 10 datasets</li>
+ * <li>huge: 3 files of 1 GB in 1 dataset</li>
+ * <li>numDatasets:numFiles:fileSizeKB: numFiles files of fileSizeKB KB in
+ * each of numDatasets datasets</li>
+ * </ul>
+ * and the optional properties are added to the properties file of the
+ * transfer, as in transfer_threads=8
+ *
+ * @author salvador
+ *
+ */
+public class TransferHarness {
+	private static final String IP2_HOST = "localhost";
+	private static final String IP2_PROJECT_PATH = "/ip2_data/harness/project";
+	private static final String PROJECT_NAME = "harness";
+	private static final String[] OPERATIONS = { "connect", "login", "size_probe", "mkdir", "stream" };
+	private static final String DESTINATION = "destination";
+	private final int numDatasets;
+	private final int numFilesPerDataset;
+	private final long fileSize;
+	private final File workFolder;
+	private final File ip2Folder;
+	private final File massiveFolder;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: TransferHarness small|huge|numDatasets:numFiles:fileSizeKB"
+					+ " [destination=ftp|sftp] [property=value ...]");
+			System.exit(-1);
+		}
+		try {
+			final TransferHarness harness = getHarness(args[0]);
+			final Properties extraProperties = new Properties();
+			for (int i = 1; i < args.length; i++) {
+				final String[] split = args[i].split("=");
+				extraProperties.setProperty(split[0].trim(), split[1].trim());
+			}
+			harness.run(extraProperties);
+			System.exit(0);
+		} catch (final Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	private static TransferHarness getHarness(String scenario) throws IOException {
+		if ("small".equals(scenario)) {
+			return new TransferHarness(10, 1000, 16 * 1024l);
+		} else if ("huge".equals(scenario)) {
+			return new TransferHarness(1, 3, 1024 * 1024 * 1024l);
+		}
+		final String[] split = scenario.split(":");
+		if (split.length != 3) {
+			throw new IllegalArgumentException("Unknown scenario " + scenario);
+		}
+		return new TransferHarness(Integer.valueOf(split[0]), Integer.valueOf(split[1]),
+				Long.valueOf(split[2]) * 1024l);
+	}
+
+	public TransferHarness(int numDatasets, int numFilesPerDataset, long fileSize) throws IOException {
+		this.numDatasets = numDatasets;
+		this.numFilesPerDataset = numFilesPerDataset;
+		this.fileSize = fileSize;
+		workFolder = File.createTempFile("ip2-harness-", "");
+		workFolder.delete();
+		ip2Folder = new File(workFolder, "ip2");
+		massiveFolder = new File(workFolder, "massive");
+		if (!massiveFolder.mkdirs()) {
+			throw new IOException("Cannot create " + massiveFolder.getAbsolutePath());
+		}
+	}
+
+	public void run(Properties extraProperties) throws Exception {
+		final PrintStream out = System.out;
+		final long t1 = System.currentTimeMillis();
+		final File remotePathsFile = generateProjectTree();
+		final long generationTime = System.currentTimeMillis() - t1;
+		final boolean sftpDestination = "sftp".equals(extraProperties.remove(DESTINATION));
+		final EmbeddedSftpServer sftpServer = new EmbeddedSftpServer(ip2Folder);
+		final EmbeddedFtpServer ftpServer = sftpDestination ? null : new EmbeddedFtpServer(massiveFolder, 256);
+		final EmbeddedSftpServer destinationSftpServer = sftpDestination ? new EmbeddedSftpServer(massiveFolder)
+				: null;
+		final String destinationHost = sftpDestination ? destinationSftpServer.getHost() : ftpServer.getHost();
+		final File logFile = new File(workFolder, "transfer.log");
+		final PrintStream log = new PrintStream(new FileOutputStream(logFile), true);
+		long transferTime;
+		try {
+			final Properties properties = getProperties(sftpServer);
+			if (sftpDestination) {
+				properties.setProperty(IP2ToMassive.SFTP_SERVER_URL, destinationSftpServer.getHost());
+				properties.setProperty(IP2ToMassive.SFTP_SERVER_PORT, String.valueOf(destinationSftpServer.getPort()));
+				properties.setProperty(IP2ToMassive.SFTP_SERVER_USER_NAME, EmbeddedSftpServer.USER_NAME);
+				properties.setProperty(IP2ToMassive.SFTP_SERVER_PASSWORD, EmbeddedSftpServer.PASSWORD);
+			} else {
+				properties.setProperty("massive_server_url", ftpServer.getHost());
+				properties.setProperty(IP2ToMassive.MASSIVE_SERVER_PORT, String.valueOf(ftpServer.getPort()));
+				properties.setProperty("massive_server_user_name", EmbeddedFtpServer.USER_NAME);
+				properties.setProperty("massive_server_password", EmbeddedFtpServer.PASSWORD);
+			}
+			properties.putAll(extraProperties);
+			final File propertiesFile = writeProperties(properties);
+			// the progress of each file is written to the log file
+			System.setOut(log);
+			final long t2 = System.currentTimeMillis();
+			final MySftpProgressMonitor progressMonitor = new MySftpProgressMonitor(log);
+			final MultipleProjectIP2ToMassive transfer = sftpDestination
+					? new MultipleProjectIP2ToSftp(progressMonitor, propertiesFile, new THashMap<String, String>(),
+							remotePathsFile)
+					: new MultipleProjectIP2ToMassive(progressMonitor, propertiesFile, new THashMap<String, String>(),
+							remotePathsFile);
+			transfer.transferDatasets();
+			transferTime = System.currentTimeMillis() - t2;
+		} finally {
+			System.setOut(out);
+			log.close();
+			if (ftpServer != null) {
+				ftpServer.stop();
+			}
+			if (destinationSftpServer != null) {
+				destinationSftpServer.stop();
+			}
+			sftpServer.stop();
+		}
+		if (report(out, generationTime, transferTime, destinationHost)) {
+			FileUtils.deleteQuietly(workFolder);
+		} else {
+			out.println("See the output of the transfer in " + logFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Writes the files of the datasets in the folder served by the SFTP server,
+	 * as experiments with a spectra folder, and the remote paths file listing
+	 * them
+	 *
+	 * @return the remote paths file
+	 * @throws IOException
+	 */
+	private File generateProjectTree() throws IOException {
+		final File remotePathsFile = new File(workFolder, PROJECT_NAME + "_paths.txt");
+		final Writer writer = new FileWriter(remotePathsFile);
+		final byte[] content = new byte[(int) Math.min(fileSize, 1024 * 1024)];
+		new Random(fileSize).nextBytes(content);
+		try {
+			for (int i = 0; i < numDatasets; i++) {
+				final String datasetName = "dataset" + (i + 1);
+				final String experimentPath = IP2_PROJECT_PATH + "/" + datasetName + "_" + (10000 + i) + "/spectra";
+				final File experimentFolder = new File(ip2Folder, experimentPath);
+				if (!experimentFolder.mkdirs()) {
+					throw new IOException("Cannot create " + experimentFolder.getAbsolutePath());
+				}
+				writer.write("DATASET\t" + datasetName + "\n");
+				writer.write(FileType.MS2.getDescription() + "\n");
+				for (int j = 0; j < numFilesPerDataset; j++) {
+					final String fileName = datasetName + "_" + (j + 1) + ".ms2";
+					writeFile(new File(experimentFolder, fileName), content);
+					writer.write(experimentPath + "/" + fileName + "\t" + fileName + "\n");
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		return remotePathsFile;
+	}
+
+	private void writeFile(File file, byte[] content) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			long written = 0l;
+			while (written < fileSize) {
+				final int n = (int) Math.min(content.length, fileSize - written);
+				out.write(content, 0, n);
+				written += n;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param sftpServer
+	 * @return the properties of the transfer from the SFTP server standing in
+	 *         for IP2, without the destination
+	 */
+	private Properties getProperties(EmbeddedSftpServer sftpServer) {
+		final Properties properties = new Properties();
+		properties.setProperty("ip2_server_url", IP2_HOST);
+		properties.setProperty("ip2_server_user_name", EmbeddedSftpServer.USER_NAME);
+		properties.setProperty("ip2_server_password", EmbeddedSftpServer.PASSWORD);
+		properties.setProperty("ip2_server_connection_port", String.valueOf(sftpServer.getPort()));
+		properties.setProperty(IP2ToMassive.IP2_SERVER_PROJECT_BASE_PATH, IP2_PROJECT_PATH);
+		properties.setProperty(IP2ToMassive.PROJECT_NAME, PROJECT_NAME);
+		properties.setProperty(IP2ToMassive.TRANSFER_THREADS, "4");
+		return properties;
+	}
+
+	private File writeProperties(Properties properties) throws IOException {
+		final File propertiesFile = new File(workFolder, PROJECT_NAME + ".properties");
+		final Writer writer = new FileWriter(propertiesFile);
+		try {
+			properties.store(writer, "end to end transfer harness");
+		} finally {
+			writer.close();
+		}
+		return propertiesFile;
+	}
+
+	/**
+	 *
+	 * @param out
+	 * @param generationTime
+	 * @param transferTime
+	 * @param massiveHost
+	 * @return true if all the files arrived to the FTP server with their sizes,
+	 *         once uncompressed if they were compressed
+	 * @throws IOException
+	 */
+	private boolean report(PrintStream out, long generationTime, long transferTime, String massiveHost)
+			throws IOException {
+		final int numFiles = numDatasets * numFilesPerDataset;
+		final long expectedBytes = numFiles * fileSize;
+		int filesReceived = 0;
+		long bytesReceived = 0l;
+		for (final File file : FileUtils.listFiles(massiveFolder, new String[] { "ms2", "gz" }, true)) {
+			filesReceived++;
+			if (file.getName().endsWith(".gz")) {
+				final InputStream inputStream = new GZIPInputStream(new FileInputStream(file));
+				try {
+					bytesReceived += IOUtils.skip(inputStream, Long.MAX_VALUE);
+				} finally {
+					inputStream.close();
+				}
+			} else {
+				bytesReceived += file.length();
+			}
+		}
+		final double seconds = transferTime / 1000.0;
+		out.println(String.format("%d datasets, %d files of %d KB (%.1f MB)", numDatasets, numFiles, fileSize / 1024,
+				expectedBytes / (1024.0 * 1024)));
+		out.println("Generation of the project tree: " + generationTime + " ms");
+		out.println("Transfer: " + transferTime + " ms");
+		out.println(String.format("Throughput: %.1f files/s, %.1f MB/s", numFiles / seconds,
+				bytesReceived / seconds / (1024 * 1024)));
+		out.println("Phase\tserver\tcount\ttotal (s)\tmean (ms)");
+		final MetricsRegistry metrics = MetricsRegistry.getInstance();
+		for (final String server : new String[] { IP2_HOST, massiveHost }) {
+			for (final String operation : OPERATIONS) {
+				final long count = metrics.operationSeconds.getCount(server, operation);
+				if (count > 0) {
+					final double sum = metrics.operationSeconds.getSum(server, operation);
+					out.println(String.format("%s\t%s\t%d\t%.2f\t%.2f", operation, server, count, sum,
+							sum * 1000 / count));
+				}
+			}
+		}
+		if (filesReceived != numFiles || bytesReceived != expectedBytes) {
+			out.println("ERROR: " + filesReceived + " files and " + bytesReceived + " bytes received instead of "
+					+ numFiles + " files and " + expectedBytes + " bytes");
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,157 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Checksums of the files of a dataset, that are written in the dataset folder
+ * as {@link #MD5_FILE_NAME} and {@link #SHA256_FILE_NAME}, in the format of
+ * md5sum and sha256sum, with the paths relative to the dataset folder.
+ * 
+ * @author salvador
+ * 
+ */
+public class ChecksumManifest {
+	public static final String MD5_FILE_NAME = "checksums.md5";
+	public static final String SHA256_FILE_NAME = "checksums.sha256";
+	private final Map<String, String> md5sByPath = new TreeMap<String, String>();
+	private final Map<String, String> sha256sByPath = new TreeMap<String, String>();
+	private final Set<String> pathsWithoutChecksums = new TreeSet<String>();
+
+	/**
+	 * 
+	 * @param relativePath path of the file relative to the dataset folder
+	 * @param md5
+	 * @param sha256
+	 */
+	public synchronized void add(String relativePath, String md5, String sha256) {
+		md5sByPath.put(relativePath, md5);
+		sha256sByPath.put(relativePath, sha256);
+		pathsWithoutChecksums.remove(relativePath);
+	}
+
+	/**
+	 * Records a file that was uploaded without computing its checksums, so that
+	 * the checksums of a previous version of it are not taken from the manifest
+	 * already in the destination
+	 * 
+	 * @param relativePath path of the file relative to the dataset folder
+	 */
+	public synchronized void addWithoutChecksums(String relativePath) {
+		md5sByPath.remove(relativePath);
+		sha256sByPath.remove(relativePath);
+		pathsWithoutChecksums.add(relativePath);
+	}
+
+	/**
+	 * 
+	 * @return the files uploaded without computing their checksums, that are not
+	 *         in the manifest
+	 */
+	public synchronized Set<String> getPathsWithoutChecksums() {
+		return new TreeSet<String>(pathsWithoutChecksums);
+	}
+
+	/**
+	 * Adds the checksums of a manifest that is already in the destination, of
+	 * the files that are not in this one
+	 * 
+	 * @param md5Text    content of {@link #MD5_FILE_NAME}, or null if it is not
+	 *                   in the destination
+	 * @param sha256Text content of {@link #SHA256_FILE_NAME}, or null if it is
+	 *                   not in the destination
+	 * @return the number of files added
+	 */
+	public synchronized int merge(String md5Text, String sha256Text) {
+		final Map<String, String> md5s = parseText(md5Text);
+		final Map<String, String> sha256s = parseText(sha256Text);
+		int ret = 0;
+		for (final String path : md5s.keySet()) {
+			if (!md5sByPath.containsKey(path) && !pathsWithoutChecksums.contains(path)
+					&& sha256s.containsKey(path)) {
+				add(path, md5s.get(path), sha256s.get(path));
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds a checksum as returned by {@link #getChecksum(String, String)}
+	 * 
+	 * @param relativePath
+	 * @param checksum
+	 * @return true if the checksum could be parsed
+	 */
+	public boolean add(String relativePath, String checksum) {
+		if (checksum == null) {
+			return false;
+		}
+		final String[] split = checksum.split(":");
+		if (split.length != 2) {
+			return false;
+		}
+		add(relativePath, split[0], split[1]);
+		return true;
+	}
+
+	/**
+	 * 
+	 * @param md5
+	 * @param sha256
+	 * @return both checksums in one string, as they are stored in the
+	 *         {@link TransferJournal}
+	 */
+	public static String getChecksum(String md5, String sha256) {
+		return md5 + ":" + sha256;
+	}
+
+	public synchronized boolean isEmpty() {
+		return md5sByPath.isEmpty();
+	}
+
+	public synchronized int size() {
+		return md5sByPath.size();
+	}
+
+	/**
+	 * 
+	 * @return the content of {@link #MD5_FILE_NAME}
+	 */
+	public synchronized String getMd5Text() {
+		return getText(md5sByPath);
+	}
+
+	/**
+	 * 
+	 * @return the content of {@link #SHA256_FILE_NAME}
+	 */
+	public synchronized String getSha256Text() {
+		return getText(sha256sByPath);
+	}
+
+	private Map<String, String> parseText(String text) {
+		final Map<String, String> ret = new HashMap<String, String>();
+		if (text == null) {
+			return ret;
+		}
+		for (final String line : text.split("\n")) {
+			final int index = line.indexOf("  ");
+			if (index > 0) {
+				ret.put(line.substring(index + 2), line.substring(0, index));
+			}
+		}
+		return ret;
+	}
+
+	private String getText(Map<String, String> checksumsByPath) {
+		final StringBuilder sb = new StringBuilder();
+		for (final String path : checksumsByPath.keySet()) {
+			sb.append(checksumsByPath.get(path)).append("  ").append(path).append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,128 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import gnu.trove.map.hash.TObjectLongHashMap;
+
+/**
+ * Append-only file with the sizes of the files that were compressed while they
+ * were uploaded, so that a later run can know whether a compressed file in the
+ * destination is complete by comparing its size with the one recorded here
+ * for the same size of the source file.<br>
+ * Each line is a tab separated record: destination path sizeInSource
+ * compressedSize. The last record of a file is the valid one.
+ *
+ * @author salvador
+ *
+ */
+public class CompressedSizeSidecar {
+	private final static Logger log = Logger.getLogger(CompressedSizeSidecar.class);
+	private final File sidecarFile;
+	private final TObjectLongHashMap<String> sourceSizesByFile = new TObjectLongHashMap<String>();
+	private final TObjectLongHashMap<String> compressedSizesByFile = new TObjectLongHashMap<String>();
+	private final Writer writer;
+
+	/**
+	 *
+	 * @param remotePathsFile
+	 * @return the sidecar file of that remote paths file, in the same folder
+	 */
+	public static File getSidecarFile(File remotePathsFile) {
+		return new File(remotePathsFile.getAbsoluteFile().getParentFile(),
+				FilenameUtils.getBaseName(remotePathsFile.getName()) + "_compressed_sizes.txt");
+	}
+
+	/**
+	 * Reads the sidecar file if it exists and opens it to append new records
+	 *
+	 * @param sidecarFile
+	 * @throws IOException
+	 */
+	public CompressedSizeSidecar(File sidecarFile) throws IOException {
+		this.sidecarFile = sidecarFile;
+		if (sidecarFile.exists()) {
+			read();
+		}
+		writer = new OutputStreamWriter(new FileOutputStream(sidecarFile, true), StandardCharsets.UTF_8);
+	}
+
+	private void read() throws IOException {
+		int numLines = 0;
+		final BufferedReader reader = new BufferedReader(new FileReader(sidecarFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				numLines++;
+				final String[] split = line.split("\t");
+				try {
+					if (split.length != 4) {
+						throw new NumberFormatException();
+					}
+					final String key = getKey(split[0], split[1]);
+					sourceSizesByFile.put(key, Long.valueOf(split[2]));
+					compressedSizesByFile.put(key, Long.valueOf(split[3]));
+				} catch (final NumberFormatException e) {
+					// it may be the last line, written partially when the program was stopped
+					log.warn("Ignoring malformed line " + numLines + " in " + sidecarFile.getAbsolutePath());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		log.info(compressedSizesByFile.size() + " compressed files read from " + sidecarFile.getAbsolutePath());
+	}
+
+	/**
+	 *
+	 * @param destination  identifier of the destination, so that two destinations
+	 *                     with the same folders don't share their records
+	 * @param path         path of the compressed file in the destination
+	 * @param sizeInSource size of the file before compressing it
+	 * @return the size of the compressed file if it was completely uploaded from
+	 *         a file of that size, or -1 otherwise
+	 */
+	public synchronized long getCompressedSize(String destination, String path, long sizeInSource) {
+		final String key = getKey(destination, path);
+		if (compressedSizesByFile.containsKey(key) && sourceSizesByFile.get(key) == sizeInSource) {
+			return compressedSizesByFile.get(key);
+		}
+		return -1l;
+	}
+
+	public synchronized void fileCompressed(String destination, String path, long sizeInSource,
+			long compressedSize) {
+		final String key = getKey(destination, path);
+		sourceSizesByFile.put(key, sizeInSource);
+		compressedSizesByFile.put(key, compressedSize);
+		try {
+			writer.write(key + "\t" + sizeInSource + "\t" + compressedSize + "\n");
+			writer.flush();
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error writing to " + sidecarFile.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			writer.close();
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error closing " + sidecarFile.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	private String getKey(String destination, String path) {
+		return destination + "\t" + path;
+	}
+}
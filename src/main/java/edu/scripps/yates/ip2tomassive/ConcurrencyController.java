@@ -0,0 +1,265 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.files.FileUtils;
+
+/**
+ * Limits the number of transfers running at the same time, adjusting the limit
+ * with an additive increase / multiplicative decrease (AIMD) policy:<br>
+ * Every interval, the aggregated throughput of the transfers is measured. If
+ * there were errors in the interval, the limit is halved. If all the allowed
+ * transfers were running and the throughput improved since the last increase,
+ * the limit is increased by one. If it didn't improve (a plateau), the limit
+ * is decreased by a quarter.<br>
+ * Workers call {@link #acquire()} before starting a transfer and
+ * {@link #release()} after it. The transferred bytes are reported with
+ * {@link #addBytes(long)} or {@link #meter(OutputStream)}, and the errors with
+ * {@link #recordError()}.
+ * 
+ * @author salvador
+ * 
+ */
+public class ConcurrencyController {
+	private final static Logger log = Logger.getLogger(ConcurrencyController.class);
+	/**
+	 * minimum relative improvement of the throughput to consider that adding a
+	 * transfer was worth it
+	 */
+	private static final double MIN_IMPROVEMENT = 0.05;
+	private static final double ERROR_DECREASE_FACTOR = 0.5;
+	private static final double PLATEAU_DECREASE_FACTOR = 0.75;
+	private final int minLimit;
+	private final int maxLimit;
+	private final long intervalMillis;
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final ScheduledExecutorService scheduler;
+	private int limit;
+	private int active = 0;
+	private int maxActiveInInterval = 0;
+	private long lastAdjustment = System.currentTimeMillis();
+	private double throughput = 0.0;
+	/**
+	 * throughput measured before the last increase of the limit, or -1 if the
+	 * last adjustment was not an increase
+	 */
+	private double throughputBeforeIncrease = -1.0;
+	private int numIncreases = 0;
+	private int numDecreases = 0;
+
+	/**
+	 * 
+	 * @param minLimit       minimum number of transfers at the same time
+	 * @param maxLimit       maximum number of transfers at the same time
+	 * @param initialLimit
+	 * @param intervalMillis time between adjustments of the limit
+	 */
+	public ConcurrencyController(int minLimit, int maxLimit, int initialLimit, long intervalMillis) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+		this.intervalMillis = intervalMillis;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "concurrency-controller");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				adjust();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		log.info("Adaptive concurrency between " + this.minLimit + " and " + this.maxLimit
+				+ " transfers, starting with " + limit);
+	}
+
+	/**
+	 * Blocks until a transfer can be started
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (active >= limit) {
+			wait();
+		}
+		active++;
+		maxActiveInInterval = Math.max(maxActiveInInterval, active);
+	}
+
+	/**
+	 * To be called when a transfer started with {@link #acquire()} finishes
+	 */
+	public synchronized void release() {
+		active--;
+		notifyAll();
+	}
+
+	public void addBytes(long numBytes) {
+		bytes.addAndGet(numBytes);
+	}
+
+	public void recordError() {
+		errors.incrementAndGet();
+	}
+
+	/**
+	 * 
+	 * @param out
+	 * @return an output stream that reports the bytes written to out with
+	 *         {@link #addBytes(long)}
+	 */
+	public OutputStream meter(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				addBytes(1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				addBytes(len);
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param in
+	 * @return an input stream that reports the bytes read from in with
+	 *         {@link #addBytes(long)}
+	 */
+	public InputStream meter(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				final int b = in.read();
+				if (b != -1) {
+					addBytes(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				final int read = in.read(b, off, len);
+				if (read > 0) {
+					addBytes(read);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Adjusts the limit with the throughput and the errors since the last
+	 * adjustment. It is called every interval, and by the tests.
+	 */
+	synchronized void adjust() {
+		final long now = System.currentTimeMillis();
+		final long elapsed = Math.max(1l, now - lastAdjustment);
+		lastAdjustment = now;
+		throughput = bytes.getAndSet(0l) * 1000.0 / elapsed;
+		final int numErrors = errors.getAndSet(0);
+		final boolean saturated = maxActiveInInterval >= limit;
+		maxActiveInInterval = active;
+		final int previousLimit = limit;
+		String reason = null;
+		if (numErrors > 0) {
+			limit = Math.max(minLimit, (int) (limit * ERROR_DECREASE_FACTOR));
+			throughputBeforeIncrease = -1.0;
+			reason = numErrors + " errors";
+		} else if (!saturated) {
+			// there were not enough transfers to reach the limit, so the
+			// throughput says nothing about it
+			return;
+		} else if (throughputBeforeIncrease >= 0
+				&& throughput < throughputBeforeIncrease * (1.0 + MIN_IMPROVEMENT)) {
+			limit = Math.max(minLimit, (int) (limit * PLATEAU_DECREASE_FACTOR));
+			throughputBeforeIncrease = -1.0;
+			reason = "throughput didn't improve with the last increase";
+		} else if (limit < maxLimit) {
+			throughputBeforeIncrease = throughput;
+			limit++;
+			reason = "all transfers in use";
+		} else {
+			throughputBeforeIncrease = -1.0;
+		}
+		final String speed = FileUtils.getDescriptiveSizeFromBytes(Double.valueOf(throughput).longValue()) + "/sg";
+		if (limit > previousLimit) {
+			numIncreases++;
+			log.info("Concurrent transfers increased from " + previousLimit + " to " + limit + " (" + reason
+					+ ", throughput: " + speed + ")");
+			notifyAll();
+		} else if (limit < previousLimit) {
+			numDecreases++;
+			log.info("Concurrent transfers decreased from " + previousLimit + " to " + limit + " (" + reason
+					+ ", throughput: " + speed + ")");
+		} else {
+			log.debug("Concurrent transfers kept at " + limit + " (throughput: " + speed + ")");
+		}
+	}
+
+	/**
+	 * Stops adjusting the limit
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * 
+	 * @return the current maximum number of transfers at the same time
+	 */
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * 
+	 * @return the number of transfers running
+	 */
+	public synchronized int getActive() {
+		return active;
+	}
+
+	/**
+	 * 
+	 * @return the throughput in bytes per second measured in the last interval
+	 */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	public synchronized int getNumIncreases() {
+		return numIncreases;
+	}
+
+	public synchronized int getNumDecreases() {
+		return numDecreases;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+}
@@ -1,14 +1,29 @@
 package edu.scripps.yates.ip2tomassive;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Paths of the files of a dataset, by {@link FileType} and in the order in
+ * which they were added.<br>
+ * Each list of paths is indexed by a hash set, so that adding a path is
+ * constant time even with millions of paths.
+ *
+ * @author salvador
+ *
+ */
 public class Dataset {
 	private final String name;
-	private final Map<FileType, List<String>> pathsByFileType = new HashMap<FileType, List<String>>();
+	private final Map<FileType, List<String>> pathsByFileType = new EnumMap<FileType, List<String>>(FileType.class);
+	private final Map<FileType, Set<String>> pathIndexesByFileType = new EnumMap<FileType, Set<String>>(
+			FileType.class);
 	private final Map<String, String> remoteOutputFileNamesByPath = new HashMap<String, String>();
+	private int numDuplicatedPaths = 0;
 
 	public Dataset(String name) {
 		this.name = name;
@@ -18,22 +33,28 @@ public class Dataset {
 		return name;
 	}
 
-	public void addPath(FileType fileType, String path) {
+	/**
+	 * Adds a path if it was not already added with the same {@link FileType}
+	 *
+	 * @param fileType
+	 * @param path
+	 * @return true if the path was added
+	 */
+	public boolean addPath(FileType fileType, String path) {
 		if (!pathsByFileType.containsKey(fileType)) {
 			addFileType(fileType);
 		}
-		if (!pathsByFileType.get(fileType).contains(path)) {
+		if (pathIndexesByFileType.get(fileType).add(path)) {
 			pathsByFileType.get(fileType).add(path);
-		} else {
-			System.out.println("Already there");
-		}
-		if (fileType == FileType.RAW) {
-			System.out.println(hashCode() + "\t" + getName() + "\t" + pathsByFileType.get(fileType).size());
+			return true;
 		}
+		numDuplicatedPaths++;
+		return false;
 	}
 
 	private void addFileType(FileType fileType) {
 		pathsByFileType.put(fileType, new ArrayList<String>());
+		pathIndexesByFileType.put(fileType, new HashSet<String>());
 	}
 
 	public void addRemoteOutputFileName(String path, String localFileName) {
@@ -44,6 +65,12 @@ public class Dataset {
 		remoteOutputFileNamesByPath.put(path, localFileName);
 	}
 
+	/**
+	 *
+	 * @return the paths by {@link FileType}, in the order in which they were
+	 *         added. New paths have to be added with
+	 *         {@link #addPath(FileType, String)} so that they are indexed
+	 */
 	public Map<FileType, List<String>> getPathsByFileType() {
 		return pathsByFileType;
 	}
@@ -51,4 +78,25 @@ public class Dataset {
 	public Map<String, String> getOutputFileNameByPath() {
 		return remoteOutputFileNamesByPath;
 	}
+
+	/**
+	 *
+	 * @return the total number of paths of the dataset
+	 */
+	public int getNumPaths() {
+		int ret = 0;
+		for (final List<String> paths : pathsByFileType.values()) {
+			ret += paths.size();
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @return the number of paths that were ignored because they were already
+	 *         added
+	 */
+	public int getNumDuplicatedPaths() {
+		return numDuplicatedPaths;
+	}
 }
@@ -0,0 +1,76 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Files found in an experiment folder of IP2 by
+ * {@link IP2ToMassive#scanExperiment(String, boolean)}: the files of the
+ * spectra folder classified by {@link FileType}, and the DTASelect files of
+ * the searches
+ *
+ * @author salvador
+ *
+ */
+public class ExperimentScan {
+	private final String experimentPath;
+	private final Map<FileType, List<String>> pathsByFileType = new EnumMap<FileType, List<String>>(FileType.class);
+	private final List<Search> searches = new ArrayList<Search>();
+	private int spectraMTime = -1;
+
+	public ExperimentScan(String experimentPath) {
+		this.experimentPath = experimentPath;
+	}
+
+	public String getExperimentPath() {
+		return experimentPath;
+	}
+
+	void addPath(FileType fileType, String path) {
+		List<String> paths = pathsByFileType.get(fileType);
+		if (paths == null) {
+			paths = new ArrayList<String>();
+			pathsByFileType.put(fileType, paths);
+		}
+		paths.add(path);
+	}
+
+	void addSearch(Search search) {
+		searches.add(search);
+	}
+
+	void setSpectraMTime(int spectraMTime) {
+		this.spectraMTime = spectraMTime;
+	}
+
+	/**
+	 *
+	 * @return the modification time in seconds of the spectra folder when it was
+	 *         listed, or -1 if it was not recorded or cannot be used to know
+	 *         whether the folder changed since then
+	 */
+	public int getSpectraMTime() {
+		return spectraMTime;
+	}
+
+	/**
+	 *
+	 * @param fileType
+	 * @return the paths of the files of that type, in the order in which they
+	 *         were listed, or an empty list if there is none
+	 */
+	public List<String> getPaths(FileType fileType) {
+		final List<String> paths = pathsByFileType.get(fileType);
+		if (paths == null) {
+			return Collections.emptyList();
+		}
+		return paths;
+	}
+
+	public List<Search> getSearches() {
+		return searches;
+	}
+}
@@ -0,0 +1,312 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.ftp.FTPUtils;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Bounded pool of authenticated {@link FTPClient} connections to the same
+ * host and user, so that the transfer workers don't need to login for every
+ * file.<br>
+ * Clients are borrowed with {@link #borrowClient()} and must be given back with
+ * {@link #releaseClient(FTPClient)} or, if something went wrong with the
+ * connection, with {@link #invalidateClient(FTPClient)}. Released clients must
+ * not have any pending command.
+ * 
+ * @author salvador
+ *
+ */
+public class FTPClientPool {
+	private final static Logger log = Logger.getLogger(FTPClientPool.class);
+	private final static Map<String, FTPClientPool> poolsByKey = new THashMap<String, FTPClientPool>();
+	private final static Map<String, Semaphore> loginPermitsByHost = new THashMap<String, Semaphore>();
+	/**
+	 * Clients idle for longer than this are checked with a NOOP before being
+	 * handed out again
+	 */
+	private static final long VALIDATION_INTERVAL = 10 * 1000l;
+	private final String hostName;
+	private final int port;
+	private final String userName;
+	private final String password;
+	private final int maxConnections;
+	private final long maxIdleTime;
+	private final Semaphore loginPermits;
+	private final LinkedList<FTPClient> idleClients = new LinkedList<FTPClient>();
+	private final Map<FTPClient, Long> lastUsedByClient = new IdentityHashMap<FTPClient, Long>();
+	private final Map<FTPClient, Boolean> openClients = new IdentityHashMap<FTPClient, Boolean>();
+	private int connectionsBeingOpened = 0;
+	private int numLogins = 0;
+	private boolean closed = false;
+
+	/**
+	 * Gets the pool for that host and user, creating it if it doesn't exist yet
+	 * 
+	 * @param hostName
+	 * @param port                port of the FTP server, usually
+	 *                            {@link FTP#DEFAULT_PORT}
+	 * @param userName
+	 * @param password
+	 * @param maxConnections      maximum number of connections open at the same
+	 *                            time
+	 * @param maxConcurrentLogins maximum number of logins in progress at the same
+	 *                            time to the host
+	 * @param maxIdleTime         time in milliseconds after which an unused
+	 *                            connection is closed
+	 * @return
+	 */
+	public static synchronized FTPClientPool getInstance(String hostName, int port, String userName,
+			String password, int maxConnections, int maxConcurrentLogins, long maxIdleTime) {
+		final String key = userName + "@" + hostName + ":" + port;
+		FTPClientPool pool = poolsByKey.get(key);
+		if (pool == null || pool.closed) {
+			Semaphore loginPermits = loginPermitsByHost.get(hostName);
+			if (loginPermits == null) {
+				loginPermits = new Semaphore(Math.max(1, maxConcurrentLogins), true);
+				loginPermitsByHost.put(hostName, loginPermits);
+			}
+			pool = new FTPClientPool(hostName, port, userName, password, maxConnections, maxIdleTime,
+					loginPermits);
+			poolsByKey.put(key, pool);
+		}
+		return pool;
+	}
+
+	private FTPClientPool(String hostName, int port, String userName, String password, int maxConnections,
+			long maxIdleTime, Semaphore loginPermits) {
+		this.hostName = hostName;
+		this.port = port;
+		this.userName = userName;
+		this.password = password;
+		this.maxConnections = Math.max(1, maxConnections);
+		this.maxIdleTime = maxIdleTime;
+		this.loginPermits = loginPermits;
+	}
+
+	/**
+	 * Gets a logged in client in binary mode, reusing an idle one if possible. It
+	 * blocks if the maximum number of connections is already in use.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public FTPClient borrowClient() throws IOException {
+		final long t1 = System.nanoTime();
+		while (true) {
+			FTPClient idleClient = null;
+			Long lastUsed = null;
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						throw new IllegalStateException("FTP connection pool to " + hostName + " is closed");
+					}
+					evictIdle();
+					if (!idleClients.isEmpty()) {
+						idleClient = idleClients.removeFirst();
+						lastUsed = lastUsedByClient.remove(idleClient);
+						break;
+					}
+					if (openClients.size() + connectionsBeingOpened < maxConnections) {
+						connectionsBeingOpened++;
+						break;
+					}
+					try {
+						wait();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for a FTP connection to " + hostName);
+					}
+				}
+			}
+			if (idleClient == null) {
+				break;
+			}
+			// the health check is done outside of the lock, so that a slow NOOP
+			// doesn't stall the other threads releasing and borrowing clients
+			if (isHealthy(idleClient, lastUsed)) {
+				MetricsRegistry.getInstance().operationSeconds.observeSince(t1, hostName, "connect");
+				return idleClient;
+			}
+			log.debug("Discarding broken FTP connection to " + hostName);
+			synchronized (this) {
+				closeClient(idleClient);
+				notifyAll();
+			}
+		}
+		// login outside of the lock, so that other threads can release and borrow
+		// clients in the meantime
+		FTPClient client = null;
+		try {
+			client = login();
+		} finally {
+			synchronized (this) {
+				connectionsBeingOpened--;
+				if (client != null) {
+					openClients.put(client, true);
+				}
+				notifyAll();
+			}
+		}
+		MetricsRegistry.getInstance().operationSeconds.observeSince(t1, hostName, "connect");
+		return client;
+	}
+
+	/**
+	 * Gives back a client to the pool so that it can be reused
+	 * 
+	 * @param client
+	 */
+	public synchronized void releaseClient(FTPClient client) {
+		if (client == null || !openClients.containsKey(client)) {
+			return;
+		}
+		if (closed || !client.isConnected()) {
+			closeClient(client);
+		} else {
+			idleClients.addFirst(client);
+			lastUsedByClient.put(client, System.currentTimeMillis());
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Closes a client that should not be reused, for example after a connection
+	 * error or an incomplete transfer
+	 * 
+	 * @param client
+	 */
+	public synchronized void invalidateClient(FTPClient client) {
+		if (client == null || !openClients.containsKey(client)) {
+			return;
+		}
+		closeClient(client);
+		notifyAll();
+	}
+
+	/**
+	 * Closes all the connections of the pool
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (final FTPClient client : new ArrayList<FTPClient>(openClients.keySet())) {
+			closeClient(client);
+		}
+		log.info("FTP connections to " + hostName + " closed after " + numLogins + " logins");
+		notifyAll();
+	}
+
+	public synchronized int getNumLogins() {
+		return numLogins;
+	}
+
+	private FTPClient login() throws IOException {
+		try {
+			loginPermits.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to login into " + hostName);
+		}
+		try {
+			log.debug("Login into " + hostName);
+			final long t1 = System.nanoTime();
+			final FTPClient client = port == FTP.DEFAULT_PORT ? FTPUtils.loginFTPClient(hostName, userName, password)
+					: loginFTPClient();
+			MetricsRegistry.getInstance().operationSeconds.observeSince(t1, hostName, "login");
+			if (client == null) {
+				throw new IOException("Cannot login into " + hostName);
+			}
+			synchronized (this) {
+				numLogins++;
+			}
+			if (!client.setFileType(FTP.BINARY_FILE_TYPE)) {
+				FTPUtils.showServerReply(client);
+				disconnect(client);
+				throw new IOException("Cannot set binary mode in " + hostName);
+			}
+			return client;
+		} finally {
+			loginPermits.release();
+		}
+	}
+
+	/**
+	 * Login into a server not listening in the default FTP port, which
+	 * FTPUtils.loginFTPClient doesn't support
+	 * 
+	 * @return the client in passive mode, or null if the login failed
+	 * @throws IOException
+	 */
+	private FTPClient loginFTPClient() throws IOException {
+		final FTPClient client = new FTPClient();
+		client.connect(hostName, port);
+		if (!FTPReply.isPositiveCompletion(client.getReplyCode()) || !client.login(userName, password)) {
+			FTPUtils.showServerReply(client);
+			disconnect(client);
+			return null;
+		}
+		client.enterLocalPassiveMode();
+		return client;
+	}
+
+	private boolean isHealthy(FTPClient client, Long lastUsed) {
+		if (!client.isConnected()) {
+			return false;
+		}
+		if (lastUsed != null && System.currentTimeMillis() - lastUsed > VALIDATION_INTERVAL) {
+			try {
+				return client.sendNoOp();
+			} catch (final IOException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void evictIdle() {
+		final long now = System.currentTimeMillis();
+		final Iterator<FTPClient> iterator = idleClients.iterator();
+		while (iterator.hasNext()) {
+			final FTPClient client = iterator.next();
+			final Long lastUsed = lastUsedByClient.get(client);
+			if (lastUsed != null && now - lastUsed > maxIdleTime) {
+				iterator.remove();
+				closeClient(client);
+			}
+		}
+	}
+
+	private void closeClient(FTPClient client) {
+		idleClients.remove(client);
+		lastUsedByClient.remove(client);
+		openClients.remove(client);
+		disconnect(client);
+	}
+
+	private void disconnect(FTPClient client) {
+		try {
+			if (client.isConnected()) {
+				client.logout();
+			}
+		} catch (final IOException e) {
+			log.debug("Error login out from " + hostName + ": " + e.getMessage());
+		} finally {
+			try {
+				client.disconnect();
+			} catch (final IOException e) {
+				log.debug("Error disconnecting from " + hostName + ": " + e.getMessage());
+			}
+		}
+	}
+}
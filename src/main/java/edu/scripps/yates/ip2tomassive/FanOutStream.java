@@ -0,0 +1,281 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Output stream that copies what is written to several sinks, each one read
+ * with its own input stream from {@link #addSink(String)}, usually in its own
+ * thread.<br>
+ * Each sink has its own queue of buffers, so a sink that is slower than the
+ * others doesn't slow them down until its queue is full. A sink that closes its
+ * input stream before the end is dropped, and the others continue. Writes fail
+ * only when there is no sink left.<br>
+ * The buffers are shared by all the sinks and reused once every sink has read
+ * them. Each instance can be used for only one stream.
+ *
+ * @author salvador
+ *
+ */
+public class FanOutStream extends OutputStream {
+	private final static Logger log = Logger.getLogger(FanOutStream.class);
+	private static final long POLL_INTERVAL = 500;
+	private final String name;
+	private final int depth;
+	private final int bufferSize;
+	private final List<Sink> sinks = new ArrayList<Sink>();
+	private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+	private byte[] buffer;
+	private int length = 0;
+	private volatile Exception error;
+	private boolean closed = false;
+
+	private class Chunk {
+		private final byte[] data;
+		private final int length;
+		private final AtomicInteger readers;
+
+		private Chunk(byte[] data, int length, int readers) {
+			this.data = data;
+			this.length = length;
+			this.readers = new AtomicInteger(readers);
+		}
+
+		private void release() {
+			if (data != null && readers.decrementAndGet() == 0) {
+				freeBuffers.add(data);
+			}
+		}
+	}
+
+	private final Chunk END = new Chunk(null, -1, 0);
+
+	private class Sink extends InputStream {
+		private final String sinkName;
+		private final ArrayBlockingQueue<Chunk> chunks;
+		private volatile boolean dropped = false;
+		private Chunk current;
+		private int position;
+		private long bytes = 0l;
+
+		private Sink(String sinkName) {
+			this.sinkName = sinkName;
+			chunks = new ArrayBlockingQueue<Chunk>(depth + 1);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			final int read = read(b, 0, 1);
+			return read == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (current == null || position == current.length) {
+				if (current != null) {
+					current.release();
+				}
+				current = takeChunk();
+				position = 0;
+			}
+			if (current == END) {
+				return -1;
+			}
+			final int n = Math.min(len, current.length - position);
+			System.arraycopy(current.data, position, b, off, n);
+			position += n;
+			bytes += n;
+			return n;
+		}
+
+		private Chunk takeChunk() throws IOException {
+			try {
+				while (true) {
+					if (error != null) {
+						throw new IOException("Error reading the source of " + name + ": " + error.getMessage(),
+								error);
+					}
+					final Chunk chunk = chunks.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					if (chunk != null) {
+						return chunk;
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading " + name + " in " + sinkName);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (current != END) {
+				if (!dropped) {
+					log.info(sinkName + " stopped reading " + name + " after " + bytes + " bytes");
+				}
+				dropped = true;
+				if (current != null) {
+					current.release();
+				}
+				current = END;
+				Chunk chunk;
+				while ((chunk = chunks.poll()) != null) {
+					chunk.release();
+				}
+			}
+		}
+
+		private void put(Chunk chunk) throws InterruptedException {
+			while (!dropped) {
+				if (chunks.offer(chunk, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+					// it could have been dropped while waiting
+					if (dropped && chunks.remove(chunk)) {
+						chunk.release();
+					}
+					return;
+				}
+			}
+			chunk.release();
+		}
+	}
+
+	/**
+	 *
+	 * @param name       used in the logs
+	 * @param depth      number of buffers in the queue of each sink
+	 * @param bufferSize size of each buffer in bytes
+	 */
+	public FanOutStream(String name, int depth, int bufferSize) {
+		this.name = name;
+		this.depth = Math.max(1, depth);
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Adds a sink. All the sinks have to be added before writing.
+	 *
+	 * @param sinkName used in the logs
+	 * @return the input stream from which the sink reads what is written
+	 */
+	public synchronized InputStream addSink(String sinkName) {
+		if (buffer != null || closed) {
+			throw new IllegalStateException("Sinks have to be added before writing to " + name);
+		}
+		final Sink sink = new Sink(sinkName);
+		sinks.add(sink);
+		return sink;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (buffer == null) {
+				buffer = takeFreeBuffer();
+			}
+			final int n = Math.min(len, bufferSize - length);
+			System.arraycopy(b, off, buffer, length, n);
+			length += n;
+			off += n;
+			len -= n;
+			if (length == bufferSize) {
+				publish();
+			}
+		}
+	}
+
+	private byte[] takeFreeBuffer() {
+		final byte[] free = freeBuffers.poll();
+		return free != null ? free : new byte[bufferSize];
+	}
+
+	/**
+	 * Sends the current buffer to all the sinks that are still reading
+	 *
+	 * @throws IOException if there is no sink left
+	 */
+	private void publish() throws IOException {
+		final List<Sink> openSinks = getOpenSinks();
+		if (openSinks.isEmpty()) {
+			throw new IOException("There is no sink reading " + name);
+		}
+		final Chunk chunk = new Chunk(buffer, length, openSinks.size());
+		buffer = null;
+		length = 0;
+		try {
+			for (final Sink sink : openSinks) {
+				sink.put(chunk);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing " + name);
+		}
+	}
+
+	private List<Sink> getOpenSinks() {
+		final List<Sink> openSinks = new ArrayList<Sink>();
+		for (final Sink sink : sinks) {
+			if (!sink.dropped) {
+				openSinks.add(sink);
+			}
+		}
+		return openSinks;
+	}
+
+	/**
+	 * Makes the sinks fail instead of reaching the end of the stream, because
+	 * the source could not be read completely
+	 *
+	 * @param e
+	 */
+	public void fail(Exception e) {
+		error = e;
+	}
+
+	/**
+	 *
+	 * @return the number of sinks that have not closed their input streams
+	 *         before the end
+	 */
+	public synchronized int getNumOpenSinks() {
+		return getOpenSinks().size();
+	}
+
+	/**
+	 * Sends what is left in the buffer and the end of the stream to the sinks
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (length > 0 && error == null) {
+			publish();
+		}
+		try {
+			for (final Sink sink : getOpenSinks()) {
+				sink.put(END);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing " + name);
+		}
+	}
+}
@@ -34,4 +34,36 @@ public enum FileType {
 	public String getExtension() {
 		return extension;
 	}
+
+	/**
+	 * 
+	 * @return true if the files of this type are plain text, which compresses
+	 *         well
+	 */
+	public boolean isText() {
+		return this == MS1 || this == MS2 || this == MS3 || this == DTASELECT;
+	}
+
+	/**
+	 * 
+	 * @return the types of the files in the spectra folder of an experiment
+	 */
+	public static FileType[] getSpectraFileTypes() {
+		return new FileType[] { RAW, MS1, MS2, MS3 };
+	}
+
+	/**
+	 * 
+	 * @param extension
+	 * @return the type of the files in the spectra folder of an experiment with
+	 *         that extension, or null if there is none
+	 */
+	public static FileType getSpectraFileTypeByExtension(String extension) {
+		for (final FileType fileType : getSpectraFileTypes()) {
+			if (fileType.getExtension().equals(extension)) {
+				return fileType;
+			}
+		}
+		return null;
+	}
 }
@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -465,6 +466,18 @@ public class GoogleDriveClient {
 
 	}
 
+	/**
+	 * Downloads the content of a file in Google Drive with a certain ID
+	 * 
+	 * @param fileId
+	 * @param outputStream
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public void downloadFile(String fileId, OutputStream outputStream) throws IOException, GeneralSecurityException {
+		getDriveService().files().get(fileId).executeMediaAndDownloadTo(outputStream);
+	}
+
 	/**
 	 * Deletes a file in Google Drive with a certain ID
 	 * 
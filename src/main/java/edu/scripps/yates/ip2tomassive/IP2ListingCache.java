@@ -0,0 +1,323 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Cache of the listings of the folders of IP2 that is kept in a file between
+ * runs, so that generating the remote paths file again doesn't list the whole
+ * project tree from scratch.<br>
+ * A listing younger than the TTL is used as it is. An older one is used only
+ * if the modification time of the folder didn't change since it was listed,
+ * which is known without any request if its parent was listed in IP2 during
+ * this run, or with a stat of the folder otherwise. Note that the modification
+ * time of a folder only changes when files are added, removed or renamed in
+ * it, not when a file in it is rewritten.<br>
+ * The cache file is a text file with a line per folder: F path mtime
+ * checkedMillis numEntries; followed by a line per entry: d|f size mtime name;
+ * all separated by tabs.
+ *
+ * @author salvador
+ *
+ */
+public class IP2ListingCache {
+	private final static Logger log = Logger.getLogger(IP2ListingCache.class);
+	private final File cacheFile;
+	private final long ttlMillis;
+	private final Map<String, Listing> listingsByPath = new ConcurrentHashMap<String, Listing>();
+	private final Map<String, Integer> mtimesListedByPath = new ConcurrentHashMap<String, Integer>();
+	private final AtomicInteger numFromCache = new AtomicInteger();
+	private final AtomicInteger numRevalidated = new AtomicInteger();
+	private final AtomicInteger numListed = new AtomicInteger();
+	private volatile boolean modified = false;
+
+	/**
+	 * An entry of a folder, other than '.' and '..'
+	 */
+	public static class Entry {
+		private final String filename;
+		private final long size;
+		private final int mtime;
+		private final boolean dir;
+
+		private Entry(String filename, long size, int mtime, boolean dir) {
+			this.filename = filename;
+			this.size = size;
+			this.mtime = mtime;
+			this.dir = dir;
+		}
+
+		public String getFilename() {
+			return filename;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 *
+		 * @return the modification time in seconds since the epoch
+		 */
+		public int getMTime() {
+			return mtime;
+		}
+
+		public boolean isDir() {
+			return dir;
+		}
+	}
+
+	private static class Listing {
+		/**
+		 * modification time of the folder when it was listed, or -1 if it cannot
+		 * be used to know whether the folder changed
+		 */
+		private final int mtime;
+		private final long checkedMillis;
+		private final List<Entry> entries;
+
+		private Listing(int mtime, long checkedMillis, List<Entry> entries) {
+			this.mtime = mtime;
+			this.checkedMillis = checkedMillis;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * Reads the cache file if it exists
+	 *
+	 * @param cacheFile file where the listings are kept between runs, or null
+	 *                  to list every folder in IP2 without caching
+	 * @param ttlMillis time during which a listing is used without checking the
+	 *                  folder in IP2
+	 */
+	public IP2ListingCache(File cacheFile, long ttlMillis) {
+		this.cacheFile = cacheFile;
+		this.ttlMillis = ttlMillis;
+		if (cacheFile != null && cacheFile.exists()) {
+			try {
+				read();
+			} catch (final IOException e) {
+				e.printStackTrace();
+				log.warn("Error reading " + cacheFile.getAbsolutePath() + ". Folders will be listed again in IP2: "
+						+ e.getMessage());
+				listingsByPath.clear();
+			}
+		}
+	}
+
+	private void read() throws IOException {
+		final BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8));
+		try {
+			String line;
+			int numLine = 0;
+			while ((line = reader.readLine()) != null) {
+				numLine++;
+				final String[] split = line.split("\t", -1);
+				if (split.length != 5 || !"F".equals(split[0])) {
+					throw new IOException("Malformed line " + numLine);
+				}
+				final int numEntries = Integer.valueOf(split[4]);
+				final List<Entry> entries = new ArrayList<Entry>(numEntries);
+				for (int i = 0; i < numEntries; i++) {
+					final String entryLine = reader.readLine();
+					numLine++;
+					final String[] entrySplit = entryLine != null ? entryLine.split("\t", 4) : new String[0];
+					if (entrySplit.length != 4) {
+						throw new IOException("Malformed line " + numLine);
+					}
+					entries.add(new Entry(entrySplit[3], Long.valueOf(entrySplit[1]), Integer.valueOf(entrySplit[2]),
+							"d".equals(entrySplit[0])));
+				}
+				listingsByPath.put(split[1], new Listing(Integer.valueOf(split[2]), Long.valueOf(split[3]),
+						Collections.unmodifiableList(entries)));
+			}
+		} catch (final NumberFormatException e) {
+			throw new IOException("Malformed number: " + e.getMessage(), e);
+		} finally {
+			reader.close();
+		}
+		log.info(listingsByPath.size() + " folder listings read from " + cacheFile.getAbsolutePath());
+	}
+
+	/**
+	 * Lists a folder of IP2, from the cache if it didn't change
+	 *
+	 * @param channel channel used if the folder has to be checked or listed
+	 * @param path
+	 * @return the entries of the folder, other than '.' and '..'
+	 * @throws SftpException if it cannot be listed, such as when it doesn't
+	 *                       exist
+	 */
+	public List<Entry> list(ChannelSftp channel, String path) throws SftpException {
+		final String folder = normalize(path);
+		if (cacheFile == null) {
+			return getEntries(folder, channel.ls(folder), System.currentTimeMillis()).entries;
+		}
+		try {
+			final long now = System.currentTimeMillis();
+			final Listing cached = listingsByPath.get(folder);
+			if (cached != null) {
+				if (now - cached.checkedMillis < ttlMillis) {
+					numFromCache.incrementAndGet();
+					return cached.entries;
+				}
+				if (cached.mtime >= 0 && cached.mtime == getCurrentMTime(channel, folder)) {
+					listingsByPath.put(folder, new Listing(cached.mtime, now, cached.entries));
+					modified = true;
+					numRevalidated.incrementAndGet();
+					return cached.entries;
+				}
+			}
+			final Listing listing = getEntries(folder, channel.ls(folder), now);
+			listingsByPath.put(folder, listing);
+			modified = true;
+			numListed.incrementAndGet();
+			return listing.entries;
+		} catch (final SftpException e) {
+			if (listingsByPath.remove(folder) != null) {
+				modified = true;
+			}
+			throw e;
+		}
+	}
+
+	private int getCurrentMTime(ChannelSftp channel, String folder) throws SftpException {
+		final Integer mtime = mtimesListedByPath.get(folder);
+		if (mtime != null) {
+			return mtime;
+		}
+		final SftpATTRS attrs = channel.stat(folder);
+		if (!attrs.isDir()) {
+			return -1;
+		}
+		return attrs.getMTime();
+	}
+
+	private Listing getEntries(String folder, Vector<LsEntry> ls, long listedMillis) {
+		final List<Entry> entries = new ArrayList<Entry>(ls.size());
+		int folderMTime = -1;
+		for (final LsEntry lsEntry : ls) {
+			final String fileName = lsEntry.getFilename();
+			final SftpATTRS attrs = lsEntry.getAttrs();
+			if (".".equals(fileName)) {
+				folderMTime = attrs.getMTime();
+				continue;
+			}
+			if ("..".equals(fileName)) {
+				continue;
+			}
+			entries.add(new Entry(fileName, attrs.getSize(), attrs.getMTime(), attrs.isDir()));
+			if (cacheFile != null && attrs.isDir()) {
+				mtimesListedByPath.put(folder + "/" + fileName, attrs.getMTime());
+			}
+		}
+		if (folderMTime < 0 && mtimesListedByPath.containsKey(folder)) {
+			folderMTime = mtimesListedByPath.get(folder);
+		}
+		// a change in the same second in which it was listed would not change
+		// the modification time
+		if (folderMTime >= listedMillis / 1000 - 1) {
+			folderMTime = -1;
+		}
+		return new Listing(folderMTime, listedMillis, Collections.unmodifiableList(entries));
+	}
+
+	/**
+	 * Writes the cache file if any listing changed, replacing it only once it is
+	 * completely written
+	 */
+	public synchronized void save() {
+		if (cacheFile == null) {
+			return;
+		}
+		log.info("Folders of IP2: " + numFromCache.get() + " from the cache, " + numRevalidated.get()
+				+ " from the cache after checking that they didn't change, " + numListed.get() + " listed");
+		if (!modified) {
+			return;
+		}
+		final File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+		try {
+			final Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8);
+			int numFolders = 0;
+			try {
+				for (final Map.Entry<String, Listing> entry : listingsByPath.entrySet()) {
+					if (write(writer, entry.getKey(), entry.getValue())) {
+						numFolders++;
+					}
+				}
+			} finally {
+				writer.close();
+			}
+			Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			modified = false;
+			log.info(numFolders + " folder listings written to " + cacheFile.getAbsolutePath());
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error writing " + cacheFile.getAbsolutePath() + ": " + e.getMessage());
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 *
+	 * @return false if the listing was not written because a name cannot be
+	 *         written in the format of the file
+	 */
+	private boolean write(Writer writer, String path, Listing listing) throws IOException {
+		if (!isWritable(path)) {
+			return false;
+		}
+		for (final Entry entry : listing.entries) {
+			if (!isWritable(entry.filename)) {
+				return false;
+			}
+		}
+		final StringBuilder sb = new StringBuilder();
+		sb.append("F\t").append(path).append("\t").append(listing.mtime).append("\t").append(listing.checkedMillis)
+				.append("\t").append(listing.entries.size()).append("\n");
+		for (final Entry entry : listing.entries) {
+			sb.append(entry.dir ? "d" : "f").append("\t").append(entry.size).append("\t").append(entry.mtime)
+					.append("\t").append(entry.filename).append("\n");
+		}
+		writer.write(sb.toString());
+		return true;
+	}
+
+	private boolean isWritable(String name) {
+		return name.indexOf('\t') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0;
+	}
+
+	private String normalize(String path) {
+		String ret = path.trim();
+		while (ret.length() > 1 && ret.endsWith("/")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,280 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import edu.scripps.yates.utilities.dates.DatesUtil;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Looks for the experiment folders of a project tree in IP2, listing several
+ * folders at the same time over the channels of a {@link SftpChannelPool}.<br>
+ * An experiment folder is a folder whose name ends with '_' and an experiment
+ * ID of at least 5 digits. Experiment folders are not explored, and the rest of
+ * folders are explored recursively.<br>
+ * The experiment paths are returned in the same order regardless of the order
+ * in which the folders are listed: depth-first, with the folders of each level
+ * sorted by name.
+ *
+ * @author salvador
+ *
+ */
+public class IP2ProjectCrawler {
+	private final static Logger log = Logger.getLogger(IP2ProjectCrawler.class);
+	private static final long PROGRESS_INTERVAL_MILLIS = 10000l;
+	private final SftpChannelPool channelPool;
+	private final IP2ListingCache listingCache;
+	private final int numThreads;
+	private final TIntHashSet experimentIDs;
+	private final AtomicInteger numFoldersListed = new AtomicInteger();
+	private final AtomicInteger numFoldersPending = new AtomicInteger();
+	private final AtomicInteger numExperimentsFound = new AtomicInteger();
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private ExecutorService executor;
+	private volatile Exception error;
+
+	/**
+	 * A folder of the project tree, with its subfolders sorted by name once it
+	 * is listed
+	 */
+	private static class Folder {
+		private final String path;
+		private final boolean experiment;
+		private List<Folder> subfolders = Collections.emptyList();
+
+		private Folder(String path, boolean experiment) {
+			this.path = path;
+			this.experiment = experiment;
+		}
+	}
+
+	/**
+	 *
+	 * @param channelPool
+	 * @param listingCache  cache through which the folders are listed
+	 * @param numThreads    number of folders listed at the same time
+	 * @param experimentIDs experiment IDs to look for, or null to get all the
+	 *                      experiments
+	 */
+	public IP2ProjectCrawler(SftpChannelPool channelPool, IP2ListingCache listingCache, int numThreads,
+			TIntHashSet experimentIDs) {
+		this.channelPool = channelPool;
+		this.listingCache = listingCache;
+		this.numThreads = Math.max(1, numThreads);
+		this.experimentIDs = experimentIDs;
+	}
+
+	/**
+	 *
+	 * @param folderName
+	 * @return the experiment ID if the name ends with '_' and at least 5 digits,
+	 *         or -1 otherwise
+	 */
+	public static int getExperimentID(String folderName) {
+		final int index = folderName.lastIndexOf('_');
+		if (index < 0) {
+			return -1;
+		}
+		final String substring = folderName.substring(index + 1);
+		if (substring.length() < 5) {
+			return -1;
+		}
+		try {
+			final int experimentID = Integer.valueOf(substring);
+			return experimentID >= 0 ? experimentID : -1;
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Explores the project tree from the base path
+	 *
+	 * @param projectBasePath
+	 * @return the paths of the experiment folders
+	 * @throws IOException if a folder could not be listed
+	 */
+	public List<String> crawl(String projectBasePath) throws IOException {
+		final long t1 = System.currentTimeMillis();
+		final AtomicInteger threadCounter = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "ip2-crawler-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		while (projectBasePath.length() > 1 && projectBasePath.endsWith("/")) {
+			projectBasePath = projectBasePath.substring(0, projectBasePath.length() - 1);
+		}
+		final Folder root = new Folder(projectBasePath, false);
+		try {
+			submit(root);
+			while (!finished.await(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+				printProgress(t1);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exploring " + projectBasePath);
+		} finally {
+			executor.shutdownNow();
+		}
+		if (error != null) {
+			throw new IOException("Error exploring " + projectBasePath + ": " + error.getMessage(), error);
+		}
+		final List<String> ret = new ArrayList<String>();
+		addExperimentPaths(root, ret);
+		log.info(numFoldersListed.get() + " folders explored in "
+				+ DatesUtil.getDescriptiveTimeFromMillisecs(System.currentTimeMillis() - t1) + " with " + numThreads
+				+ " threads. " + ret.size() + " experiments found");
+		return ret;
+	}
+
+	private void submit(final Folder folder) {
+		numFoldersPending.incrementAndGet();
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (error == null) {
+						list(folder);
+					}
+				} catch (final Exception e) {
+					if (error == null) {
+						error = e;
+					}
+					log.warn("Error listing " + folder.path + ": " + e.getMessage());
+				} finally {
+					// the subfolders are submitted before, so it only gets to 0
+					// when the whole tree is listed
+					if (numFoldersPending.decrementAndGet() == 0) {
+						finished.countDown();
+					}
+				}
+			}
+		});
+	}
+
+	private void list(Folder folder) throws JSchException, SftpException {
+		final List<IP2ListingCache.Entry> ls = listFolder(folder.path);
+		numFoldersListed.incrementAndGet();
+		if (ls == null) {
+			return;
+		}
+		final List<IP2ListingCache.Entry> entries = new ArrayList<IP2ListingCache.Entry>(ls);
+		Collections.sort(entries, new Comparator<IP2ListingCache.Entry>() {
+
+			@Override
+			public int compare(IP2ListingCache.Entry o1, IP2ListingCache.Entry o2) {
+				return o1.getFilename().compareTo(o2.getFilename());
+			}
+		});
+		final List<Folder> subfolders = new ArrayList<Folder>();
+		for (final IP2ListingCache.Entry entry : entries) {
+			final String fileName = entry.getFilename();
+			if (!entry.isDir()) {
+				continue;
+			}
+			final String path = folder.path + "/" + fileName;
+			final int experimentID = getExperimentID(fileName);
+			if (experimentID >= 0) {
+				// experiment folders that are not in the filter are not explored
+				// either
+				if (experimentIDs == null || experimentIDs.contains(experimentID)) {
+					subfolders.add(new Folder(path, true));
+					numExperimentsFound.incrementAndGet();
+					log.info("Found experiment " + experimentID + " at folder " + path);
+				}
+			} else {
+				subfolders.add(new Folder(path, false));
+			}
+		}
+		folder.subfolders = subfolders;
+		for (final Folder subfolder : subfolders) {
+			if (!subfolder.experiment) {
+				submit(subfolder);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @return the entries of the folder, or null if it cannot be read because of
+	 *         its permissions
+	 * @throws JSchException
+	 * @throws SftpException
+	 */
+	private List<IP2ListingCache.Entry> listFolder(String path) throws JSchException, SftpException {
+		final ChannelSftp channel = channelPool.borrowChannel();
+		boolean brokenChannel = true;
+		try {
+			log.debug("Looking at folder " + path);
+			final List<IP2ListingCache.Entry> ls = listingCache.list(channel, path);
+			brokenChannel = false;
+			return ls;
+		} catch (final SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_PERMISSION_DENIED) {
+				brokenChannel = false;
+				log.warn("Folder " + path + " cannot be read: " + e.getMessage());
+				return null;
+			}
+			throw e;
+		} finally {
+			if (brokenChannel) {
+				channelPool.invalidateChannel(channel);
+			} else {
+				channelPool.releaseChannel(channel);
+			}
+		}
+	}
+
+	private void addExperimentPaths(Folder folder, List<String> experimentPaths) {
+		for (final Folder subfolder : folder.subfolders) {
+			if (subfolder.experiment) {
+				experimentPaths.add(subfolder.path);
+			} else {
+				addExperimentPaths(subfolder, experimentPaths);
+			}
+		}
+	}
+
+	/**
+	 * Prints the folders listed and pending. The remaining time is estimated
+	 * with the folders pending and the listing rate so far, so it grows while
+	 * new folders are discovered
+	 *
+	 * @param t1 start time
+	 */
+	private void printProgress(long t1) {
+		final long elapsed = System.currentTimeMillis() - t1;
+		final int listed = numFoldersListed.get();
+		final int pending = numFoldersPending.get();
+		final StringBuilder sb = new StringBuilder();
+		sb.append(listed + " folders explored, " + pending + " pending, " + numExperimentsFound.get()
+				+ " experiments found");
+		if (listed > 0) {
+			final long remaining = elapsed * pending / listed;
+			sb.append(". At least " + DatesUtil.getDescriptiveTimeFromMillisecs(remaining) + " remaining");
+		}
+		log.info(sb.toString());
+	}
+}
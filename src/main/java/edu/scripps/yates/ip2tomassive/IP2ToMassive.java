@@ -3,20 +3,20 @@ package edu.scripps.yates.ip2tomassive;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.Vector;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.log4j.Logger;
 
 import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.ChannelSftp.LsEntry;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 
 import edu.scripps.yates.dtaselectparser.DTASelectParser;
@@ -34,10 +34,54 @@ public class IP2ToMassive {
 	private final File propertiesFile;
 	protected String submissionName;
 	private final String projectBasePathInIP2;
+	private SftpChannelPool ip2ChannelPool;
+	private FTPClientPool massiveClientPool;
+	private IP2ListingCache ip2ListingCache;
 
 	public final static String IP2_SERVER_PROJECT_BASE_PATH = "ip2_server_project_base_path";
 	public final static String PROJECT_NAME = "project_name";
 	public final static String EXPERIMENT_IDS = "experiment_ids";
+	public final static String TRANSFER_THREADS = "transfer_threads";
+	public final static String TRANSFER_THREADS_PER_DATASET = "transfer_threads_per_dataset";
+	public final static String IP2_MAX_SESSIONS = "ip2_max_sessions";
+	public final static String IP2_CHANNELS_PER_SESSION = "ip2_channels_per_session";
+	public final static String IP2_MAX_IDLE_SECONDS = "ip2_max_idle_seconds";
+	public final static String MASSIVE_SERVER_PORT = "massive_server_port";
+	public final static String MASSIVE_MAX_CONNECTIONS = "massive_max_connections";
+	public final static String MASSIVE_MAX_CONCURRENT_LOGINS = "massive_max_concurrent_logins";
+	public final static String MASSIVE_MAX_IDLE_SECONDS = "massive_max_idle_seconds";
+	public final static String SFTP_SERVER_URL = "sftp_server_url";
+	public final static String SFTP_SERVER_USER_NAME = "sftp_server_user_name";
+	public final static String SFTP_SERVER_PASSWORD = "sftp_server_password";
+	public final static String SFTP_SERVER_PORT = "sftp_server_port";
+	public final static String SFTP_SERVER_BASE_PATH = "sftp_server_base_path";
+	public final static String SFTP_MAX_SESSIONS = "sftp_max_sessions";
+	public final static String SFTP_CHANNELS_PER_SESSION = "sftp_channels_per_session";
+	public final static String SFTP_MAX_IDLE_SECONDS = "sftp_max_idle_seconds";
+	public final static String RESUME_TRANSFERS = "resume_transfers";
+	public final static String STRIPED_DOWNLOAD_THRESHOLD_MB = "striped_download_threshold_mb";
+	public final static String STRIPED_DOWNLOAD_CHANNELS = "striped_download_channels";
+	public final static String PIPELINE_BUFFERS = "pipeline_buffers";
+	public final static String PIPELINE_BUFFER_KB = "pipeline_buffer_kb";
+	public final static String TRANSFER_JOURNAL = "transfer_journal";
+	public final static String CHECKSUMS = "checksums";
+	public final static String ZERO_COPY_UPLOADS = "zero_copy_uploads";
+	public final static String COMPRESS_TEXT_FILES = "compress_text_files";
+	public final static String COMPRESSION_THREADS = "compression_threads";
+	public final static String COMPRESSION_LEVEL = "compression_level";
+	public final static String ADAPTIVE_CONCURRENCY = "adaptive_concurrency";
+	public final static String TRANSFER_THREADS_MIN = "transfer_threads_min";
+	public final static String TRANSFER_THREADS_MAX = "transfer_threads_max";
+	public final static String ADAPTIVE_INTERVAL_SECONDS = "adaptive_interval_seconds";
+	public final static String TRANSFER_ORDER = "transfer_order";
+	public final static String METRICS_PORT = "metrics_port";
+	public final static String METRICS_FILE = "metrics_file";
+	public final static String METRICS_INTERVAL_SECONDS = "metrics_interval_seconds";
+	public final static String CRAWL_THREADS = "crawl_threads";
+	public final static String DISCOVERY_MODE = "discovery_mode";
+	public final static String LISTING_CACHE_FILE = "listing_cache_file";
+	public final static String LISTING_CACHE_TTL_MINUTES = "listing_cache_ttl_minutes";
+	public final static String INCREMENTAL_PATHS = "incremental_paths";
 
 	public IP2ToMassive(MySftpProgressMonitor progressMonitor, File propertiesFile) {
 
@@ -140,6 +184,148 @@ public class IP2ToMassive {
 
 	}
 
+	/**
+	 * Gets the pool of SFTP channels to IP2 that is shared by all the transfers of
+	 * this run
+	 * 
+	 * @return
+	 */
+	protected synchronized SftpChannelPool getIP2ChannelPool() {
+		if (ip2ChannelPool == null) {
+			final Properties properties = getProperties(propertiesFile);
+			final String hostName = properties.getProperty("ip2_server_url");
+			final String userName = properties.getProperty("ip2_server_user_name");
+			final String password = properties.getProperty("ip2_server_password");
+			final int port = Integer.valueOf(properties.getProperty("ip2_server_connection_port"));
+			final int maxSessions = getIntProperty(IP2_MAX_SESSIONS, 4);
+			final int channelsPerSession = getIntProperty(IP2_CHANNELS_PER_SESSION, 4);
+			final int maxIdleSeconds = getIntProperty(IP2_MAX_IDLE_SECONDS, 60);
+			ip2ChannelPool = SftpChannelPool.getInstance(hostName, userName, password, port, maxSessions,
+					channelsPerSession, maxIdleSeconds * 1000l);
+		}
+		return ip2ChannelPool;
+	}
+
+	/**
+	 * Gets the cache of the listings of the folders of IP2, kept between runs in
+	 * the file of {@link #LISTING_CACHE_FILE}. If that property is not set, the
+	 * cache lists every folder in IP2
+	 * 
+	 * @return
+	 */
+	protected synchronized IP2ListingCache getIP2ListingCache() {
+		if (ip2ListingCache == null) {
+			final String cacheFile = getProperties(propertiesFile).getProperty(LISTING_CACHE_FILE);
+			final long ttlMillis = getIntProperty(LISTING_CACHE_TTL_MINUTES, 60) * 60 * 1000l;
+			if (cacheFile == null || "".equals(cacheFile.trim())) {
+				ip2ListingCache = new IP2ListingCache(null, ttlMillis);
+			} else {
+				ip2ListingCache = new IP2ListingCache(new File(cacheFile.trim()), ttlMillis);
+			}
+		}
+		return ip2ListingCache;
+	}
+
+	/**
+	 * Writes the listings of the folders of IP2 to the cache file, if any
+	 */
+	protected synchronized void saveIP2ListingCache() {
+		if (ip2ListingCache != null) {
+			ip2ListingCache.save();
+		}
+	}
+
+	/**
+	 * Gets the pool of logged in FTP connections to MassIVE that is shared by all
+	 * the transfers of this run
+	 * 
+	 * @return
+	 */
+	protected synchronized FTPClientPool getMassiveClientPool() {
+		if (massiveClientPool == null) {
+			final Properties properties = getProperties(propertiesFile);
+			final String hostName = getMassiveHostName();
+			final String userName = properties.getProperty("massive_server_user_name");
+			final String password = properties.getProperty("massive_server_password");
+			final int maxConnections = getIntProperty(MASSIVE_MAX_CONNECTIONS, Math.max(4, getMaxTransferThreads()));
+			final int maxConcurrentLogins = getIntProperty(MASSIVE_MAX_CONCURRENT_LOGINS, 2);
+			final int maxIdleSeconds = getIntProperty(MASSIVE_MAX_IDLE_SECONDS, 60);
+			final int port = getIntProperty(MASSIVE_SERVER_PORT, FTP.DEFAULT_PORT);
+			massiveClientPool = FTPClientPool.getInstance(hostName, port, userName, password, maxConnections,
+					maxConcurrentLogins, maxIdleSeconds * 1000l);
+		}
+		return massiveClientPool;
+	}
+
+	/**
+	 * 
+	 * @return the maximum number of files that can be transferred at the same
+	 *         time, which with adaptive concurrency is the upper limit of the
+	 *         controller
+	 */
+	protected int getMaxTransferThreads() {
+		if (getBooleanProperty(ADAPTIVE_CONCURRENCY, false)) {
+			return getIntProperty(TRANSFER_THREADS_MAX, 16);
+		}
+		return getIntProperty(TRANSFER_THREADS, 1);
+	}
+
+	/**
+	 * 
+	 * @return the host name of the MassIVE FTP server
+	 */
+	protected String getMassiveHostName() {
+		return getProperties(propertiesFile).getProperty("massive_server_url");
+	}
+
+	/**
+	 * Starts the export of the {@link MetricsRegistry} configured in the
+	 * properties file: an HTTP endpoint if {@link #METRICS_PORT} is set, and a
+	 * file rewritten periodically if {@link #METRICS_FILE} is set
+	 */
+	protected void startMetricsExport() {
+		final MetricsRegistry metrics = MetricsRegistry.getInstance();
+		final int port = getIntProperty(METRICS_PORT, 0);
+		if (port > 0) {
+			try {
+				metrics.startHttpServer(port);
+			} catch (final IOException e) {
+				e.printStackTrace();
+				log.warn("Error starting metrics HTTP server at port " + port + ": " + e.getMessage());
+			}
+		}
+		final File metricsFile = getMetricsFile();
+		if (metricsFile != null) {
+			metrics.startFileExport(metricsFile, getIntProperty(METRICS_INTERVAL_SECONDS, 15) * 1000l);
+		}
+	}
+
+	protected void stopMetricsExport() {
+		MetricsRegistry.getInstance().stop(getMetricsFile());
+	}
+
+	private File getMetricsFile() {
+		final String metricsFile = getProperties(propertiesFile).getProperty(METRICS_FILE);
+		if (metricsFile == null || "".equals(metricsFile.trim())) {
+			return null;
+		}
+		return new File(metricsFile.trim());
+	}
+
+	/**
+	 * Closes the connections kept open between transfers
+	 */
+	protected synchronized void closeConnectionPools() {
+		if (ip2ChannelPool != null) {
+			ip2ChannelPool.close();
+			ip2ChannelPool = null;
+		}
+		if (massiveClientPool != null) {
+			massiveClientPool.close();
+			massiveClientPool = null;
+		}
+	}
+
 	protected static Properties getProperties(File propertiesFile) {
 		try {
 			final Properties properties = PropertiesUtil.getProperties(propertiesFile);
@@ -151,6 +337,74 @@ public class IP2ToMassive {
 		}
 	}
 
+	/**
+	 * 
+	 * @param sink
+	 * @param fileName name of the file being transferred, for the logs
+	 * @return an output stream that writes to the sink from a background thread
+	 *         through a {@link TransferPipeline}, or the sink itself if the
+	 *         pipeline is disabled
+	 */
+	protected OutputStream getPipelinedOutputStream(OutputStream sink, String fileName) {
+		final int pipelineBuffers = getIntProperty(PIPELINE_BUFFERS, 8);
+		if (pipelineBuffers <= 0) {
+			return sink;
+		}
+		return new TransferPipeline("pipeline(" + fileName + ")", pipelineBuffers,
+				getIntProperty(PIPELINE_BUFFER_KB, 256) * 1024).wrap(sink);
+	}
+
+	/**
+	 * 
+	 * @param source
+	 * @param fileName name of the file being transferred, for the logs
+	 * @return an input stream that reads from the source in a background thread
+	 *         through a {@link TransferPipeline}, or the source itself if the
+	 *         pipeline is disabled
+	 */
+	protected InputStream getPipelinedInputStream(InputStream source, String fileName) {
+		final int pipelineBuffers = getIntProperty(PIPELINE_BUFFERS, 8);
+		if (pipelineBuffers <= 0) {
+			return source;
+		}
+		return new TransferPipeline("pipeline(" + fileName + ")", pipelineBuffers,
+				getIntProperty(PIPELINE_BUFFER_KB, 256) * 1024).wrap(source);
+	}
+
+	/**
+	 * Reads an optional integer property from the properties file
+	 * 
+	 * @param propertyName
+	 * @param defaultValue value returned if the property is not present
+	 * @return
+	 */
+	protected int getIntProperty(String propertyName, int defaultValue) {
+		final String value = getProperties(propertiesFile).getProperty(propertyName);
+		if (value == null || "".equals(value.trim())) {
+			return defaultValue;
+		}
+		try {
+			return Integer.valueOf(value.trim());
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException(propertyName + " property is malformed. An integer is expected");
+		}
+	}
+
+	/**
+	 * Reads an optional boolean property from the properties file
+	 * 
+	 * @param propertyName
+	 * @param defaultValue value returned if the property is not present
+	 * @return
+	 */
+	protected boolean getBooleanProperty(String propertyName, boolean defaultValue) {
+		final String value = getProperties(propertiesFile).getProperty(propertyName);
+		if (value == null || "".equals(value.trim())) {
+			return defaultValue;
+		}
+		return Boolean.valueOf(value.trim());
+	}
+
 	protected FTPClient loginToMassive() throws IOException {
 
 		final Properties properties = getProperties(propertiesFile);
@@ -161,147 +415,361 @@ public class IP2ToMassive {
 
 	}
 
+	/**
+	 * Explores the project tree in IP2 with a {@link IP2ProjectCrawler} over the
+	 * channels of the IP2 channel pool
+	 * 
+	 * @param projectBasePath
+	 * @param experimentIDs   experiment IDs to look for, or null to get all the
+	 *                        experiments
+	 * @return the paths of the experiment folders
+	 * @throws IOException
+	 */
 	public List<String> getExperimentPathsFromIP2(String projectBasePath, TIntHashSet experimentIDs)
-			throws IOException, JSchException, SftpException {
-		final List<String> ret = new ArrayList<String>();
-		Session sftpIP2 = null;
-		ChannelSftp sftpChannel = null;
-		try {
-			sftpIP2 = loginToIP2();
-			sftpChannel = FTPUtils.openSFTPChannel(sftpIP2);
+			throws IOException {
+		final int crawlThreads = getIntProperty(CRAWL_THREADS, 8);
+		final IP2ProjectCrawler crawler = new IP2ProjectCrawler(getIP2ChannelPool(), getIP2ListingCache(), crawlThreads,
+				experimentIDs);
+		return crawler.crawl(projectBasePath);
+	}
 
-			ret.addAll(getProjectPaths(sftpChannel, projectBasePath, experimentIDs, 1));
+	/**
+	 * Lists the spectra and search folders of an experiment with a single SFTP
+	 * channel, classifying the files of the spectra folder by {@link FileType}
+	 * in one pass
+	 * 
+	 * @param experimentPath
+	 * @param includeSearches if true, the DTASelect files of the searches are
+	 *                        also looked for, reading their parameters
+	 * @return
+	 * @throws IOException
+	 */
+	public ExperimentScan scanExperiment(String experimentPath, boolean includeSearches) throws IOException {
+		return scanExperiment(experimentPath, includeSearches, null);
+	}
 
+	/**
+	 * Lists the spectra and search folders of an experiment as
+	 * {@link #scanExperiment(String, boolean)}, reusing what is in the snapshot
+	 * if it didn't change: the files of the spectra folder if its modification
+	 * time is the same, and the parameters of the DTASelect files with the same
+	 * size and modification time
+	 * 
+	 * @param experimentPath
+	 * @param includeSearches if true, the DTASelect files of the searches are
+	 *                        also looked for
+	 * @param snapshot        previous snapshot of the project, or null to not
+	 *                        record the modification times of the spectra
+	 *                        folders and DTASelect files
+	 * @return
+	 * @throws IOException
+	 */
+	public ExperimentScan scanExperiment(String experimentPath, boolean includeSearches, InventorySnapshot snapshot)
+			throws IOException {
+		final SftpChannelPool channelPool = getIP2ChannelPool();
+		final ChannelSftp sftpChannel;
+		try {
+			sftpChannel = channelPool.borrowChannel();
+		} catch (final JSchException e) {
+			throw new IOException("Cannot connect to IP2: " + e.getMessage(), e);
+		}
+		boolean brokenChannel = true;
+		try {
+			final ExperimentScan ret = new ExperimentScan(experimentPath);
+			if (snapshot != null) {
+				scanSpectraFolderIfChanged(sftpChannel, ret, snapshot.getExperimentScan(experimentPath));
+			} else {
+				scanSpectraFolder(sftpChannel, ret);
+			}
+			if (includeSearches) {
+				scanSearchFolder(sftpChannel, ret, snapshot);
+			}
+			brokenChannel = false;
+			return ret;
+		} catch (final SftpException e) {
+			throw new IOException("Error looking into " + experimentPath + ": " + e.getMessage(), e);
 		} finally {
-			sftpChannel.disconnect();
-			sftpIP2.disconnect();
+			if (brokenChannel) {
+				channelPool.invalidateChannel(sftpChannel);
+			} else {
+				channelPool.releaseChannel(sftpChannel);
+			}
 		}
-		return ret;
 	}
 
-	private List<String> getProjectPaths(ChannelSftp sftpChannel, String projectBasePath, TIntHashSet experimentIDs,
-			int level) throws SftpException {
-		final List<String> ret = new ArrayList<String>();
-		final Vector<LsEntry> ls = sftpChannel.ls(projectBasePath);
-		for (final LsEntry lsEntry : ls) {
-			final String fileName = lsEntry.getFilename();
-			if (lsEntry.getAttrs().isDir()) {
+	/**
+	 * Takes the files of the spectra folder from the previous scan of the
+	 * experiment if the folder has the same modification time, which only
+	 * changes when files are added, removed or renamed in it. Otherwise, it lists
+	 * the folder.
+	 * 
+	 * @param sftpChannel
+	 * @param scan
+	 * @param previousScan scan of the experiment in the snapshot, or null if it
+	 *                     is new
+	 * @throws SftpException
+	 */
+	private void scanSpectraFolderIfChanged(ChannelSftp sftpChannel, ExperimentScan scan,
+			ExperimentScan previousScan) throws SftpException {
+		// the modification time is taken before listing, so that a change while
+		// listing is noticed next time
+		final int mtime = getReliableMTime(getAttrsIfExists(sftpChannel, scan.getExperimentPath() + "/spectra"));
+		scan.setSpectraMTime(mtime);
+		if (mtime >= 0 && previousScan != null && mtime == previousScan.getSpectraMTime()) {
+			for (final FileType fileType : FileType.getSpectraFileTypes()) {
+				for (final String path : previousScan.getPaths(fileType)) {
+					scan.addPath(fileType, path);
+				}
+			}
+			return;
+		}
+		scanSpectraFolder(sftpChannel, scan);
+	}
 
-				log.info("Looking at folder " + projectBasePath + "/" + fileName);
+	private void scanSpectraFolder(ChannelSftp sftpChannel, ExperimentScan scan) throws SftpException {
+		final String spectraPath = scan.getExperimentPath() + "/spectra";
+		final List<IP2ListingCache.Entry> ls = listIfExists(sftpChannel, spectraPath);
+		if (ls == null) {
+			log.warn("'" + spectraPath + "' doesnt exist on server...so no raw files here");
+			return;
+		}
+		for (final IP2ListingCache.Entry entry : ls) {
+			if (entry.isDir()) {
+				continue;
+			}
+			final String fileName = entry.getFilename();
+			final FileType fileType = FileType.getSpectraFileTypeByExtension(FilenameUtils.getExtension(fileName));
+			if (fileType != null) {
+				scan.addPath(fileType, spectraPath + "/" + fileName);
+			}
+		}
+	}
 
-				if (fileName.contains("Xi_2")) {
-					log.info("asdf");
-				}
-				if (fileName.contains("_")) {
-					try {
-						final String substring = fileName.substring(fileName.lastIndexOf("_") + 1);
-
-						final int experimentID = Integer.valueOf(substring);
-						if (substring.length() < 5) {
-							// this is not an experiment ID
-							throw new NumberFormatException();
-						}
-						if (experimentIDs == null // if experimentsIDs==null is because we want all experiments, not
-													// just some with certain IDs
-								|| experimentIDs.contains(experimentID)) {
-							ret.add(projectBasePath + "/" + lsEntry.getFilename());
-							log.info("Found experiment " + experimentID + " at folder " + projectBasePath + "/"
-									+ fileName);
-						}
-					} catch (final NumberFormatException e) {
-						ret.addAll(getProjectPaths(sftpChannel, projectBasePath + "/" + lsEntry.getFilename(),
-								experimentIDs, level + 1));
-					}
-				} else if (!fileName.equals(".") && !fileName.equals("..")) {
-					ret.addAll(getProjectPaths(sftpChannel, projectBasePath + "/" + lsEntry.getFilename(),
-							experimentIDs, level + 1));
+	private void scanSearchFolder(ChannelSftp sftpChannel, ExperimentScan scan, InventorySnapshot snapshot)
+			throws SftpException, IOException {
+		final String searchPath = scan.getExperimentPath() + "/search";
+		final List<IP2ListingCache.Entry> ls = listIfExists(sftpChannel, searchPath);
+		if (ls == null) {
+			log.warn("'" + searchPath + "' doesnt exist on server...so no dtaselect files here");
+			return;
+		}
+		for (final IP2ListingCache.Entry entry : ls) {
+			final String fileName = entry.getFilename();
+			if (!entry.isDir() || !fileName.contains("_")) {
+				continue;
+			}
+			final String searchFolderPath = searchPath + "/" + fileName;
+			final List<IP2ListingCache.Entry> ls2 = getIP2ListingCache().list(sftpChannel, searchFolderPath);
+			for (final IP2ListingCache.Entry entry2 : ls2) {
+				if (entry2.getFilename().equals(FileType.DTASELECT.getDefaultFileName())) {
+					addSearch(sftpChannel, scan, searchFolderPath + "/" + entry2.getFilename(), entry2.getSize(),
+							entry2.getMTime(), snapshot);
 				}
 			}
 		}
-		return ret;
 	}
 
-	public List<String> getRawFilesPaths(String experimentPath, String rawFileExtension)
-			throws IOException, JSchException, SftpException {
-		final List<String> ret = new ArrayList<String>();
-		Session sftpIP2 = null;
-		ChannelSftp sftpChannel = null;
+	/**
+	 * Adds the search of a DTASelect file to the scan, reading its parameters
+	 * unless they are in the snapshot for a file of the same size and
+	 * modification time
+	 * 
+	 * @param sftpChannel
+	 * @param scan
+	 * @param dtaSelectPath path of the DTASelect file, in a search folder whose
+	 *                      name ends with '_' and the search ID
+	 * @param size          size of the DTASelect file
+	 * @param mtime         modification time of the DTASelect file
+	 * @param snapshot      previous snapshot of the project, or null to not
+	 *                      record the size and modification time of the file
+	 * @throws SftpException
+	 * @throws IOException
+	 */
+	private void addSearch(ChannelSftp sftpChannel, ExperimentScan scan, String dtaSelectPath, long size, int mtime,
+			InventorySnapshot snapshot) throws SftpException, IOException {
+		final String searchFolderName = FilenameUtils.getName(FilenameUtils.getFullPathNoEndSeparator(dtaSelectPath));
+		final int id;
 		try {
-			sftpIP2 = loginToIP2();
-			sftpChannel = FTPUtils.openSFTPChannel(sftpIP2);
-			final String spectraPath = experimentPath + "/spectra";
-			final Vector<LsEntry> ls = sftpChannel.ls(spectraPath);
-			for (final LsEntry lsEntry : ls) {
-				final String fileName = lsEntry.getFilename();
-				if (!lsEntry.getAttrs().isDir() && fileName.endsWith(rawFileExtension)) {
-					ret.add(spectraPath + "/" + lsEntry.getFilename());
+			id = Integer.valueOf(searchFolderName.substring(searchFolderName.lastIndexOf("_") + 1));
+		} catch (final NumberFormatException e) {
+			log.warn("Search folder of '" + dtaSelectPath + "' doesn't end with a search ID. Skipping it");
+			return;
+		}
+		if (snapshot == null) {
+			scan.addSearch(new Search(id, dtaSelectPath, readDTASelectParameters(sftpChannel, dtaSelectPath)));
+			return;
+		}
+		final int reliableMTime = getReliableMTime(mtime);
+		final Search previousSearch = snapshot.getSearch(dtaSelectPath);
+		if (reliableMTime >= 0 && previousSearch != null && previousSearch.getId() == id
+				&& previousSearch.getSize() == size && previousSearch.getMTime() == reliableMTime) {
+			scan.addSearch(previousSearch);
+			return;
+		}
+		final String parameters = readDTASelectParameters(sftpChannel, dtaSelectPath);
+		scan.addSearch(new Search(id, dtaSelectPath, parameters, size, reliableMTime));
+	}
+
+	/**
+	 * Looks for the experiments of the project tree in IP2 and their files with
+	 * a single find command run in the server by a {@link RemoteFindScanner},
+	 * reading then the parameters of their searches
+	 * 
+	 * @param projectBasePath
+	 * @param experimentIDs   experiment IDs to look for, or null to get all the
+	 *                        experiments
+	 * @param includeSearches if true, the DTASelect files of the searches are
+	 *                        also looked for
+	 * @return the scans of the experiments, in the same order as
+	 *         {@link #getExperimentPathsFromIP2(String, TIntHashSet)}
+	 * @throws IOException
+	 */
+	public List<ExperimentScan> findExperiments(String projectBasePath, TIntHashSet experimentIDs,
+			boolean includeSearches) throws IOException {
+		return findExperiments(projectBasePath, experimentIDs, includeSearches, null);
+	}
+
+	/**
+	 * Looks for the experiments of the project tree as
+	 * {@link #findExperiments(String, TIntHashSet, boolean)}, reusing the
+	 * parameters of the DTASelect files that have in the snapshot the same size
+	 * and modification time
+	 * 
+	 * @param projectBasePath
+	 * @param experimentIDs   experiment IDs to look for, or null to get all the
+	 *                        experiments
+	 * @param includeSearches if true, the DTASelect files of the searches are
+	 *                        also looked for
+	 * @param snapshot        previous snapshot of the project, or null to not
+	 *                        record the size and modification time of the
+	 *                        DTASelect files
+	 * @return
+	 * @throws IOException
+	 */
+	public List<ExperimentScan> findExperiments(String projectBasePath, TIntHashSet experimentIDs,
+			boolean includeSearches, InventorySnapshot snapshot) throws IOException {
+		final RemoteFindScanner scanner;
+		final List<ExperimentScan> ret;
+		final Session sftpIP2 = loginToIP2();
+		try {
+			scanner = new RemoteFindScanner(sftpIP2, experimentIDs, includeSearches);
+			ret = scanner.scan(projectBasePath);
+		} finally {
+			sftpIP2.disconnect();
+		}
+		if (!includeSearches) {
+			return ret;
+		}
+		final SftpChannelPool channelPool = getIP2ChannelPool();
+		final ChannelSftp sftpChannel;
+		try {
+			sftpChannel = channelPool.borrowChannel();
+		} catch (final JSchException e) {
+			throw new IOException("Cannot connect to IP2: " + e.getMessage(), e);
+		}
+		boolean brokenChannel = true;
+		try {
+			for (final ExperimentScan scan : ret) {
+				for (final String dtaSelectPath : scanner.getDTASelectPaths(scan.getExperimentPath())) {
+					if (snapshot != null) {
+						final SftpATTRS attrs = sftpChannel.stat(dtaSelectPath);
+						addSearch(sftpChannel, scan, dtaSelectPath, attrs.getSize(), attrs.getMTime(), snapshot);
+					} else {
+						addSearch(sftpChannel, scan, dtaSelectPath, -1l, -1, null);
+					}
 				}
 			}
+			brokenChannel = false;
 		} catch (final SftpException e) {
-			if (e.getMessage().contains("No such file")) {
-				log.warn("'" + experimentPath + "/spectra' doesnt exist on server...so no raw files here");
-			}
-
+			throw new IOException("Error reading the DTASelect files: " + e.getMessage(), e);
 		} finally {
-			sftpChannel.disconnect();
-			sftpIP2.disconnect();
+			if (brokenChannel) {
+				channelPool.invalidateChannel(sftpChannel);
+			} else {
+				channelPool.releaseChannel(sftpChannel);
+			}
 		}
 		return ret;
 	}
 
-	public List<Search> getDTASelectPathsAndParameters(String experimentPath)
-			throws IOException, JSchException, SftpException {
-		final List<Search> ret = new ArrayList<Search>();
-		Session sftpIP2 = null;
-		ChannelSftp sftpChannel = null;
+	/**
+	 * 
+	 * @param sftpChannel
+	 * @param path
+	 * @return the entries of the folder from the {@link IP2ListingCache}, or null
+	 *         if it doesn't exist
+	 * @throws SftpException
+	 */
+	private List<IP2ListingCache.Entry> listIfExists(ChannelSftp sftpChannel, String path) throws SftpException {
 		try {
-			sftpIP2 = loginToIP2();
-			sftpChannel = FTPUtils.openSFTPChannel(sftpIP2);
-			final String searchPath = experimentPath + "/search";
-			final Vector<LsEntry> ls = sftpChannel.ls(searchPath);
-			for (final LsEntry lsEntry : ls) {
-				final String fileName = lsEntry.getFilename();
-				if (lsEntry.getAttrs().isDir() && fileName.contains("_")) {
-					final Vector<LsEntry> ls2 = sftpChannel.ls(searchPath + "/" + lsEntry.getFilename());
-					for (final LsEntry lsEntry2 : ls2) {
-						if (lsEntry2.getFilename().equals("DTASelect-filter.txt")) {
-
-							final String parameters = readDTASelectParameters(lsEntry2, sftpIP2,
-									searchPath + "/" + lsEntry.getFilename());
-							final int id = Integer.valueOf(fileName.substring(fileName.lastIndexOf("_") + 1));
-							final Search pair = new Search(id,
-									searchPath + "/" + lsEntry.getFilename() + "/" + lsEntry2.getFilename(),
-									parameters);
-							ret.add(pair);
-						}
-					}
-				}
+			return getIP2ListingCache().list(sftpChannel, path);
+		} catch (final SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+				return null;
 			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 
+	 * @param sftpChannel
+	 * @param path
+	 * @return the attributes of the file or folder, or null if it doesn't exist
+	 * @throws SftpException
+	 */
+	private SftpATTRS getAttrsIfExists(ChannelSftp sftpChannel, String path) throws SftpException {
+		try {
+			return sftpChannel.stat(path);
 		} catch (final SftpException e) {
-			if (e.getMessage().contains("No such file")) {
-				log.warn("'" + experimentPath + "/spectra' doesnt exist on server...so no dtaselect files here");
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+				return null;
 			}
-		} finally {
-			sftpChannel.disconnect();
-			sftpIP2.disconnect();
+			throw e;
 		}
-		return ret;
 	}
 
-	private String readDTASelectParameters(LsEntry lsEntry2, Session remoteServerSession, String parentFolder)
-			throws JSchException, SftpException, IOException {
+	private int getReliableMTime(SftpATTRS attrs) {
+		if (attrs == null) {
+			return -1;
+		}
+		return getReliableMTime(attrs.getMTime());
+	}
+
+	/**
+	 * 
+	 * @param mtime modification time in seconds
+	 * @return the modification time, or -1 if it is so recent that a change in
+	 *         the same second would not change it, so it cannot be used to know
+	 *         whether the file changed later
+	 */
+	private int getReliableMTime(int mtime) {
+		if (mtime >= System.currentTimeMillis() / 1000 - 1) {
+			return -1;
+		}
+		return mtime;
+	}
+
+	private String readDTASelectParameters(ChannelSftp sftpChannel, String dtaSelectPath)
+			throws SftpException, IOException {
 		final File tempFile = File.createTempFile("todelete", "");
 		tempFile.deleteOnExit();
-		final FileOutputStream outputStream = new FileOutputStream(tempFile);
-
-		final long download = FTPUtils.download(remoteServerSession, parentFolder + "/" + lsEntry2.getFilename(),
-				outputStream, progressMonitor);
-		if (download > 0) {
-			final DTASelectParser parser = new DTASelectParser(tempFile);
-			parser.setOnlyReadParameters(true);
-			return parser.getCommandLineParameter().toString();
+		try {
+			final FileOutputStream outputStream = new FileOutputStream(tempFile);
+			try {
+				sftpChannel.get(dtaSelectPath, outputStream, progressMonitor);
+			} finally {
+				outputStream.close();
+			}
+			if (tempFile.length() > 0) {
+				final DTASelectParser parser = new DTASelectParser(tempFile);
+				parser.setOnlyReadParameters(true);
+				return parser.getCommandLineParameter().toString();
+			}
+			return projectName;
+		} finally {
+			tempFile.delete();
 		}
-		return projectName;
 	}
 
 	public String getProjectBasePathInIP2() {
@@ -1,10 +1,17 @@
 package edu.scripps.yates.ip2tomassive;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
@@ -14,6 +21,8 @@ import gnu.trove.set.hash.TIntHashSet;
 
 public class InputFileGenerator {
 	private static final Logger log = Logger.getLogger(InputFileGenerator.class);
+	private static final String DISCOVERY_SFTP = "sftp";
+	private static final String DISCOVERY_FIND = "find";
 	private final File paramFile;
 	private final boolean includeDTASelect;
 	private final boolean takeEverythingBaseFolder;
@@ -48,95 +57,253 @@ public class InputFileGenerator {
 			throw new IllegalArgumentException(
 					IP2ToMassive.IP2_SERVER_PROJECT_BASE_PATH + " property is needed in parameters file");
 		}
+		final boolean incremental = ip2Massive.getBooleanProperty(IP2ToMassive.INCREMENTAL_PATHS, false);
 		FileWriter fw = null;
+		FileWriter newPathsWriter = null;
 		File ret = null;
+		File tempFile = null;
+		File newPathsFile = null;
+		boolean failed = false;
 		try {
 			final String fileName = paramFile.getParentFile().getAbsolutePath() + File.separator
 					+ FilenameUtils.getBaseName(paramFile.getAbsolutePath()) + "_paths.txt";
-			Log.info("Creating file with remote paths at:  " + fileName);
 			ret = new File(fileName);
-			fw = new FileWriter(ret);
+			// in incremental mode, the paths of the previous file and the snapshot
+			// are read before the file is overwritten
+			Set<String> previousPaths = null;
+			InventorySnapshot snapshot = null;
+			File snapshotFile = null;
+			List<ExperimentScan> scans = null;
+			if (incremental) {
+				previousPaths = readPaths(ret);
+				snapshotFile = InventorySnapshot.getSnapshotFile(ret);
+				snapshot = snapshotFile.exists() ? new InventorySnapshot(snapshotFile) : new InventorySnapshot();
+				newPathsFile = getNewPathsFile(ret);
+				scans = new ArrayList<ExperimentScan>();
+			}
+			Log.info("Creating file with remote paths at:  " + fileName);
+			// in incremental mode, the previous file is only replaced if everything
+			// is found, so that it is still the reference of the next run otherwise
+			tempFile = new File(ret.getAbsolutePath() + ".tmp");
+			fw = new FileWriter(incremental ? tempFile : ret);
 			fw.write(MultipleProjectIP2ToMassive.DATASET + " " + properties.getProperty(IP2ToMassive.PROJECT_NAME)
 					+ "\n");
+			if (incremental) {
+				log.info("Creating file with the new remote paths at: " + newPathsFile.getAbsolutePath());
+				newPathsWriter = new FileWriter(newPathsFile);
+				newPathsWriter.write(MultipleProjectIP2ToMassive.DATASET + " "
+						+ properties.getProperty(IP2ToMassive.PROJECT_NAME) + "\n");
+			}
 			// everything is fine until here
-			final List<String> experimentPaths = ip2Massive.getExperimentPathsFromIP2(projectBasePath, experimentIDs);
-			log.info(experimentPaths.size() + " experiment paths retrieved");
+			final String discoveryMode = properties.getProperty(IP2ToMassive.DISCOVERY_MODE, DISCOVERY_SFTP).trim();
+			List<String> experimentPaths = null;
+			List<ExperimentScan> experimentScans = null;
+			if (DISCOVERY_FIND.equalsIgnoreCase(discoveryMode)) {
+				// the files of all the experiments are found at once
+				experimentScans = ip2Massive.findExperiments(projectBasePath, experimentIDs, includeDTASelect,
+						snapshot);
+				log.info(experimentScans.size() + " experiments retrieved");
+			} else if (DISCOVERY_SFTP.equalsIgnoreCase(discoveryMode)) {
+				experimentPaths = ip2Massive.getExperimentPathsFromIP2(projectBasePath, experimentIDs);
+				log.info(experimentPaths.size() + " experiment paths retrieved");
+			} else {
+				throw new IllegalArgumentException(IP2ToMassive.DISCOVERY_MODE
+						+ " property is malformed. Allowed values are " + DISCOVERY_SFTP + " and " + DISCOVERY_FIND);
+			}
+			final int numExperiments = experimentScans != null ? experimentScans.size() : experimentPaths.size();
 			int numRaws = 0;
 			int numMS1s = 0;
 			int numMS2s = 0;
 			int numMS3s = 0;
 			int numDTASelects = 0;
-			for (final String experimentPath : experimentPaths) {
-				log.info("Looking into path: " + experimentPath);
-				// raws
-				List<String> rawFilesPaths = ip2Massive.getRawFilesPaths(experimentPath, "raw");
-				if (!rawFilesPaths.isEmpty()) {
-					fw.write(FileType.RAW.getDescription() + "\n");
-					for (final String rawFile : rawFilesPaths) {
-						fw.write(rawFile + "\n");
-						numRaws++;
-					}
+			int numNewFiles = 0;
+			for (int i = 0; i < numExperiments; i++) {
+				final ExperimentScan scan;
+				if (experimentScans != null) {
+					scan = experimentScans.get(i);
+				} else {
+					log.info("Looking into path: " + experimentPaths.get(i));
+					scan = ip2Massive.scanExperiment(experimentPaths.get(i), includeDTASelect, snapshot);
 				}
+				// raws
+				numRaws += writePaths(fw, FileType.RAW, scan.getPaths(FileType.RAW));
 				// ms1
 				if (getMS1) {
-					rawFilesPaths = ip2Massive.getRawFilesPaths(experimentPath, "ms1");
-					if (!rawFilesPaths.isEmpty()) {
-						fw.write(FileType.MS1.getDescription() + "\n");
-						for (final String rawFile : rawFilesPaths) {
-							fw.write(rawFile + "\n");
-							numMS1s++;
-						}
-					}
+					numMS1s += writePaths(fw, FileType.MS1, scan.getPaths(FileType.MS1));
 				}
 				// ms2
 				if (getMS2) {
-					rawFilesPaths = ip2Massive.getRawFilesPaths(experimentPath, "ms2");
-					if (!rawFilesPaths.isEmpty()) {
-						fw.write(FileType.MS2.getDescription() + "\n");
-						for (final String rawFile : rawFilesPaths) {
-							fw.write(rawFile + "\n");
-							numMS2s++;
-						}
-					}
+					numMS2s += writePaths(fw, FileType.MS2, scan.getPaths(FileType.MS2));
 				}
 				// ms3
 				if (getMS3) {
-					rawFilesPaths = ip2Massive.getRawFilesPaths(experimentPath, "ms3");
-					if (!rawFilesPaths.isEmpty()) {
-						fw.write(FileType.MS3.getDescription() + "\n");
-						for (final String rawFile : rawFilesPaths) {
-							fw.write(rawFile + "\n");
-							numMS3s++;
-						}
-					}
+					numMS3s += writePaths(fw, FileType.MS3, scan.getPaths(FileType.MS3));
 				}
 				if (includeDTASelect) {
 					// dtaselect
-					final List<Search> dtaSelectFilesPathsAndParameterString = ip2Massive
-							.getDTASelectPathsAndParameters(experimentPath);
+					final List<Search> dtaSelectFilesPathsAndParameterString = scan.getSearches();
 					if (!dtaSelectFilesPathsAndParameterString.isEmpty()) {
 						fw.write(FileType.DTASELECT.getDescription() + "\n");
 						for (final Search search : dtaSelectFilesPathsAndParameterString) {
-							final String parameters = search.getParameters();
-							final String dtaSelectPath = search.getPath();
-							final String newFileName = FilenameUtils.getBaseName(dtaSelectPath) + "_" + search.getId()
-									+ ".txt";
-							fw.write(dtaSelectPath + "\t" + newFileName + "\t" + parameters + "\n");
+							writeSearch(fw, search);
 							numDTASelects++;
 						}
 					}
 				}
+				if (incremental) {
+					scans.add(scan);
+					numNewFiles += writeNewFiles(newPathsWriter, scan, previousPaths, snapshot);
+				}
 				log.info("Number of raw files so far: " + numRaws);
 				log.info("Number of ms1 files so far: " + numMS1s);
 				log.info("Number of ms2 files so far: " + numMS2s);
 				log.info("Number of ms3 files so far: " + numMS3s);
 				log.info("Number of dtaselect files so far: " + numDTASelects);
 			}
+			if (incremental) {
+				log.info(numNewFiles + " new or changed files written to " + newPathsFile.getAbsolutePath());
+				fw.close();
+				// the snapshot goes first, so that the new files are still new in the
+				// next run if the remote paths file cannot be replaced
+				InventorySnapshot.write(snapshotFile, scans);
+				Files.move(tempFile.toPath(), ret.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				ret = newPathsFile;
+			}
 		} catch (final Exception e) {
 			e.printStackTrace();
+			if (incremental) {
+				// otherwise the previous remote paths file would be returned as if it
+				// had only the new paths
+				failed = true;
+				throw new IOException("Error creating the remote paths incrementally: " + e.getMessage(), e);
+			}
+		} finally {
+			if (fw != null) {
+				fw.close();
+			}
+			if (newPathsWriter != null) {
+				newPathsWriter.close();
+			}
+			if (failed) {
+				// the previous remote paths file and snapshot are kept for the next run
+				if (tempFile != null) {
+					tempFile.delete();
+				}
+				if (newPathsFile != null) {
+					newPathsFile.delete();
+				}
+			}
+			ip2Massive.saveIP2ListingCache();
+			ip2Massive.closeConnectionPools();
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the paths of a {@link FileType} after its description, if there is
+	 * any
+	 * 
+	 * @param fw
+	 * @param fileType
+	 * @param paths
+	 * @return the number of paths written
+	 * @throws IOException
+	 */
+	private int writePaths(FileWriter fw, FileType fileType, List<String> paths) throws IOException {
+		if (!paths.isEmpty()) {
+			fw.write(fileType.getDescription() + "\n");
+			for (final String path : paths) {
+				fw.write(path + "\n");
+			}
+		}
+		return paths.size();
+	}
+
+	private void writeSearch(FileWriter fw, Search search) throws IOException {
+		final String dtaSelectPath = search.getPath();
+		final String newFileName = FilenameUtils.getBaseName(dtaSelectPath) + "_" + search.getId() + ".txt";
+		fw.write(dtaSelectPath + "\t" + newFileName + "\t" + search.getParameters() + "\n");
+	}
+
+	/**
+	 * Writes the files of the experiment that were not in the previous remote
+	 * paths file, and the DTASelect files that changed since the snapshot
+	 * 
+	 * @param fw
+	 * @param scan
+	 * @param previousPaths paths of the previous remote paths file
+	 * @param snapshot      previous snapshot of the project
+	 * @return the number of files written
+	 * @throws IOException
+	 */
+	private int writeNewFiles(FileWriter fw, ExperimentScan scan, Set<String> previousPaths,
+			InventorySnapshot snapshot) throws IOException {
+		int ret = 0;
+		for (final FileType fileType : FileType.getSpectraFileTypes()) {
+			final List<String> newPaths = new ArrayList<String>();
+			for (final String path : scan.getPaths(fileType)) {
+				if (!previousPaths.contains(path)) {
+					newPaths.add(path);
+				}
+			}
+			ret += writePaths(fw, fileType, newPaths);
+		}
+		final List<Search> newSearches = new ArrayList<Search>();
+		for (final Search search : scan.getSearches()) {
+			// the searches taken from the snapshot are the same objects, so any other
+			// one was read again because its DTASelect file changed
+			final Search previousSearch = snapshot.getSearch(search.getPath());
+			if (!previousPaths.contains(search.getPath()) || (previousSearch != null && previousSearch != search)) {
+				newSearches.add(search);
+			}
+		}
+		if (!newSearches.isEmpty()) {
+			fw.write(FileType.DTASELECT.getDescription() + "\n");
+			for (final Search search : newSearches) {
+				writeSearch(fw, search);
+			}
+		}
+		return ret + newSearches.size();
+	}
+
+	/**
+	 * 
+	 * @param remotePathsFile
+	 * @return the file with only the new remote paths of that remote paths file,
+	 *         in the same folder
+	 */
+	public static File getNewPathsFile(File remotePathsFile) {
+		return new File(remotePathsFile.getAbsoluteFile().getParentFile(),
+				FilenameUtils.getBaseName(remotePathsFile.getName()) + "_new.txt");
+	}
+
+	/**
+	 * 
+	 * @param remotePathsFile
+	 * @return the paths in the first column of the remote paths file, or an
+	 *         empty set if it doesn't exist
+	 * @throws IOException
+	 */
+	private Set<String> readPaths(File remotePathsFile) throws IOException {
+		final Set<String> ret = new HashSet<String>();
+		if (!remotePathsFile.exists()) {
+			return ret;
+		}
+		final BufferedReader reader = new BufferedReader(new FileReader(remotePathsFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// the description of the file types and the dataset lines don't
+				// start with '/'
+				if (line.startsWith("/")) {
+					final int index = line.indexOf('\t');
+					ret.add(index >= 0 ? line.substring(0, index) : line.trim());
+				}
+			}
 		} finally {
-			fw.close();
+			reader.close();
 		}
+		log.info(ret.size() + " paths read from the previous " + remotePathsFile.getAbsolutePath());
 		return ret;
 	}
 
@@ -0,0 +1,149 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * What was found in the experiments of a project the last time that the remote
+ * paths file was generated incrementally by {@link InputFileGenerator}, so that
+ * the next time only the spectra folders that changed are listed again and
+ * only the DTASelect files that changed are read again.<br>
+ * The snapshot file is a text file with tab separated lines: E experimentPath
+ * spectraMTime; followed by the files of the experiment: P fileType path; and
+ * its searches: S id size mtime path parameters.
+ *
+ * @author salvador
+ *
+ */
+public class InventorySnapshot {
+	private final static Logger log = Logger.getLogger(InventorySnapshot.class);
+	private final Map<String, ExperimentScan> scansByExperimentPath = new HashMap<String, ExperimentScan>();
+	private final Map<String, Search> searchesByPath = new HashMap<String, Search>();
+
+	/**
+	 *
+	 * @param remotePathsFile
+	 * @return the snapshot file of that remote paths file, in the same folder
+	 */
+	public static File getSnapshotFile(File remotePathsFile) {
+		return new File(remotePathsFile.getAbsoluteFile().getParentFile(),
+				FilenameUtils.getBaseName(remotePathsFile.getName()) + "_snapshot.txt");
+	}
+
+	/**
+	 * Creates an empty snapshot, as the one of a project that was never
+	 * generated incrementally
+	 */
+	public InventorySnapshot() {
+	}
+
+	/**
+	 * Reads a snapshot file
+	 *
+	 * @param snapshotFile
+	 * @throws IOException if the file is malformed
+	 */
+	public InventorySnapshot(File snapshotFile) throws IOException {
+		final BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(snapshotFile), StandardCharsets.UTF_8));
+		try {
+			ExperimentScan scan = null;
+			String line;
+			int numLine = 0;
+			while ((line = reader.readLine()) != null) {
+				numLine++;
+				try {
+					if (line.startsWith("E\t")) {
+						final String[] split = line.split("\t", 3);
+						scan = new ExperimentScan(split[1]);
+						scan.setSpectraMTime(Integer.valueOf(split[2]));
+						scansByExperimentPath.put(scan.getExperimentPath(), scan);
+					} else if (line.startsWith("P\t") && scan != null) {
+						final String[] split = line.split("\t", 3);
+						scan.addPath(FileType.valueOf(split[1]), split[2]);
+					} else if (line.startsWith("S\t") && scan != null) {
+						final String[] split = line.split("\t", 6);
+						final Search search = new Search(Integer.valueOf(split[1]), split[4], split[5],
+								Long.valueOf(split[2]), Integer.valueOf(split[3]));
+						scan.addSearch(search);
+						searchesByPath.put(search.getPath(), search);
+					} else {
+						throw new IOException("Malformed line " + numLine + " in " + snapshotFile.getAbsolutePath());
+					}
+				} catch (final IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+					throw new IOException("Malformed line " + numLine + " in " + snapshotFile.getAbsolutePath(), e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		log.info(scansByExperimentPath.size() + " experiments and " + searchesByPath.size()
+				+ " searches read from " + snapshotFile.getAbsolutePath());
+	}
+
+	/**
+	 *
+	 * @param experimentPath
+	 * @return what was found in the experiment, or null if it is not in the
+	 *         snapshot
+	 */
+	public ExperimentScan getExperimentScan(String experimentPath) {
+		return scansByExperimentPath.get(experimentPath);
+	}
+
+	/**
+	 *
+	 * @param dtaSelectPath
+	 * @return the search of that DTASelect file, or null if it is not in the
+	 *         snapshot
+	 */
+	public Search getSearch(String dtaSelectPath) {
+		return searchesByPath.get(dtaSelectPath);
+	}
+
+	/**
+	 * Writes the scans of the experiments to a snapshot file, replacing it only
+	 * once it is completely written
+	 *
+	 * @param snapshotFile
+	 * @param scans
+	 * @throws IOException
+	 */
+	public static void write(File snapshotFile, List<ExperimentScan> scans) throws IOException {
+		final File tempFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8);
+		try {
+			for (final ExperimentScan scan : scans) {
+				writer.write("E\t" + scan.getExperimentPath() + "\t" + scan.getSpectraMTime() + "\n");
+				for (final FileType fileType : FileType.getSpectraFileTypes()) {
+					for (final String path : scan.getPaths(fileType)) {
+						writer.write("P\t" + fileType.name() + "\t" + path + "\n");
+					}
+				}
+				for (final Search search : scan.getSearches()) {
+					writer.write("S\t" + search.getId() + "\t" + search.getSize() + "\t" + search.getMTime() + "\t"
+							+ search.getPath() + "\t" + search.getParameters() + "\n");
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		log.info(scans.size() + " experiments written to " + snapshotFile.getAbsolutePath());
+	}
+}
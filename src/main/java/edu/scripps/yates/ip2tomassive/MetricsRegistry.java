@@ -0,0 +1,556 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the metrics of the transfers, that can be exported in the
+ * Prometheus text exposition format with {@link #write(Writer)}, served with
+ * {@link #startHttpServer(int)} at /metrics, and/or written periodically to a
+ * file with {@link #startFileExport(File, long)}.<br>
+ * There is one registry per JVM, returned by {@link #getInstance()}.
+ * 
+ * @author salvador
+ * 
+ */
+public class MetricsRegistry {
+	private final static Logger log = Logger.getLogger(MetricsRegistry.class);
+	private static final String PREFIX = "ip2_transfer_";
+	/**
+	 * upper bounds in seconds of the buckets of the histograms
+	 */
+	private static final double[] LATENCY_BUCKETS = { 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300,
+			900, 3600 };
+	/**
+	 * time window of the current throughput, in seconds
+	 */
+	private static final int THROUGHPUT_WINDOW = 60;
+	private static final MetricsRegistry instance = new MetricsRegistry();
+
+	private final Map<String, Metric> metricsByName = new ConcurrentHashMap<String, Metric>();
+	private final List<String> metricNames = new ArrayList<String>();
+	private final long[] bytesBySecond = new long[THROUGHPUT_WINDOW];
+	private final long[] secondOfSlot = new long[THROUGHPUT_WINDOW];
+	private final long startTime = System.currentTimeMillis();
+	private HttpServer httpServer;
+	private ScheduledExecutorService fileExporter;
+
+	// metrics of the transfers
+	public final Counter bytesTransferred = counter("bytes_transferred_total",
+			"Bytes written to the destination", "dataset", "file_type");
+	public final Counter files = counter("files_total",
+			"Files processed, by status (done, skipped or failed)", "dataset", "file_type", "status");
+	public final Histogram operationSeconds = histogram("operation_seconds",
+			"Duration of the operations with the servers (connect, login, mkdir, size_probe, stream)", "server",
+			"operation");
+	public final Histogram pipelineStallSeconds = histogram("pipeline_stall_seconds",
+			"Time that the pipelines between IP2 and the destination waited, by side (producer: for a free buffer, "
+					+ "consumer: for a filled one)",
+			"side");
+	private final AtomicLong pipelineHighWater = new AtomicLong();
+
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	private MetricsRegistry() {
+		gauge("throughput_bytes_per_second",
+				"Bytes written to the destination per second in the last " + THROUGHPUT_WINDOW + " seconds",
+				new GaugeValue() {
+					@Override
+					public double getValue() {
+						return getThroughput();
+					}
+				});
+		gauge("uptime_seconds", "Time since the start of the run", new GaugeValue() {
+
+			@Override
+			public double getValue() {
+				return (System.currentTimeMillis() - startTime) / 1000.0;
+			}
+		});
+		gauge("pipeline_buffers_high_water",
+				"Maximum number of filled buffers in the pipelines between IP2 and the destination",
+				new GaugeValue() {
+					@Override
+					public double getValue() {
+						return pipelineHighWater.get();
+					}
+				});
+	}
+
+	/**
+	 * A value that is read every time the metrics are exported
+	 */
+	public interface GaugeValue {
+		public double getValue();
+	}
+
+	private abstract class Metric {
+		protected final String name;
+		protected final String help;
+		protected final String type;
+		protected final String[] labelNames;
+
+		private Metric(String name, String help, String type, String[] labelNames) {
+			this.name = PREFIX + name;
+			this.help = help;
+			this.type = type;
+			this.labelNames = labelNames;
+		}
+
+		protected String getLabels(List<String> labelValues, String extraName, String extraValue) {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < labelNames.length; i++) {
+				appendLabel(sb, labelNames[i], labelValues.get(i));
+			}
+			if (extraName != null) {
+				appendLabel(sb, extraName, extraValue);
+			}
+			if (sb.length() == 0) {
+				return "";
+			}
+			return "{" + sb.toString() + "}";
+		}
+
+		private void appendLabel(StringBuilder sb, String labelName, String value) {
+			if (sb.length() > 0) {
+				sb.append(",");
+			}
+			sb.append(labelName).append("=\"").append(escape(value)).append("\"");
+		}
+
+		protected List<String> getKey(String[] labelValues) {
+			if (labelValues.length != labelNames.length) {
+				throw new IllegalArgumentException(
+						name + " needs " + labelNames.length + " label values: " + Arrays.toString(labelNames));
+			}
+			final List<String> key = new ArrayList<String>(labelValues.length);
+			for (final String labelValue : labelValues) {
+				key.add(labelValue != null ? labelValue : "");
+			}
+			return key;
+		}
+
+		protected void writeHeader(Writer writer) throws IOException {
+			writer.write("# HELP " + name + " " + help + "\n");
+			writer.write("# TYPE " + name + " " + type + "\n");
+		}
+
+		protected abstract void write(Writer writer) throws IOException;
+	}
+
+	public class Counter extends Metric {
+		private final Map<List<String>, AtomicLong> values = new ConcurrentHashMap<List<String>, AtomicLong>();
+
+		private Counter(String name, String help, String[] labelNames) {
+			super(name, help, "counter", labelNames);
+		}
+
+		public void inc(String... labelValues) {
+			add(1l, labelValues);
+		}
+
+		public void add(long delta, String... labelValues) {
+			final List<String> key = getKey(labelValues);
+			AtomicLong value = values.get(key);
+			if (value == null) {
+				values.putIfAbsent(key, new AtomicLong());
+				value = values.get(key);
+			}
+			value.addAndGet(delta);
+		}
+
+		public long get(String... labelValues) {
+			final AtomicLong value = values.get(getKey(labelValues));
+			return value != null ? value.get() : 0l;
+		}
+
+		@Override
+		protected void write(Writer writer) throws IOException {
+			writeHeader(writer);
+			for (final List<String> key : values.keySet()) {
+				writer.write(name + getLabels(key, null, null) + " " + values.get(key).get() + "\n");
+			}
+		}
+	}
+
+	public class Histogram extends Metric {
+		private final Map<List<String>, long[]> bucketsByKey = new ConcurrentHashMap<List<String>, long[]>();
+		private final Map<List<String>, double[]> sumsByKey = new ConcurrentHashMap<List<String>, double[]>();
+
+		private Histogram(String name, String help, String[] labelNames) {
+			super(name, help, "histogram", labelNames);
+		}
+
+		/**
+		 * 
+		 * @param seconds
+		 * @param labelValues
+		 */
+		public void observe(double seconds, String... labelValues) {
+			final List<String> key = getKey(labelValues);
+			synchronized (this) {
+				long[] buckets = bucketsByKey.get(key);
+				if (buckets == null) {
+					// the last one is +Inf
+					buckets = new long[LATENCY_BUCKETS.length + 1];
+					bucketsByKey.put(key, buckets);
+					sumsByKey.put(key, new double[1]);
+				}
+				for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+					if (seconds <= LATENCY_BUCKETS[i]) {
+						buckets[i]++;
+					}
+				}
+				buckets[LATENCY_BUCKETS.length]++;
+				sumsByKey.get(key)[0] += seconds;
+			}
+		}
+
+		/**
+		 * Observes the time since startNanos, as returned by
+		 * {@link System#nanoTime()}
+		 * 
+		 * @param startNanos
+		 * @param labelValues
+		 */
+		public void observeSince(long startNanos, String... labelValues) {
+			observe((System.nanoTime() - startNanos) / 1e9, labelValues);
+		}
+
+		/**
+		 * 
+		 * @param labelValues
+		 * @return the number of observations with those labels
+		 */
+		public synchronized long getCount(String... labelValues) {
+			final long[] buckets = bucketsByKey.get(getKey(labelValues));
+			return buckets != null ? buckets[LATENCY_BUCKETS.length] : 0l;
+		}
+
+		/**
+		 * 
+		 * @param labelValues
+		 * @return the sum of the seconds observed with those labels
+		 */
+		public synchronized double getSum(String... labelValues) {
+			final double[] sum = sumsByKey.get(getKey(labelValues));
+			return sum != null ? sum[0] : 0.0;
+		}
+
+		@Override
+		protected synchronized void write(Writer writer) throws IOException {
+			writeHeader(writer);
+			for (final List<String> key : bucketsByKey.keySet()) {
+				final long[] buckets = bucketsByKey.get(key);
+				for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+					writer.write(name + "_bucket" + getLabels(key, "le", String.valueOf(LATENCY_BUCKETS[i])) + " "
+							+ buckets[i] + "\n");
+				}
+				writer.write(name + "_bucket" + getLabels(key, "le", "+Inf") + " " + buckets[LATENCY_BUCKETS.length]
+						+ "\n");
+				writer.write(name + "_sum" + getLabels(key, null, null) + " " + sumsByKey.get(key)[0] + "\n");
+				writer.write(name + "_count" + getLabels(key, null, null) + " " + buckets[LATENCY_BUCKETS.length]
+						+ "\n");
+			}
+		}
+	}
+
+	private class Gauge extends Metric {
+		private final GaugeValue value;
+
+		private Gauge(String name, String help, GaugeValue value) {
+			super(name, help, "gauge", new String[0]);
+			this.value = value;
+		}
+
+		@Override
+		protected void write(Writer writer) throws IOException {
+			writeHeader(writer);
+			writer.write(name + " " + value.getValue() + "\n");
+		}
+	}
+
+	private synchronized <T extends Metric> T register(T metric) {
+		if (!metricsByName.containsKey(metric.name)) {
+			metricNames.add(metric.name);
+		}
+		metricsByName.put(metric.name, metric);
+		return metric;
+	}
+
+	public Counter counter(String name, String help, String... labelNames) {
+		return register(new Counter(name, help, labelNames));
+	}
+
+	public Histogram histogram(String name, String help, String... labelNames) {
+		return register(new Histogram(name, help, labelNames));
+	}
+
+	/**
+	 * Registers a gauge, replacing the one with the same name if any
+	 * 
+	 * @param name
+	 * @param help
+	 * @param value
+	 */
+	public void gauge(String name, String help, GaugeValue value) {
+		register(new Gauge(name, help, value));
+	}
+
+	/**
+	 * Adds the statistics of a {@link TransferPipeline} that was closed
+	 * 
+	 * @param highWater           maximum number of filled buffers in it
+	 * @param producerStallMillis time waiting for a free buffer
+	 * @param consumerStallMillis time waiting for a filled buffer
+	 */
+	public void addPipelineStatistics(int highWater, long producerStallMillis, long consumerStallMillis) {
+		pipelineHighWater.accumulateAndGet(highWater, Math::max);
+		pipelineStallSeconds.observe(producerStallMillis / 1000.0, "producer");
+		pipelineStallSeconds.observe(consumerStallMillis / 1000.0, "consumer");
+	}
+
+	/**
+	 * Adds bytes written to the destination
+	 * 
+	 * @param numBytes
+	 * @param dataset
+	 * @param fileType
+	 */
+	public void addBytes(long numBytes, String dataset, String fileType) {
+		bytesTransferred.add(numBytes, dataset, fileType);
+		final long second = System.currentTimeMillis() / 1000;
+		final int slot = (int) (second % THROUGHPUT_WINDOW);
+		synchronized (bytesBySecond) {
+			if (secondOfSlot[slot] != second) {
+				secondOfSlot[slot] = second;
+				bytesBySecond[slot] = 0l;
+			}
+			bytesBySecond[slot] += numBytes;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the bytes per second written to the destination in the last
+	 *         {@link #THROUGHPUT_WINDOW} seconds
+	 */
+	public double getThroughput() {
+		final long second = System.currentTimeMillis() / 1000;
+		long bytes = 0l;
+		synchronized (bytesBySecond) {
+			for (int i = 0; i < THROUGHPUT_WINDOW; i++) {
+				if (second - secondOfSlot[i] < THROUGHPUT_WINDOW) {
+					bytes += bytesBySecond[i];
+				}
+			}
+		}
+		return bytes * 1.0 / THROUGHPUT_WINDOW;
+	}
+
+	/**
+	 * 
+	 * @param out
+	 * @param dataset
+	 * @param fileType
+	 * @return an output stream that reports the bytes written to out with
+	 *         {@link #addBytes(long, String, String)}
+	 */
+	public OutputStream meter(OutputStream out, final String dataset, final String fileType) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				addBytes(1, dataset, fileType);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				addBytes(len, dataset, fileType);
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param in
+	 * @param dataset
+	 * @param fileType
+	 * @return an input stream that reports the bytes read from in with
+	 *         {@link #addBytes(long, String, String)}
+	 */
+	public InputStream meter(InputStream in, final String dataset, final String fileType) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				final int b = in.read();
+				if (b != -1) {
+					addBytes(1, dataset, fileType);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				final int read = in.read(b, off, len);
+				if (read > 0) {
+					addBytes(read, dataset, fileType);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Writes all the metrics in the Prometheus text exposition format
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void write(Writer writer) throws IOException {
+		final List<String> names;
+		synchronized (this) {
+			names = new ArrayList<String>(metricNames);
+		}
+		for (final String name : names) {
+			metricsByName.get(name).write(writer);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Serves the metrics at http://host:port/metrics
+	 * 
+	 * @param port
+	 * @throws IOException
+	 */
+	public synchronized void startHttpServer(int port) throws IOException {
+		if (httpServer != null) {
+			return;
+		}
+		httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		httpServer.createContext("/metrics", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				final StringWriter writer = new StringWriter();
+				write(writer);
+				final byte[] response = writer.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, response.length);
+				final OutputStream responseBody = exchange.getResponseBody();
+				responseBody.write(response);
+				responseBody.close();
+			}
+		});
+		httpServer.setExecutor(Executors.newSingleThreadExecutor(getDaemonThreadFactory("metrics-http")));
+		httpServer.start();
+		log.info("Metrics available at http://localhost:" + port + "/metrics");
+	}
+
+	/**
+	 * Rewrites the file with the metrics every interval. The file is replaced
+	 * atomically, so that it can be read at any time, for example by the textfile
+	 * collector of the Prometheus node exporter.
+	 * 
+	 * @param file
+	 * @param intervalMillis
+	 */
+	public synchronized void startFileExport(final File file, long intervalMillis) {
+		if (fileExporter != null) {
+			return;
+		}
+		fileExporter = Executors.newSingleThreadScheduledExecutor(getDaemonThreadFactory("metrics-file"));
+		fileExporter.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				writeFile(file);
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		log.info("Metrics written every " + intervalMillis / 1000 + " seconds to " + file.getAbsolutePath());
+	}
+
+	private void writeFile(File file) {
+		final File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try {
+			final Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8);
+			try {
+				write(writer);
+			} finally {
+				writer.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error writing metrics to " + file.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the HTTP server and the file export, writing the file one last time
+	 * 
+	 * @param file the file of the file export, or null
+	 */
+	public synchronized void stop(File file) {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+		if (fileExporter != null) {
+			fileExporter.shutdownNow();
+			fileExporter = null;
+			if (file != null) {
+				writeFile(file);
+			}
+		}
+	}
+
+	private static ThreadFactory getDaemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
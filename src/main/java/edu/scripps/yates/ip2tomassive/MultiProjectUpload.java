@@ -2,6 +2,8 @@ package edu.scripps.yates.ip2tomassive;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import gnu.trove.map.hash.THashMap;
@@ -27,7 +29,13 @@ public class MultiProjectUpload {
 				remotePathsFile = inputFileGenerator.run();
 			}
 			boolean useGoogleDrive = false;
+			boolean useMassiveAndGoogleDrive = false;
+			boolean useSftp = false;
 			if (args.length > 2) {
+				// "both" uploads to MassIVE and Google Drive, reading each file from IP2 once
+				useMassiveAndGoogleDrive = "both".equalsIgnoreCase(args[2]);
+				// "sftp" uploads to the SFTP site of the properties file instead of MassIVE
+				useSftp = "sftp".equalsIgnoreCase(args[2]);
 				useGoogleDrive = Boolean.valueOf(args[2]);
 			}
 			final Map<String, String> translations = new THashMap<String, String>();
@@ -46,7 +54,20 @@ public class MultiProjectUpload {
 			final MySftpProgressMonitor progressMonitor = new MySftpProgressMonitor(System.out);
 
 			MultipleProjectIP2ToMassive m = null;
-			if (useGoogleDrive) {
+			if (useMassiveAndGoogleDrive) {
+				final String credentialsFilePath = args[3];
+				final boolean overrideIfDifferentSize = Boolean.valueOf(args[4]);
+				final GoogleDriveClient client = GoogleDriveClient.getInstance(credentialsFilePath);
+				final List<MultipleProjectIP2ToMassive> destinations = new ArrayList<MultipleProjectIP2ToMassive>();
+				destinations
+						.add(new MultipleProjectIP2ToMassive(progressMonitor, propertiesFile, translations, null));
+				destinations.add(new MultipleProjectIP2ToGoogleDrive(progressMonitor, propertiesFile, translations,
+						null, client, overrideIfDifferentSize));
+				m = new MultipleProjectIP2FanOut(progressMonitor, propertiesFile, translations, remotePathsFile,
+						destinations);
+			} else if (useSftp) {
+				m = new MultipleProjectIP2ToSftp(progressMonitor, propertiesFile, translations, remotePathsFile);
+			} else if (useGoogleDrive) {
 				final String credentialsFilePath = args[3];
 				final boolean overrideIfDifferentSize = Boolean.valueOf(args[4]);
 				final GoogleDriveClient client = GoogleDriveClient.getInstance(credentialsFilePath);
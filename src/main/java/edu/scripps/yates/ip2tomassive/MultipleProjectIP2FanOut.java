@@ -0,0 +1,423 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import edu.scripps.yates.utilities.files.FileUtils;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * It transfers the datasets to several destinations at the same time, such as
+ * MassIVE and Google Drive, reading each file from IP2 only once.<br>
+ * The file read from IP2 is copied to every destination that doesn't have it
+ * yet through a {@link FanOutStream}, and each destination uploads it from its
+ * own thread, so that a slow destination doesn't block the others until its
+ * buffers are full, and a failed one doesn't stop the others.<br>
+ * The outcome of each file in each destination is written in a file next to
+ * the remote paths file (see {@link #getOutcomesFile(File)}). A task is marked
+ * as done in the {@link TransferJournal} only if it didn't fail in any
+ * destination, so that it is tried again in the next run, when the
+ * destinations that already have it will skip it.
+ *
+ * @author salvador
+ *
+ */
+public class MultipleProjectIP2FanOut extends MultipleProjectIP2ToMassive {
+	private final static Logger log = Logger.getLogger(MultipleProjectIP2FanOut.class);
+	private final List<MultipleProjectIP2ToMassive> destinations;
+	private final ExecutorService sinkExecutor;
+	private final PrintWriter outcomes;
+
+	/**
+	 *
+	 * @param progressMonitor
+	 * @param propertiesFile
+	 * @param keywordTranslations
+	 * @param remotePathsFile
+	 * @param destinations        the transfers to each destination, created
+	 *                            with the same properties file and without
+	 *                            remote paths file
+	 * @throws IOException
+	 */
+	public MultipleProjectIP2FanOut(MySftpProgressMonitor progressMonitor, File propertiesFile,
+			Map<String, String> keywordTranslations, File remotePathsFile,
+			List<MultipleProjectIP2ToMassive> destinations) throws IOException {
+		super(progressMonitor, propertiesFile, keywordTranslations, remotePathsFile);
+		if (destinations.isEmpty()) {
+			throw new IllegalArgumentException("At least one destination is needed");
+		}
+		this.destinations = new ArrayList<MultipleProjectIP2ToMassive>(destinations);
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			destination.setCompressedSizeSidecar(getCompressedSizeSidecar());
+		}
+		outcomes = new PrintWriter(new FileWriter(getOutcomesFile(remotePathsFile), true));
+		final AtomicInteger threadCounter = new AtomicInteger();
+		sinkExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "fan-out-sink-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @param remotePathsFile
+	 * @return the file with the outcome of each file in each destination, in
+	 *         the same folder than the remote paths file
+	 */
+	public static File getOutcomesFile(File remotePathsFile) {
+		return new File(remotePathsFile.getAbsoluteFile().getParentFile(),
+				FilenameUtils.getBaseName(remotePathsFile.getName()) + "_fanout.txt");
+	}
+
+	@Override
+	public void transferDatasets() {
+		try {
+			super.transferDatasets();
+		} finally {
+			sinkExecutor.shutdown();
+			outcomes.close();
+		}
+	}
+
+	@Override
+	public long transferFile(String fullPathToIP2, String outputFileName, FileType fileType, Dataset dataset) {
+		ChannelSftp sftpIP2 = null;
+		boolean brokenChannel = false;
+		long sizeTransferred = 0l;
+		try {
+			sftpIP2 = getIP2ChannelPool().borrowChannel();
+			log.info("Transferring file " + fullPathToIP2);
+			if (outputFileName == null || "".equals(FilenameUtils.getExtension(fullPathToIP2))) {
+				// fullPathToIP2 points to a set of files, such as:
+				// path/to/files/*.raw
+				String pathToFolderInIP2 = FilenameUtils.getFullPath(fullPathToIP2);
+				String extension = FilenameUtils.getExtension(fullPathToIP2);
+				if ("".equals(extension)) {
+					pathToFolderInIP2 = fullPathToIP2;
+					extension = fileType.getExtension();
+				}
+				if (!pathToFolderInIP2.endsWith("/")) {
+					pathToFolderInIP2 = pathToFolderInIP2 + "/";
+				}
+				final List<LsEntry> ftpFilesInIP2 = new ArrayList<LsEntry>();
+				if (SftpUtil.exist(sftpIP2, fullPathToIP2)) {
+					ftpFilesInIP2.add(SftpUtil.getFileEntry(sftpIP2, fullPathToIP2));
+				} else {
+					ftpFilesInIP2.addAll(SftpUtil.getFilesInFolderByExtension(sftpIP2, pathToFolderInIP2, extension));
+				}
+				// sort ftpFilesInIP2 by name, as MultipleProjectIP2ToMassive
+				// does to number the output files
+				Collections.sort(ftpFilesInIP2, new Comparator<LsEntry>() {
+
+					@Override
+					public int compare(LsEntry o1, LsEntry o2) {
+						return o1.getFilename().compareTo(o2.getFilename());
+					}
+				});
+				int counter = 1;
+				for (final LsEntry ftpFileInIP2 : ftpFilesInIP2) {
+					final String fullPathToFileInIP2 = pathToFolderInIP2 + ftpFileInIP2.getFilename();
+					String fileName = ftpFileInIP2.getFilename();
+					if (outputFileName != null) {
+						fileName = outputFileName + "_" + counter;
+						if ("".equals(FilenameUtils.getExtension(fileName))) {
+							fileName = fileName + "." + extension;
+						}
+					}
+					counter++;
+					sizeTransferred += transferFileInIP2(sftpIP2, fullPathToFileInIP2, translateFileName(fileName),
+							ftpFileInIP2.getAttrs().getSize(), fileType, dataset);
+				}
+			} else {
+				sizeTransferred += transferFileInIP2(sftpIP2, fullPathToIP2, FilenameUtils.getName(outputFileName),
+						SftpUtil.getSize(sftpIP2, fullPathToIP2), fileType, dataset);
+			}
+		} catch (final JSchException e) {
+			handleTransferError(e);
+			brokenChannel = true;
+		} catch (final SftpException e) {
+			handleTransferError(e);
+			brokenChannel = true;
+		} finally {
+			if (sftpIP2 != null) {
+				if (brokenChannel) {
+					getIP2ChannelPool().invalidateChannel(sftpIP2);
+				} else {
+					getIP2ChannelPool().releaseChannel(sftpIP2);
+				}
+			}
+		}
+		return sizeTransferred;
+	}
+
+	private long transferFileInIP2(final ChannelSftp sftpIP2, final String fullPathToIP2, String fileName,
+			final long sizeInIP2, FileType fileType, Dataset dataset) throws SftpException {
+		try {
+			return fanOut(new FileSource() {
+
+				@Override
+				public void writeTo(OutputStream outputStream, long offset) throws IOException, SftpException {
+					getFromIP2(sftpIP2, fullPathToIP2, sizeInIP2, outputStream, offset);
+				}
+			}, fullPathToIP2, fileName, sizeInIP2, fileType, dataset);
+		} catch (final IOException e) {
+			handleTransferError(e);
+			return 0l;
+		}
+	}
+
+	@Override
+	protected long transferLocalFile(final String fullPathLocalFile, String outputFileName, FileType fileType,
+			Dataset dataset) {
+		final String fileName = FilenameUtils
+				.getName(outputFileName != null ? outputFileName : fullPathLocalFile);
+		log.info("Transferring file " + fullPathLocalFile);
+		try {
+			return fanOut(new FileSource() {
+
+				@Override
+				public void writeTo(OutputStream outputStream, long offset) throws IOException {
+					final FileInputStream fileInputStream = new FileInputStream(fullPathLocalFile);
+					try {
+						fileInputStream.getChannel().position(offset);
+						IOUtils.copyLarge(fileInputStream, outputStream);
+					} finally {
+						fileInputStream.close();
+					}
+				}
+			}, fullPathLocalFile, fileName, new File(fullPathLocalFile).length(), fileType, dataset);
+		} catch (final IOException e) {
+			handleTransferError(e);
+		} catch (final SftpException e) {
+			handleTransferError(e);
+		}
+		return 0l;
+	}
+
+	/**
+	 * Reads the file once and uploads it to every destination that doesn't have
+	 * it yet
+	 *
+	 * @param source
+	 * @param fullPathToSource
+	 * @param fileName         name of the file in the destinations
+	 * @param sizeInSource
+	 * @param fileType
+	 * @param dataset
+	 * @return the size of the file if it is in all the destinations
+	 * @throws SftpException if the file could not be read from IP2
+	 * @throws IOException   if the file could not be read locally
+	 */
+	private long fanOut(FileSource source, final String fullPathToSource, final String fileName, long sizeInSource,
+			final FileType fileType, final Dataset dataset) throws SftpException, IOException {
+		getProgressMonitor().setSuffix("(" + fileName + ") ");
+		final List<MultipleProjectIP2ToMassive> sinks = new ArrayList<MultipleProjectIP2ToMassive>();
+		final TLongArrayList offsets = new TLongArrayList();
+		long readOffset = sizeInSource;
+		boolean failed = false;
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			try {
+				final long sizeInDestination = destination.getSizeInDestination(fullPathToSource, fileName, fileType,
+						dataset, sizeInSource);
+				if (sizeInDestination >= sizeInSource) {
+					log.info("File '" + fileName + "' found in " + destination.getDestinationName() + " with "
+							+ FileUtils.getDescriptiveSizeFromBytes(sizeInDestination) + ". It will be skipped");
+					recordOutcome(dataset, fullPathToSource, destination, FILE_SKIPPED, sizeInDestination, null);
+					continue;
+				}
+				final long offset = destination.getResumeOffset(sizeInSource, sizeInDestination);
+				sinks.add(destination);
+				offsets.add(offset);
+				readOffset = Math.min(readOffset, offset);
+			} catch (final IOException e) {
+				handleTransferError(e);
+				recordOutcome(dataset, fullPathToSource, destination, FILE_FAILED, 0l, e);
+				failed = true;
+			}
+		}
+		if (sinks.isEmpty()) {
+			return failed ? 0l : sizeInSource;
+		}
+
+		final FanOutStream fanOutStream = new FanOutStream("fan-out(" + fileName + ")",
+				getIntProperty(PIPELINE_BUFFERS, 8), getIntProperty(PIPELINE_BUFFER_KB, 256) * 1024);
+		final TransferTask task = getCurrentTask();
+		final List<Future<Long>> uploads = new ArrayList<Future<Long>>();
+		for (int i = 0; i < sinks.size(); i++) {
+			final MultipleProjectIP2ToMassive destination = sinks.get(i);
+			final long offset = offsets.get(i);
+			final long bytesToSkip = offset - readOffset;
+			final InputStream inputStream = fanOutStream.addSink(destination.getDestinationName());
+			uploads.add(sinkExecutor.submit(new Callable<Long>() {
+
+				@Override
+				public Long call() throws IOException {
+					destination.setCurrentTask(task);
+					try {
+						IOUtils.skipFully(inputStream, bytesToSkip);
+						return destination.uploadToDestination(fullPathToSource, fileName, fileType, dataset,
+								inputStream, offset);
+					} finally {
+						inputStream.close();
+						destination.setCurrentTask(null);
+					}
+				}
+			}));
+		}
+
+		Exception readError = null;
+		try {
+			source.writeTo(getControllerMeteredOutputStream(fanOutStream), readOffset);
+		} catch (final IOException e) {
+			readError = e;
+		} catch (final SftpException e) {
+			readError = e;
+		}
+		if (readError != null && fanOutStream.getNumOpenSinks() == 0) {
+			// the source stopped being read because every destination failed
+			readError = null;
+		}
+		if (readError != null) {
+			fanOutStream.fail(readError);
+		}
+		try {
+			fanOutStream.close();
+		} catch (final IOException e) {
+			// it only fails if every destination failed, which is recorded below
+		}
+
+		int numFailed = 0;
+		for (int i = 0; i < sinks.size(); i++) {
+			final MultipleProjectIP2ToMassive destination = sinks.get(i);
+			try {
+				final long uploaded = uploads.get(i).get();
+				log.info(FileUtils.getDescriptiveSizeFromBytes(uploaded) + " of '" + fileName + "' uploaded to "
+						+ destination.getDestinationName());
+				recordOutcome(dataset, fullPathToSource, destination, FILE_DONE, offsets.get(i) + uploaded, null);
+			} catch (final ExecutionException e) {
+				numFailed++;
+				if (readError == null) {
+					final Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					handleTransferError(cause);
+				}
+				recordOutcome(dataset, fullPathToSource, destination, FILE_FAILED, 0l,
+						readError != null ? readError : e.getCause());
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while uploading '" + fileName + "'");
+			}
+		}
+		if (readError instanceof SftpException) {
+			throw (SftpException) readError;
+		} else if (readError != null) {
+			throw (IOException) readError;
+		}
+		if (failed || numFailed > 0) {
+			return 0l;
+		}
+		return sizeInSource;
+	}
+
+	/**
+	 * Writes a line with the outcome of a file in a destination, and counts it
+	 * in the metrics
+	 */
+	private synchronized void recordOutcome(Dataset dataset, String fullPathToSource,
+			MultipleProjectIP2ToMassive destination, String status, long size, Throwable error) {
+		if (!FILE_FAILED.equals(status)) {
+			// failures are counted by handleTransferError
+			metrics.files.inc(getMetricLabels(status));
+		}
+		outcomes.println(new Date() + "\t" + dataset.getName() + "\t" + fullPathToSource + "\t"
+				+ destination.getDestinationName() + "\t" + status + "\t" + size + "\t"
+				+ (error != null ? error.getMessage() : ""));
+		outcomes.flush();
+	}
+
+	@Override
+	protected void warmRemoteFolderCache() {
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			destination.warmRemoteFolderCache();
+		}
+	}
+
+	@Override
+	protected void writeChecksumManifests() {
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			destination.writeChecksumManifests();
+		}
+	}
+
+	@Override
+	protected synchronized void closeConnectionPools() {
+		super.closeConnectionPools();
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			destination.closeConnectionPools();
+		}
+	}
+
+	@Override
+	protected synchronized void stopCompression() {
+		super.stopCompression();
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			destination.stopCompression();
+		}
+	}
+
+	@Override
+	protected String getDestinationName() {
+		final StringBuilder sb = new StringBuilder();
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(destination.getDestinationName());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A file is journaled as done only once it is in all the destinations, so
+	 * the journal is of this set of destinations
+	 */
+	@Override
+	protected String getDestinationId() {
+		final StringBuilder sb = new StringBuilder("fan-out");
+		for (final MultipleProjectIP2ToMassive destination : destinations) {
+			sb.append("_").append(destination.getDestinationId());
+		}
+		return sb.toString();
+	}
+}
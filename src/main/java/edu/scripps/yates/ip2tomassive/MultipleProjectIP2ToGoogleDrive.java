@@ -1,9 +1,11 @@
 package edu.scripps.yates.ip2tomassive;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
@@ -15,11 +17,9 @@ import org.apache.log4j.Logger;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
 import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpException;
 
 import edu.scripps.yates.utilities.files.FileUtils;
-import edu.scripps.yates.utilities.ftp.FTPUtils;
 
 /**
  * It uploads everything to GoogleDrive keeping the folder structure, and file
@@ -32,8 +32,10 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 	private final static Logger log = Logger.getLogger(MultipleProjectIP2ToGoogleDrive.class);
 	private static final String contentType = GoogleDriveClient.DEFAULT_CONTENT_TYPE;
 	private static final long differenceToleranceForOverriding = 100;
+	private static final String GOOGLE_DRIVE_HOST = "www.googleapis.com";
 	private final GoogleDriveClient googleDriveClient;
 	private boolean override;
+	private final RemoteFolderCache<String> googleDriveFolderCache = new RemoteFolderCache<String>();
 
 	public MultipleProjectIP2ToGoogleDrive(MySftpProgressMonitor progressMonitor, File propertiesFile,
 			Map<String, String> keywordTranslations, File remotePathsFile, GoogleDriveClient googleDriveClient,
@@ -45,47 +47,15 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 
 	@Override
 	public long transferFile(String fullPathToIP2, String outputFileName, FileType fileType, Dataset dataset) {
-		Session sshIP2 = null;
+		ChannelSftp sftpIP2 = null;
+		boolean brokenChannel = false;
 		long sizeTransferred = 0l;
 		try {
-			final String projectBasePathInIP2 = getProjectBasePathInIP2();
-			sshIP2 = loginToIP2();
-			String remoteFolderPath = "Proteomics/data";
-			if (submissionName != null && !"".equals(submissionName)) {
-				remoteFolderPath = remoteFolderPath + "/" + submissionName;
-			} else {
-				remoteFolderPath += "/" + dataset.getName();
-			}
-			remoteFolderPath += "/" + fileType.name();
-
-			// if contains null, remove it.
-			if (remoteFolderPath.contains("/null")) {
-				remoteFolderPath = remoteFolderPath.replace("/null", "");
-			}
-			// now preserve the origin folder structure
-			final String originalFolderStructure = fullPathToIP2.substring(projectBasePathInIP2.length());
-			remoteFolderPath += FilenameUtils.getFullPathNoEndSeparator(originalFolderStructure);
-			String parentID = null;
-			try {
-
-				final List<com.google.api.services.drive.model.File> foldersWithName = googleDriveClient
-						.getGoogleFoldersByName(remoteFolderPath);
-
-				if (foldersWithName != null && !foldersWithName.isEmpty()) {
-					parentID = foldersWithName.get(0).getId();
-				} else {
-					// create folder
-					final com.google.api.services.drive.model.File folder = googleDriveClient.createGoogleFolder("root",
-							remoteFolderPath);
-					parentID = folder.getId();
-				}
-
-			} catch (final GeneralSecurityException e) {
-				e.printStackTrace();
-				throw new IllegalArgumentException(e);
-			} finally {
-
-			}
+			sftpIP2 = getIP2ChannelPool().borrowChannel();
+			final String datasetFolderPath = getDatasetFolderPath(dataset);
+			final String remoteFolderPath = getGoogleDriveFolderPath(fullPathToIP2, fileType, dataset);
+			final String parentID = getGoogleDriveFolderID(remoteFolderPath);
+			final String relativeFolderPath = remoteFolderPath.substring(datasetFolderPath.length() + 1);
 			if (outputFileName == null) {
 				// fullPathToIP2 points to a set of files, such as:
 				// path/to/files/*.raw
@@ -93,11 +63,11 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 
 				final String pathToFolderInIP2 = FilenameUtils.getFullPath(fullPathToIP2);
 				final List<LsEntry> ftpFilesInIP2 = new ArrayList<LsEntry>();
-				if (FTPUtils.exist(sshIP2, fullPathToIP2)) {
-					final LsEntry lsEntry = FTPUtils.getFileEntry(sshIP2, fullPathToIP2);
+				if (SftpUtil.exist(sftpIP2, fullPathToIP2)) {
+					final LsEntry lsEntry = SftpUtil.getFileEntry(sftpIP2, fullPathToIP2);
 					ftpFilesInIP2.add(lsEntry);
 				} else {
-					ftpFilesInIP2.addAll(FTPUtils.getFilesInFolderByExtension(sshIP2, pathToFolderInIP2, extension));
+					ftpFilesInIP2.addAll(SftpUtil.getFilesInFolderByExtension(sftpIP2, pathToFolderInIP2, extension));
 				}
 				for (final LsEntry ftpFileInIP2 : ftpFilesInIP2) {
 
@@ -115,8 +85,10 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 						final List<String> filesWithSameSize = new ArrayList<String>();
 						final List<String> filesWithDifferentSize = new ArrayList<String>();
 						final List<String> filesToRemove = new ArrayList<String>();
+						final long t1 = System.nanoTime();
 						final List<com.google.api.services.drive.model.File> filesInGoogleDrive = googleDriveClient
 								.getGoogleFilesByName(fileName, parentID);
+						metrics.operationSeconds.observeSince(t1, GOOGLE_DRIVE_HOST, "size_probe");
 						if (filesInGoogleDrive != null && !filesInGoogleDrive.isEmpty()) {
 
 							final long sizeInIP2 = ftpFileInIP2.getAttrs().getSize();
@@ -170,7 +142,7 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 							}
 
 						}
-						progressMonitor.setSuffix("(" + fileName + ") ");
+						getProgressMonitor().setSuffix("(" + fileName + ") ");
 
 						final long sizeInIP2 = ftpFileInIP2.getAttrs().getSize();
 
@@ -180,11 +152,24 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 									|| (filesWithDifferentSize.isEmpty() && filesWithSameSize.isEmpty())) {
 								final String fullPathToMassive = remoteFolderPath + "/" + fileName;
 								log.info("Output file in Google Drive: " + fullPathToMassive);
-								final ChannelSftp sftpChannel = FTPUtils.openSFTPChannel(sshIP2);
-								final InputStream inputStream = sftpChannel.get(fullPathToIP2);
-								final com.google.api.services.drive.model.File uploadedFile = googleDriveClient
-										.uploadFile(parentID, contentType, fileName, inputStream);
-								sftpChannel.exit();
+								journalFileStarted(fullPathToMassive, 0l);
+								final StreamDigester digester = getStreamDigester(fileName, 0l);
+								final long t2 = System.nanoTime();
+								final InputStream inputStreamInIP2 = getMeteredInputStream(
+										getPipelinedInputStream(sftpIP2.get(fullPathToIP2), fileName));
+								final InputStream inputStream = getDigestedInputStream(inputStreamInIP2, digester);
+								final com.google.api.services.drive.model.File uploadedFile;
+								try {
+									uploadedFile = googleDriveClient.uploadFile(parentID, contentType, fileName,
+											inputStream);
+								} finally {
+									// stops reading from the channel before it is given back
+									inputStream.close();
+								}
+								journalFileDone(fullPathToMassive, uploadedFile.getSize(), addChecksum(
+										datasetFolderPath, relativeFolderPath + "/" + fileName, digester));
+								metrics.operationSeconds.observeSince(t2, GOOGLE_DRIVE_HOST, "stream");
+								metrics.files.inc(getMetricLabels(FILE_DONE));
 								sizeTransferred += uploadedFile.getSize();
 							} else {
 
@@ -204,6 +189,7 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 								sizeTransferred += filesInGoogleDrive.stream()
 										.filter(f -> f.getId().equals(filesWithSameSize.get(0))).findAny().get()
 										.getSize();
+								metrics.files.inc(getMetricLabels(FILE_SKIPPED));
 							}
 							log.info(
 									"Transfer of " + FileUtils.getDescriptiveSizeFromBytes(sizeTransferred) + " done.");
@@ -215,15 +201,14 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 						}
 
 					} catch (final IOException e) {
-						e.printStackTrace();
-						log.warn(e.getMessage());
-
+						handleTransferError(e);
+						brokenChannel = true;
 					} catch (final SftpException e) {
-						e.printStackTrace();
-						log.warn(e.getMessage());
+						handleTransferError(e);
+						brokenChannel = true;
 					} catch (final GeneralSecurityException e) {
-						e.printStackTrace();
-						log.warn(e.getMessage());
+						handleTransferError(e);
+						brokenChannel = true;
 					}
 
 				}
@@ -236,18 +221,20 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 					log.info("File '" + fileName + "' now is mapped to " + newName);
 					fileName = newName;
 				}
-				progressMonitor.setSuffix("(" + fileName + ") ");
+				getProgressMonitor().setSuffix("(" + fileName + ") ");
 				try {
 
 					final List<String> filesWithSameSize = new ArrayList<String>();
 					final List<String> filesWithDifferentSize = new ArrayList<String>();
 					final List<String> filesToRemove = new ArrayList<String>();
 
+					final long t1 = System.nanoTime();
 					final List<com.google.api.services.drive.model.File> filesInGoogleDrive = googleDriveClient
 							.getGoogleFilesByName(fileName, parentID);
+					metrics.operationSeconds.observeSince(t1, GOOGLE_DRIVE_HOST, "size_probe");
 					if (filesInGoogleDrive != null && !filesInGoogleDrive.isEmpty()) {
 
-						final LsEntry ftpFileInIP2 = FTPUtils.getFileEntry(sshIP2, fullPathToIP2);
+						final LsEntry ftpFileInIP2 = SftpUtil.getFileEntry(sftpIP2, fullPathToIP2);
 						final long sizeInIP2 = ftpFileInIP2.getAttrs().getSize();
 
 						for (final com.google.api.services.drive.model.File fileInGoogleDrive : filesInGoogleDrive) {
@@ -303,11 +290,23 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 							|| (filesWithDifferentSize.isEmpty() && filesWithSameSize.isEmpty())) {
 						final String fullPathToMassive = remoteFolderPath + "/" + fileName;
 						log.info("Output file in Google Drive: " + fullPathToMassive);
-						final ChannelSftp sftpChannel = FTPUtils.openSFTPChannel(sshIP2);
-						final InputStream inputStream = sftpChannel.get(fullPathToIP2);
-						final com.google.api.services.drive.model.File uploadedFile = googleDriveClient
-								.uploadFile(parentID, contentType, fileName, inputStream);
-						sftpChannel.exit();
+						journalFileStarted(fullPathToMassive, 0l);
+						final StreamDigester digester = getStreamDigester(fileName, 0l);
+						final long t2 = System.nanoTime();
+						final InputStream inputStreamInIP2 = getMeteredInputStream(
+								getPipelinedInputStream(sftpIP2.get(fullPathToIP2), fileName));
+						final InputStream inputStream = getDigestedInputStream(inputStreamInIP2, digester);
+						final com.google.api.services.drive.model.File uploadedFile;
+						try {
+							uploadedFile = googleDriveClient.uploadFile(parentID, contentType, fileName, inputStream);
+						} finally {
+							// stops reading from the channel before it is given back
+							inputStream.close();
+						}
+						journalFileDone(fullPathToMassive, uploadedFile.getSize(),
+								addChecksum(datasetFolderPath, relativeFolderPath + "/" + fileName, digester));
+						metrics.operationSeconds.observeSince(t2, GOOGLE_DRIVE_HOST, "stream");
+						metrics.files.inc(getMetricLabels(FILE_DONE));
 						sizeTransferred += uploadedFile.getSize();
 					} else {
 
@@ -326,44 +325,245 @@ public class MultipleProjectIP2ToGoogleDrive extends MultipleProjectIP2ToMassive
 					if (!filesInGoogleDrive.isEmpty() && filesWithSameSize.size() == 1) {
 						sizeTransferred += filesInGoogleDrive.stream()
 								.filter(f -> f.getId().equals(filesWithSameSize.get(0))).findAny().get().getSize();
+						metrics.files.inc(getMetricLabels(FILE_SKIPPED));
 					}
 
 				} catch (final IOException e) {
-					e.printStackTrace();
-					log.warn(e.getMessage());
-				} catch (final JSchException e) {
-					e.printStackTrace();
-					log.warn(e.getMessage());
+					handleTransferError(e);
+					brokenChannel = true;
 				} catch (final SftpException e) {
-					e.printStackTrace();
-					log.warn(e.getMessage());
+					handleTransferError(e);
+					brokenChannel = true;
 				} catch (final GeneralSecurityException e) {
-					e.printStackTrace();
-					log.warn(e.getMessage());
+					handleTransferError(e);
+					brokenChannel = true;
 				}
 			}
 		} catch (
 
 		final SocketException e2) {
-			e2.printStackTrace();
-			log.warn(e2.getMessage());
+			handleTransferError(e2);
 		} catch (final IOException e2) {
-			e2.printStackTrace();
-			log.warn(e2.getMessage());
+			handleTransferError(e2);
 		} catch (final JSchException e1) {
-			e1.printStackTrace();
-			log.warn(e1.getMessage());
+			handleTransferError(e1);
+			brokenChannel = true;
 		} catch (final SftpException e1) {
-			e1.printStackTrace();
-			log.warn(e1.getMessage());
+			handleTransferError(e1);
 		} finally {
+			if (sftpIP2 != null) {
+				if (brokenChannel) {
+					getIP2ChannelPool().invalidateChannel(sftpIP2);
+				} else {
+					getIP2ChannelPool().releaseChannel(sftpIP2);
+				}
+			}
+		}
+		return sizeTransferred;
+	}
 
-			if (sshIP2 != null) {
-				sshIP2.disconnect();
+	/**
+	 * 
+	 * @param fullPathToIP2
+	 * @param fileType
+	 * @param dataset
+	 * @return the folder in Google Drive of a file in IP2, preserving the folder
+	 *         structure after the project base path in IP2
+	 */
+	private String getGoogleDriveFolderPath(String fullPathToIP2, FileType fileType, Dataset dataset) {
+		String remoteFolderPath = getDatasetFolderPath(dataset) + "/" + fileType.name();
+
+		// if contains null, remove it.
+		if (remoteFolderPath.contains("/null")) {
+			remoteFolderPath = remoteFolderPath.replace("/null", "");
+		}
+		// now preserve the origin folder structure
+		final String projectBasePathInIP2 = getProjectBasePathInIP2();
+		if (projectBasePathInIP2 != null && fullPathToIP2.startsWith(projectBasePathInIP2)) {
+			final String originalFolderStructure = fullPathToIP2.substring(projectBasePathInIP2.length());
+			remoteFolderPath += FilenameUtils.getFullPathNoEndSeparator(originalFolderStructure);
+		}
+		return remoteFolderPath;
+	}
+
+	@Override
+	protected String getDestinationName() {
+		return "Google Drive";
+	}
+
+	@Override
+	protected String getDestinationId() {
+		return "google_drive";
+	}
+
+	/**
+	 * Looks for the file in its folder in Google Drive. If override is true,
+	 * the copies with a different size and the repeated copies are deleted.
+	 * Uploads to Google Drive cannot be resumed, so the size returned is either
+	 * 0 or sizeInSource.
+	 */
+	@Override
+	protected long getSizeInDestination(String fullPathToIP2, String fileName, FileType fileType, Dataset dataset,
+			long sizeInSource) throws IOException {
+		final String remoteFolderPath = getGoogleDriveFolderPath(fullPathToIP2, fileType, dataset);
+		final String parentID = getGoogleDriveFolderID(remoteFolderPath);
+		try {
+			final long t1 = System.nanoTime();
+			final List<com.google.api.services.drive.model.File> filesInGoogleDrive = googleDriveClient
+					.getGoogleFilesByName(fileName, parentID);
+			metrics.operationSeconds.observeSince(t1, GOOGLE_DRIVE_HOST, "size_probe");
+			if (filesInGoogleDrive == null || filesInGoogleDrive.isEmpty()) {
+				return 0l;
+			}
+			if (!override) {
+				log.info("File '" + fileName + "' found at Google drive at: " + remoteFolderPath
+						+ " and override is FALSE. Skipping upload...");
+				return sizeInSource;
 			}
+			boolean found = false;
+			for (final com.google.api.services.drive.model.File fileInGoogleDrive : filesInGoogleDrive) {
+				final long difference = Math.abs(sizeInSource - fileInGoogleDrive.getSize());
+				if (difference <= differenceToleranceForOverriding && !found) {
+					log.info("File '" + fileName + "' found at Google drive at: " + remoteFolderPath
+							+ " with the same size. Skipping upload...");
+					found = true;
+				} else {
+					googleDriveClient.deleteFile(fileInGoogleDrive.getId());
+					log.info(fileInGoogleDrive.getName() + " last modified at "
+							+ fileInGoogleDrive.getModifiedTime().toString()
+							+ " has been deleted because override is TRUE");
+				}
+			}
+			return found ? sizeInSource : 0l;
+		} catch (final GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
 
+	@Override
+	protected long uploadToDestination(String fullPathToIP2, String fileName, FileType fileType, Dataset dataset,
+			InputStream inputStream, long offset) throws IOException {
+		final String datasetFolderPath = getDatasetFolderPath(dataset);
+		final String remoteFolderPath = getGoogleDriveFolderPath(fullPathToIP2, fileType, dataset);
+		final String parentID = getGoogleDriveFolderID(remoteFolderPath);
+		final String fullPathToGoogleDrive = remoteFolderPath + "/" + fileName;
+		log.info("Output file in Google Drive: " + fullPathToGoogleDrive);
+		journalFileStarted(fullPathToGoogleDrive, 0l);
+		final StreamDigester digester = getStreamDigester(fileName, 0l);
+		final long t1 = System.nanoTime();
+		final InputStream digestedInputStream = getDigestedInputStream(inputStream, digester);
+		try {
+			final com.google.api.services.drive.model.File uploadedFile = googleDriveClient.uploadFile(parentID,
+					contentType, fileName, digestedInputStream);
+			digestedInputStream.close();
+			journalFileDone(fullPathToGoogleDrive, uploadedFile.getSize(), addChecksum(datasetFolderPath,
+					remoteFolderPath.substring(datasetFolderPath.length() + 1) + "/" + fileName, digester));
+			metrics.operationSeconds.observeSince(t1, GOOGLE_DRIVE_HOST, "stream");
+			return uploadedFile.getSize();
+		} catch (final GeneralSecurityException e) {
+			throw new IOException(e);
 		}
-		return sizeTransferred;
+	}
+
+	/**
+	 * 
+	 * @param path
+	 * @return the ID of the folder in Google Drive, that is created if it doesn't
+	 *         exist
+	 * @throws IOException
+	 */
+	private String getGoogleDriveFolderID(String path) throws IOException {
+		return googleDriveFolderCache.getOrCreate(path, new RemoteFolderCache.FolderCreator<String>() {
+
+			@Override
+			public String createFolder(String path) throws IOException {
+				final long t1 = System.nanoTime();
+				try {
+					final List<com.google.api.services.drive.model.File> foldersWithName = googleDriveClient
+							.getGoogleFoldersByName(path);
+
+					if (foldersWithName != null && !foldersWithName.isEmpty()) {
+						return foldersWithName.get(0).getId();
+					} else {
+						// create folder
+						final com.google.api.services.drive.model.File folder = googleDriveClient
+								.createGoogleFolder("root", path);
+						return folder.getId();
+					}
+				} catch (final GeneralSecurityException e) {
+					e.printStackTrace();
+					throw new IllegalArgumentException(e);
+				} finally {
+					metrics.operationSeconds.observeSince(t1, GOOGLE_DRIVE_HOST, "mkdir");
+				}
+			}
+		});
+	}
+
+	@Override
+	protected String getDatasetFolderPath(Dataset dataset) {
+		String datasetFolderPath = "Proteomics/data";
+		if (submissionName != null && !"".equals(submissionName)) {
+			datasetFolderPath = datasetFolderPath + "/" + submissionName;
+		} else {
+			datasetFolderPath += "/" + dataset.getName();
+		}
+		// if contains null, remove it.
+		if (datasetFolderPath.contains("/null")) {
+			datasetFolderPath = datasetFolderPath.replace("/null", "");
+		}
+		return datasetFolderPath;
+	}
+
+	@Override
+	protected String downloadChecksumManifest(String datasetFolderPath, String fileName) throws IOException {
+		final String parentID = getGoogleDriveFolderID(datasetFolderPath);
+		try {
+			final List<com.google.api.services.drive.model.File> filesInGoogleDrive = googleDriveClient
+					.getGoogleFilesByName(fileName, parentID);
+			if (filesInGoogleDrive == null || filesInGoogleDrive.isEmpty()) {
+				return null;
+			}
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			googleDriveClient.downloadFile(filesInGoogleDrive.get(0).getId(), outputStream);
+			return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+		} catch (final GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	protected void uploadChecksumManifest(String datasetFolderPath, String fileName, String content)
+			throws IOException {
+		final String parentID = getGoogleDriveFolderID(datasetFolderPath);
+		final byte[] data = content.getBytes(StandardCharsets.UTF_8);
+		try {
+			final List<com.google.api.services.drive.model.File> filesInGoogleDrive = googleDriveClient
+					.getGoogleFilesByName(fileName, parentID);
+			if (filesInGoogleDrive != null && !filesInGoogleDrive.isEmpty()) {
+				googleDriveClient.updateFile(GoogleDriveClient.TEXT_PLAIN, fileName, data,
+						filesInGoogleDrive.get(0).getId());
+			} else {
+				googleDriveClient.uploadFile(parentID, GoogleDriveClient.TEXT_PLAIN, fileName, data);
+			}
+		} catch (final GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	protected void warmRemoteFolderCache() {
+		// folders in Google Drive are looked up by path the first time they are
+		// needed, and their IDs are kept in googleDriveFolderCache
+	}
+
+	/**
+	 * Files are uploaded to Google Drive as they are, so that they can be opened
+	 * from there
+	 */
+	@Override
+	protected boolean isCompressed(FileType fileType) {
+		return false;
 	}
 
 	public boolean isOverride() {
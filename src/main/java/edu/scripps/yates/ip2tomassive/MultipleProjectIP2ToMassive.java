@@ -1,19 +1,29 @@
 package edu.scripps.yates.ip2tomassive;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.SocketException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,12 +31,13 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 import org.apache.log4j.Logger;
 
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
 import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpException;
 
 import edu.scripps.yates.utilities.dates.DatesUtil;
@@ -34,220 +45,1442 @@ import edu.scripps.yates.utilities.files.FileUtils;
 import edu.scripps.yates.utilities.ftp.FTPUtils;
 import edu.scripps.yates.utilities.progresscounter.ProgressCounter;
 import edu.scripps.yates.utilities.progresscounter.ProgressPrintingType;
+import gnu.trove.map.hash.TObjectIntHashMap;
 
 public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 	private final static Logger log = Logger.getLogger(MultipleProjectIP2ToMassive.class);
 	protected static final String DATASET = "DATASET";
+	private static final int STRIPED_DOWNLOAD_CHUNK_SIZE = 8 * 1024 * 1024;
 	private final Map<String, Dataset> datasetsByName = new HashMap<String, Dataset>();
 	protected final Map<String, String> keywordTranslations;
+	private final RemoteFolderCache<Boolean> massiveFolderCache = new RemoteFolderCache<Boolean>();
+	private final RemoteFileIndex massiveFileIndex = new RemoteFileIndex();
+	private final boolean resumeTransfers;
+	private final long stripedDownloadThreshold;
+	private final int stripedDownloadChannels;
+	private final File remotePathsFile;
+	private TransferJournal journal;
+	private final boolean checksums;
+	private final Map<String, ChecksumManifest> checksumManifestsByFolder = new HashMap<String, ChecksumManifest>();
+	private ConcurrencyController concurrencyController;
+	private final TransferScheduler scheduler;
+	private final ZeroCopyUploader zeroCopyUploader;
+	private final boolean compressTextFiles;
+	private final int compressionThreads;
+	private final int compressionLevel;
+	private ExecutorService compressionExecutor;
+	private CompressedSizeSidecar compressedSizes;
+	protected static final String GZIP_SUFFIX = ".gz";
+	private static final Pattern IP2_FOLDER_DATE_PATTERN = Pattern.compile("(.+)_\\d\\d\\d\\d_\\d\\d_.*");
+	/**
+	 * Whether there was any error in the transfer being done by the current thread
+	 */
+	private final ThreadLocal<Boolean> transferFailed = new ThreadLocal<Boolean>();
+	/**
+	 * The task being transferred by the current thread, to label its metrics
+	 */
+	private final ThreadLocal<TransferTask> currentTask = new ThreadLocal<TransferTask>();
+	/**
+	 * The progress monitor of the worker of the current thread, so that
+	 * concurrent transfers don't count their bytes in the same monitor
+	 */
+	private final ThreadLocal<MySftpProgressMonitor> workerProgressMonitor = new ThreadLocal<MySftpProgressMonitor>();
+	protected final MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+	/**
+	 * Source of the bytes of a file, written to an output stream from an offset
+	 */
+	protected interface FileSource {
+		public void writeTo(OutputStream outputStream, long offset) throws IOException, SftpException;
+	}
 
 	public MultipleProjectIP2ToMassive(MySftpProgressMonitor progressMonitor, File propertiesFile,
 			Map<String, String> keywordTranslations, File remotePathsFile) throws IOException {
 		super(progressMonitor, propertiesFile);
 		this.keywordTranslations = keywordTranslations;
+		resumeTransfers = getBooleanProperty(RESUME_TRANSFERS, true);
+		stripedDownloadThreshold = getIntProperty(STRIPED_DOWNLOAD_THRESHOLD_MB, 2048) * 1024l * 1024l;
+		stripedDownloadChannels = getIntProperty(STRIPED_DOWNLOAD_CHANNELS, 4);
+		checksums = getBooleanProperty(CHECKSUMS, true);
+		zeroCopyUploader = getBooleanProperty(ZERO_COPY_UPLOADS, true)
+				? new ZeroCopyUploader(getIntProperty(PIPELINE_BUFFER_KB, 256) * 1024)
+				: null;
+		compressTextFiles = getBooleanProperty(COMPRESS_TEXT_FILES, false);
+		compressionThreads = Math.max(1,
+				getIntProperty(COMPRESSION_THREADS, Runtime.getRuntime().availableProcessors()));
+		compressionLevel = getIntProperty(COMPRESSION_LEVEL, 1);
+		final String transferOrder = getProperties(propertiesFile).getProperty(TRANSFER_ORDER);
+		scheduler = new TransferScheduler(transferOrder != null ? TransferScheduler.Policy.getByName(transferOrder)
+				: getDefaultTransferOrder());
+		this.remotePathsFile = remotePathsFile;
 		if (remotePathsFile != null) {
 			processRemotePaths(remotePathsFile);
+			if (compressTextFiles) {
+				compressedSizes = new CompressedSizeSidecar(CompressedSizeSidecar.getSidecarFile(remotePathsFile));
+			}
+		}
+	}
+
+	public void transferDatasets() {
+		startMetricsExport();
+		openJournal();
+		try {
+			transferAllDatasets();
+			if (checksums) {
+				writeChecksumManifests();
+			}
+		} finally {
+			saveIP2ListingCache();
+			closeConnectionPools();
+			stopCompression();
+			if (journal != null) {
+				journal.close();
+				journal = null;
+			}
+			stopMetricsExport();
+		}
+	}
+
+	/**
+	 * Opens the journal of the transfers of the remote paths file to this
+	 * destination, if it is enabled. It is opened here and not in the
+	 * constructor because the destination is only known once the subclasses
+	 * are initialized.
+	 */
+	private void openJournal() {
+		if (remotePathsFile == null || journal != null || !getBooleanProperty(TRANSFER_JOURNAL, true)) {
+			return;
+		}
+		final File journalFile = TransferJournal.getJournalFile(remotePathsFile, getDestinationId());
+		try {
+			journal = new TransferJournal(journalFile);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error opening journal " + journalFile.getAbsolutePath()
+					+ ". The transfers will not be journaled: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 
+	 * @return {@link TransferScheduler.Policy#LARGEST_FIRST} if several files
+	 *         are transferred at the same time, or
+	 *         {@link TransferScheduler.Policy#FILE_ORDER} otherwise, as with one
+	 *         transfer at a time the order doesn't change when the transfer ends
+	 *         and the sizes don't need to be collected
+	 */
+	private TransferScheduler.Policy getDefaultTransferOrder() {
+		if (getIntProperty(TRANSFER_THREADS, 1) > 1 || getBooleanProperty(ADAPTIVE_CONCURRENCY, false)) {
+			return TransferScheduler.Policy.LARGEST_FIRST;
+		}
+		return TransferScheduler.Policy.FILE_ORDER;
+	}
+
+	private void transferAllDatasets() {
+		warmRemoteFolderCache();
+		final int transferThreads = getIntProperty(TRANSFER_THREADS, 1);
+		if (getBooleanProperty(ADAPTIVE_CONCURRENCY, false)) {
+			final int maxTransferThreads = getMaxTransferThreads();
+			concurrencyController = new ConcurrencyController(getIntProperty(TRANSFER_THREADS_MIN, 1),
+					maxTransferThreads, transferThreads, getIntProperty(ADAPTIVE_INTERVAL_SECONDS, 30) * 1000l);
+			registerConcurrencyMetrics(concurrencyController);
+			try {
+				transferDatasetsConcurrently(maxTransferThreads,
+						getIntProperty(TRANSFER_THREADS_PER_DATASET, maxTransferThreads));
+			} finally {
+				concurrencyController.close();
+				log.info("Adaptive concurrency finished with " + concurrencyController.getLimit()
+						+ " concurrent transfers after " + concurrencyController.getNumIncreases() + " increases and "
+						+ concurrencyController.getNumDecreases() + " decreases");
+			}
+			return;
+		}
+		if (transferThreads > 1) {
+			transferDatasetsConcurrently(transferThreads,
+					getIntProperty(TRANSFER_THREADS_PER_DATASET, transferThreads));
+			return;
+		}
+		final long t1 = System.currentTimeMillis();
+		long totalTransferredSize = 0l;
+		for (final String datasetName : datasetsByName.keySet()) {
+			log.info(datasetName + " transfer started");
+			final long transferDatasetSize = transferDataset(datasetName);
+			totalTransferredSize += transferDatasetSize;
+			log.info(datasetName + " (" + FileUtils.getDescriptiveSizeFromBytes(transferDatasetSize)
+					+ ") transfer finished. Total transfered so far: "
+					+ FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize));
+
+		}
+		printTotalTransferSummary(totalTransferredSize, System.currentTimeMillis() - t1);
+	}
+
+	private void registerConcurrencyMetrics(final ConcurrencyController controller) {
+		metrics.gauge("concurrency_limit",
+				"Maximum number of transfers at the same time set by the adaptive controller",
+				new MetricsRegistry.GaugeValue() {
+					@Override
+					public double getValue() {
+						return controller.getLimit();
+					}
+				});
+		metrics.gauge("concurrency_active", "Number of transfers running", new MetricsRegistry.GaugeValue() {
+			@Override
+			public double getValue() {
+				return controller.getActive();
+			}
+		});
+		metrics.gauge("concurrency_adjustments", "Number of changes of the limit of the adaptive controller",
+				new MetricsRegistry.GaugeValue() {
+					@Override
+					public double getValue() {
+						return controller.getNumIncreases() + controller.getNumDecreases();
+					}
+				});
+	}
+
+	private void printTotalTransferSummary(long totalTransferredSize, long spendTime) {
+		final String speed = FileUtils.getDescriptiveSizeFromBytes(
+				Double.valueOf(totalTransferredSize / (spendTime / 1000.0)).longValue()) + "/sg";
+		System.out.println(FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize) + " transferred for "
+				+ datasetsByName.size() + " datasets in " + DatesUtil.getDescriptiveTimeFromMillisecs(spendTime) + " ("
+				+ speed + ")");
+	}
+
+	/**
+	 * Transfers all the datasets using a pool of workers
+	 * 
+	 * @param transferThreads           number of files transferred at the same
+	 *                                  time in total
+	 * @param transferThreadsPerDataset number of files of the same dataset
+	 *                                  transferred at the same time
+	 */
+	private void transferDatasetsConcurrently(int transferThreads, int transferThreadsPerDataset) {
+		final long t1 = System.currentTimeMillis();
+		final List<TransferTask> tasks = new ArrayList<TransferTask>();
+		final Map<String, AtomicLong> transferredSizeByDataset = new HashMap<String, AtomicLong>();
+		final Map<String, AtomicInteger> filesDoneByDataset = new HashMap<String, AtomicInteger>();
+		final TObjectIntHashMap<String> numFilesByDataset = new TObjectIntHashMap<String>();
+		for (final String datasetName : datasetsByName.keySet()) {
+			final List<TransferTask> datasetTasks = getTransferTasks(datasetName);
+			tasks.addAll(datasetTasks);
+			transferredSizeByDataset.put(datasetName, new AtomicLong());
+			filesDoneByDataset.put(datasetName, new AtomicInteger());
+			numFilesByDataset.put(datasetName, datasetTasks.size());
+		}
+		final List<TransferTask> scheduledTasks = scheduleTransferTasks(tasks);
+		log.info(tasks.size() + " transfers in " + datasetsByName.size() + " datasets using " + transferThreads
+				+ " threads (maximum " + transferThreadsPerDataset + " per dataset)");
+		final TransferQueue queue = new TransferQueue(scheduledTasks, transferThreadsPerDataset);
+		final AtomicLong totalTransferredSize = new AtomicLong();
+		final ExecutorService executor = Executors.newFixedThreadPool(transferThreads);
+		for (int i = 0; i < transferThreads; i++) {
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					workerProgressMonitor.set(new MySftpProgressMonitor(System.out));
+					try {
+						while (true) {
+							final TransferTask task = queue.take();
+							if (task == null) {
+								break;
+							}
+							boolean acquired = false;
+							try {
+								// the transfer is counted by the controller once it can start,
+								// and not while the limit per dataset holds it back
+								if (concurrencyController != null) {
+									concurrencyController.acquire();
+									acquired = true;
+								}
+								final long transferredSize = transferTask(task);
+								final String datasetName = task.getDataset().getName();
+								final long datasetSize = transferredSizeByDataset.get(datasetName)
+										.addAndGet(transferredSize);
+								final int filesDone = filesDoneByDataset.get(datasetName).incrementAndGet();
+								final long totalSize = totalTransferredSize.addAndGet(transferredSize);
+								System.out.println(FileUtils.getDescriptiveSizeFromBytes(datasetSize)
+										+ " transferred in " + datasetName + " dataset so far (file " + filesDone
+										+ " out of " + numFilesByDataset.get(datasetName) + "). Total transferred: "
+										+ FileUtils.getDescriptiveSizeFromBytes(totalSize));
+								if (filesDone == numFilesByDataset.get(datasetName)) {
+									log.info(datasetName + " (" + FileUtils.getDescriptiveSizeFromBytes(datasetSize)
+											+ ") transfer finished. Total transfered so far: "
+											+ FileUtils.getDescriptiveSizeFromBytes(totalSize));
+								}
+							} catch (final RuntimeException e) {
+								e.printStackTrace();
+								log.warn("Error transferring " + task + ": " + e.getMessage());
+							} finally {
+								queue.done(task);
+								if (acquired) {
+									concurrencyController.release();
+								}
+							}
+						}
+					} catch (final InterruptedException e) {
+						log.warn("Transfer worker interrupted");
+						Thread.currentThread().interrupt();
+					} finally {
+						workerProgressMonitor.remove();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the transfers to finish");
+		}
+		for (final String datasetName : datasetsByName.keySet()) {
+			System.out.println(
+					FileUtils.getDescriptiveSizeFromBytes(transferredSizeByDataset.get(datasetName).get())
+							+ " transferred in " + datasetName + " dataset");
+		}
+		printTotalTransferSummary(totalTransferredSize.get(), System.currentTimeMillis() - t1);
+	}
+
+	/**
+	 * Gets the transfer tasks of a dataset, sorted by {@link FileType} and then in
+	 * the order in which they were read from the remote paths file
+	 * 
+	 * @param datasetName
+	 * @return
+	 */
+	protected List<TransferTask> getTransferTasks(String datasetName) {
+		final Dataset dataset = datasetsByName.get(datasetName);
+		if (dataset == null) {
+			throw new IllegalArgumentException(datasetName + " dataset not found");
+		}
+		final Map<String, String> outputFileNamesByPath = dataset.getOutputFileNameByPath();
+		final List<FileType> fileTypesList = new ArrayList<FileType>();
+		fileTypesList.addAll(dataset.getPathsByFileType().keySet());
+		Collections.sort(fileTypesList);
+		final List<TransferTask> ret = new ArrayList<TransferTask>();
+		for (final FileType fileType : fileTypesList) {
+			for (final String path : dataset.getPathsByFileType().get(fileType)) {
+				final TransferTask task = new TransferTask(dataset, fileType, path, outputFileNamesByPath.get(path));
+				if (journal != null) {
+					journal.taskPlanned(task);
+				}
+				ret.add(task);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Orders the tasks with the {@link TransferScheduler}, getting their sizes
+	 * first if the policy needs them
+	 * 
+	 * @param tasks
+	 * @return
+	 */
+	protected List<TransferTask> scheduleTransferTasks(List<TransferTask> tasks) {
+		if (scheduler.getPolicy().isSizeNeeded()) {
+			collectTransferSizes(tasks);
+		}
+		return scheduler.schedule(tasks);
+	}
+
+	/**
+	 * Sets the size of each task: the length of local files, and the size of the
+	 * files in IP2 from the attributes of their entries, listing each folder only
+	 * once through the {@link IP2ListingCache} instead of getting the attributes
+	 * of each file. Tasks already transferred according to the journal are not
+	 * checked.
+	 * 
+	 * @param tasks
+	 */
+	protected void collectTransferSizes(List<TransferTask> tasks) {
+		final long t1 = System.currentTimeMillis();
+		final Map<String, List<IP2ListingCache.Entry>> entriesByFolder = new HashMap<String,
+				List<IP2ListingCache.Entry>>();
+		ChannelSftp sftpIP2 = null;
+		boolean brokenChannel = false;
+		try {
+			for (final TransferTask task : tasks) {
+				if (journal != null && journal.getDoneSize(task) >= 0) {
+					task.setSize(journal.getDoneSize(task));
+					continue;
+				}
+				final String path = task.getPath();
+				if (isLocalFile(path)) {
+					task.setSize(new File(path).length());
+					continue;
+				}
+				try {
+					if (sftpIP2 == null) {
+						sftpIP2 = getIP2ChannelPool().borrowChannel();
+					}
+					task.setSize(getSizeInIP2(sftpIP2, task, entriesByFolder));
+				} catch (final SftpException e) {
+					log.warn("Size of " + task + " not available: " + e.getMessage());
+				}
+			}
+		} catch (final JSchException e) {
+			e.printStackTrace();
+			log.warn("Error getting the sizes of the files in IP2: " + e.getMessage());
+			brokenChannel = true;
+		} finally {
+			if (sftpIP2 != null) {
+				if (brokenChannel) {
+					getIP2ChannelPool().invalidateChannel(sftpIP2);
+				} else {
+					getIP2ChannelPool().releaseChannel(sftpIP2);
+				}
+			}
+		}
+		log.info("Sizes of " + tasks.size() + " transfers collected in "
+				+ DatesUtil.getDescriptiveTimeFromMillisecs(System.currentTimeMillis() - t1));
+	}
+
+	/**
+	 * 
+	 * @param sftpIP2
+	 * @param task
+	 * @param entriesByFolder folders already listed
+	 * @return the size in IP2 of the files of the task, resolving the paths as
+	 *         {@link #transferFile(String, String, FileType, Dataset)} does
+	 * @throws SftpException
+	 */
+	private long getSizeInIP2(ChannelSftp sftpIP2, TransferTask task,
+			Map<String, List<IP2ListingCache.Entry>> entriesByFolder) throws SftpException {
+		final String fullPathToIP2 = task.getPath();
+		final IP2ListingCache.Entry fileEntry = getFileEntry(sftpIP2, fullPathToIP2, entriesByFolder);
+		if (task.getOutputFileName() != null && !"".equals(FilenameUtils.getExtension(fullPathToIP2))) {
+			if (fileEntry == null) {
+				throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, fullPathToIP2 + " not found");
+			}
+			return fileEntry.getSize();
+		}
+		String pathToFolderInIP2 = FilenameUtils.getFullPath(fullPathToIP2);
+		String extension = FilenameUtils.getExtension(fullPathToIP2);
+		if ("".equals(extension)) {
+			pathToFolderInIP2 = fullPathToIP2;
+			extension = task.getFileType().getExtension();
+		}
+		if (fileEntry != null) {
+			return fileEntry.getSize();
+		}
+		long size = 0l;
+		for (final IP2ListingCache.Entry entry : getFilesInFolder(sftpIP2, pathToFolderInIP2, entriesByFolder)) {
+			if (extension == null || FilenameUtils.getExtension(entry.getFilename()).equalsIgnoreCase(extension)) {
+				size += entry.getSize();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * 
+	 * @param sftpIP2
+	 * @param fullPathToIP2
+	 * @param entriesByFolder folders already listed
+	 * @return the entry of the file in the listing of its folder, or null if it
+	 *         is not a file of that folder
+	 * @throws SftpException if the folder cannot be listed
+	 */
+	private IP2ListingCache.Entry getFileEntry(ChannelSftp sftpIP2, String fullPathToIP2,
+			Map<String, List<IP2ListingCache.Entry>> entriesByFolder) throws SftpException {
+		final String fileName = FilenameUtils.getName(fullPathToIP2);
+		for (final IP2ListingCache.Entry entry : getFilesInFolder(sftpIP2, FilenameUtils.getFullPath(fullPathToIP2),
+				entriesByFolder)) {
+			if (entry.getFilename().equals(fileName)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private List<IP2ListingCache.Entry> getFilesInFolder(ChannelSftp sftpIP2, String folder,
+			Map<String, List<IP2ListingCache.Entry>> entriesByFolder) throws SftpException {
+		String key = folder;
+		while (key.length() > 1 && key.endsWith("/")) {
+			key = key.substring(0, key.length() - 1);
+		}
+		if (!entriesByFolder.containsKey(key)) {
+			entriesByFolder.put(key, SftpUtil.getFilesInFolderByExtension(getIP2ListingCache(), sftpIP2, key, null));
+		}
+		return entriesByFolder.get(key);
+	}
+
+	protected long transferTask(TransferTask task) {
+		if (journal != null) {
+			final long doneSize = journal.getDoneSize(task);
+			if (doneSize >= 0) {
+				log.info(task + " already transferred according to the journal. It will be skipped");
+				return doneSize;
+			}
+		}
+		transferFailed.set(false);
+		currentTask.set(task);
+		long transferredSize = 0l;
+		try {
+			if (isLocalFile(task.getPath())) {
+				transferredSize = transferLocalFile(task.getPath(), task.getOutputFileName(), task.getFileType(),
+						task.getDataset());
+			} else {
+				transferredSize = transferFile(task.getPath(), task.getOutputFileName(), task.getFileType(),
+						task.getDataset());
+			}
+		} finally {
+			// the worker threads are pooled
+			currentTask.remove();
+		}
+		if (journal != null && !transferFailed.get()) {
+			journal.taskDone(task, transferredSize);
+		}
+		return transferredSize;
+	}
+
+	/**
+	 * Logs an error in the transfer of a file and records that the transfer being
+	 * done by the current thread is not complete
+	 * 
+	 * @param e
+	 */
+	protected void handleTransferError(Exception e) {
+		e.printStackTrace();
+		log.warn(e.getMessage());
+		transferFailed.set(true);
+		if (concurrencyController != null) {
+			concurrencyController.recordError();
+		}
+		metrics.files.inc(getMetricLabels(FILE_FAILED));
+	}
+
+	protected static final String FILE_DONE = "done";
+	protected static final String FILE_SKIPPED = "skipped";
+	protected static final String FILE_FAILED = "failed";
+
+	/**
+	 * 
+	 * @return the task being transferred by the current thread, or null
+	 */
+	protected TransferTask getCurrentTask() {
+		return currentTask.get();
+	}
+
+	/**
+	 * Sets the task being transferred by the current thread, to label its
+	 * metrics, when the transfer is done by another instance, as in
+	 * {@link MultipleProjectIP2FanOut}
+	 * 
+	 * @param task null to remove it
+	 */
+	protected void setCurrentTask(TransferTask task) {
+		if (task == null) {
+			currentTask.remove();
+		} else {
+			currentTask.set(task);
+		}
+	}
+
+	/**
+	 * 
+	 * @return the progress monitor of the transfer worker of the current thread,
+	 *         or the one of the whole upload when transferring sequentially
+	 */
+	protected MySftpProgressMonitor getProgressMonitor() {
+		final MySftpProgressMonitor ret = workerProgressMonitor.get();
+		if (ret != null) {
+			return ret;
+		}
+		return progressMonitor;
+	}
+
+	/**
+	 * 
+	 * @return the name of the destination of the transfers, for the logs
+	 */
+	protected String getDestinationName() {
+		return "MassIVE (" + getMassiveHostName() + ")";
+	}
+
+	/**
+	 * 
+	 * @return the type, host and root folder of the destination, to tell apart
+	 *         the journals and the sizes of the compressed files of the
+	 *         transfers of the same remote paths file to different destinations
+	 */
+	protected String getDestinationId() {
+		return "massive_" + getMassiveHostName() + "_" + getIntProperty(MASSIVE_SERVER_PORT, FTP.DEFAULT_PORT);
+	}
+
+	/**
+	 * 
+	 * @param status
+	 * @return the labels of the dataset and {@link FileType} being transferred
+	 *         by the current thread, and the status
+	 */
+	protected String[] getMetricLabels(String status) {
+		final TransferTask task = currentTask.get();
+		final String datasetName = task != null ? task.getDataset().getName() : "";
+		final String fileType = task != null ? task.getFileType().name() : "";
+		if (status == null) {
+			return new String[] { datasetName, fileType };
+		}
+		return new String[] { datasetName, fileType, status };
+	}
+
+	/**
+	 * 
+	 * @param ftpMassive
+	 * @param folderPathToMassive
+	 * @param fileName
+	 * @param sizeInSource
+	 * @return the size of the file in MassIVE according to the journal, if it was
+	 *         completely uploaded with the same size as in the source, or
+	 *         according to the index of the folder otherwise
+	 * @throws IOException
+	 */
+	protected long getSizeInMassive(FTPClient ftpMassive, String folderPathToMassive, String fileName,
+			long sizeInSource) throws IOException {
+		final long sizeInJournal = getFileDoneSizeInJournal(folderPathToMassive + "/" + fileName);
+		if (sizeInJournal >= 0 && sizeInJournal == sizeInSource) {
+			return sizeInJournal;
+		}
+		final long t1 = System.nanoTime();
+		final long size = massiveFileIndex.getSize(ftpMassive, folderPathToMassive, fileName);
+		metrics.operationSeconds.observeSince(t1, getMassiveHostName(), "size_probe");
+		return size;
+	}
+
+	/**
+	 * 
+	 * @param fullPathInDestination
+	 * @return the size of the file if it was completely uploaded according to the
+	 *         journal, or -1 otherwise
+	 */
+	protected long getFileDoneSizeInJournal(String fullPathInDestination) {
+		if (journal == null) {
+			return -1l;
+		}
+		return journal.getFileDoneSize(fullPathInDestination);
+	}
+
+	protected void journalFileStarted(String fullPathToMassive, long offset) {
+		if (journal != null) {
+			journal.fileStarted(fullPathToMassive, offset);
+		}
+	}
+
+	protected void journalFileDone(String fullPathToMassive, long size, String checksum) {
+		if (journal != null) {
+			journal.fileDone(fullPathToMassive, size, checksum);
+		}
+	}
+
+	private long transferDataset(String datasetName) {
+		long totalTransferredSize = 0l;
+		final List<TransferTask> tasks = scheduleTransferTasks(getTransferTasks(datasetName));
+		final ProgressCounter counter = new ProgressCounter(tasks.size(), ProgressPrintingType.EVERY_STEP, 1);
+		for (int i = 0; i < tasks.size(); i++) {
+			counter.increment();
+			final long transferredSize = transferTask(tasks.get(i));
+			totalTransferredSize += transferredSize;
+			System.out.println(FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize) + " transferred in "
+					+ datasetName + " dataset so far (file " + (i + 1) + " out of " + tasks.size() + ")");
+			final String printIfNecessary = counter.printIfNecessary();
+			if (!"".equals(printIfNecessary)) {
+				System.out.println(printIfNecessary);
+			}
+		}
+		System.out.println(FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize) + " transferred in "
+				+ datasetName + " dataset");
+		return totalTransferredSize;
+
+	}
+
+	protected long transferLocalFile(String fullPathLocalFile, String outputFileName, FileType fileType,
+			Dataset dataset) {
+		long sizeTransferred = 0l;
+		if (outputFileName == null) {
+			outputFileName = FilenameUtils.getName(fullPathLocalFile);
+		}
+		final FTPClientPool massivePool = getMassiveClientPool();
+		FTPClient ftpMassive = null;
+		boolean brokenConnection = false;
+		try {
+			ftpMassive = massivePool.borrowClient();
+			final String folderPathToMassive = getFolderPathToMassive(dataset, fileType);
+			log.info("Transferring file " + fullPathLocalFile);
+			createFullPathInRemote(ftpMassive, folderPathToMassive);
+
+			final String fileName = getNameInDestination(FilenameUtils.getName(outputFileName), fileType);
+			getProgressMonitor().setSuffix("(" + fileName + ") ");
+			final long sizeInLocal = new File(fullPathLocalFile).length();
+			final String fullPathToMassive = folderPathToMassive + "/" + fileName;
+			long sizeInMassive = getSizeInMassive(ftpMassive, folderPathToMassive, fileName, sizeInLocal);
+			if (isCompressed(fileType)) {
+				sizeInMassive = getSizeOfCompressedFile(fullPathToMassive, sizeInLocal, sizeInMassive);
+			}
+
+			if (sizeInLocal <= sizeInMassive) {
+				log.info("File '" + fullPathLocalFile + "' found in MassIVE with  "
+						+ FileUtils.getDescriptiveSizeFromBytes(sizeInLocal) + ". It will be skipped");
+				metrics.files.inc(getMetricLabels(FILE_SKIPPED));
+				return sizeInMassive;
+			} else if (sizeInMassive > 0) {
+				log.info("File '" + fullPathLocalFile + "' found in MassIVE but sizes are different: Local:"
+						+ sizeInLocal + " Massive:" + sizeInMassive + " diff: " + (sizeInLocal - sizeInMassive));
+			}
+
+			final long offset = getResumeOffset(sizeInLocal, sizeInMassive);
+			log.info("Output file in Massive: " + fullPathToMassive);
+			massiveFileIndex.setUnknownSize(folderPathToMassive, fileName);
+			journalFileStarted(fullPathToMassive, offset);
+			final StreamDigester digester = getStreamDigester(fileName, 0l);
+			long transferred = offset;
+			final long t1 = System.nanoTime();
+			if (zeroCopyUploader != null && zeroCopyUploader.isSupported(ftpMassive) && !isCompressed(fileType)) {
+				transferred += zeroCopyUploader.upload(ftpMassive, new File(fullPathLocalFile), fullPathToMassive,
+						offset, digester, getUploadProgressListener());
+			} else {
+				transferred += uploadLocalFileStream(ftpMassive, fullPathLocalFile, fullPathToMassive, fileType,
+						offset, digester);
+			}
+			completeTransferToMassive(ftpMassive, fullPathToMassive);
+			metrics.operationSeconds.observeSince(t1, getMassiveHostName(), "stream");
+			metrics.files.inc(getMetricLabels(FILE_DONE));
+			massiveFileIndex.setSize(folderPathToMassive, fileName, transferred);
+			journalFileDone(fullPathToMassive, transferred,
+					addChecksum(getDatasetFolderPath(dataset), fileType.name() + "/" + fileName, digester));
+			sizeTransferred += transferred;
+
+		} catch (final IOException e) {
+			handleTransferError(e);
+			brokenConnection = true;
+		} finally {
+			if (ftpMassive != null) {
+				if (brokenConnection) {
+					massivePool.invalidateClient(ftpMassive);
+				} else {
+					massivePool.releaseClient(ftpMassive);
+				}
+			}
+		}
+		return sizeTransferred;
+	}
+
+	/**
+	 * Uploads a local file copying it with {@link IOUtils#copyLarge(InputStream,
+	 * OutputStream)}, when the {@link ZeroCopyUploader} is disabled or not
+	 * supported by the connection
+	 * 
+	 * @param ftpMassive
+	 * @param fullPathLocalFile
+	 * @param fullPathToMassive
+	 * @param fileType
+	 * @param offset
+	 * @param digester
+	 * @return the number of bytes uploaded, compressed if the file is compressed
+	 * @throws IOException
+	 */
+	private long uploadLocalFileStream(FTPClient ftpMassive, String fullPathLocalFile, String fullPathToMassive,
+			FileType fileType, long offset, StreamDigester digester) throws IOException {
+		final OutputStream outputStreamInMassive = openOutputStreamToMassive(ftpMassive, fullPathToMassive,
+				offset);
+		FTPUtils.showServerReply(ftpMassive);
+		if (outputStreamInMassive == null) {
+			throw new IOException(
+					"Error trying to create output stream to Massive: " + ftpMassive.getReplyString());
+		}
+		final FileInputStream fileInputStream = new FileInputStream(fullPathLocalFile);
+		try {
+			if (isCompressed(fileType)) {
+				// the checksums are of the compressed file, as it is in MassIVE
+				final OutputStream outputStream = getCompressedOutputStream(
+						getDigestedOutputStream(outputStreamInMassive, digester), fileType);
+				final long sizeInLocal;
+				try {
+					sizeInLocal = IOUtils.copyLarge(fileInputStream, outputStream);
+				} finally {
+					outputStream.close();
+				}
+				return getUploadedSize(fullPathToMassive, sizeInLocal, outputStream);
+			}
+			if (digester != null) {
+				// the part already in MassIVE is read locally to have the
+				// checksum of the whole file
+				final InputStream inputStream = digester.wrap(fileInputStream);
+				IOUtils.skipFully(inputStream, offset);
+				final long transferred = IOUtils.copyLarge(inputStream, outputStreamInMassive);
+				inputStream.close();
+				return transferred;
+			}
+			if (offset > 0) {
+				fileInputStream.getChannel().position(offset);
+			}
+			return IOUtils.copyLarge(fileInputStream, outputStreamInMassive);
+		} finally {
+			fileInputStream.close();
+			outputStreamInMassive.close();
+		}
+	}
+
+	/**
+	 * 
+	 * @return a listener that reports the bytes uploaded by the
+	 *         {@link ZeroCopyUploader} to the {@link MetricsRegistry} and to the
+	 *         adaptive concurrency controller if it is enabled
+	 */
+	private ZeroCopyUploader.ProgressListener getUploadProgressListener() {
+		final String[] labels = getMetricLabels(null);
+		return new ZeroCopyUploader.ProgressListener() {
+
+			@Override
+			public void bytesWritten(long numBytes) {
+				metrics.addBytes(numBytes, labels[0], labels[1]);
+				if (concurrencyController != null) {
+					concurrencyController.addBytes(numBytes);
+				}
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param dataset
+	 * @param fileType
+	 * @return the folder in MassIVE where the files of that dataset and
+	 *         {@link FileType} are stored
+	 */
+	protected String getFolderPathToMassive(Dataset dataset, FileType fileType) {
+		return getDatasetFolderPath(dataset) + "/" + fileType.name();
+	}
+
+	/**
+	 * 
+	 * @param dataset
+	 * @return the folder in the destination where the files of the dataset are
+	 *         stored, and where its checksum manifest is written
+	 */
+	protected String getDatasetFolderPath(Dataset dataset) {
+		String folderPath = dataset.getName();
+		if (submissionName != null && !"".equals(submissionName)) {
+			folderPath = "/" + submissionName + "/" + folderPath;
+		}
+		return folderPath;
+	}
+
+	/**
+	 * 
+	 * @param fileName
+	 * @param offset   the number of bytes of the file that are not going to be
+	 *                 transferred because they are already in the destination
+	 * @return a digester to compute the checksums of the file while it is
+	 *         transferred, or null if checksums are disabled or they cannot be
+	 *         computed because the transfer is resumed
+	 */
+	protected StreamDigester getStreamDigester(String fileName, long offset) {
+		if (!checksums) {
+			return null;
+		}
+		if (offset > 0) {
+			log.info("Checksums of '" + fileName
+					+ "' will not be computed because its transfer is resumed from the middle of the file");
+			return null;
+		}
+		return new StreamDigester(fileName);
+	}
+
+	protected OutputStream getDigestedOutputStream(OutputStream outputStream, StreamDigester digester) {
+		if (digester == null) {
+			return outputStream;
+		}
+		return digester.wrap(outputStream);
+	}
+
+	protected InputStream getDigestedInputStream(InputStream inputStream, StreamDigester digester) {
+		if (digester == null) {
+			return inputStream;
+		}
+		return digester.wrap(inputStream);
+	}
+
+	/**
+	 * 
+	 * @param fileType
+	 * @return true if the files of that type are compressed with gzip while they
+	 *         are uploaded
+	 */
+	protected boolean isCompressed(FileType fileType) {
+		return compressTextFiles && fileType.isText();
+	}
+
+	/**
+	 * 
+	 * @param fileName
+	 * @param fileType
+	 * @return the name of the file in the destination, with the .gz suffix if it
+	 *         is compressed
+	 */
+	protected String getNameInDestination(String fileName, FileType fileType) {
+		if (isCompressed(fileType) && !fileName.endsWith(GZIP_SUFFIX)) {
+			return fileName + GZIP_SUFFIX;
+		}
+		return fileName;
+	}
+
+	/**
+	 * A compressed file in the destination is complete if it has the size
+	 * recorded in the {@link CompressedSizeSidecar} when it was compressed from
+	 * a file of the same size as the source file
+	 * 
+	 * @param fullPathInDestination
+	 * @param sizeInSource
+	 * @param sizeInDestination     size of the compressed file in the
+	 *                              destination, or -1 if it is not there
+	 * @return sizeInSource if the compressed file is complete, -1 if it is not in
+	 *         the destination or 0 otherwise, so that it is uploaded again from
+	 *         the beginning, because a compressed upload cannot be resumed
+	 */
+	protected long getSizeOfCompressedFile(String fullPathInDestination, long sizeInSource,
+			long sizeInDestination) {
+		if (sizeInDestination < 0) {
+			return -1l;
+		}
+		if (compressedSizes != null && compressedSizes.getCompressedSize(getDestinationId(),
+				fullPathInDestination, sizeInSource) == sizeInDestination) {
+			return sizeInSource;
 		}
+		return 0l;
 	}
 
-	public void transferDatasets() {
-		final long t1 = System.currentTimeMillis();
-		long totalTransferredSize = 0l;
-		for (final String datasetName : datasetsByName.keySet()) {
-			log.info(datasetName + " transfer started");
-			final long transferDatasetSize = transferDataset(datasetName);
-			totalTransferredSize += transferDatasetSize;
-			log.info(datasetName + " (" + FileUtils.getDescriptiveSizeFromBytes(transferDatasetSize)
-					+ ") transfer finished. Total transfered so far: "
-					+ FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize));
+	/**
+	 * 
+	 * @param outputStream
+	 * @param fileType
+	 * @return a {@link ParallelGzipOutputStream} writing to the output stream if
+	 *         the files of that type are compressed, or the output stream itself
+	 * @throws IOException
+	 */
+	protected OutputStream getCompressedOutputStream(OutputStream outputStream, FileType fileType)
+			throws IOException {
+		if (!isCompressed(fileType)) {
+			return outputStream;
+		}
+		return new ParallelGzipOutputStream(outputStream, getCompressionExecutor(), compressionLevel,
+				compressionThreads * 2);
+	}
 
+	/**
+	 * Records the size of a compressed file in the {@link CompressedSizeSidecar}
+	 * once it is uploaded
+	 * 
+	 * @param fullPathInDestination
+	 * @param sizeInSource
+	 * @param outputStream          the stream returned by
+	 *                              {@link #getCompressedOutputStream(OutputStream, FileType)},
+	 *                              already closed
+	 * @return the size of the file in the destination
+	 */
+	protected long getUploadedSize(String fullPathInDestination, long sizeInSource, OutputStream outputStream) {
+		if (!(outputStream instanceof ParallelGzipOutputStream)) {
+			return sizeInSource;
 		}
-		final long spendTime = System.currentTimeMillis() - t1;
-		final String speed = FileUtils.getDescriptiveSizeFromBytes(
-				Double.valueOf(totalTransferredSize / (spendTime / 1000.0)).longValue()) + "/sg";
-		System.out.println(FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize) + " transferred for "
-				+ datasetsByName.size() + " datasets in " + DatesUtil.getDescriptiveTimeFromMillisecs(spendTime) + " ("
-				+ speed + ")");
+		final long compressedSize = ((ParallelGzipOutputStream) outputStream).getCompressedSize();
+		if (compressedSizes != null) {
+			compressedSizes.fileCompressed(getDestinationId(), fullPathInDestination, sizeInSource,
+					compressedSize);
+		}
+		return compressedSize;
+	}
+
+	private synchronized ExecutorService getCompressionExecutor() {
+		if (compressionExecutor == null) {
+			log.info("Compressing text files with " + compressionThreads + " threads at level " + compressionLevel);
+			compressionExecutor = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+				private final AtomicInteger threadNumber = new AtomicInteger();
 
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "gzip-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return compressionExecutor;
 	}
 
-	private long transferDataset(String datasetName) {
-		long totalTransferredSize = 0l;
-		final Dataset dataset = datasetsByName.get(datasetName);
-		if (dataset == null) {
-			throw new IllegalArgumentException(datasetName + " dataset not found");
+	/**
+	 * Stops the threads compressing the files
+	 */
+	protected synchronized void stopCompression() {
+		if (compressionExecutor != null) {
+			compressionExecutor.shutdownNow();
+			compressionExecutor = null;
 		}
-		final Set<FileType> fileTypes = dataset.getPathsByFileType().keySet();
-		final Map<String, String> outputFileNamesByPath = dataset.getOutputFileNameByPath();
+		if (compressedSizes != null) {
+			compressedSizes.close();
+		}
+	}
 
-		final List<FileType> fileTypesList = new ArrayList<FileType>();
-		fileTypesList.addAll(fileTypes);
-		Collections.sort(fileTypesList);
-		for (final FileType fileType : fileTypesList) {
-			final List<String> paths = dataset.getPathsByFileType().get(fileType);
-			final ProgressCounter counter = new ProgressCounter(paths.size(), ProgressPrintingType.EVERY_STEP, 1);
-			for (int i = 0; i < paths.size(); i++) {
-				counter.increment();
-				final String path = paths.get(i);
-				final String outputFileName = outputFileNamesByPath.get(path);
-
-				long transferredSize = 0l;
-				if (isLocalFile(path)) {
-					transferredSize = transferLocalFile(path, outputFileName, fileType, dataset);
-				} else {
-					transferredSize = transferFile(path, outputFileName, fileType, dataset);
-				}
-				totalTransferredSize += transferredSize;
-				System.out.println(FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize) + " transferred in "
-						+ datasetName + " dataset so far (file " + (i + 1) + " out of " + paths.size() + ")");
-				final String printIfNecessary = counter.printIfNecessary();
-				if (!"".equals(printIfNecessary)) {
-					System.out.println(printIfNecessary);
-				}
+	protected CompressedSizeSidecar getCompressedSizeSidecar() {
+		return compressedSizes;
+	}
+
+	/**
+	 * Shares the {@link CompressedSizeSidecar} of a
+	 * {@link MultipleProjectIP2FanOut} with its destinations
+	 * 
+	 * @param compressedSizes
+	 */
+	protected void setCompressedSizeSidecar(CompressedSizeSidecar compressedSizes) {
+		this.compressedSizes = compressedSizes;
+	}
+
+	/**
+	 * Adds the checksums of a transferred file to the manifest of its dataset
+	 * 
+	 * @param datasetFolderPath
+	 * @param relativePath      path of the file relative to the dataset folder
+	 * @param digester          it may be null
+	 * @return the checksum to be stored in the {@link TransferJournal}, or null
+	 *         if there is no digester
+	 */
+	protected String addChecksum(String datasetFolderPath, String relativePath, StreamDigester digester) {
+		if (digester == null || digester.getMd5() == null) {
+			if (checksums) {
+				getChecksumManifest(datasetFolderPath).addWithoutChecksums(relativePath);
 			}
+			return null;
 		}
-		System.out.println(FileUtils.getDescriptiveSizeFromBytes(totalTransferredSize) + " transferred in "
-				+ datasetName + " dataset");
-		return totalTransferredSize;
+		getChecksumManifest(datasetFolderPath).add(relativePath, digester.getMd5(), digester.getSha256());
+		return ChecksumManifest.getChecksum(digester.getMd5(), digester.getSha256());
+	}
 
+	private synchronized ChecksumManifest getChecksumManifest(String datasetFolderPath) {
+		if (!checksumManifestsByFolder.containsKey(datasetFolderPath)) {
+			checksumManifestsByFolder.put(datasetFolderPath, new ChecksumManifest());
+		}
+		return checksumManifestsByFolder.get(datasetFolderPath);
 	}
 
-	private long transferLocalFile(String fullPathLocalFile, String outputFileName, FileType fileType,
-			Dataset dataset) {
-		long sizeTransferred = 0l;
-		try {
-			if (outputFileName == null) {
-				outputFileName = FilenameUtils.getName(fullPathLocalFile);
+	/**
+	 * Writes the checksum manifest of each dataset folder, with the checksums
+	 * computed in this run, the ones recorded in the journal in previous runs and
+	 * the ones of the other files in the manifest already in the folder. The
+	 * files uploaded without computing their checksums are left out and logged.
+	 */
+	protected void writeChecksumManifests() {
+		final LinkedHashSet<String> datasetFolderPaths = new LinkedHashSet<String>();
+		for (final Dataset dataset : datasetsByName.values()) {
+			datasetFolderPaths.add(getDatasetFolderPath(dataset));
+		}
+		// the datasets of the sinks of a fan-out are in the fan-out
+		synchronized (this) {
+			datasetFolderPaths.addAll(checksumManifestsByFolder.keySet());
+		}
+		for (final String datasetFolderPath : datasetFolderPaths) {
+			final ChecksumManifest manifest = getChecksumManifest(datasetFolderPath);
+			if (journal != null) {
+				final Map<String, String> checksumsInJournal = journal.getFileChecksumsUnder(datasetFolderPath);
+				for (final String relativePath : checksumsInJournal.keySet()) {
+					manifest.add(relativePath, checksumsInJournal.get(relativePath));
+				}
+			}
+			if (manifest.isEmpty() && manifest.getPathsWithoutChecksums().isEmpty()) {
+				continue;
 			}
-			FTPClient ftpMassive = null;
-			String folderPathToMassive = dataset.getName() + "/" + fileType.name();
 			try {
-				ftpMassive = loginToMassive();
-
-				if (submissionName != null && !"".equals(submissionName)) {
-					folderPathToMassive = "/" + submissionName + "/" + folderPathToMassive;
+				final int numPrevious = manifest.merge(
+						downloadChecksumManifest(datasetFolderPath, ChecksumManifest.MD5_FILE_NAME),
+						downloadChecksumManifest(datasetFolderPath, ChecksumManifest.SHA256_FILE_NAME));
+				final Set<String> pathsWithoutChecksums = manifest.getPathsWithoutChecksums();
+				if (!pathsWithoutChecksums.isEmpty()) {
+					log.warn("Checksums of " + pathsWithoutChecksums.size() + " files in " + datasetFolderPath
+							+ " were not computed and they will not be in its manifest: " + pathsWithoutChecksums);
 				}
-				log.info("Transferring file " + fullPathLocalFile);
-				createFullPathInRemote(ftpMassive, folderPathToMassive);
-			} catch (final Exception e) {
+				if (manifest.isEmpty()) {
+					continue;
+				}
+				uploadChecksumManifest(datasetFolderPath, ChecksumManifest.MD5_FILE_NAME, manifest.getMd5Text());
+				uploadChecksumManifest(datasetFolderPath, ChecksumManifest.SHA256_FILE_NAME,
+						manifest.getSha256Text());
+				log.info("Checksums of " + manifest.size() + " files written in " + datasetFolderPath + ", "
+						+ numPrevious + " of them from the manifest that was already there");
+			} catch (final IOException e) {
 				e.printStackTrace();
-				throw e;
-			} finally {
-				if (ftpMassive != null) {
-					ftpMassive.logout();
-					ftpMassive.disconnect();
-					FTPUtils.showServerReply(ftpMassive);
+				log.warn("Error writing checksums in " + datasetFolderPath + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param datasetFolderPath
+	 * @param fileName
+	 * @return the content of a checksum manifest file in a dataset folder, or
+	 *         null if it is not there
+	 * @throws IOException
+	 */
+	protected String downloadChecksumManifest(String datasetFolderPath, String fileName) throws IOException {
+		final FTPClientPool massivePool = getMassiveClientPool();
+		final FTPClient ftpMassive = massivePool.borrowClient();
+		boolean brokenConnection = true;
+		try {
+			final String fullPathToMassive = datasetFolderPath + "/" + fileName;
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			final boolean retrieved = ftpMassive.retrieveFile(fullPathToMassive, outputStream);
+			brokenConnection = false;
+			if (!retrieved) {
+				if (ftpMassive.getReplyCode() == FTPReply.FILE_UNAVAILABLE) {
+					return null;
 				}
+				FTPUtils.showServerReply(ftpMassive);
+				throw new IOException(
+						"Error downloading '" + fullPathToMassive + "': " + ftpMassive.getReplyString());
+			}
+			return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			if (brokenConnection) {
+				massivePool.invalidateClient(ftpMassive);
+			} else {
+				massivePool.releaseClient(ftpMassive);
 			}
+		}
+	}
 
-			final String fileName = FilenameUtils.getName(outputFileName);
-			progressMonitor.setSuffix("(" + fileName + ") ");
-			try {
-				final long sizeInLocal = new File(fullPathLocalFile).length();
-				long sizeInMassive = 0;
-				try {
-					ftpMassive = loginToMassive();
-					final String fullPathToMassive = folderPathToMassive + "/" + fileName;
-					sizeInMassive = FTPUtils.getSize(ftpMassive, fullPathToMassive);
+	/**
+	 * Uploads a checksum manifest file to a dataset folder, replacing it if
+	 * present
+	 * 
+	 * @param datasetFolderPath
+	 * @param fileName
+	 * @param content
+	 * @throws IOException
+	 */
+	protected void uploadChecksumManifest(String datasetFolderPath, String fileName, String content)
+			throws IOException {
+		final FTPClientPool massivePool = getMassiveClientPool();
+		final FTPClient ftpMassive = massivePool.borrowClient();
+		boolean brokenConnection = true;
+		try {
+			createFullPathInRemote(ftpMassive, datasetFolderPath);
+			final String fullPathToMassive = datasetFolderPath + "/" + fileName;
+			final boolean stored = ftpMassive.storeFile(fullPathToMassive,
+					new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+			brokenConnection = false;
+			if (!stored) {
+				FTPUtils.showServerReply(ftpMassive);
+				throw new IOException("Error uploading '" + fullPathToMassive + "': " + ftpMassive.getReplyString());
+			}
+		} finally {
+			if (brokenConnection) {
+				massivePool.invalidateClient(ftpMassive);
+			} else {
+				massivePool.releaseClient(ftpMassive);
+			}
+		}
+	}
 
-					if (sizeInLocal <= sizeInMassive) {
-						log.info("File '" + fullPathLocalFile + "' found in MassIVE with  "
-								+ FileUtils.getDescriptiveSizeFromBytes(sizeInLocal) + ". It will be skipped");
-						return sizeInMassive;
-					} else if (sizeInMassive > 0) {
-						log.info("File '" + fullPathLocalFile + "' found in MassIVE but sizes are different: Local:"
-								+ sizeInLocal + " Massive:" + sizeInMassive + " diff: "
-								+ (sizeInLocal - sizeInMassive));
-					}
+	/**
+	 * 
+	 * @param sizeInSource
+	 * @param sizeInMassive
+	 * @return the number of bytes already in MassIVE from which the transfer can
+	 *         continue, or 0 if the file has to be transferred from the beginning
+	 */
+	protected long getResumeOffset(long sizeInSource, long sizeInMassive) {
+		if (resumeTransfers && sizeInMassive > 0 && sizeInMassive < sizeInSource) {
+			return sizeInMassive;
+		}
+		return 0l;
+	}
 
-					final String outputFullPath = folderPathToMassive + "/" + fileName;
-					log.info("Output file in Massive: " + outputFullPath);
-					final OutputStream outputStreamInMassive = ftpMassive.storeFileStream(outputFullPath);
-					FTPUtils.showServerReply(ftpMassive);
-					if (outputStreamInMassive == null) {
-						throw new IllegalArgumentException("Error trying to create output stream to Massive");
-					}
-					final FileInputStream inputStream = new FileInputStream(fullPathLocalFile);
+	/**
+	 * Starts the upload of a file to MassIVE. If offset is greater than 0, the
+	 * data is appended to the partially uploaded file.
+	 * 
+	 * @param ftpMassive
+	 * @param fullPathToMassive
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	protected OutputStream openOutputStreamToMassive(FTPClient ftpMassive, String fullPathToMassive, long offset)
+			throws IOException {
+		final OutputStream outputStream;
+		if (offset > 0) {
+			log.info("Resuming transfer of '" + fullPathToMassive + "' from "
+					+ FileUtils.getDescriptiveSizeFromBytes(offset));
+			outputStream = ftpMassive.appendFileStream(fullPathToMassive);
+		} else {
+			outputStream = ftpMassive.storeFileStream(fullPathToMassive);
+		}
+		if (outputStream == null) {
+			return null;
+		}
+		final String[] labels = getMetricLabels(null);
+		return getControllerMeteredOutputStream(metrics.meter(outputStream, labels[0], labels[1]));
+	}
 
-					final long transferred = IOUtils.copyLarge(inputStream, outputStreamInMassive);
+	/**
+	 * 
+	 * @param outputStream
+	 * @return the output stream, reporting the bytes written to the adaptive
+	 *         concurrency controller if it is enabled
+	 */
+	protected OutputStream getControllerMeteredOutputStream(OutputStream outputStream) {
+		if (concurrencyController == null) {
+			return outputStream;
+		}
+		return concurrencyController.meter(outputStream);
+	}
 
-					outputStreamInMassive.close();
-					sizeTransferred += transferred;
-				} finally {
-					ftpMassive.logout();
-					ftpMassive.disconnect();
-					FTPUtils.showServerReply(ftpMassive);
-				}
+	/**
+	 * 
+	 * @param inputStream
+	 * @return the input stream, reporting the bytes read to the
+	 *         {@link MetricsRegistry} and to the adaptive concurrency controller
+	 *         if it is enabled
+	 */
+	protected InputStream getMeteredInputStream(InputStream inputStream) {
+		final String[] labels = getMetricLabels(null);
+		final InputStream meteredInputStream = metrics.meter(inputStream, labels[0], labels[1]);
+		if (concurrencyController == null) {
+			return meteredInputStream;
+		}
+		return concurrencyController.meter(meteredInputStream);
+	}
 
-			} catch (final IOException e) {
-				e.printStackTrace();
-				log.warn(e.getMessage());
+	/**
+	 * Reads a file from IP2 into the output stream, skipping the first offset
+	 * bytes. Files bigger than the striped download threshold are read over
+	 * several SFTP channels at the same time.
+	 * 
+	 * @param sftpIP2
+	 * @param fullPathToIP2
+	 * @param sizeInIP2
+	 * @param outputStream
+	 * @param offset
+	 * @throws SftpException
+	 * @throws IOException
+	 */
+	protected void getFromIP2(ChannelSftp sftpIP2, String fullPathToIP2, long sizeInIP2, OutputStream outputStream,
+			long offset) throws SftpException, IOException {
+		if (stripedDownloadThreshold > 0 && sizeInIP2 - offset >= stripedDownloadThreshold) {
+			new StripedSftpReader(getIP2ChannelPool(), stripedDownloadChannels, STRIPED_DOWNLOAD_CHUNK_SIZE)
+					.read(sftpIP2, fullPathToIP2, offset, sizeInIP2, outputStream, getProgressMonitor());
+		} else if (offset > 0) {
+			sftpIP2.get(fullPathToIP2, outputStream, getProgressMonitor(), ChannelSftp.RESUME, offset);
+		} else {
+			sftpIP2.get(fullPathToIP2, outputStream, getProgressMonitor());
+		}
+	}
+
+	/**
+	 * Finishes a transfer started with {@link FTPClient#storeFileStream(String)}
+	 * once its output stream is closed, so that the connection can be reused
+	 * 
+	 * @param ftpMassive
+	 * @param fullPathToMassive
+	 * @throws IOException if the server didn't confirm the transfer
+	 */
+	protected void completeTransferToMassive(FTPClient ftpMassive, String fullPathToMassive) throws IOException {
+		if (!ftpMassive.completePendingCommand()) {
+			FTPUtils.showServerReply(ftpMassive);
+			throw new IOException("Transfer to Massive of '" + fullPathToMassive + "' not completed: "
+					+ ftpMassive.getReplyString());
+		}
+	}
+
+	/**
+	 * Gets the size of a file in this destination, creating its folder if
+	 * needed, when it is used as a sink of a {@link MultipleProjectIP2FanOut}
+	 * 
+	 * @param fullPathToIP2
+	 * @param fileName      name of the file in the destination
+	 * @param fileType
+	 * @param dataset
+	 * @param sizeInSource
+	 * @return the size of the file in the destination. The file is not uploaded
+	 *         if it is not lower than sizeInSource.
+	 * @throws IOException
+	 */
+	protected long getSizeInDestination(String fullPathToIP2, String fileName, FileType fileType, Dataset dataset,
+			long sizeInSource) throws IOException {
+		final FTPClientPool massivePool = getMassiveClientPool();
+		final FTPClient ftpMassive = massivePool.borrowClient();
+		boolean brokenConnection = true;
+		try {
+			final String folderPathToMassive = getFolderPathToMassive(dataset, fileType);
+			createFullPathInRemote(ftpMassive, folderPathToMassive);
+			final String nameInMassive = getNameInDestination(fileName, fileType);
+			long sizeInMassive = getSizeInMassive(ftpMassive, folderPathToMassive, nameInMassive, sizeInSource);
+			if (isCompressed(fileType)) {
+				sizeInMassive = getSizeOfCompressedFile(folderPathToMassive + "/" + nameInMassive, sizeInSource,
+						sizeInMassive);
+			}
+			brokenConnection = false;
+			return sizeInMassive;
+		} finally {
+			if (brokenConnection) {
+				massivePool.invalidateClient(ftpMassive);
+			} else {
+				massivePool.releaseClient(ftpMassive);
 			}
+		}
+	}
 
-		} catch (final SocketException e2) {
-			e2.printStackTrace();
-			log.warn(e2.getMessage());
-		} catch (final IOException e2) {
-			e2.printStackTrace();
-			log.warn(e2.getMessage());
+	/**
+	 * Uploads a file to this destination reading it from the input stream, when
+	 * it is used as a sink of a {@link MultipleProjectIP2FanOut}
+	 * 
+	 * @param fullPathToIP2
+	 * @param fileName      name of the file in the destination
+	 * @param fileType
+	 * @param dataset
+	 * @param inputStream   the content of the file from offset
+	 * @param offset        number of bytes already in the destination, as
+	 *                      returned by
+	 *                      {@link #getResumeOffset(long, long)}
+	 * @return the number of bytes uploaded
+	 * @throws IOException
+	 */
+	protected long uploadToDestination(String fullPathToIP2, String fileName, FileType fileType, Dataset dataset,
+			InputStream inputStream, long offset) throws IOException {
+		final FTPClientPool massivePool = getMassiveClientPool();
+		final FTPClient ftpMassive = massivePool.borrowClient();
+		boolean brokenConnection = true;
+		try {
+			final String folderPathToMassive = getFolderPathToMassive(dataset, fileType);
+			fileName = getNameInDestination(fileName, fileType);
+			final String fullPathToMassive = folderPathToMassive + "/" + fileName;
+			log.info("Output file in Massive: " + fullPathToMassive);
+			massiveFileIndex.setUnknownSize(folderPathToMassive, fileName);
+			journalFileStarted(fullPathToMassive, offset);
+			final OutputStream outputStreamInMassive = openOutputStreamToMassive(ftpMassive, fullPathToMassive,
+					offset);
+			if (outputStreamInMassive == null) {
+				FTPUtils.showServerReply(ftpMassive);
+				throw new IOException(
+						"Error trying to create output stream to Massive: " + ftpMassive.getReplyString());
+			}
+			final StreamDigester digester = getStreamDigester(fileName, offset);
+			final long t1 = System.nanoTime();
+			final OutputStream outputStream = getCompressedOutputStream(
+					getDigestedOutputStream(outputStreamInMassive, digester), fileType);
+			final long transferred;
+			try {
+				transferred = IOUtils.copyLarge(inputStream, outputStream);
+			} finally {
+				outputStream.close();
+			}
+			completeTransferToMassive(ftpMassive, fullPathToMassive);
+			metrics.operationSeconds.observeSince(t1, getMassiveHostName(), "stream");
+			final long sizeUploaded = getUploadedSize(fullPathToMassive, offset + transferred, outputStream);
+			massiveFileIndex.setSize(folderPathToMassive, fileName, sizeUploaded);
+			journalFileDone(fullPathToMassive, sizeUploaded,
+					addChecksum(getDatasetFolderPath(dataset), fileType.name() + "/" + fileName, digester));
+			brokenConnection = false;
+			return transferred;
+		} finally {
+			if (brokenConnection) {
+				massivePool.invalidateClient(ftpMassive);
+			} else {
+				massivePool.releaseClient(ftpMassive);
+			}
 		}
-		return sizeTransferred;
 	}
 
 	private boolean isLocalFile(String path) {
 		return new File(path).exists();
 	}
 
+	/**
+	 * Reads the remote paths file line by line, adding the paths to their
+	 * {@link Dataset}s, so that files with millions of paths are read in linear
+	 * time without having all their lines in memory
+	 * 
+	 * @param remotePathsFile
+	 * @throws IOException
+	 */
 	private void processRemotePaths(File remotePathsFile) throws IOException {
-		final List<String> readAllLines = Files.readAllLines(Paths.get(remotePathsFile.toURI()));
+		final long t1 = System.currentTimeMillis();
 		FileType currentFileType = null;
-		String currentDataSet = null;
-		for (String line : readAllLines) {
-			line = line.trim();
-			if (isPath(line)) {
-				String fileName = currentFileType.getDefaultFileName();
-				String path = line;
-				if (line.contains("\t")) {
-					final String[] split = line.split("\t");
-					path = split[0];
-					fileName = split[1];
-					final String keywordToTranslate = getKeywordToTranslate(fileName);
-					if (keywordToTranslate != null) {
-						final String newName = fileName.replace(keywordToTranslate,
-								keywordTranslations.get(keywordToTranslate));
-						log.info("File named as " + fileName + " now is mapped to " + newName);
-						fileName = newName;
-					}
-				}
-				if (fileName == null) {
-					// it is because it is a wild card
-					// take all in the transfer
+		Dataset currentDataset = null;
+		int numLines = 0;
+		int numPaths = 0;
+		final BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(remotePathsFile), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				numLines++;
+				line = line.trim();
+				if ("".equals(line)) {
+					continue;
 				}
-				// if the name is like dtaselect-filter.txt or census-out.txt or so
-				if (isGenericName(fileName)) {
-					final String fileName2 = getFileNameFromIP2ServerPath(line);
-					if (fileName2 != null) {
-						fileName = fileName2;
+				if (isPath(line)) {
+					if (currentDataset == null) {
+						throw new IllegalArgumentException(
+								"Dataset name not found. Did you forget to add a line as: 'DATASET	dataset_name'? ");
 					}
-				}
-				if (currentDataSet == null) {
-					throw new IllegalArgumentException(
-							"Dataset name not found. Did you forget to add a line as: 'DATASET	dataset_name'? ");
-				}
-				final Dataset currentDataset = datasetsByName.get(currentDataSet);
-				currentDataset.addRemoteOutputFileName(path, fileName);
-				currentDataset.addPath(currentFileType, path);
-			} else if (FileType.getbyDescription(line) != null) {
-				currentFileType = FileType.getbyDescription(line);
-			} else {
-				if (line.startsWith(DATASET)) {
-					currentDataSet = line.substring(DATASET.length() + 1).trim();
-					if (!datasetsByName.containsKey(currentDataSet)) {
-						datasetsByName.put(currentDataSet, new Dataset(currentDataSet));
+					if (currentFileType == null) {
+						throw new IllegalArgumentException("File type not found before line " + numLines + " of "
+								+ remotePathsFile.getAbsolutePath());
+					}
+					String fileName = currentFileType.getDefaultFileName();
+					String path = line;
+					final int tabIndex = line.indexOf('\t');
+					if (tabIndex >= 0) {
+						path = line.substring(0, tabIndex);
+						final int nextTabIndex = line.indexOf('\t', tabIndex + 1);
+						fileName = nextTabIndex >= 0 ? line.substring(tabIndex + 1, nextTabIndex)
+								: line.substring(tabIndex + 1);
+						final String keywordToTranslate = getKeywordToTranslate(fileName);
+						if (keywordToTranslate != null) {
+							final String newName = fileName.replace(keywordToTranslate,
+									keywordTranslations.get(keywordToTranslate));
+							log.debug("File named as " + fileName + " now is mapped to " + newName);
+							fileName = newName;
+						}
+					}
+					// if fileName is null it is because it is a wild card, and
+					// all the files are taken in the transfer
+
+					// if the name is like dtaselect-filter.txt or census-out.txt or so
+					if (isGenericName(fileName)) {
+						final String fileName2 = getFileNameFromIP2ServerPath(path);
+						if (fileName2 != null) {
+							fileName = fileName2;
+						}
+					}
+					currentDataset.addRemoteOutputFileName(path, fileName);
+					if (currentDataset.addPath(currentFileType, path)) {
+						numPaths++;
+					}
+				} else if (FileType.getbyDescription(line) != null) {
+					currentFileType = FileType.getbyDescription(line);
+				} else if (line.startsWith(DATASET)) {
+					final String datasetName = line.substring(DATASET.length()).trim();
+					currentDataset = datasetsByName.get(datasetName);
+					if (currentDataset == null) {
+						currentDataset = new Dataset(datasetName);
+						datasetsByName.put(datasetName, currentDataset);
 					}
 				}
 			}
+		} finally {
+			reader.close();
+		}
+		for (final Dataset dataset : datasetsByName.values()) {
+			if (dataset.getNumDuplicatedPaths() > 0) {
+				log.info(dataset.getNumDuplicatedPaths() + " duplicated paths ignored in dataset "
+						+ dataset.getName());
+			}
 		}
+		log.info(numPaths + " paths in " + datasetsByName.size() + " datasets read from " + numLines + " lines of "
+				+ remotePathsFile.getAbsolutePath() + " in "
+				+ DatesUtil.getDescriptiveTimeFromMillisecs(System.currentTimeMillis() - t1));
 	}
 
 	/**
@@ -286,9 +1519,7 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 		// B9_X5628_UZ_Sup_2019_02_11_11_242951
 		final String crudeFileName = FilenameUtils.getBaseName(folder.getAbsolutePath());
 
-		final String pattern = "(.+)_\\d\\d\\d\\d_\\d\\d_.*";
-		final Pattern compile = Pattern.compile(pattern);
-		final Matcher matcher = compile.matcher(crudeFileName);
+		final Matcher matcher = IP2_FOLDER_DATE_PATTERN.matcher(crudeFileName);
 		if (matcher.find()) {
 			String ret = matcher.group(1);
 			if (extension != null && !"".equals(extension)) {
@@ -313,6 +1544,21 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 		return false;
 	}
 
+	/**
+	 * 
+	 * @param fileName
+	 * @return the file name with its keyword translated, if it has one
+	 */
+	protected String translateFileName(String fileName) {
+		final String keywordToTranslate = getKeywordToTranslate(fileName);
+		if (keywordToTranslate == null) {
+			return fileName;
+		}
+		final String newName = fileName.replace(keywordToTranslate, keywordTranslations.get(keywordToTranslate));
+		log.info("File named as " + fileName + " now is mapped to " + newName);
+		return newName;
+	}
+
 	protected String getKeywordToTranslate(String fileName) {
 		for (final String keyword : keywordTranslations.keySet()) {
 			if (fileName.contains(keyword)) {
@@ -332,6 +1578,9 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 			return true;
 		} else {
 			// TODO add support for windows paths
+			if (line.length() < 2) {
+				return false;
+			}
 			final char firstLetter = line.charAt(0);
 			if ((firstLetter >= 'a' && firstLetter <= 'z') || (firstLetter >= 'A' && firstLetter <= 'Z')) {
 				if (line.charAt(1) == ':') {
@@ -343,30 +1592,18 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 	}
 
 	public long transferFile(String fullPathToIP2, String outputFileName, FileType fileType, Dataset dataset) {
-		Session sshIP2 = null;
+		ChannelSftp sftpIP2 = null;
+		boolean brokenChannel = false;
+		final FTPClientPool massivePool = getMassiveClientPool();
+		FTPClient ftpMassive = null;
 		long sizeTransferred = 0l;
 		try {
-			sshIP2 = loginToIP2();
-			FTPClient ftpMassive = null;
-			String folderPathToMassive = dataset.getName() + "/" + fileType.name();
-			try {
-				ftpMassive = loginToMassive();
+			sftpIP2 = getIP2ChannelPool().borrowChannel();
+			ftpMassive = massivePool.borrowClient();
+			final String folderPathToMassive = getFolderPathToMassive(dataset, fileType);
+			log.info("Transferring file " + fullPathToIP2);
+			createFullPathInRemote(ftpMassive, folderPathToMassive);
 
-				if (submissionName != null && !"".equals(submissionName)) {
-					folderPathToMassive = "/" + submissionName + "/" + folderPathToMassive;
-				}
-				log.info("Transferring file " + fullPathToIP2);
-				createFullPathInRemote(ftpMassive, folderPathToMassive);
-			} catch (final Exception e) {
-				e.printStackTrace();
-				throw e;
-			} finally {
-				if (ftpMassive != null) {
-					ftpMassive.logout();
-					ftpMassive.disconnect();
-					FTPUtils.showServerReply(ftpMassive);
-				}
-			}
 			if (outputFileName == null || "".equals(FilenameUtils.getExtension(fullPathToIP2))) {
 				// fullPathToIP2 points to a set of files, such as:
 				// path/to/files/*.raw
@@ -377,16 +1614,16 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 				}
 				final List<LsEntry> ftpFilesInIP2 = new ArrayList<LsEntry>();
 
-				final boolean exist = FTPUtils.exist(sshIP2, fullPathToIP2);
+				final boolean exist = SftpUtil.exist(sftpIP2, fullPathToIP2);
 				if (exist) {
-					final LsEntry lsEntry = FTPUtils.getFileEntry(sshIP2, fullPathToIP2);
+					final LsEntry lsEntry = SftpUtil.getFileEntry(sftpIP2, fullPathToIP2);
 					ftpFilesInIP2.add(lsEntry);
 				} else {
 
 					if ("".equals(extension)) {
 						extension = fileType.getExtension();
 					}
-					ftpFilesInIP2.addAll(FTPUtils.getFilesInFolderByExtension(sshIP2, pathToFolderInIP2, extension));
+					ftpFilesInIP2.addAll(SftpUtil.getFilesInFolderByExtension(sftpIP2, pathToFolderInIP2, extension));
 				}
 
 				// sort ftpFilesInIP2 by name
@@ -420,15 +1657,20 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 							log.info("File named as " + fileName + " now is mapped to " + newName);
 							fileName = newName;
 						}
-						progressMonitor.setSuffix("(" + fileName + ") ");
+						fileName = getNameInDestination(fileName, fileType);
+						getProgressMonitor().setSuffix("(" + fileName + ") ");
 
 						final long sizeInIP2 = ftpFileInIP2.getAttrs().getSize();
 						final String fullPathToMassive = folderPathToMassive + "/" + fileName;
 						long sizeInMassive = 0;
 						try {
-							ftpMassive = loginToMassive();
-							ftpMassive.setFileType(FTP.BINARY_FILE_TYPE);
-							sizeInMassive = FTPUtils.getSize(ftpMassive, fullPathToMassive);
+							if (ftpMassive == null) {
+								ftpMassive = massivePool.borrowClient();
+							}
+							sizeInMassive = getSizeInMassive(ftpMassive, folderPathToMassive, fileName, sizeInIP2);
+							if (isCompressed(fileType)) {
+								sizeInMassive = getSizeOfCompressedFile(fullPathToMassive, sizeInIP2, sizeInMassive);
+							}
 							if (sizeInMassive > -1) {
 								if (sizeInMassive == sizeInIP2) {
 									log.info("File  '" + FilenameUtils.getName(fullPathToIP2)
@@ -436,6 +1678,7 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 											+ FileUtils.getDescriptiveSizeFromBytes(sizeInIP2)
 											+ ". It will be skipped");
 									sizeTransferred += sizeInIP2;
+									metrics.files.inc(getMetricLabels(FILE_SKIPPED));
 									continue;
 								} else if (sizeInMassive > sizeInIP2) {
 									log.info("File '" + FilenameUtils.getName(fullPathToIP2) + "' is bigger in MassIVE:"
@@ -449,118 +1692,223 @@ public class MultipleProjectIP2ToMassive extends IP2ToMassive {
 											+ FileUtils.getDescriptiveSizeFromBytes(sizeInIP2 - sizeInMassive));
 								}
 							}
+							final long offset = getResumeOffset(sizeInIP2, sizeInMassive);
 							log.info("Output file in Massive: " + fullPathToMassive);
 
-							final OutputStream outputStreamInMassive = ftpMassive.storeFileStream(fullPathToMassive);
+							massiveFileIndex.setUnknownSize(folderPathToMassive, fileName);
+							journalFileStarted(fullPathToMassive, offset);
+							final OutputStream outputStreamInMassive = openOutputStreamToMassive(ftpMassive,
+									fullPathToMassive, offset);
 							FTPUtils.showServerReply(ftpMassive);
 							if (outputStreamInMassive == null) {
-								throw new IllegalArgumentException("Error trying to create output stream to Massive");
+								throw new IOException("Error trying to create output stream to Massive: "
+										+ ftpMassive.getReplyString());
 							}
-							final ChannelSftp sftpChannel = FTPUtils.openSFTPChannel(sshIP2);
-
-							sftpChannel.get(fullPathToIP2, outputStreamInMassive, progressMonitor);
+							final StreamDigester digester = getStreamDigester(fileName, offset);
+							final long t1 = System.nanoTime();
+							final OutputStream outputStream = getCompressedOutputStream(getDigestedOutputStream(
+									getPipelinedOutputStream(outputStreamInMassive, fileName), digester), fileType);
+							try {
+								getFromIP2(sftpIP2, fullPathToIP2, sizeInIP2, outputStream, offset);
+							} finally {
+								outputStream.close();
+							}
+							completeTransferToMassive(ftpMassive, fullPathToMassive);
+							metrics.operationSeconds.observeSince(t1, getMassiveHostName(), "stream");
+							metrics.files.inc(getMetricLabels(FILE_DONE));
+							final long sizeUploaded = getUploadedSize(fullPathToMassive, sizeInIP2, outputStream);
+							massiveFileIndex.setSize(folderPathToMassive, fileName, sizeUploaded);
+							journalFileDone(fullPathToMassive, sizeUploaded,
+									addChecksum(getDatasetFolderPath(dataset), fileType.name() + "/" + fileName, digester));
 							sizeTransferred += sizeInIP2;
-							sftpChannel.exit();
-							outputStreamInMassive.close();
 							log.info(
 									"Transfer of " + FileUtils.getDescriptiveSizeFromBytes(sizeTransferred) + " done.");
 							if (sizeTransferred != sizeInIP2 && sizeInIP2 > -1) {
 								log.warn(FileUtils.getDescriptiveSizeFromBytes(sizeTransferred - sizeInIP2));
 							}
 						} finally {
-							ftpMassive.logout();
-							ftpMassive.disconnect();
-							FTPUtils.showServerReply(ftpMassive);
 							counter++;
 						}
 
 					} catch (final IOException e) {
-						e.printStackTrace();
-						log.warn(e.getMessage());
-
+						handleTransferError(e);
+						massivePool.invalidateClient(ftpMassive);
+						ftpMassive = null;
 					} catch (final SftpException e) {
-						e.printStackTrace();
-						log.warn(e.getMessage());
+						handleTransferError(e);
+						brokenChannel = true;
+						massivePool.invalidateClient(ftpMassive);
+						ftpMassive = null;
 					}
 
 				}
 			} else {
-				final String fileName = FilenameUtils.getName(outputFileName);
-				progressMonitor.setSuffix("(" + fileName + ") ");
+				final String fileName = getNameInDestination(FilenameUtils.getName(outputFileName), fileType);
+				getProgressMonitor().setSuffix("(" + fileName + ") ");
 				try {
-					final long sizeInIP2 = FTPUtils.getSize(sshIP2, fullPathToIP2);
-					long sizeInMassive = 0;
-					try {
-						ftpMassive = loginToMassive();
-						final String fullPathToMassive = folderPathToMassive + "/" + fileName;
-						sizeInMassive = FTPUtils.getSize(ftpMassive, fullPathToMassive);
-
-						if (sizeInIP2 <= sizeInMassive) {
-							log.info("File '" + fullPathToIP2 + "' found in MassIVE with  "
-									+ FileUtils.getDescriptiveSizeFromBytes(sizeInIP2) + ". It will be skipped");
-							return sizeInMassive;
-						} else if (sizeInMassive > 0) {
-							log.info("File '" + fullPathToIP2 + "' found in MassIVE but sizes are different: IP2:"
-									+ sizeInIP2 + " Massive:" + sizeInMassive + " diff: "
-									+ (sizeInIP2 - sizeInMassive));
-						}
+					final long sizeInIP2 = SftpUtil.getSize(sftpIP2, fullPathToIP2);
+					final String fullPathToMassive = folderPathToMassive + "/" + fileName;
+					long sizeInMassive = getSizeInMassive(ftpMassive, folderPathToMassive, fileName, sizeInIP2);
+					if (isCompressed(fileType)) {
+						sizeInMassive = getSizeOfCompressedFile(fullPathToMassive, sizeInIP2, sizeInMassive);
+					}
 
-						final String outputFullPath = folderPathToMassive + "/" + fileName;
-						log.info("Output file in Massive: " + outputFullPath);
-						final OutputStream outputStreamInMassive = ftpMassive.storeFileStream(outputFullPath);
-						FTPUtils.showServerReply(ftpMassive);
-						if (outputStreamInMassive == null) {
-							throw new IllegalArgumentException("Error trying to create output stream to Massive");
-						}
+					if (sizeInIP2 <= sizeInMassive) {
+						log.info("File '" + fullPathToIP2 + "' found in MassIVE with  "
+								+ FileUtils.getDescriptiveSizeFromBytes(sizeInIP2) + ". It will be skipped");
+						metrics.files.inc(getMetricLabels(FILE_SKIPPED));
+						return sizeInMassive;
+					} else if (sizeInMassive > 0) {
+						log.info("File '" + fullPathToIP2 + "' found in MassIVE but sizes are different: IP2:"
+								+ sizeInIP2 + " Massive:" + sizeInMassive + " diff: " + (sizeInIP2 - sizeInMassive));
+					}
 
-						final ChannelSftp sftpChannel = FTPUtils.openSFTPChannel(sshIP2);
-						sftpChannel.get(fullPathToIP2, outputStreamInMassive, progressMonitor);
-						sftpChannel.exit();
-						outputStreamInMassive.close();
-						sizeTransferred += sizeInIP2;
+					final long offset = getResumeOffset(sizeInIP2, sizeInMassive);
+					log.info("Output file in Massive: " + fullPathToMassive);
+					massiveFileIndex.setUnknownSize(folderPathToMassive, fileName);
+					journalFileStarted(fullPathToMassive, offset);
+					final OutputStream outputStreamInMassive = openOutputStreamToMassive(ftpMassive, fullPathToMassive,
+							offset);
+					FTPUtils.showServerReply(ftpMassive);
+					if (outputStreamInMassive == null) {
+						throw new IOException(
+								"Error trying to create output stream to Massive: " + ftpMassive.getReplyString());
+					}
+					final StreamDigester digester = getStreamDigester(fileName, offset);
+					final long t1 = System.nanoTime();
+					final OutputStream outputStream = getCompressedOutputStream(getDigestedOutputStream(
+							getPipelinedOutputStream(outputStreamInMassive, fileName), digester), fileType);
+					try {
+						getFromIP2(sftpIP2, fullPathToIP2, sizeInIP2, outputStream, offset);
 					} finally {
-						ftpMassive.logout();
-						ftpMassive.disconnect();
-						FTPUtils.showServerReply(ftpMassive);
+						outputStream.close();
 					}
+					completeTransferToMassive(ftpMassive, fullPathToMassive);
+					metrics.operationSeconds.observeSince(t1, getMassiveHostName(), "stream");
+					metrics.files.inc(getMetricLabels(FILE_DONE));
+					final long sizeUploaded = getUploadedSize(fullPathToMassive, sizeInIP2, outputStream);
+					massiveFileIndex.setSize(folderPathToMassive, fileName, sizeUploaded);
+					journalFileDone(fullPathToMassive, sizeUploaded,
+							addChecksum(getDatasetFolderPath(dataset), fileType.name() + "/" + fileName, digester));
+					sizeTransferred += sizeInIP2;
 
 				} catch (final IOException e) {
-					e.printStackTrace();
-					log.warn(e.getMessage());
-				} catch (final JSchException e) {
-					e.printStackTrace();
-					log.warn(e.getMessage());
+					handleTransferError(e);
+					massivePool.invalidateClient(ftpMassive);
+					ftpMassive = null;
 				} catch (final SftpException e) {
-					e.printStackTrace();
-					log.warn(e.getMessage());
+					handleTransferError(e);
+					brokenChannel = true;
+					massivePool.invalidateClient(ftpMassive);
+					ftpMassive = null;
 				}
 			}
-		} catch (final SocketException e2) {
-			e2.printStackTrace();
-			log.warn(e2.getMessage());
 		} catch (final IOException e2) {
-			e2.printStackTrace();
-			log.warn(e2.getMessage());
+			handleTransferError(e2);
+			massivePool.invalidateClient(ftpMassive);
+			ftpMassive = null;
 		} catch (final JSchException e1) {
-			e1.printStackTrace();
-			log.warn(e1.getMessage());
+			handleTransferError(e1);
+			brokenChannel = true;
 		} catch (final SftpException e1) {
-			e1.printStackTrace();
-			log.warn(e1.getMessage());
+			handleTransferError(e1);
 		} finally {
-
-			if (sshIP2 != null) {
-				sshIP2.disconnect();
+			massivePool.releaseClient(ftpMassive);
+			if (sftpIP2 != null) {
+				if (brokenChannel) {
+					getIP2ChannelPool().invalidateChannel(sftpIP2);
+				} else {
+					getIP2ChannelPool().releaseChannel(sftpIP2);
+				}
 			}
-
 		}
 		return sizeTransferred;
 	}
 
-	protected boolean createFullPathInRemote(FTPClient ftpOut, String remotePath) throws IOException {
+	/**
+	 * Creates a folder in MassIVE and its parents, if they are not known to exist
+	 * already
+	 * 
+	 * @param ftpOut
+	 * @param remotePath
+	 * @return true if the folder was created or false if it already existed
+	 * @throws IOException if the folder cannot be created
+	 */
+	protected boolean createFullPathInRemote(final FTPClient ftpOut, String remotePath) throws IOException {
+
+		return massiveFolderCache.getOrCreate(remotePath, new RemoteFolderCache.FolderCreator<Boolean>() {
+
+			@Override
+			public Boolean createFolder(String path) throws IOException {
+				final String parentPath = FilenameUtils.getFullPathNoEndSeparator(path);
+				if (!"".equals(parentPath) && !"/".equals(parentPath)) {
+					createFullPathInRemote(ftpOut, parentPath);
+				}
+				final long t1 = System.nanoTime();
+				try {
+					if (ftpOut.makeDirectory(path)) {
+						return true;
+					}
+					final String reply = ftpOut.getReplyString();
+					// most servers don't say that it is because it exists
+					if (existsFolder(ftpOut, path)) {
+						return false;
+					}
+					throw new IOException("Error creating folder '" + path + "' in " + getDestinationName() + ": "
+							+ (reply != null ? reply.trim() : ""));
+				} finally {
+					metrics.operationSeconds.observeSince(t1, getMassiveHostName(), "mkdir");
+				}
+			}
+		});
+
+	}
 
-		return FTPUtils.makeDirectories(ftpOut, remotePath, System.out);
+	private boolean existsFolder(FTPClient ftpOut, String path) throws IOException {
+		// the connection is going to be reused, so we go back to the current working
+		// directory
+		final String workingDirectory = ftpOut.printWorkingDirectory();
+		final boolean exists = ftpOut.changeWorkingDirectory(path);
+		if (exists && workingDirectory != null) {
+			ftpOut.changeWorkingDirectory(workingDirectory);
+		}
+		return exists;
+	}
 
+	/**
+	 * Lists the submission folder in MassIVE once, so that the folders that
+	 * already exist are not created again
+	 */
+	protected void warmRemoteFolderCache() {
+		String rootFolder = "";
+		if (submissionName != null && !"".equals(submissionName)) {
+			rootFolder = "/" + submissionName;
+		}
+		final FTPClientPool massivePool = getMassiveClientPool();
+		FTPClient ftpMassive = null;
+		try {
+			ftpMassive = massivePool.borrowClient();
+			final FTPFile[] folders = "".equals(rootFolder) ? ftpMassive.listDirectories()
+					: ftpMassive.listDirectories(rootFolder);
+			if (folders != null && folders.length > 0) {
+				if (!"".equals(rootFolder)) {
+					massiveFolderCache.addExistingFolder(rootFolder, true);
+				}
+				for (final FTPFile folder : folders) {
+					if (".".equals(folder.getName()) || "..".equals(folder.getName())) {
+						continue;
+					}
+					final String folderPath = "".equals(rootFolder) ? folder.getName()
+							: rootFolder + "/" + folder.getName();
+					massiveFolderCache.addExistingFolder(folderPath, true);
+				}
+			}
+			massivePool.releaseClient(ftpMassive);
+			log.info(massiveFolderCache.size() + " existing folders found in MassIVE");
+		} catch (final IOException e) {
+			log.warn("Error listing existing folders in MassIVE: " + e.getMessage());
+			massivePool.invalidateClient(ftpMassive);
+		}
 	}
 
 }
@@ -0,0 +1,535 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Vector;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import edu.scripps.yates.utilities.files.FileUtils;
+
+/**
+ * It transfers the datasets to a SFTP site, for the repositories that only
+ * accept SFTP. The site is configured in the properties file with the
+ * sftp_server_* properties.<br>
+ * The files are written with streams that send each write without waiting for
+ * the acknowledgment of the previous ones (see
+ * {@link SftpUtil#openOutputStream(ChannelSftp, String, long)}), from a
+ * {@link TransferPipeline} so that the reads from IP2 and the writes to the
+ * SFTP site overlap. As with MassIVE, the folders are created only once, each
+ * folder is listed only once to know the files that are already there, and
+ * the files that are smaller than in IP2 are resumed.
+ *
+ * @author salvador
+ *
+ */
+public class MultipleProjectIP2ToSftp extends MultipleProjectIP2ToMassive {
+	private final static Logger log = Logger.getLogger(MultipleProjectIP2ToSftp.class);
+	private final String hostName;
+	private final String userName;
+	private final String password;
+	private final int port;
+	private final String basePath;
+	private final RemoteFolderCache<Boolean> sftpFolderCache = new RemoteFolderCache<Boolean>();
+	private final RemoteFileIndex sftpFileIndex = new RemoteFileIndex();
+	private SftpChannelPool sftpChannelPool;
+
+	public MultipleProjectIP2ToSftp(MySftpProgressMonitor progressMonitor, File propertiesFile,
+			Map<String, String> keywordTranslations, File remotePathsFile) throws IOException {
+		super(progressMonitor, propertiesFile, keywordTranslations, remotePathsFile);
+		final Properties properties = getProperties(propertiesFile);
+		final String hostName = properties.getProperty(SFTP_SERVER_URL);
+		if (hostName == null || "".equals(hostName.trim())) {
+			throw new IllegalArgumentException(SFTP_SERVER_URL + " property is needed to upload to a SFTP site");
+		}
+		this.hostName = hostName.trim();
+		userName = properties.getProperty(SFTP_SERVER_USER_NAME);
+		password = properties.getProperty(SFTP_SERVER_PASSWORD);
+		port = getIntProperty(SFTP_SERVER_PORT, 22);
+		String basePath = properties.getProperty(SFTP_SERVER_BASE_PATH);
+		if (basePath != null) {
+			basePath = basePath.trim();
+			while (basePath.length() > 1 && basePath.endsWith("/")) {
+				basePath = basePath.substring(0, basePath.length() - 1);
+			}
+		}
+		this.basePath = basePath == null || "".equals(basePath) ? null : basePath;
+	}
+
+	/**
+	 * Gets the pool of SFTP channels to the SFTP site that is shared by all the
+	 * transfers of this run
+	 *
+	 * @return
+	 */
+	protected synchronized SftpChannelPool getSftpChannelPool() {
+		if (sftpChannelPool == null) {
+			final int maxSessions = getIntProperty(SFTP_MAX_SESSIONS, 4);
+			final int channelsPerSession = getIntProperty(SFTP_CHANNELS_PER_SESSION, 4);
+			final int maxIdleSeconds = getIntProperty(SFTP_MAX_IDLE_SECONDS, 60);
+			sftpChannelPool = SftpChannelPool.getInstance(hostName, userName, password, port, maxSessions,
+					channelsPerSession, maxIdleSeconds * 1000l);
+		}
+		return sftpChannelPool;
+	}
+
+	private ChannelSftp borrowSftpChannel() throws IOException {
+		try {
+			return getSftpChannelPool().borrowChannel();
+		} catch (final JSchException e) {
+			throw new IOException("Cannot connect to " + getDestinationName() + ": " + e.getMessage(), e);
+		}
+	}
+
+	private void releaseSftpChannel(ChannelSftp channel, boolean brokenChannel) {
+		if (brokenChannel) {
+			getSftpChannelPool().invalidateChannel(channel);
+		} else {
+			getSftpChannelPool().releaseChannel(channel);
+		}
+	}
+
+	@Override
+	protected String getDestinationName() {
+		return "SFTP (" + hostName + ")";
+	}
+
+	@Override
+	protected String getDestinationId() {
+		return "sftp_" + hostName + "_" + port + (basePath != null ? basePath : "");
+	}
+
+	/**
+	 * The dataset folders are under the base path of the SFTP site if there is
+	 * one, or under the home folder of the user otherwise
+	 */
+	@Override
+	protected String getDatasetFolderPath(Dataset dataset) {
+		final String folderPath = super.getDatasetFolderPath(dataset);
+		if (basePath == null) {
+			return folderPath;
+		}
+		return basePath + (folderPath.startsWith("/") ? "" : "/") + folderPath;
+	}
+
+	@Override
+	public long transferFile(String fullPathToIP2, String outputFileName, FileType fileType, Dataset dataset) {
+		ChannelSftp sftpIP2 = null;
+		boolean brokenChannel = false;
+		long sizeTransferred = 0l;
+		try {
+			sftpIP2 = getIP2ChannelPool().borrowChannel();
+			log.info("Transferring file " + fullPathToIP2);
+			if (outputFileName == null || "".equals(FilenameUtils.getExtension(fullPathToIP2))) {
+				// fullPathToIP2 points to a set of files, such as:
+				// path/to/files/*.raw
+				String pathToFolderInIP2 = FilenameUtils.getFullPath(fullPathToIP2);
+				String extension = FilenameUtils.getExtension(fullPathToIP2);
+				if ("".equals(extension)) {
+					pathToFolderInIP2 = fullPathToIP2;
+					extension = fileType.getExtension();
+				}
+				if (!pathToFolderInIP2.endsWith("/")) {
+					pathToFolderInIP2 = pathToFolderInIP2 + "/";
+				}
+				final List<LsEntry> ftpFilesInIP2 = new ArrayList<LsEntry>();
+				if (SftpUtil.exist(sftpIP2, fullPathToIP2)) {
+					ftpFilesInIP2.add(SftpUtil.getFileEntry(sftpIP2, fullPathToIP2));
+				} else {
+					ftpFilesInIP2.addAll(SftpUtil.getFilesInFolderByExtension(sftpIP2, pathToFolderInIP2, extension));
+				}
+				// sort ftpFilesInIP2 by name, as MultipleProjectIP2ToMassive
+				// does to number the output files
+				Collections.sort(ftpFilesInIP2, new Comparator<LsEntry>() {
+
+					@Override
+					public int compare(LsEntry o1, LsEntry o2) {
+						return o1.getFilename().compareTo(o2.getFilename());
+					}
+				});
+				int counter = 1;
+				for (final LsEntry ftpFileInIP2 : ftpFilesInIP2) {
+					String fileName = ftpFileInIP2.getFilename();
+					if (outputFileName != null) {
+						fileName = outputFileName + "_" + counter;
+						if ("".equals(FilenameUtils.getExtension(fileName))) {
+							fileName = fileName + "." + extension;
+						}
+					}
+					counter++;
+					sizeTransferred += transferFileInIP2(sftpIP2, pathToFolderInIP2 + ftpFileInIP2.getFilename(),
+							translateFileName(fileName), ftpFileInIP2.getAttrs().getSize(), fileType, dataset);
+				}
+			} else {
+				sizeTransferred += transferFileInIP2(sftpIP2, fullPathToIP2, FilenameUtils.getName(outputFileName),
+						SftpUtil.getSize(sftpIP2, fullPathToIP2), fileType, dataset);
+			}
+		} catch (final JSchException e) {
+			handleTransferError(e);
+			brokenChannel = true;
+		} catch (final SftpException e) {
+			handleTransferError(e);
+			brokenChannel = true;
+		} finally {
+			if (sftpIP2 != null) {
+				if (brokenChannel) {
+					getIP2ChannelPool().invalidateChannel(sftpIP2);
+				} else {
+					getIP2ChannelPool().releaseChannel(sftpIP2);
+				}
+			}
+		}
+		return sizeTransferred;
+	}
+
+	private long transferFileInIP2(final ChannelSftp sftpIP2, final String fullPathToIP2, String fileName,
+			final long sizeInIP2, FileType fileType, Dataset dataset) throws SftpException {
+		return transferFileFromSource(new FileSource() {
+
+			@Override
+			public void writeTo(OutputStream outputStream, long offset) throws IOException, SftpException {
+				getFromIP2(sftpIP2, fullPathToIP2, sizeInIP2, outputStream, offset);
+			}
+		}, fullPathToIP2, fileName, sizeInIP2, fileType, dataset);
+	}
+
+	@Override
+	protected long transferLocalFile(final String fullPathLocalFile, String outputFileName, FileType fileType,
+			Dataset dataset) {
+		final String fileName = FilenameUtils
+				.getName(outputFileName != null ? outputFileName : fullPathLocalFile);
+		log.info("Transferring file " + fullPathLocalFile);
+		try {
+			return transferFileFromSource(new FileSource() {
+
+				@Override
+				public void writeTo(OutputStream outputStream, long offset) throws IOException {
+					final FileInputStream fileInputStream = new FileInputStream(fullPathLocalFile);
+					try {
+						fileInputStream.getChannel().position(offset);
+						IOUtils.copyLarge(fileInputStream, outputStream);
+					} finally {
+						fileInputStream.close();
+					}
+				}
+			}, fullPathLocalFile, fileName, new File(fullPathLocalFile).length(), fileType, dataset);
+		} catch (final SftpException e) {
+			handleTransferError(e);
+		}
+		return 0l;
+	}
+
+	/**
+	 * Uploads a file to the SFTP site, unless it is already there with the same
+	 * size, resuming it if it is there with a lower size
+	 *
+	 * @param source
+	 * @param fullPathToSource
+	 * @param fileName         name of the file in the SFTP site
+	 * @param sizeInSource
+	 * @param fileType
+	 * @param dataset
+	 * @return the size of the file if it is in the SFTP site
+	 * @throws SftpException if the file could not be read from IP2
+	 */
+	private long transferFileFromSource(FileSource source, String fullPathToSource, String fileName,
+			long sizeInSource, FileType fileType, Dataset dataset) throws SftpException {
+		getProgressMonitor().setSuffix("(" + fileName + ") ");
+		try {
+			final long sizeInSftp = getSizeInDestination(fullPathToSource, fileName, fileType, dataset,
+					sizeInSource);
+			if (sizeInSftp >= sizeInSource) {
+				log.info("File '" + fullPathToSource + "' found in " + getDestinationName() + " with "
+						+ FileUtils.getDescriptiveSizeFromBytes(sizeInSftp) + ". It will be skipped");
+				metrics.files.inc(getMetricLabels(FILE_SKIPPED));
+				return sizeInSource;
+			} else if (sizeInSftp > 0) {
+				log.info("File '" + fullPathToSource + "' found in " + getDestinationName()
+						+ " but sizes are different: source:" + sizeInSource + " SFTP:" + sizeInSftp + " diff: "
+						+ (sizeInSource - sizeInSftp));
+			}
+			final long offset = getResumeOffset(sizeInSource, sizeInSftp);
+			upload(source, fileName, fileType, dataset, offset);
+			metrics.files.inc(getMetricLabels(FILE_DONE));
+			return sizeInSource;
+		} catch (final IOException e) {
+			handleTransferError(e);
+			return 0l;
+		}
+	}
+
+	/**
+	 * Gets the size of a file in the SFTP site, creating its folder if needed
+	 */
+	@Override
+	protected long getSizeInDestination(String fullPathToIP2, String fileName, FileType fileType, Dataset dataset,
+			long sizeInSource) throws IOException {
+		final ChannelSftp channel = borrowSftpChannel();
+		boolean brokenChannel = true;
+		try {
+			final String folderPath = getFolderPathToMassive(dataset, fileType);
+			createFullPathInSftp(channel, folderPath);
+			fileName = getNameInDestination(fileName, fileType);
+			final long sizeInJournal = getFileDoneSizeInJournal(folderPath + "/" + fileName);
+			if (sizeInJournal >= 0 && sizeInJournal == sizeInSource) {
+				brokenChannel = false;
+				return sizeInJournal;
+			}
+			final long t1 = System.nanoTime();
+			long size = sftpFileIndex.getSize(getFolderLister(channel), folderPath, fileName);
+			metrics.operationSeconds.observeSince(t1, hostName, "size_probe");
+			if (isCompressed(fileType)) {
+				size = getSizeOfCompressedFile(folderPath + "/" + fileName, sizeInSource, size);
+			}
+			brokenChannel = false;
+			return size;
+		} finally {
+			releaseSftpChannel(channel, brokenChannel);
+		}
+	}
+
+	@Override
+	protected long uploadToDestination(String fullPathToIP2, String fileName, FileType fileType, Dataset dataset,
+			final InputStream inputStream, long offset) throws IOException {
+		try {
+			return upload(new FileSource() {
+
+				@Override
+				public void writeTo(OutputStream outputStream, long offset) throws IOException {
+					IOUtils.copyLarge(inputStream, outputStream);
+				}
+			}, fileName, fileType, dataset, offset);
+		} catch (final SftpException e) {
+			// the input stream doesn't throw it
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Uploads a file to the SFTP site from offset, writing it from a background
+	 * thread while the source is read
+	 *
+	 * @param source
+	 * @param fileName
+	 * @param fileType
+	 * @param dataset
+	 * @param offset
+	 * @return the number of bytes uploaded, compressed if the file is compressed
+	 * @throws IOException   if the file could not be uploaded
+	 * @throws SftpException if the source could not be read from IP2
+	 */
+	private long upload(FileSource source, String fileName, FileType fileType, Dataset dataset, long offset)
+			throws IOException, SftpException {
+		final ChannelSftp channel = borrowSftpChannel();
+		boolean brokenChannel = true;
+		try {
+			final String folderPath = getFolderPathToMassive(dataset, fileType);
+			fileName = getNameInDestination(fileName, fileType);
+			final String fullPathToSftp = folderPath + "/" + fileName;
+			log.info("Output file in " + getDestinationName() + ": " + fullPathToSftp);
+			sftpFileIndex.setUnknownSize(folderPath, fileName);
+			journalFileStarted(fullPathToSftp, offset);
+			final OutputStream outputStreamInSftp;
+			try {
+				if (offset > 0) {
+					log.info("Resuming transfer of '" + fullPathToSftp + "' from "
+							+ FileUtils.getDescriptiveSizeFromBytes(offset));
+				}
+				outputStreamInSftp = SftpUtil.openOutputStream(channel, fullPathToSftp, offset);
+			} catch (final SftpException e) {
+				throw new IOException("Error trying to create output stream to " + getDestinationName() + ": "
+						+ e.getMessage(), e);
+			}
+			final String[] labels = getMetricLabels(null);
+			final CountingOutputStream countingOutputStream = new CountingOutputStream(
+					getControllerMeteredOutputStream(metrics.meter(outputStreamInSftp, labels[0], labels[1])));
+			final StreamDigester digester = getStreamDigester(fileName, offset);
+			final long t1 = System.nanoTime();
+			final OutputStream outputStream = getCompressedOutputStream(
+					getDigestedOutputStream(getPipelinedOutputStream(countingOutputStream, fileName), digester),
+					fileType);
+			try {
+				source.writeTo(outputStream, offset);
+			} finally {
+				outputStream.close();
+			}
+			brokenChannel = false;
+			metrics.operationSeconds.observeSince(t1, hostName, "stream");
+			final long transferred = countingOutputStream.getByteCount();
+			if (outputStream instanceof ParallelGzipOutputStream) {
+				getUploadedSize(fullPathToSftp, ((ParallelGzipOutputStream) outputStream).getUncompressedSize(),
+						outputStream);
+			}
+			sftpFileIndex.setSize(folderPath, fileName, offset + transferred);
+			journalFileDone(fullPathToSftp, offset + transferred,
+					addChecksum(getDatasetFolderPath(dataset), fileType.name() + "/" + fileName, digester));
+			return transferred;
+		} finally {
+			releaseSftpChannel(channel, brokenChannel);
+		}
+	}
+
+	@Override
+	protected String downloadChecksumManifest(String datasetFolderPath, String fileName) throws IOException {
+		final ChannelSftp channel = borrowSftpChannel();
+		boolean brokenChannel = true;
+		try {
+			final String fullPathToSftp = datasetFolderPath + "/" + fileName;
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			try {
+				channel.get(fullPathToSftp, outputStream);
+			} catch (final SftpException e) {
+				if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+					brokenChannel = false;
+					return null;
+				}
+				throw new IOException("Error downloading '" + fullPathToSftp + "': " + e.getMessage(), e);
+			}
+			brokenChannel = false;
+			return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			releaseSftpChannel(channel, brokenChannel);
+		}
+	}
+
+	@Override
+	protected void uploadChecksumManifest(String datasetFolderPath, String fileName, String content)
+			throws IOException {
+		final ChannelSftp channel = borrowSftpChannel();
+		boolean brokenChannel = true;
+		try {
+			createFullPathInSftp(channel, datasetFolderPath);
+			final String fullPathToSftp = datasetFolderPath + "/" + fileName;
+			try {
+				SftpUtil.upload(channel, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+						fullPathToSftp);
+			} catch (final SftpException e) {
+				throw new IOException("Error uploading '" + fullPathToSftp + "': " + e.getMessage(), e);
+			}
+			brokenChannel = false;
+		} finally {
+			releaseSftpChannel(channel, brokenChannel);
+		}
+	}
+
+	/**
+	 * Creates the folder and its parents in the SFTP site if they are not known
+	 * to exist yet
+	 *
+	 * @param channel
+	 * @param remotePath
+	 * @throws IOException
+	 */
+	protected void createFullPathInSftp(final ChannelSftp channel, String remotePath) throws IOException {
+		sftpFolderCache.getOrCreate(remotePath, new RemoteFolderCache.FolderCreator<Boolean>() {
+
+			@Override
+			public Boolean createFolder(String path) throws IOException {
+				final String parentPath = FilenameUtils.getFullPathNoEndSeparator(path);
+				if (!"".equals(parentPath) && !"/".equals(parentPath)) {
+					createFullPathInSftp(channel, parentPath);
+				}
+				final long t1 = System.nanoTime();
+				try {
+					return SftpUtil.makeDirectory(channel, path);
+				} catch (final SftpException e) {
+					throw new IOException("Error creating folder '" + path + "' in " + getDestinationName() + ": "
+							+ e.getMessage(), e);
+				} finally {
+					metrics.operationSeconds.observeSince(t1, hostName, "mkdir");
+				}
+			}
+		});
+	}
+
+	private RemoteFileIndex.FolderLister getFolderLister(final ChannelSftp channel) {
+		return new RemoteFileIndex.FolderLister() {
+
+			@Override
+			public Map<String, Long> listFiles(String folderPath) throws IOException {
+				try {
+					return SftpUtil.getFileSizesInFolder(channel, folderPath);
+				} catch (final SftpException e) {
+					throw new IOException("Error listing folder '" + folderPath + "' in " + getDestinationName()
+							+ ": " + e.getMessage(), e);
+				}
+			}
+
+			@Override
+			public long getSize(String fullPath) throws IOException {
+				try {
+					return SftpUtil.getSizeIfExists(channel, fullPath);
+				} catch (final SftpException e) {
+					throw new IOException("Error getting the size of '" + fullPath + "' in " + getDestinationName()
+							+ ": " + e.getMessage(), e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Lists the folder where the datasets are created once, so that the folders
+	 * that already exist are not created again
+	 */
+	@Override
+	protected void warmRemoteFolderCache() {
+		String rootFolder = basePath != null ? basePath : "";
+		if (submissionName != null && !"".equals(submissionName)) {
+			rootFolder = rootFolder + "/" + submissionName;
+		}
+		ChannelSftp channel = null;
+		try {
+			channel = borrowSftpChannel();
+			final Vector<LsEntry> entries = channel.ls("".equals(rootFolder) ? "." : rootFolder);
+			if (!"".equals(rootFolder)) {
+				sftpFolderCache.addExistingFolder(rootFolder, true);
+			}
+			for (final LsEntry entry : entries) {
+				if (!entry.getAttrs().isDir() || ".".equals(entry.getFilename())
+						|| "..".equals(entry.getFilename())) {
+					continue;
+				}
+				final String folderPath = "".equals(rootFolder) ? entry.getFilename()
+						: rootFolder + "/" + entry.getFilename();
+				sftpFolderCache.addExistingFolder(folderPath, true);
+			}
+			releaseSftpChannel(channel, false);
+			log.info(sftpFolderCache.size() + " existing folders found in " + getDestinationName());
+		} catch (final SftpException e) {
+			// the root folder doesn't exist yet
+			log.info("Error listing existing folders in " + getDestinationName() + ": " + e.getMessage());
+			releaseSftpChannel(channel, false);
+		} catch (final IOException e) {
+			log.warn("Error listing existing folders in " + getDestinationName() + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	protected synchronized void closeConnectionPools() {
+		super.closeConnectionPools();
+		if (sftpChannelPool != null) {
+			sftpChannelPool.close();
+			sftpChannelPool = null;
+		}
+	}
+}
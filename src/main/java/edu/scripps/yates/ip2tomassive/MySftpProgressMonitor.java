@@ -27,7 +27,7 @@ public class MySftpProgressMonitor implements SftpProgressMonitor {
 	}
 
 	@Override
-	public void init(int op, String src, String dest, long max) {
+	public synchronized void init(int op, String src, String dest, long max) {
 		counter.setTotal(max);
 
 	}
@@ -39,7 +39,7 @@ public class MySftpProgressMonitor implements SftpProgressMonitor {
 	}
 
 	@Override
-	public boolean count(long count) {
+	public synchronized boolean count(long count) {
 		counter.addCount(count);
 		String printIfNecessary = counter.printIfNecessary();
 		if (!"".equals(printIfNecessary)) {
@@ -52,7 +52,7 @@ public class MySftpProgressMonitor implements SftpProgressMonitor {
 		return true;
 	}
 
-	public void setSuffix(String suffix) {
+	public synchronized void setSuffix(String suffix) {
 		this.suffix = suffix;
 	}
 
@@ -0,0 +1,224 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that compresses what is written in gzip format, deflating
+ * blocks of {@link #BLOCK_SIZE} bytes in parallel in the threads of an
+ * executor, as pigz does.<br>
+ * Each block is deflated with the last 32 KB of the previous block as
+ * dictionary, and ended with a sync flush so that the blocks can be
+ * concatenated, so the result is a single gzip member that any gzip
+ * implementation can read, almost as small as if it was deflated
+ * sequentially. The blocks are written to the underlying stream in order, by
+ * the thread that writes to this stream, which only waits for the compression
+ * when there are more than the maximum number of blocks pending.
+ *
+ * @author salvador
+ *
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+	public static final int BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	/**
+	 * The same header as {@link java.util.zip.GZIPOutputStream}
+	 */
+	private static final byte[] HEADER = { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final int level;
+	private final int maxPendingBlocks;
+	private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final CRC32 crc = new CRC32();
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int length = 0;
+	private byte[] previousBlock;
+	private long uncompressedSize = 0l;
+	private long compressedSize = 0l;
+	private boolean closed = false;
+
+	/**
+	 *
+	 * @param out
+	 * @param executor         executor in which the blocks are deflated
+	 * @param level            compression level, from 1 to 9
+	 * @param maxPendingBlocks maximum number of blocks being deflated at the
+	 *                         same time, usually twice the number of threads
+	 *                         of the executor
+	 * @throws IOException
+	 */
+	public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int level, int maxPendingBlocks)
+			throws IOException {
+		this.out = out;
+		this.executor = executor;
+		this.level = level;
+		this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+		out.write(HEADER);
+		compressedSize += HEADER.length;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (len > 0) {
+			final int n = Math.min(len, BLOCK_SIZE - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+			if (length == BLOCK_SIZE) {
+				submitBlock(false);
+			}
+		}
+	}
+
+	/**
+	 * It doesn't flush the block being filled, because deflating it before it
+	 * is full would make the compression worse
+	 */
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void submitBlock(final boolean last) throws IOException {
+		crc.update(block, 0, length);
+		uncompressedSize += length;
+		final byte[] data = block;
+		final int dataLength = length;
+		final byte[] dictionary = previousBlock;
+		pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+
+			@Override
+			public byte[] call() {
+				return deflate(data, dataLength, dictionary, last);
+			}
+		}));
+		// the block is being deflated, so the next one is written in a new array
+		previousBlock = block;
+		block = new byte[BLOCK_SIZE];
+		length = 0;
+		while (!pendingBlocks.isEmpty()
+				&& (pendingBlocks.size() > maxPendingBlocks || pendingBlocks.getFirst().isDone())) {
+			writeNextBlock();
+		}
+	}
+
+	private byte[] deflate(byte[] data, int dataLength, byte[] dictionary, boolean last) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+			}
+			deflater.setInput(data, 0, dataLength);
+			final ByteArrayOutputStream compressed = new ByteArrayOutputStream(dataLength / 4 + 64);
+			final byte[] buffer = new byte[64 * 1024];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+				}
+			} else {
+				int n;
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, n);
+				} while (n == buffer.length);
+			}
+			return compressed.toByteArray();
+		} finally {
+			deflater.reset();
+			deflaters.add(deflater);
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		final Future<byte[]> future = pendingBlocks.removeFirst();
+		try {
+			final byte[] compressed = future.get();
+			out.write(compressed);
+			compressedSize += compressed.length;
+		} catch (final ExecutionException e) {
+			throw new IOException("Error compressing: " + e.getCause().getMessage(), e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing");
+		}
+	}
+
+	/**
+	 * Deflates the last block, writes the gzip trailer and closes the
+	 * underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			submitBlock(true);
+			while (!pendingBlocks.isEmpty()) {
+				writeNextBlock();
+			}
+			final byte[] trailer = new byte[8];
+			writeInt(trailer, 0, crc.getValue());
+			writeInt(trailer, 4, uncompressedSize);
+			out.write(trailer);
+			compressedSize += trailer.length;
+		} finally {
+			for (final Future<byte[]> future : pendingBlocks) {
+				future.cancel(false);
+			}
+			Deflater deflater;
+			while ((deflater = deflaters.poll()) != null) {
+				deflater.end();
+			}
+			out.close();
+		}
+	}
+
+	private void writeInt(byte[] b, int offset, long value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >> 8);
+		b[offset + 2] = (byte) (value >> 16);
+		b[offset + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 *
+	 * @return the number of bytes written to the underlying stream
+	 */
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes written to this stream
+	 */
+	public long getUncompressedSize() {
+		return uncompressedSize + length;
+	}
+}
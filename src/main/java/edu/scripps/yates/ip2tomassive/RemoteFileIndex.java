@@ -0,0 +1,191 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.ftp.FTPUtils;
+
+/**
+ * In-memory index of the sizes of the files in the folders of a remote site.
+ * Each folder is listed only once (in a FTP site, with MLSD if the server
+ * supports it or with LIST otherwise), so that checking whether a file is
+ * already uploaded doesn't need a SIZE command per file.
+ * 
+ * @author salvador
+ *
+ */
+public class RemoteFileIndex {
+	private final static Logger log = Logger.getLogger(RemoteFileIndex.class);
+	private final ConcurrentHashMap<String, Map<String, Long>> sizesByFolder = new ConcurrentHashMap<String, Map<String, Long>>();
+	private final ConcurrentHashMap<String, Object> locksByFolder = new ConcurrentHashMap<String, Object>();
+	private final Set<String> unknownFiles = ConcurrentHashMap.newKeySet();
+	private volatile Boolean mlsdSupported;
+
+	/**
+	 * Lists the folders of a remote site that is not a FTP site
+	 */
+	public interface FolderLister {
+		/**
+		 * 
+		 * @param folderPath
+		 * @return the sizes of the files (not folders) in the folder by their
+		 *         names, empty if the folder doesn't exist
+		 * @throws IOException
+		 */
+		public Map<String, Long> listFiles(String folderPath) throws IOException;
+
+		/**
+		 * 
+		 * @param fullPath
+		 * @return the size of the file or -1 if it doesn't exist
+		 * @throws IOException
+		 */
+		public long getSize(String fullPath) throws IOException;
+	}
+
+	/**
+	 * 
+	 * @param ftpClient  client used to list the folder if it is not indexed yet
+	 * @param folderPath
+	 * @param fileName
+	 * @return the size of the file in the remote site or -1 if it is not there
+	 * @throws IOException
+	 */
+	public long getSize(final FTPClient ftpClient, String folderPath, String fileName) throws IOException {
+		return getSize(new FolderLister() {
+
+			@Override
+			public Map<String, Long> listFiles(String folderPath) throws IOException {
+				return listFolder(ftpClient, folderPath);
+			}
+
+			@Override
+			public long getSize(String fullPath) throws IOException {
+				return FTPUtils.getSize(ftpClient, fullPath);
+			}
+		}, folderPath, fileName);
+	}
+
+	/**
+	 * 
+	 * @param lister     used to list the folder if it is not indexed yet
+	 * @param folderPath
+	 * @param fileName
+	 * @return the size of the file in the remote site or -1 if it is not there
+	 * @throws IOException
+	 */
+	public long getSize(FolderLister lister, String folderPath, String fileName) throws IOException {
+		final String fullPath = normalize(folderPath) + "/" + fileName;
+		if (unknownFiles.contains(fullPath)) {
+			// an upload of this file failed, so it may be partially uploaded
+			final long size = lister.getSize(fullPath);
+			unknownFiles.remove(fullPath);
+			if (size > 0) {
+				setSize(folderPath, fileName, size);
+				return size;
+			}
+			return -1l;
+		}
+		final Long size = getFolderIndex(lister, folderPath).get(fileName);
+		if (size == null) {
+			return -1l;
+		}
+		return size;
+	}
+
+	/**
+	 * Updates the index after a file has been uploaded
+	 * 
+	 * @param folderPath
+	 * @param fileName
+	 * @param size
+	 */
+	public void setSize(String folderPath, String fileName, long size) {
+		unknownFiles.remove(normalize(folderPath) + "/" + fileName);
+		final Map<String, Long> folderIndex = sizesByFolder.get(normalize(folderPath));
+		if (folderIndex != null) {
+			folderIndex.put(fileName, size);
+		}
+	}
+
+	/**
+	 * Marks the size of a file as unknown, for example when an upload is started
+	 * and it may be interrupted. The next time its size is requested, it will be
+	 * asked to the server.
+	 * 
+	 * @param folderPath
+	 * @param fileName
+	 */
+	public void setUnknownSize(String folderPath, String fileName) {
+		final Map<String, Long> folderIndex = sizesByFolder.get(normalize(folderPath));
+		if (folderIndex != null) {
+			folderIndex.remove(fileName);
+		}
+		unknownFiles.add(normalize(folderPath) + "/" + fileName);
+	}
+
+	private Map<String, Long> getFolderIndex(FolderLister lister, String folderPath) throws IOException {
+		final String normalizedPath = normalize(folderPath);
+		Map<String, Long> folderIndex = sizesByFolder.get(normalizedPath);
+		if (folderIndex != null) {
+			return folderIndex;
+		}
+		// different folders can be listed at the same time, but the same folder is
+		// listed just once
+		synchronized (getLock(normalizedPath)) {
+			folderIndex = sizesByFolder.get(normalizedPath);
+			if (folderIndex == null) {
+				folderIndex = new ConcurrentHashMap<String, Long>(lister.listFiles(normalizedPath));
+				sizesByFolder.put(normalizedPath, folderIndex);
+				log.debug(folderIndex.size() + " files indexed in remote folder " + normalizedPath);
+			}
+			return folderIndex;
+		}
+	}
+
+	private Object getLock(String folderPath) {
+		final Object lock = new Object();
+		final Object previous = locksByFolder.putIfAbsent(folderPath, lock);
+		return previous != null ? previous : lock;
+	}
+
+	private Map<String, Long> listFolder(FTPClient ftpClient, String folderPath) throws IOException {
+		if (mlsdSupported == null) {
+			mlsdSupported = ftpClient.hasFeature("MLST");
+		}
+		final FTPFile[] files = mlsdSupported ? ftpClient.mlistDir(folderPath) : ftpClient.listFiles(folderPath);
+		final Map<String, Long> ret = new HashMap<String, Long>();
+		if (files != null) {
+			for (final FTPFile file : files) {
+				if (file != null && file.isFile()) {
+					ret.put(getName(file), file.getSize());
+				}
+			}
+		}
+		return ret;
+	}
+
+	private String getName(FTPFile file) {
+		// some servers return the full path in the LIST response
+		final String name = file.getName();
+		if (name.contains("/")) {
+			return name.substring(name.lastIndexOf("/") + 1);
+		}
+		return name;
+	}
+
+	private String normalize(String path) {
+		String ret = path.trim();
+		while (ret.length() > 1 && ret.endsWith("/")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		return ret;
+	}
+}
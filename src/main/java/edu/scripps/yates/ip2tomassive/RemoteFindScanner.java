@@ -0,0 +1,336 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import edu.scripps.yates.utilities.dates.DatesUtil;
+import edu.scripps.yates.utilities.files.FileUtils;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Looks for the experiment folders of a project tree in IP2 and their files
+ * with a single GNU find command run in the IP2 server over a SSH exec
+ * channel, instead of listing the folders one by one over SFTP.<br>
+ * The find command prunes the experiment folders that are not in the
+ * experiment IDs, and prints the experiment folders and the files with the
+ * extensions of the spectra files and the DTASelect files, which are
+ * classified in {@link ExperimentScan}s while the output is read.<br>
+ * The parameters of the searches are not read, so the {@link Search}es of the
+ * scans have to be completed by
+ * {@link IP2ToMassive#findExperiments(String, TIntHashSet, boolean)}.
+ *
+ * @author salvador
+ *
+ */
+public class RemoteFindScanner {
+	private final static Logger log = Logger.getLogger(RemoteFindScanner.class);
+	private static final String PRINTF_FORMAT = "'%y %s %T@ %p\\n'";
+	private static final String EXPERIMENT_FOLDER_REGEX = ".*_[0-9]{5,}";
+	private static final String SPECTRA_FOLDER = "spectra";
+	private static final String SEARCH_FOLDER = "search";
+	private static final int MAX_ERRORS_LENGTH = 2000;
+	private final Session session;
+	private final TIntHashSet experimentIDs;
+	private final boolean includeSearches;
+	private final Map<String, ExperimentScan> scansByExperimentPath = new HashMap<String, ExperimentScan>();
+	private final Map<String, List<String>> dtaSelectPathsByExperimentPath = new HashMap<String, List<String>>();
+	private int numFiles = 0;
+	private long totalSize = 0l;
+
+	/**
+	 *
+	 * @param session         SSH session to IP2, used to open the exec channel
+	 * @param experimentIDs   experiment IDs to look for, or null to get all the
+	 *                        experiments
+	 * @param includeSearches if true, the DTASelect files of the searches are
+	 *                        also looked for
+	 */
+	public RemoteFindScanner(Session session, TIntHashSet experimentIDs, boolean includeSearches) {
+		this.session = session;
+		this.experimentIDs = experimentIDs;
+		this.includeSearches = includeSearches;
+	}
+
+	/**
+	 *
+	 * @param projectBasePath
+	 * @return the find command that prints the experiment folders and their
+	 *         files under the project base path
+	 */
+	public String getCommand(String projectBasePath) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("find " + quote(projectBasePath) + " -mindepth 1 -regextype posix-extended ");
+		// experiment folders, pruned if they are not in the experiment IDs
+		sb.append("\\( -type d -regex " + quote(EXPERIMENT_FOLDER_REGEX) + " ");
+		if (experimentIDs != null) {
+			sb.append("\\( -regex " + quote(getExperimentIDsRegex()) + " -printf " + PRINTF_FORMAT
+					+ " -o -prune \\) \\) ");
+		} else {
+			sb.append("-printf " + PRINTF_FORMAT + " \\) ");
+		}
+		// files of the experiments
+		sb.append("-o \\( -type f \\( ");
+		boolean first = true;
+		for (final FileType fileType : FileType.getSpectraFileTypes()) {
+			if (!first) {
+				sb.append("-o ");
+			}
+			sb.append("-name " + quote("*." + fileType.getExtension()) + " ");
+			first = false;
+		}
+		if (includeSearches) {
+			sb.append("-o -name " + quote(FileType.DTASELECT.getDefaultFileName()) + " ");
+		}
+		sb.append("\\) -printf " + PRINTF_FORMAT + " \\)");
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @return a regular expression of the paths that end with one of the
+	 *         experiment IDs, with leading zeros as in
+	 *         {@link IP2ProjectCrawler#getExperimentID(String)}
+	 */
+	private String getExperimentIDsRegex() {
+		final StringBuilder sb = new StringBuilder(".*_0*(");
+		final TIntIterator iterator = experimentIDs.iterator();
+		while (iterator.hasNext()) {
+			sb.append(iterator.next());
+			if (iterator.hasNext()) {
+				sb.append("|");
+			}
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+	private String quote(String argument) {
+		return "'" + argument.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * Runs the find command and reads its output
+	 *
+	 * @param projectBasePath
+	 * @return the scans of the experiments, in the same order as
+	 *         {@link IP2ProjectCrawler}, with the {@link Search}es still
+	 *         missing
+	 * @throws IOException if the command could not be run in the server
+	 */
+	public List<ExperimentScan> scan(String projectBasePath) throws IOException {
+		while (projectBasePath.length() > 1 && projectBasePath.endsWith("/")) {
+			projectBasePath = projectBasePath.substring(0, projectBasePath.length() - 1);
+		}
+		final long t1 = System.currentTimeMillis();
+		final String command = getCommand(projectBasePath);
+		log.info("Running in IP2: " + command);
+		final ByteArrayOutputStream errorStream = new ByteArrayOutputStream();
+		final ChannelExec channel;
+		int numLines = 0;
+		try {
+			channel = (ChannelExec) session.openChannel("exec");
+			channel.setCommand(command);
+			channel.setErrStream(errorStream);
+			final InputStream inputStream = channel.getInputStream();
+			channel.connect();
+			try {
+				final BufferedReader reader = new BufferedReader(
+						new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					numLines++;
+					processLine(line);
+				}
+				// the exit status is only available once the channel is closed
+				while (!channel.isClosed()) {
+					Thread.sleep(10);
+				}
+			} finally {
+				channel.disconnect();
+			}
+		} catch (final JSchException e) {
+			throw new IOException("Error running find in IP2: " + e.getMessage(), e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running find in IP2");
+		}
+		final int exitStatus = channel.getExitStatus();
+		if (exitStatus != 0) {
+			final String errors = new String(errorStream.toByteArray(), StandardCharsets.UTF_8).trim();
+			String shortErrors = errors;
+			if (shortErrors.length() > MAX_ERRORS_LENGTH) {
+				shortErrors = shortErrors.substring(0, MAX_ERRORS_LENGTH) + "...";
+			}
+			if (exitStatus == 1 && isOnlyPermissionDenied(errors)) {
+				// some folders could not be read, which are skipped as with the
+				// SFTP crawler
+				log.warn("Some folders could not be read by find in IP2: " + shortErrors);
+			} else {
+				throw new IOException("find failed in IP2 with exit status " + exitStatus + ": " + shortErrors);
+			}
+		}
+		final List<ExperimentScan> ret = new ArrayList<ExperimentScan>(scansByExperimentPath.values());
+		Collections.sort(ret, new Comparator<ExperimentScan>() {
+
+			@Override
+			public int compare(ExperimentScan o1, ExperimentScan o2) {
+				return comparePaths(o1.getExperimentPath(), o2.getExperimentPath());
+			}
+		});
+		log.info(numLines + " lines read from find in "
+				+ DatesUtil.getDescriptiveTimeFromMillisecs(System.currentTimeMillis() - t1) + ". " + ret.size()
+				+ " experiments found with " + numFiles + " files ("
+				+ FileUtils.getDescriptiveSizeFromBytes(totalSize) + ")");
+		return ret;
+	}
+
+	private boolean isOnlyPermissionDenied(String errors) {
+		if ("".equals(errors)) {
+			return false;
+		}
+		for (final String line : errors.split("\n")) {
+			if (!line.contains("Permission denied")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares paths folder by folder, so that they are sorted depth-first with
+	 * the folders of each level sorted by name
+	 */
+	private static int comparePaths(String path1, String path2) {
+		final String[] split1 = path1.split("/");
+		final String[] split2 = path2.split("/");
+		for (int i = 0; i < Math.min(split1.length, split2.length); i++) {
+			final int comparison = split1[i].compareTo(split2[i]);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return split1.length - split2.length;
+	}
+
+	/**
+	 * Parses a line as printed with %y %s %T@ %p
+	 *
+	 * @param line
+	 */
+	private void processLine(String line) {
+		final int index1 = line.indexOf(' ');
+		final int index2 = index1 < 0 ? -1 : line.indexOf(' ', index1 + 1);
+		final int index3 = index2 < 0 ? -1 : line.indexOf(' ', index2 + 1);
+		if (index1 != 1 || index3 < 0) {
+			// a file name with a line break, for example
+			log.warn("Ignoring unexpected line from find: " + line);
+			return;
+		}
+		final char type = line.charAt(0);
+		final String path = line.substring(index3 + 1);
+		if (type == 'd') {
+			addExperiment(path);
+		} else if (type == 'f') {
+			long size = 0l;
+			try {
+				size = Long.valueOf(line.substring(index1 + 1, index2));
+			} catch (final NumberFormatException e) {
+				log.debug("Size of " + path + " not read from find: " + line);
+			}
+			addFile(path, size);
+		}
+	}
+
+	private void addExperiment(String path) {
+		// folders inside experiments that look like experiments, such as the
+		// ones of the quantifications, are not experiments
+		if (getExperimentScanOfAncestor(path) != null) {
+			return;
+		}
+		final ExperimentScan scan = new ExperimentScan(path);
+		scansByExperimentPath.put(path, scan);
+		log.info("Found experiment " + IP2ProjectCrawler.getExperimentID(FilenameUtils.getName(path))
+				+ " at folder " + path);
+	}
+
+	private ExperimentScan getExperimentScanOfAncestor(String path) {
+		int index = path.lastIndexOf('/');
+		while (index > 0) {
+			final ExperimentScan scan = scansByExperimentPath.get(path.substring(0, index));
+			if (scan != null) {
+				return scan;
+			}
+			index = path.lastIndexOf('/', index - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a file if it is in the spectra folder of an experiment, or if it is
+	 * the DTASelect file of a search of an experiment
+	 *
+	 * @param path
+	 * @param size
+	 */
+	private void addFile(String path, long size) {
+		final String parent = FilenameUtils.getFullPathNoEndSeparator(path);
+		final String fileName = FilenameUtils.getName(path);
+		final String parentName = FilenameUtils.getName(parent);
+		final String grandParent = FilenameUtils.getFullPathNoEndSeparator(parent);
+		if (SPECTRA_FOLDER.equals(parentName)) {
+			final ExperimentScan scan = scansByExperimentPath.get(grandParent);
+			final FileType fileType = FileType.getSpectraFileTypeByExtension(FilenameUtils.getExtension(fileName));
+			if (scan != null && fileType != null) {
+				scan.addPath(fileType, path);
+				numFiles++;
+				totalSize += size;
+			}
+		} else if (includeSearches && FileType.DTASELECT.getDefaultFileName().equals(fileName)
+				&& parentName.contains("_")
+				&& SEARCH_FOLDER.equals(FilenameUtils.getName(grandParent))) {
+			final String experimentPath = FilenameUtils.getFullPathNoEndSeparator(grandParent);
+			if (scansByExperimentPath.containsKey(experimentPath)) {
+				List<String> dtaSelectPaths = dtaSelectPathsByExperimentPath.get(experimentPath);
+				if (dtaSelectPaths == null) {
+					dtaSelectPaths = new ArrayList<String>();
+					dtaSelectPathsByExperimentPath.put(experimentPath, dtaSelectPaths);
+				}
+				dtaSelectPaths.add(path);
+				numFiles++;
+				totalSize += size;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param experimentPath
+	 * @return the paths of the DTASelect files of the searches of the
+	 *         experiment, whose parameters are not read yet
+	 */
+	public List<String> getDTASelectPaths(String experimentPath) {
+		final List<String> ret = dtaSelectPathsByExperimentPath.get(experimentPath);
+		if (ret == null) {
+			return Collections.emptyList();
+		}
+		return ret;
+	}
+}
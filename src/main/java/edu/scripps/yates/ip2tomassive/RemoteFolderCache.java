@@ -0,0 +1,116 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Thread-safe cache of the folders that are known to exist in a remote site
+ * during a run, so that each folder is created at most once. Concurrent
+ * requests for the same folder wait for the first one to create it.
+ * 
+ * @author salvador
+ *
+ * @param <T> what is remembered for each folder, such as a folder ID
+ */
+public class RemoteFolderCache<T> {
+	private final ConcurrentHashMap<String, FutureTask<T>> foldersByPath = new ConcurrentHashMap<String, FutureTask<T>>();
+
+	public interface FolderCreator<T> {
+		/**
+		 * Creates the folder (and its parents if needed) in the remote site
+		 * 
+		 * @param path
+		 * @return
+		 * @throws IOException if the folder cannot be created, so that it is not
+		 *                     cached
+		 */
+		T createFolder(String path) throws IOException;
+	}
+
+	/**
+	 * Gets the value of the folder, creating it with the creator if it is not
+	 * known to exist yet. If the creation fails, the folder is not cached so that
+	 * it can be tried again.
+	 * 
+	 * @param path
+	 * @param creator
+	 * @return
+	 * @throws IOException
+	 */
+	public T getOrCreate(String path, final FolderCreator<T> creator) throws IOException {
+		final String normalizedPath = normalize(path);
+		FutureTask<T> task = foldersByPath.get(normalizedPath);
+		if (task == null) {
+			final FutureTask<T> newTask = new FutureTask<T>(new Callable<T>() {
+
+				@Override
+				public T call() throws Exception {
+					return creator.createFolder(normalizedPath);
+				}
+			});
+			task = foldersByPath.putIfAbsent(normalizedPath, newTask);
+			if (task == null) {
+				task = newTask;
+				newTask.run();
+			}
+		}
+		try {
+			return task.get();
+		} catch (final ExecutionException e) {
+			foldersByPath.remove(normalizedPath, task);
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Error creating remote folder " + normalizedPath, cause);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while creating remote folder " + normalizedPath);
+		}
+	}
+
+	/**
+	 * Registers a folder that is known to exist, for example from a listing of its
+	 * parent
+	 * 
+	 * @param path
+	 * @param value
+	 */
+	public void addExistingFolder(String path, final T value) {
+		final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+
+			@Override
+			public T call() throws Exception {
+				return value;
+			}
+		});
+		task.run();
+		foldersByPath.putIfAbsent(normalize(path), task);
+	}
+
+	public boolean contains(String path) {
+		return foldersByPath.containsKey(normalize(path));
+	}
+
+	public void clear() {
+		foldersByPath.clear();
+	}
+
+	public int size() {
+		return foldersByPath.size();
+	}
+
+	private String normalize(String path) {
+		String ret = path.trim();
+		while (ret.length() > 1 && ret.endsWith("/")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		return ret;
+	}
+}
@@ -4,11 +4,29 @@ public class Search {
 	private final int id;
 	private final String path;
 	private final String parameters;
+	private final long size;
+	private final int mtime;
 
 	public Search(int id, String path, String parameters) {
+		this(id, path, parameters, -1l, -1);
+	}
+
+	/**
+	 * 
+	 * @param id
+	 * @param path       path of the DTASelect file
+	 * @param parameters
+	 * @param size       size of the DTASelect file when its parameters were read,
+	 *                   or -1 if unknown
+	 * @param mtime      modification time of the DTASelect file in seconds when
+	 *                   its parameters were read, or -1 if unknown
+	 */
+	public Search(int id, String path, String parameters, long size, int mtime) {
 		this.id = id;
 		this.path = path;
 		this.parameters = parameters;
+		this.size = size;
+		this.mtime = mtime;
 	}
 
 	public int getId() {
@@ -23,4 +41,12 @@ public class Search {
 		return parameters;
 	}
 
+	public long getSize() {
+		return size;
+	}
+
+	public int getMTime() {
+		return mtime;
+	}
+
 }
@@ -0,0 +1,378 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+import edu.scripps.yates.utilities.ftp.FTPUtils;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Bounded pool of authenticated SSH sessions and SFTP channels to the same
+ * host/user/port, so that the transfer workers reuse a few sessions instead of
+ * login in for every file.<br>
+ * Channels are borrowed with {@link #borrowChannel()} and must be given back
+ * with {@link #releaseChannel(ChannelSftp)} or, if something went wrong with
+ * the connection, with {@link #invalidateChannel(ChannelSftp)}.
+ * 
+ * @author salvador
+ *
+ */
+public class SftpChannelPool {
+	private final static Logger log = Logger.getLogger(SftpChannelPool.class);
+	private final static Map<String, SftpChannelPool> poolsByKey = new THashMap<String, SftpChannelPool>();
+	/**
+	 * Channels idle for longer than this are checked with a round trip before
+	 * being handed out again
+	 */
+	private static final long VALIDATION_INTERVAL = 30 * 1000l;
+	private final String hostName;
+	private final String userName;
+	private final String password;
+	private final int port;
+	private final int maxSessions;
+	private final int maxChannelsPerSession;
+	private final long maxIdleTime;
+	private final List<Session> sessions = new ArrayList<Session>();
+	private final Map<Session, Integer> openChannelsBySession = new IdentityHashMap<Session, Integer>();
+	private final Map<Session, Long> lastUsedBySession = new IdentityHashMap<Session, Long>();
+	private final Map<ChannelSftp, Session> sessionsByChannel = new IdentityHashMap<ChannelSftp, Session>();
+	private final LinkedList<ChannelSftp> idleChannels = new LinkedList<ChannelSftp>();
+	private final Map<ChannelSftp, Long> lastUsedByChannel = new IdentityHashMap<ChannelSftp, Long>();
+	private int sessionsBeingOpened = 0;
+	private int numLogins = 0;
+	private boolean closed = false;
+
+	/**
+	 * Gets the pool for that host, user and port, creating it if it doesn't exist
+	 * yet
+	 * 
+	 * @param hostName
+	 * @param userName
+	 * @param password
+	 * @param port
+	 * @param maxSessions           maximum number of SSH sessions open at the same
+	 *                              time
+	 * @param maxChannelsPerSession maximum number of SFTP channels open at the
+	 *                              same time on each session
+	 * @param maxIdleTime           time in milliseconds after which an unused
+	 *                              channel or session is closed
+	 * @return
+	 */
+	public static synchronized SftpChannelPool getInstance(String hostName, String userName, String password,
+			int port, int maxSessions, int maxChannelsPerSession, long maxIdleTime) {
+		final String key = userName + "@" + hostName + ":" + port;
+		SftpChannelPool pool = poolsByKey.get(key);
+		if (pool == null || pool.closed) {
+			pool = new SftpChannelPool(hostName, userName, password, port, maxSessions, maxChannelsPerSession,
+					maxIdleTime);
+			poolsByKey.put(key, pool);
+		}
+		return pool;
+	}
+
+	private SftpChannelPool(String hostName, String userName, String password, int port, int maxSessions,
+			int maxChannelsPerSession, long maxIdleTime) {
+		this.hostName = hostName;
+		this.userName = userName;
+		this.password = password;
+		this.port = port;
+		this.maxSessions = Math.max(1, maxSessions);
+		this.maxChannelsPerSession = Math.max(1, maxChannelsPerSession);
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * Gets an open SFTP channel, reusing an idle one if possible. It blocks if
+	 * the maximum number of channels is already in use.
+	 * 
+	 * @return
+	 * @throws JSchException
+	 */
+	public ChannelSftp borrowChannel() throws JSchException {
+		final long t1 = System.nanoTime();
+		final ChannelSftp channel = borrowChannel(true);
+		MetricsRegistry.getInstance().operationSeconds.observeSince(t1, hostName, "connect");
+		return channel;
+	}
+
+	/**
+	 * Gets an open SFTP channel only if there is one idle or if the maximum number
+	 * of channels is not reached yet, without waiting for other channels to be
+	 * released
+	 * 
+	 * @return the channel or null if there is no one available
+	 * @throws JSchException
+	 */
+	public ChannelSftp tryBorrowChannel() throws JSchException {
+		return borrowChannel(false);
+	}
+
+	private ChannelSftp borrowChannel(boolean waitForChannel) throws JSchException {
+		while (true) {
+			ChannelSftp idleChannel = null;
+			Session idleSession = null;
+			Long lastUsed = null;
+			Session session = null;
+			boolean newSession = false;
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						throw new IllegalStateException("SFTP channel pool to " + hostName + " is closed");
+					}
+					evictIdle();
+					if (!idleChannels.isEmpty()) {
+						idleChannel = idleChannels.removeFirst();
+						idleSession = sessionsByChannel.get(idleChannel);
+						lastUsed = lastUsedByChannel.remove(idleChannel);
+						break;
+					}
+					session = getSessionWithFreeChannels();
+					if (session != null) {
+						// the channel is counted in its session before being opened
+						openChannelsBySession.put(session, openChannelsBySession.get(session) + 1);
+						break;
+					}
+					if (sessions.size() + sessionsBeingOpened < maxSessions) {
+						sessionsBeingOpened++;
+						newSession = true;
+						break;
+					}
+					if (!waitForChannel) {
+						return null;
+					}
+					try {
+						wait();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new JSchException("Interrupted while waiting for a SFTP channel to " + hostName);
+					}
+				}
+			}
+			// the health check, the login and the opening of the channel are done
+			// outside of the lock, so that other threads can release and borrow
+			// channels in the meantime
+			if (idleChannel != null) {
+				if (isHealthy(idleChannel, idleSession, lastUsed)) {
+					return idleChannel;
+				}
+				log.debug("Discarding broken SFTP channel to " + hostName);
+				synchronized (this) {
+					closeChannel(idleChannel);
+					notifyAll();
+				}
+				continue;
+			}
+			if (newSession) {
+				session = openSession();
+			}
+			return openChannel(session);
+		}
+	}
+
+	/**
+	 * Gives back a channel to the pool so that it can be reused
+	 * 
+	 * @param channel
+	 */
+	public synchronized void releaseChannel(ChannelSftp channel) {
+		if (channel == null || !sessionsByChannel.containsKey(channel)) {
+			return;
+		}
+		if (closed || !channel.isConnected()) {
+			closeChannel(channel);
+		} else {
+			final long now = System.currentTimeMillis();
+			idleChannels.addFirst(channel);
+			lastUsedByChannel.put(channel, now);
+			lastUsedBySession.put(sessionsByChannel.get(channel), now);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Closes a channel that should not be reused, for example after a connection
+	 * error
+	 * 
+	 * @param channel
+	 */
+	public synchronized void invalidateChannel(ChannelSftp channel) {
+		if (channel == null || !sessionsByChannel.containsKey(channel)) {
+			return;
+		}
+		final Session session = sessionsByChannel.get(channel);
+		closeChannel(channel);
+		if (session != null && !session.isConnected()) {
+			closeSession(session);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Closes all the channels and sessions of the pool
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (final ChannelSftp channel : new ArrayList<ChannelSftp>(sessionsByChannel.keySet())) {
+			closeChannel(channel);
+		}
+		for (final Session session : new ArrayList<Session>(sessions)) {
+			closeSession(session);
+		}
+		log.info("SFTP connections to " + hostName + " closed after " + numLogins + " logins");
+		notifyAll();
+	}
+
+	public synchronized int getNumLogins() {
+		return numLogins;
+	}
+
+	private boolean isHealthy(ChannelSftp channel, Session session, Long lastUsed) {
+		if (session == null || !session.isConnected() || !channel.isConnected() || channel.isClosed()) {
+			return false;
+		}
+		if (lastUsed != null && System.currentTimeMillis() - lastUsed > VALIDATION_INTERVAL) {
+			try {
+				channel.realpath(".");
+			} catch (final SftpException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void evictIdle() {
+		final long now = System.currentTimeMillis();
+		final Iterator<ChannelSftp> iterator = idleChannels.iterator();
+		while (iterator.hasNext()) {
+			final ChannelSftp channel = iterator.next();
+			final Long lastUsed = lastUsedByChannel.get(channel);
+			if (lastUsed != null && now - lastUsed > maxIdleTime) {
+				iterator.remove();
+				closeChannel(channel);
+			}
+		}
+		for (final Session session : new ArrayList<Session>(sessions)) {
+			final Long lastUsed = lastUsedBySession.get(session);
+			if (!session.isConnected() || (openChannelsBySession.get(session) == 0 && lastUsed != null
+					&& now - lastUsed > maxIdleTime)) {
+				closeSession(session);
+			}
+		}
+	}
+
+	private Session getSessionWithFreeChannels() {
+		for (final Session session : sessions) {
+			if (session.isConnected() && openChannelsBySession.get(session) < maxChannelsPerSession) {
+				return session;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Login into the host, for a session already counted in
+	 * sessionsBeingOpened. The first channel of the new session is counted as
+	 * open, as it is going to be opened by the calling thread.
+	 */
+	private Session openSession() throws JSchException {
+		log.debug("Login into " + hostName);
+		final long t1 = System.nanoTime();
+		Session session = null;
+		boolean poolClosed = false;
+		try {
+			session = FTPUtils.loginSSHClient(hostName, userName, password, port);
+			MetricsRegistry.getInstance().operationSeconds.observeSince(t1, hostName, "login");
+		} finally {
+			synchronized (this) {
+				sessionsBeingOpened--;
+				poolClosed = closed;
+				if (session != null) {
+					numLogins++;
+					if (closed) {
+						session.disconnect();
+					} else {
+						sessions.add(session);
+						openChannelsBySession.put(session, 1);
+						lastUsedBySession.put(session, System.currentTimeMillis());
+					}
+				}
+				notifyAll();
+			}
+		}
+		if (poolClosed) {
+			throw new IllegalStateException("SFTP channel pool to " + hostName + " is closed");
+		}
+		return session;
+	}
+
+	/**
+	 * Opens a channel already counted in the open channels of its session
+	 */
+	private ChannelSftp openChannel(Session session) throws JSchException {
+		ChannelSftp channel = null;
+		boolean connected = false;
+		boolean added = false;
+		try {
+			channel = (ChannelSftp) session.openChannel("sftp");
+			channel.connect();
+			connected = true;
+		} finally {
+			synchronized (this) {
+				if (connected && openChannelsBySession.containsKey(session)) {
+					sessionsByChannel.put(channel, session);
+					added = true;
+				} else {
+					if (channel != null) {
+						channel.disconnect();
+					}
+					if (openChannelsBySession.containsKey(session)) {
+						openChannelsBySession.put(session, openChannelsBySession.get(session) - 1);
+						if (!session.isConnected()) {
+							closeSession(session);
+						}
+					}
+					notifyAll();
+				}
+			}
+		}
+		if (!added) {
+			// its session was closed while the channel was being opened
+			throw new IllegalStateException("SFTP channel pool to " + hostName + " is closed");
+		}
+		return channel;
+	}
+
+	private void closeChannel(ChannelSftp channel) {
+		idleChannels.remove(channel);
+		lastUsedByChannel.remove(channel);
+		final Session session = sessionsByChannel.remove(channel);
+		if (session != null && openChannelsBySession.containsKey(session)) {
+			openChannelsBySession.put(session, openChannelsBySession.get(session) - 1);
+			lastUsedBySession.put(session, System.currentTimeMillis());
+		}
+		channel.disconnect();
+	}
+
+	private void closeSession(Session session) {
+		for (final ChannelSftp channel : new ArrayList<ChannelSftp>(sessionsByChannel.keySet())) {
+			if (sessionsByChannel.get(channel) == session) {
+				closeChannel(channel);
+			}
+		}
+		sessions.remove(session);
+		openChannelsBySession.remove(session);
+		lastUsedBySession.remove(session);
+		session.disconnect();
+	}
+}
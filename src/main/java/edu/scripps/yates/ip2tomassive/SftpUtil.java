@@ -1,213 +1,209 @@
 package edu.scripps.yates.ip2tomassive;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.util.Date;
-import java.util.Properties;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
-import com.jcraft.jsch.Channel;
+import org.apache.commons.io.FilenameUtils;
+
 import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.ProxyHTTP;
-import com.jcraft.jsch.Session;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
 import com.jcraft.jsch.SftpException;
 
 public class SftpUtil {
 
-	private static final String SFTP = "sftp";
+	/**
+	 * Opens a stream to write a file in a SFTP site. Each write is sent without
+	 * waiting for the acknowledgment of the previous ones, which are checked as
+	 * they arrive and when the stream is closed, so that the upload is not
+	 * limited by the round trip time.
+	 * 
+	 * @param channel
+	 * @param path
+	 * @param offset  if greater than 0, the data is written after the first
+	 *                offset bytes of the file, which has to have that size
+	 * @return
+	 * @throws SftpException
+	 */
+	public static OutputStream openOutputStream(ChannelSftp channel, String path, long offset)
+			throws SftpException {
+		if (offset > 0) {
+			final long size = getSize(channel, path);
+			if (size != offset) {
+				throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Cannot resume '" + path + "' from " + offset
+						+ " bytes because it has " + size + " bytes");
+			}
+			return channel.put(path, null, ChannelSftp.RESUME, 0l);
+		}
+		return channel.put(path, ChannelSftp.OVERWRITE);
+	}
 
 	/**
+	 * Uploads the content of the input stream to a file, replacing it if it
+	 * exists
 	 * 
-	 * @param fileName
-	 * @throws Exception
+	 * @param channel
+	 * @param inputStream
+	 * @param path
+	 * @throws SftpException
 	 */
-	public static void upload(String fileName) throws Exception {
+	public static void upload(ChannelSftp channel, InputStream inputStream, String path) throws SftpException {
+		channel.put(inputStream, path, ChannelSftp.OVERWRITE);
+	}
 
-		String method = "upload(String fileName)";
-		Session session = null;
-		Channel channel = null;
-		ChannelSftp channelSftp = null;
+	/**
+	 * Creates a folder whose parent exists
+	 * 
+	 * @param channel
+	 * @param path
+	 * @return true if the folder was created or false if it already existed
+	 * @throws SftpException if the folder cannot be created
+	 */
+	public static boolean makeDirectory(ChannelSftp channel, String path) throws SftpException {
 		try {
-			// Creating and instantiating the jsch specific instance
-			JSch jsch = new JSch();
-			// Fetching and setting the parameters like: user name, host and
-			// port
-			// from the properties file
-			session = jsch.getSession("<sftp.user.name>", "<sftp.host>", Integer.valueOf("<sftp.port>"));
-			// Fetching and setting the password as configured in properties
-			// files
-			session.setPassword("<sftp.user.password>");
-			// Setting the configuration specific properties
-			Properties config = new Properties();
-			config.put("StrictHostKeyChecking", "no");
-			session.setConfig(config);
-			// Validating if proxy is enabled to access the sftp
-			isSftpProxyEnabled(session);
-			// Execution start time
-			long lStartTime = new Date().getTime();
-			System.out.println("Connecting to the sftp...");
-			// Connecting to the sftp
-			session.connect();
-			System.out.println("Connected to the sftp.");
-			// Execution end time
-			long lEndTime = new Date().getTime();
-			System.out.println("---------------------------------------------");
-			System.out.println("Connected to SFTP in : " + (lEndTime - lStartTime));
-			// Setting the channel type as sftp
-			channel = session.openChannel(SFTP);
-			// Establishing the connection
-			channel.connect();
-			channelSftp = (ChannelSftp) channel;
-			// Setting the folder location of the external system as
-			// configured
-			channelSftp.cd("<sftp.output.folder.url>");
-			// Creating the file instance
-			File file = new File(fileName);
-			// Creating an fileInputStream instance
-			FileInputStream fileInputStream = new FileInputStream(file);
-			// Transfering the file from it source to destination location
-			// via sftp
-			channelSftp.put(fileInputStream, file.getName());
-			// Closing the fileInputStream instance
-			fileInputStream.close();
-			// De-allocating the fileInputStream instance memory by
-			// assigning null
-			fileInputStream = null;
-		} catch (Exception exception) {
-			throw exception;
-		} finally {
-			// Validating if channel sftp is not null to exit
-			if (channelSftp != null) {
-				channelSftp.exit();
+			channel.mkdir(path);
+			return true;
+		} catch (final SftpException e) {
+			// most servers don't say that it is because it exists
+			try {
+				if (channel.stat(path).isDir()) {
+					return false;
+				}
+			} catch (final SftpException e2) {
+				// it doesn't exist
 			}
-			// Validating if channel is not null to disconnect
-			if (channel != null) {
-				channel.disconnect();
+			throw e;
+		}
+	}
+
+	/**
+	 * 
+	 * @param channel
+	 * @param folder
+	 * @return the sizes of the files (not folders) in the folder by their names,
+	 *         empty if the folder doesn't exist
+	 * @throws SftpException
+	 */
+	public static Map<String, Long> getFileSizesInFolder(ChannelSftp channel, String folder) throws SftpException {
+		final Map<String, Long> ret = new HashMap<String, Long>();
+		final Vector<LsEntry> ls;
+		try {
+			ls = channel.ls(folder);
+		} catch (final SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+				return ret;
 			}
-			// Validating if session instance is not null to disconnect
-			if (session != null) {
-				session.disconnect();
+			throw e;
+		}
+		for (final LsEntry lsEntry : ls) {
+			if (!lsEntry.getAttrs().isDir()) {
+				ret.put(lsEntry.getFilename(), lsEntry.getAttrs().getSize());
 			}
 		}
+		return ret;
+	}
+
+	public static void createFolder(ChannelSftp channelOut, String projectName) throws SftpException {
+		channelOut.mkdir(projectName);
 	}
 
 	/**
 	 * 
-	 * @param session
+	 * @param channel
+	 * @param path
+	 * @return true if the path exists and it is not a folder
+	 * @throws SftpException
 	 */
-	private static void isSftpProxyEnabled(Session session) {
-		// Fetching the sftp proxy flag set as part of the properties file
-		boolean isSftpProxyEnabled = Boolean.valueOf("<sftp.proxy.enable>");
-		// Validating if proxy is enabled to access the sftp
-		if (isSftpProxyEnabled) {
-			// Setting host and port of the proxy to access the SFTP
-			session.setProxy(new ProxyHTTP("<sftp.proxy.host>", Integer.valueOf("<sftp.proxy.port>")));
+	public static boolean exist(ChannelSftp channel, String path) throws SftpException {
+		try {
+			return !channel.stat(path).isDir();
+		} catch (final SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	public static LsEntry getFileEntry(ChannelSftp channel, String path) throws SftpException {
+		final Vector<LsEntry> ls = channel.ls(path);
+		if (ls.isEmpty()) {
+			return null;
 		}
-		System.out.println("Proxy status: " + isSftpProxyEnabled);
+		return ls.get(0);
+	}
+
+	public static long getSize(ChannelSftp channel, String path) throws SftpException {
+		return channel.stat(path).getSize();
 	}
 
 	/**
 	 * 
-	 * @param folder
-	 * @param event
-	 * @param locale
+	 * @param channel
+	 * @param path
+	 * @return the size of the file or -1 if it doesn't exist
+	 * @throws SftpException
 	 */
-	public static void download(String folder, String event, String locale) {
-
-		String method = "download(String folder, String event, String locale)";
-		Session session = null;
-		Channel channel = null;
-		ChannelSftp channelSftp = null;
+	public static long getSizeIfExists(ChannelSftp channel, String path) throws SftpException {
 		try {
-			// Creating and instantiating the jsch specific instance
-			JSch jsch = new JSch();
-			// Fetching and setting the parameters like: user name, host and
-			// port
-			// from the properties file
-			session = jsch.getSession("<sftp.user.name>", "<sftp.host>", Integer.valueOf("<sftp.port>"));
-			// Fetching and setting the password as configured in properties
-			// files
-			session.setPassword("<sftp.user.password>");
-			// Setting the configuration specific properties
-			Properties config = new Properties();
-			config.put("StrictHostKeyChecking", "no");
-			session.setConfig(config);
-			// Validating if proxy is enabled to access the sftp
-			isSftpProxyEnabled(session);
-			// Execution start time
-			long lStartTime = new Date().getTime();
-			System.out.println("Connecting to the sftp...");
-			// Connecting to the sftp
-			session.connect();
-			System.out.println("Connected to the sftp.");
-			// Execution end time
-			long lEndTime = new Date().getTime();
-			System.out.println("---------------------------------------------");
-			System.out.println("Connected to SFTP in : " + (lEndTime - lStartTime));
-			// Setting the channel type as sftp
-			channel = session.openChannel(SFTP);
-			// Establishing the connection
-			channel.connect();
-			channelSftp = (ChannelSftp) channel;
-			try {
-				// Setting the folder location of the external system as
-				// configured
-				// to download the file from
-				channelSftp.cd("<sftp.input.folder.url>");
-			} catch (SftpException sftpException) {
-				System.out.println("Failed to change the directory in sftp.");
-			}
-			// Listing all the .csv file(s) specific to the source system,
-			// event type (download) and locale code
-			Vector<ChannelSftp.LsEntry> lsEntries = channelSftp.ls(new StringBuilder("*").append("<sys.code>")
-					.append("*").append(event).append("*").append(locale).append("*").append(".csv").toString());
-			// Validating if files exist to process the request further
-			if (lsEntries.isEmpty()) {
-				System.out.println("No file exist in the specified sftp folder location.");
+			return getSize(channel, path);
+		} catch (final SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+				return -1l;
 			}
-			// Iterating the list of entries to download the file(s) from
-			// the sftp
-			for (ChannelSftp.LsEntry entry : lsEntries) {
-				try {
-					// Downloading the specified file from the sftp to the
-					// specified folder path
-					channelSftp.get(entry.getFilename(),
-							new StringBuilder(folder).append(File.separator).append(entry.getFilename()).toString());
-				} catch (SftpException sftpException) {
-					System.out.println("Failed to download the file the sftp folder location.");
-				}
-			}
-			// Iterating the list of entries to delete the file(s) from the
-			// sftp
-			for (ChannelSftp.LsEntry entry : lsEntries) {
-				try {
-					// Deleting the specified file from the sftp
-					channelSftp.rm(entry.getFilename());
-				} catch (SftpException sftpException) {
-					System.out.println("Failed to delete the file from the sftp folder location.");
-				}
-			}
-		} catch (Exception exception) {
-			System.out.println("Failed to download the file(s) from SFTP.");
-		} finally {
-			// Validating if channel sftp is not null to exit
-			if (channelSftp != null) {
-				channelSftp.exit();
-			}
-			// Validating if channel is not null to disconnect
-			if (channel != null) {
-				channel.disconnect();
+			throw e;
+		}
+	}
+
+	/**
+	 * 
+	 * @param channel
+	 * @param folder
+	 * @param extension if null, all the files in the folder are returned
+	 * @return the files (not folders) in the folder with that extension
+	 * @throws SftpException
+	 */
+	public static List<LsEntry> getFilesInFolderByExtension(ChannelSftp channel, String folder, String extension)
+			throws SftpException {
+		final List<LsEntry> ret = new ArrayList<LsEntry>();
+		final Vector<LsEntry> ls = channel.ls(folder);
+		for (final LsEntry lsEntry : ls) {
+			if (lsEntry.getAttrs().isDir()) {
+				continue;
 			}
-			// Validating if session instance is not null to disconnect
-			if (session != null) {
-				session.disconnect();
+			if (extension == null
+					|| FilenameUtils.getExtension(lsEntry.getFilename()).equalsIgnoreCase(extension)) {
+				ret.add(lsEntry);
 			}
 		}
+		return ret;
 	}
 
-	public static void createFolder(ChannelSftp channelOut, String projectName) throws SftpException {
-		channelOut.mkdir(projectName);
+	/**
+	 * 
+	 * @param listingCache cache through which the folder is listed
+	 * @param channel
+	 * @param folder
+	 * @param extension    if null, all the files in the folder are returned
+	 * @return the files (not folders) in the folder with that extension
+	 * @throws SftpException
+	 */
+	public static List<IP2ListingCache.Entry> getFilesInFolderByExtension(IP2ListingCache listingCache,
+			ChannelSftp channel, String folder, String extension) throws SftpException {
+		final List<IP2ListingCache.Entry> ret = new ArrayList<IP2ListingCache.Entry>();
+		for (final IP2ListingCache.Entry entry : listingCache.list(channel, folder)) {
+			if (entry.isDir()) {
+				continue;
+			}
+			if (extension == null || FilenameUtils.getExtension(entry.getFilename()).equalsIgnoreCase(extension)) {
+				ret.add(entry);
+			}
+		}
+		return ret;
 	}
 
 }
@@ -0,0 +1,263 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Computes the MD5 and SHA-256 of the bytes of a stream while they are
+ * transferred, so that no extra read of the file is needed.<br>
+ * The bytes are copied into chunks that are digested by a background thread,
+ * so that hashing doesn't slow down the thread doing the I/O unless it falls
+ * behind by more than {@link #QUEUE_DEPTH} chunks. Each instance can be used
+ * for only one stream.
+ * 
+ * @author salvador
+ * 
+ */
+public class StreamDigester {
+	private final static Logger log = Logger.getLogger(StreamDigester.class);
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final int QUEUE_DEPTH = 8;
+	private static final Chunk END = new Chunk(null, -1);
+	private final String name;
+	private final MessageDigest md5;
+	private final MessageDigest sha256;
+	private final ArrayBlockingQueue<Chunk> filledChunks = new ArrayBlockingQueue<Chunk>(QUEUE_DEPTH);
+	private final ArrayBlockingQueue<byte[]> freeChunks = new ArrayBlockingQueue<byte[]>(QUEUE_DEPTH + 1);
+	private byte[] current;
+	private int currentLength = 0;
+	private long bytes = 0l;
+	private Thread digester;
+	private String md5Hex;
+	private String sha256Hex;
+
+	private static class Chunk {
+		private final byte[] data;
+		private final int length;
+
+		private Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * 
+	 * @param name used in the logs and as the name of the background thread
+	 */
+	public StreamDigester(String name) {
+		this.name = name;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 
+	 * @param out
+	 * @return an output stream that writes to out and digests what is written.
+	 *         Closing it closes out and finishes the digests.
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				update(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				update(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					finish();
+				}
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param in
+	 * @return an input stream that reads from in and digests what is read.
+	 *         Closing it closes in and finishes the digests.
+	 */
+	public InputStream wrap(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				final int b = in.read();
+				if (b != -1) {
+					update(new byte[] { (byte) b }, 0, 1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				final int read = in.read(b, off, len);
+				if (read > 0) {
+					update(b, off, read);
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				throw new IOException("Skipping bytes is not allowed while digesting " + name);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					finish();
+				}
+			}
+		};
+	}
+
+	private synchronized void update(byte[] b, int off, int len) throws IOException {
+		if (md5Hex != null) {
+			throw new IOException("Digest of " + name + " already finished");
+		}
+		if (digester == null) {
+			startDigester();
+		}
+		bytes += len;
+		while (len > 0) {
+			if (current == null) {
+				current = takeFreeChunk();
+				currentLength = 0;
+			}
+			final int n = Math.min(len, current.length - currentLength);
+			System.arraycopy(b, off, current, currentLength, n);
+			currentLength += n;
+			off += n;
+			len -= n;
+			if (currentLength == current.length) {
+				putFilledChunk(new Chunk(current, currentLength));
+				current = null;
+			}
+		}
+	}
+
+	private void startDigester() {
+		for (int i = 0; i < QUEUE_DEPTH + 1; i++) {
+			freeChunks.add(new byte[CHUNK_SIZE]);
+		}
+		digester = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Chunk chunk = filledChunks.take();
+						if (chunk == END) {
+							return;
+						}
+						md5.update(chunk.data, 0, chunk.length);
+						sha256.update(chunk.data, 0, chunk.length);
+						freeChunks.put(chunk.data);
+					}
+				} catch (final InterruptedException e) {
+					log.warn("Digest of " + name + " interrupted");
+				}
+			}
+		}, "digest-" + name);
+		digester.setDaemon(true);
+		digester.start();
+	}
+
+	private byte[] takeFreeChunk() throws IOException {
+		try {
+			return freeChunks.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while digesting " + name);
+		}
+	}
+
+	private void putFilledChunk(Chunk chunk) throws IOException {
+		try {
+			filledChunks.put(chunk);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while digesting " + name);
+		}
+	}
+
+	private synchronized void finish() throws IOException {
+		if (md5Hex != null) {
+			return;
+		}
+		if (digester != null) {
+			if (current != null && currentLength > 0) {
+				putFilledChunk(new Chunk(current, currentLength));
+			}
+			current = null;
+			putFilledChunk(END);
+			try {
+				digester.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while digesting " + name);
+			}
+		}
+		md5Hex = toHex(md5.digest());
+		sha256Hex = toHex(sha256.digest());
+		log.debug("Digest of " + name + " (" + bytes + " bytes): MD5 " + md5Hex + " SHA-256 " + sha256Hex);
+	}
+
+	private static String toHex(byte[] digest) {
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : digest) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 
+	 * @return the number of bytes digested
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * 
+	 * @return the MD5 in hexadecimal, or null if the stream was not closed yet
+	 */
+	public synchronized String getMd5() {
+		return md5Hex;
+	}
+
+	/**
+	 * 
+	 * @return the SHA-256 in hexadecimal, or null if the stream was not closed
+	 *         yet
+	 */
+	public synchronized String getSha256() {
+		return sha256Hex;
+	}
+}
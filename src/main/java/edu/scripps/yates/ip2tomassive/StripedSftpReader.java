@@ -0,0 +1,224 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Reads a big file over several SFTP channels at the same time. The file is
+ * split in chunks that are read concurrently, each one from its own offset, and
+ * that are written in order to the output stream. The number of chunks kept in
+ * memory waiting to be written is bounded.<br>
+ * A new instance is needed for every file.
+ * 
+ * @author salvador
+ *
+ */
+public class StripedSftpReader {
+	private final static Logger log = Logger.getLogger(StripedSftpReader.class);
+	private final SftpChannelPool channelPool;
+	private final int maxChannels;
+	private final int chunkSize;
+	private final Object lock = new Object();
+	private final TIntObjectHashMap<byte[]> readChunks = new TIntObjectHashMap<byte[]>();
+	private int nextChunkToRead;
+	private int nextChunkToWrite;
+	private Exception error;
+	/**
+	 * Whether the error was reading from a channel, so that the channels cannot
+	 * be reused
+	 */
+	private boolean readFailed;
+
+	/**
+	 * 
+	 * @param channelPool pool from which the additional channels are taken
+	 * @param maxChannels maximum number of channels used to read the file,
+	 *                    including the one provided in
+	 *                    {@link #read(ChannelSftp, String, long, long, OutputStream, SftpProgressMonitor)}
+	 * @param chunkSize   size in bytes of each chunk read from the file
+	 */
+	public StripedSftpReader(SftpChannelPool channelPool, int maxChannels, int chunkSize) {
+		this.channelPool = channelPool;
+		this.maxChannels = Math.max(1, maxChannels);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Reads the file from the offset to the end and writes it to the output
+	 * stream
+	 * 
+	 * @param channel      channel already borrowed by the caller. Additional
+	 *                     channels are taken from the pool only if they are
+	 *                     available without waiting
+	 * @param path         path to the file
+	 * @param offset       position in the file from which it is read
+	 * @param size         size of the file
+	 * @param outputStream
+	 * @param monitor      it may be null
+	 * @return the number of bytes written
+	 * @throws IOException   if the output stream cannot be written
+	 * @throws SftpException if the file cannot be read. The channel provided
+	 *                       should not be reused, and the additional channels
+	 *                       are closed
+	 */
+	public long read(ChannelSftp channel, final String path, final long offset, final long size,
+			OutputStream outputStream, SftpProgressMonitor monitor) throws IOException, SftpException {
+		final List<ChannelSftp> extraChannels = new ArrayList<ChannelSftp>();
+		for (int i = 1; i < maxChannels; i++) {
+			try {
+				final ChannelSftp extraChannel = channelPool.tryBorrowChannel();
+				if (extraChannel == null) {
+					break;
+				}
+				extraChannels.add(extraChannel);
+			} catch (final JSchException e) {
+				log.warn("Cannot open additional SFTP channel: " + e.getMessage());
+				break;
+			}
+		}
+		final List<ChannelSftp> channels = new ArrayList<ChannelSftp>();
+		channels.add(channel);
+		channels.addAll(extraChannels);
+		final int numChunks = (int) ((size - offset + chunkSize - 1) / chunkSize);
+		final int maxBufferedChunks = channels.size() * 2;
+		log.info("Reading " + path + " in " + numChunks + " chunks over " + channels.size() + " SFTP channels");
+		if (monitor != null) {
+			monitor.init(SftpProgressMonitor.GET, path, "", size - offset);
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(channels.size());
+		long written = 0l;
+		try {
+			for (final ChannelSftp readerChannel : channels) {
+				executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						readChunks(readerChannel, path, offset, size, numChunks, maxBufferedChunks);
+					}
+				});
+			}
+			for (int i = 0; i < numChunks; i++) {
+				final byte[] chunk = takeChunk(i, path);
+				outputStream.write(chunk);
+				written += chunk.length;
+				if (monitor != null) {
+					monitor.count(chunk.length);
+				}
+			}
+		} catch (final IOException e) {
+			setError(e, false);
+			throw e;
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (final ChannelSftp extraChannel : extraChannels) {
+				if (readFailed) {
+					channelPool.invalidateChannel(extraChannel);
+				} else {
+					channelPool.releaseChannel(extraChannel);
+				}
+			}
+			if (monitor != null) {
+				monitor.end();
+			}
+		}
+		return written;
+	}
+
+	private void readChunks(ChannelSftp channel, String path, long offset, long size, int numChunks,
+			int maxBufferedChunks) {
+		try {
+			while (true) {
+				int chunkIndex;
+				synchronized (lock) {
+					while (error == null && nextChunkToRead < numChunks
+							&& nextChunkToRead - nextChunkToWrite >= maxBufferedChunks) {
+						lock.wait();
+					}
+					if (error != null || nextChunkToRead >= numChunks) {
+						return;
+					}
+					chunkIndex = nextChunkToRead++;
+				}
+				final long start = offset + (long) chunkIndex * chunkSize;
+				final byte[] chunk = new byte[(int) Math.min(chunkSize, size - start)];
+				final InputStream inputStream = channel.get(path, null, start);
+				try {
+					int read = 0;
+					while (read < chunk.length) {
+						final int n = inputStream.read(chunk, read, chunk.length - read);
+						if (n < 0) {
+							throw new IOException("Unexpected end of file in " + path + " at position " + (start + read));
+						}
+						read += n;
+					}
+				} finally {
+					inputStream.close();
+				}
+				synchronized (lock) {
+					readChunks.put(chunkIndex, chunk);
+					lock.notifyAll();
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			setError(e, true);
+		} catch (final Exception e) {
+			setError(e, true);
+		}
+	}
+
+	private byte[] takeChunk(int chunkIndex, String path) throws IOException, SftpException {
+		synchronized (lock) {
+			while (error == null && !readChunks.containsKey(chunkIndex)) {
+				try {
+					lock.wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reading chunk " + chunkIndex);
+				}
+			}
+			if (error != null) {
+				if (error instanceof SftpException) {
+					throw (SftpException) error;
+				}
+				throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+						"Error reading chunk " + chunkIndex + " of " + path + ": " + error.getMessage(), error);
+			}
+			nextChunkToWrite++;
+			lock.notifyAll();
+			return readChunks.remove(chunkIndex);
+		}
+	}
+
+	private void setError(Exception e, boolean whileReading) {
+		synchronized (lock) {
+			if (error == null) {
+				error = e;
+			}
+			if (whileReading) {
+				readFailed = true;
+			}
+			lock.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TObjectLongHashMap;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * Append-only journal of the transfers of a remote paths file to a destination,
+ * so that an interrupted run can be restarted without checking again the
+ * entries that were already transferred.<br>
+ * Each line is a tab separated record:
+ * <ul>
+ * <li>PLANNED dataset fileType path: an entry of the remote paths file to be
+ * transferred</li>
+ * <li>DONE dataset fileType path size: an entry whose files were all
+ * transferred without errors</li>
+ * <li>FILE_STARTED destination offset: a file whose upload started at that
+ * offset</li>
+ * <li>FILE_DONE destination size checksum: a file completely uploaded, with
+ * its checksum as in {@link ChecksumManifest#getChecksum(String, String)} or -
+ * if it was not computed</li>
+ * </ul>
+ * The records are written to disk every {@link #SYNC_RECORDS} records or
+ * {@link #SYNC_INTERVAL} milliseconds, and when the journal is closed.
+ * 
+ * @author salvador
+ *
+ */
+public class TransferJournal {
+	private final static Logger log = Logger.getLogger(TransferJournal.class);
+	private static final String PLANNED = "PLANNED";
+	private static final String DONE = "DONE";
+	private static final String FILE_STARTED = "FILE_STARTED";
+	private static final String FILE_DONE = "FILE_DONE";
+	private static final String NO_CHECKSUM = "-";
+	private static final int SYNC_RECORDS = 100;
+	private static final long SYNC_INTERVAL = 5000l;
+	private final File journalFile;
+	private final THashSet<String> plannedTasks = new THashSet<String>();
+	private final TObjectLongHashMap<String> sizesByDoneTask = new TObjectLongHashMap<String>();
+	private final TObjectLongHashMap<String> sizesByDoneFile = new TObjectLongHashMap<String>();
+	private final THashMap<String, String> checksumsByDoneFile = new THashMap<String, String>();
+	private final FileOutputStream fileOutputStream;
+	private final Writer writer;
+	private int unsyncedRecords = 0;
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * 
+	 * @param remotePathsFile
+	 * @param destinationId   type, host and root folder of the destination
+	 * @return the journal file of the transfers of that remote paths file to
+	 *         that destination, in the same folder as the remote paths file
+	 */
+	public static File getJournalFile(File remotePathsFile, String destinationId) {
+		return new File(remotePathsFile.getAbsoluteFile().getParentFile(),
+				FilenameUtils.getBaseName(remotePathsFile.getName()) + "_journal_"
+						+ destinationId.replaceAll("[^A-Za-z0-9.-]+", "_") + ".txt");
+	}
+
+	/**
+	 * Reads the journal file if it exists and opens it to append new records
+	 * 
+	 * @param journalFile
+	 * @throws IOException
+	 */
+	public TransferJournal(File journalFile) throws IOException {
+		this.journalFile = journalFile;
+		if (journalFile.exists()) {
+			replay();
+		}
+		fileOutputStream = new FileOutputStream(journalFile, true);
+		writer = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
+	}
+
+	private void replay() throws IOException {
+		int numLines = 0;
+		final BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				numLines++;
+				final String[] split = line.split("\t");
+				try {
+					if (PLANNED.equals(split[0]) && split.length == 4) {
+						plannedTasks.add(getKey(split[1], split[2], split[3]));
+					} else if (DONE.equals(split[0]) && split.length == 5) {
+						sizesByDoneTask.put(getKey(split[1], split[2], split[3]), Long.valueOf(split[4]));
+					} else if (FILE_STARTED.equals(split[0]) && split.length == 3) {
+						sizesByDoneFile.remove(split[1]);
+						checksumsByDoneFile.remove(split[1]);
+					} else if (FILE_DONE.equals(split[0]) && split.length == 4) {
+						sizesByDoneFile.put(split[1], Long.valueOf(split[2]));
+						if (NO_CHECKSUM.equals(split[3])) {
+							checksumsByDoneFile.remove(split[1]);
+						} else {
+							checksumsByDoneFile.put(split[1], split[3]);
+						}
+					} else {
+						log.warn("Ignoring malformed line " + numLines + " in " + journalFile.getAbsolutePath());
+					}
+				} catch (final NumberFormatException e) {
+					// it may be the last line, written partially when the program was stopped
+					log.warn("Ignoring malformed line " + numLines + " in " + journalFile.getAbsolutePath());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		log.info(numLines + " records read from journal " + journalFile.getAbsolutePath() + ": "
+				+ sizesByDoneTask.size() + " entries and " + sizesByDoneFile.size() + " files already transferred");
+	}
+
+	/**
+	 * 
+	 * @param task
+	 * @return the transferred size of the task if it was completely transferred
+	 *         in a previous run, or -1 otherwise
+	 */
+	public synchronized long getDoneSize(TransferTask task) {
+		final String key = getKey(task);
+		if (sizesByDoneTask.containsKey(key)) {
+			return sizesByDoneTask.get(key);
+		}
+		return -1l;
+	}
+
+	/**
+	 * 
+	 * @param destinationPath
+	 * @return the size of the file if it was completely uploaded, or -1 otherwise
+	 */
+	public synchronized long getFileDoneSize(String destinationPath) {
+		if (sizesByDoneFile.containsKey(destinationPath)) {
+			return sizesByDoneFile.get(destinationPath);
+		}
+		return -1l;
+	}
+
+	/**
+	 * 
+	 * @param destinationPath
+	 * @return the checksum of the file if it was completely uploaded and its
+	 *         checksum was recorded, or null otherwise
+	 */
+	public synchronized String getFileChecksum(String destinationPath) {
+		return checksumsByDoneFile.get(destinationPath);
+	}
+
+	/**
+	 * 
+	 * @param destinationFolder
+	 * @return the checksums of the files completely uploaded under that folder,
+	 *         by their path relative to it
+	 */
+	public synchronized Map<String, String> getFileChecksumsUnder(String destinationFolder) {
+		final String prefix = destinationFolder.endsWith("/") ? destinationFolder : destinationFolder + "/";
+		final Map<String, String> ret = new THashMap<String, String>();
+		for (final String destinationPath : checksumsByDoneFile.keySet()) {
+			if (destinationPath.startsWith(prefix)) {
+				ret.put(destinationPath.substring(prefix.length()), checksumsByDoneFile.get(destinationPath));
+			}
+		}
+		return ret;
+	}
+
+	public synchronized void taskPlanned(TransferTask task) {
+		final String key = getKey(task);
+		if (!plannedTasks.contains(key) && !sizesByDoneTask.containsKey(key)) {
+			plannedTasks.add(key);
+			write(PLANNED + "\t" + key);
+		}
+	}
+
+	public synchronized void taskDone(TransferTask task, long size) {
+		final String key = getKey(task);
+		sizesByDoneTask.put(key, size);
+		write(DONE + "\t" + key + "\t" + size);
+	}
+
+	public synchronized void fileStarted(String destinationPath, long offset) {
+		sizesByDoneFile.remove(destinationPath);
+		checksumsByDoneFile.remove(destinationPath);
+		write(FILE_STARTED + "\t" + destinationPath + "\t" + offset);
+	}
+
+	/**
+	 * 
+	 * @param destinationPath
+	 * @param size
+	 * @param checksum        it may be null
+	 */
+	public synchronized void fileDone(String destinationPath, long size, String checksum) {
+		sizesByDoneFile.put(destinationPath, size);
+		if (checksum != null) {
+			checksumsByDoneFile.put(destinationPath, checksum);
+		} else {
+			checksumsByDoneFile.remove(destinationPath);
+		}
+		write(FILE_DONE + "\t" + destinationPath + "\t" + size + "\t" + (checksum != null ? checksum : NO_CHECKSUM));
+	}
+
+	/**
+	 * Writes the pending records to disk and closes the journal
+	 */
+	public synchronized void close() {
+		try {
+			sync();
+			writer.close();
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error closing journal " + journalFile.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	private void write(String record) {
+		try {
+			writer.write(record + "\n");
+			unsyncedRecords++;
+			if (unsyncedRecords >= SYNC_RECORDS || System.currentTimeMillis() - lastSync > SYNC_INTERVAL) {
+				sync();
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.warn("Error writing to journal " + journalFile.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	private void sync() throws IOException {
+		writer.flush();
+		fileOutputStream.getChannel().force(false);
+		unsyncedRecords = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	private String getKey(TransferTask task) {
+		return getKey(task.getDataset().getName(), task.getFileType().name(), task.getPath());
+	}
+
+	private String getKey(String datasetName, String fileType, String path) {
+		return datasetName + "\t" + fileType + "\t" + path;
+	}
+}
@@ -0,0 +1,342 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded ring of buffers between a thread that reads from the source and a
+ * thread that writes to the sink, so that a stall in one side doesn't stall the
+ * other until all the buffers are full (or empty).<br>
+ * Use {@link #wrap(OutputStream)} to write to a sink from a background thread,
+ * or {@link #wrap(InputStream)} to read from a source in a background thread.
+ * Each instance can be used for only one stream.
+ * 
+ * @author salvador
+ *
+ */
+public class TransferPipeline {
+	private final static Logger log = Logger.getLogger(TransferPipeline.class);
+	private static final long POLL_INTERVAL = 500;
+	private final String name;
+	private final ArrayBlockingQueue<Chunk> filledBuffers;
+	private final ArrayBlockingQueue<byte[]> freeBuffers;
+	private volatile Exception error;
+	private volatile boolean closed = false;
+	/**
+	 * set when the consumer stops reading before the end of the source
+	 */
+	private volatile boolean abandoned = false;
+	private int highWater = 0;
+	private long producerStallNanos = 0l;
+	private long consumerStallNanos = 0l;
+	private long bytes = 0l;
+
+	private static class Chunk {
+		private final byte[] data;
+		private final int length;
+
+		private Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static final Chunk END = new Chunk(null, -1);
+
+	/**
+	 * 
+	 * @param name       used in the logs and as the name of the background thread
+	 * @param depth      number of buffers
+	 * @param bufferSize size of each buffer in bytes
+	 */
+	public TransferPipeline(String name, int depth, int bufferSize) {
+		this.name = name;
+		filledBuffers = new ArrayBlockingQueue<Chunk>(depth + 1);
+		freeBuffers = new ArrayBlockingQueue<byte[]>(depth);
+		for (int i = 0; i < depth; i++) {
+			freeBuffers.add(new byte[bufferSize]);
+		}
+	}
+
+	/**
+	 * 
+	 * @param sink
+	 * @return an output stream whose data is written to the sink by a background
+	 *         thread. Closing it waits until everything is written and closes the
+	 *         sink.
+	 */
+	public OutputStream wrap(final OutputStream sink) {
+		final Thread writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Chunk chunk = takeFilled();
+						if (chunk == END) {
+							break;
+						}
+						sink.write(chunk.data, 0, chunk.length);
+						freeBuffers.put(chunk.data);
+					}
+					sink.flush();
+				} catch (final Exception e) {
+					setError(e);
+				}
+			}
+		}, name + "-writer");
+		writer.setDaemon(true);
+		writer.start();
+		return new OutputStream() {
+			private byte[] buffer;
+			private int position;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					if (buffer == null) {
+						buffer = takeFree();
+						position = 0;
+					}
+					final int n = Math.min(len, buffer.length - position);
+					System.arraycopy(b, off, buffer, position, n);
+					position += n;
+					off += n;
+					len -= n;
+					if (position == buffer.length) {
+						try {
+							putFilled(new Chunk(buffer, position));
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IOException("Interrupted while writing to " + name);
+						}
+						buffer = null;
+					}
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				try {
+					if (buffer != null && position > 0) {
+						putFilled(new Chunk(buffer, position));
+						buffer = null;
+					}
+					putFilled(END);
+					writer.join();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for " + name);
+				} finally {
+					sink.close();
+					reportStatistics();
+				}
+				checkError();
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param source
+	 * @return an input stream whose data is read from the source by a background
+	 *         thread. Closing it stops the background thread and closes the
+	 *         source.
+	 */
+	public InputStream wrap(final InputStream source) {
+		final Thread reader = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (!closed) {
+						final byte[] buffer = takeFree();
+						final int read = source.read(buffer);
+						if (read < 0) {
+							break;
+						}
+						putFilled(new Chunk(buffer, read));
+					}
+					putFilled(END);
+				} catch (final Exception e) {
+					setError(e);
+				}
+			}
+		}, name + "-reader");
+		reader.setDaemon(true);
+		reader.start();
+		return new InputStream() {
+			private Chunk chunk;
+			private int position;
+			private boolean finished = false;
+
+			@Override
+			public int read() throws IOException {
+				final byte[] b = new byte[1];
+				final int n = read(b, 0, 1);
+				if (n < 0) {
+					return -1;
+				}
+				return b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (chunk == null) {
+					if (finished) {
+						return -1;
+					}
+					try {
+						chunk = takeFilled();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while reading from " + name);
+					}
+					if (chunk == END) {
+						chunk = null;
+						finished = true;
+						return -1;
+					}
+					position = 0;
+				}
+				final int n = Math.min(len, chunk.length - position);
+				System.arraycopy(chunk.data, position, b, off, n);
+				position += n;
+				if (position == chunk.length) {
+					freeBuffers.offer(chunk.data);
+					chunk = null;
+				}
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				abandoned = true;
+				filledBuffers.clear();
+				try {
+					reader.join(POLL_INTERVAL * 10);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					source.close();
+					reportStatistics();
+				}
+			}
+		};
+	}
+
+	public synchronized int getHighWater() {
+		return highWater;
+	}
+
+	public synchronized long getProducerStallMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(producerStallNanos);
+	}
+
+	public synchronized long getConsumerStallMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(consumerStallNanos);
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	private byte[] takeFree() throws IOException {
+		final long t1 = System.nanoTime();
+		try {
+			while (true) {
+				checkError();
+				final byte[] buffer = freeBuffers.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (buffer != null) {
+					return buffer;
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a free buffer in " + name);
+		} finally {
+			synchronized (this) {
+				producerStallNanos += System.nanoTime() - t1;
+			}
+		}
+	}
+
+	private void putFilled(Chunk chunk) throws IOException, InterruptedException {
+		while (!filledBuffers.offer(chunk, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+			checkError();
+		}
+		synchronized (this) {
+			highWater = Math.max(highWater, filledBuffers.size());
+			if (chunk.length > 0) {
+				bytes += chunk.length;
+			}
+		}
+	}
+
+	private Chunk takeFilled() throws IOException, InterruptedException {
+		final long t1 = System.nanoTime();
+		try {
+			while (true) {
+				checkError();
+				final Chunk chunk = filledBuffers.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (chunk != null) {
+					return chunk;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				consumerStallNanos += System.nanoTime() - t1;
+			}
+		}
+	}
+
+	private void setError(Exception e) {
+		if (error == null) {
+			error = e;
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (abandoned) {
+			throw new IOException(name + " closed");
+		}
+		if (error != null) {
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			}
+			throw new IOException("Error in " + name + ": " + error.getMessage(), error);
+		}
+	}
+
+	/**
+	 * Logs the statistics of the pipeline and adds them to the
+	 * {@link MetricsRegistry}
+	 */
+	private void reportStatistics() {
+		log.info(name + ": " + getBytes() + " bytes, buffers high-water: " + getHighWater() + ", read stalled "
+				+ getProducerStallMillis() + " ms, write stalled " + getConsumerStallMillis() + " ms");
+		MetricsRegistry.getInstance().addPipelineStatistics(getHighWater(), getProducerStallMillis(),
+				getConsumerStallMillis());
+	}
+}
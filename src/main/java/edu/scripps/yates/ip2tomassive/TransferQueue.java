@@ -0,0 +1,70 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Queue of {@link TransferTask} shared by the transfer workers. A task is only
+ * handed out if its dataset has not reached the maximum number of concurrent
+ * transfers per dataset.
+ * 
+ * @author salvador
+ *
+ */
+public class TransferQueue {
+	private final LinkedList<TransferTask> pending = new LinkedList<TransferTask>();
+	private final TObjectIntHashMap<String> activeByDataset = new TObjectIntHashMap<String>();
+	private final int maxPerDataset;
+
+	/**
+	 * 
+	 * @param tasks
+	 * @param maxPerDataset maximum number of tasks of the same dataset running at
+	 *                      the same time. If <=0, there is no limit
+	 */
+	public TransferQueue(List<TransferTask> tasks, int maxPerDataset) {
+		pending.addAll(tasks);
+		this.maxPerDataset = maxPerDataset;
+	}
+
+	/**
+	 * Blocks until there is a task that can be started
+	 * 
+	 * @return the next task or null if there is nothing else to transfer
+	 * @throws InterruptedException
+	 */
+	public synchronized TransferTask take() throws InterruptedException {
+		while (!pending.isEmpty()) {
+			final Iterator<TransferTask> iterator = pending.iterator();
+			while (iterator.hasNext()) {
+				final TransferTask task = iterator.next();
+				final String datasetName = task.getDataset().getName();
+				if (maxPerDataset <= 0 || activeByDataset.get(datasetName) < maxPerDataset) {
+					iterator.remove();
+					activeByDataset.adjustOrPutValue(datasetName, 1, 1);
+					return task;
+				}
+			}
+			wait();
+		}
+		return null;
+	}
+
+	/**
+	 * To be called by the worker when the task returned by {@link #take()} is
+	 * finished, either successfully or not
+	 * 
+	 * @param task
+	 */
+	public synchronized void done(TransferTask task) {
+		activeByDataset.adjustValue(task.getDataset().getName(), -1);
+		notifyAll();
+	}
+
+	public synchronized int size() {
+		return pending.size();
+	}
+}
@@ -0,0 +1,152 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.files.FileUtils;
+
+/**
+ * Orders the {@link TransferTask}s before they are given to the transfer
+ * workers, according to a {@link Policy}
+ * 
+ * @author salvador
+ * 
+ */
+public class TransferScheduler {
+	private final static Logger log = Logger.getLogger(TransferScheduler.class);
+
+	public enum Policy {
+		/**
+		 * as they are read from the remote paths file, by dataset and
+		 * {@link FileType}
+		 */
+		FILE_ORDER(false),
+		/**
+		 * biggest first (longest processing time first), so that the big files
+		 * don't end up running alone at the end of the transfer
+		 */
+		LARGEST_FIRST(true),
+		/**
+		 * smallest first, so that as many files as possible are available early
+		 */
+		SMALLEST_FIRST(true),
+		/**
+		 * one task of each dataset in turn, so that all datasets progress at the
+		 * same time
+		 */
+		DATASET_ROUND_ROBIN(false);
+
+		private final boolean sizeNeeded;
+
+		private Policy(boolean sizeNeeded) {
+			this.sizeNeeded = sizeNeeded;
+		}
+
+		/**
+		 * 
+		 * @return whether the size of the tasks has to be known to apply this
+		 *         policy
+		 */
+		public boolean isSizeNeeded() {
+			return sizeNeeded;
+		}
+
+		/**
+		 * 
+		 * @param name
+		 * @return the policy with that name, ignoring case
+		 * @throws IllegalArgumentException if there is no such policy
+		 */
+		public static Policy getByName(String name) {
+			for (final Policy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name.trim())) {
+					return policy;
+				}
+			}
+			throw new IllegalArgumentException("Transfer order '" + name + "' not valid. Valid values are: "
+					+ Arrays.toString(values()));
+		}
+	}
+
+	private final Policy policy;
+
+	public TransferScheduler(Policy policy) {
+		this.policy = policy;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * 
+	 * @param tasks
+	 * @return a new list with the tasks in the order in which they should be
+	 *         transferred. Tasks with unknown size are considered the smallest
+	 *         ones.
+	 */
+	public List<TransferTask> schedule(List<TransferTask> tasks) {
+		final List<TransferTask> ret = new ArrayList<TransferTask>(tasks);
+		switch (policy) {
+		case LARGEST_FIRST:
+			// stable sort, so tasks of the same size keep the file order
+			Collections.sort(ret, new Comparator<TransferTask>() {
+
+				@Override
+				public int compare(TransferTask o1, TransferTask o2) {
+					return Long.compare(o2.getSize(), o1.getSize());
+				}
+			});
+			break;
+		case SMALLEST_FIRST:
+			Collections.sort(ret, new Comparator<TransferTask>() {
+
+				@Override
+				public int compare(TransferTask o1, TransferTask o2) {
+					return Long.compare(o1.getSize(), o2.getSize());
+				}
+			});
+			break;
+		case DATASET_ROUND_ROBIN:
+			final Map<String, List<TransferTask>> tasksByDataset = new LinkedHashMap<String, List<TransferTask>>();
+			for (final TransferTask task : tasks) {
+				final String datasetName = task.getDataset().getName();
+				if (!tasksByDataset.containsKey(datasetName)) {
+					tasksByDataset.put(datasetName, new ArrayList<TransferTask>());
+				}
+				tasksByDataset.get(datasetName).add(task);
+			}
+			ret.clear();
+			int index = 0;
+			while (ret.size() < tasks.size()) {
+				for (final List<TransferTask> datasetTasks : tasksByDataset.values()) {
+					if (index < datasetTasks.size()) {
+						ret.add(datasetTasks.get(index));
+					}
+				}
+				index++;
+			}
+			break;
+		default:
+			break;
+		}
+		if (policy.isSizeNeeded() && !ret.isEmpty()) {
+			long totalSize = 0l;
+			for (final TransferTask task : ret) {
+				totalSize += Math.max(0l, task.getSize());
+			}
+			final TransferTask first = ret.get(0);
+			log.info(ret.size() + " transfers (" + FileUtils.getDescriptiveSizeFromBytes(totalSize)
+					+ ") scheduled with policy " + policy + ". First: " + first + " ("
+					+ FileUtils.getDescriptiveSizeFromBytes(Math.max(0l, first.getSize())) + ")");
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,57 @@
+package edu.scripps.yates.ip2tomassive;
+
+/**
+ * A single entry of a {@link Dataset} to be transferred: one path (a file or a
+ * wildcard such as path/to/files/*.raw) of a certain {@link FileType}
+ * 
+ * @author salvador
+ *
+ */
+public class TransferTask {
+	private final Dataset dataset;
+	private final FileType fileType;
+	private final String path;
+	private final String outputFileName;
+	private long size = -1l;
+
+	public TransferTask(Dataset dataset, FileType fileType, String path, String outputFileName) {
+		this.dataset = dataset;
+		this.fileType = fileType;
+		this.path = path;
+		this.outputFileName = outputFileName;
+	}
+
+	public Dataset getDataset() {
+		return dataset;
+	}
+
+	public FileType getFileType() {
+		return fileType;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getOutputFileName() {
+		return outputFileName;
+	}
+
+	/**
+	 * 
+	 * @return the size of the files of the task in the source, or -1 if it is
+	 *         not known
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	@Override
+	public String toString() {
+		return dataset.getName() + "/" + fileType.name() + ": " + path;
+	}
+}
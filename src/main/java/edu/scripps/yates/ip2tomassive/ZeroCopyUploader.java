@@ -0,0 +1,199 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.log4j.Logger;
+
+/**
+ * Uploads local files to an FTP server without copying them through heap
+ * buffers: the passive data connection is opened as a {@link SocketChannel}
+ * and the file is sent with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, so that the kernel copies it
+ * directly from the page cache to the socket.<br>
+ * If the file has to be digested while it is uploaded, it is read into a
+ * direct buffer that is written to the socket, and only copied to the heap to
+ * be digested.<br>
+ * The data connection is opened like {@link FTPClient} does in passive mode, so
+ * it is only possible with plain FTP clients in passive mode. Once the file is
+ * uploaded, the transfer has to be completed with
+ * {@link FTPClient#completePendingCommand()}.
+ *
+ * @author salvador
+ *
+ */
+public class ZeroCopyUploader {
+	private final static Logger log = Logger.getLogger(ZeroCopyUploader.class);
+	private static final Pattern PASSIVE_ADDRESS = Pattern
+			.compile("(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3})");
+	/**
+	 * Maximum number of bytes sent in each call to transferTo, so that the
+	 * progress is reported while big files are uploaded
+	 */
+	private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024l;
+	private final int bufferSize;
+
+	/**
+	 * Receives the number of bytes written to the data connection
+	 */
+	public interface ProgressListener {
+		public void bytesWritten(long numBytes);
+	}
+
+	/**
+	 *
+	 * @param bufferSize size of the direct buffer used when the file has to be
+	 *                   digested
+	 */
+	public ZeroCopyUploader(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 *
+	 * @param ftp
+	 * @return true if the data connections of that client can be opened as
+	 *         socket channels
+	 */
+	public boolean isSupported(FTPClient ftp) {
+		return !(ftp instanceof FTPSClient)
+				&& ftp.getDataConnectionMode() == FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE;
+	}
+
+	/**
+	 * Uploads the file from offset, appending to the remote file if offset is
+	 * greater than 0
+	 *
+	 * @param ftp
+	 * @param file
+	 * @param remotePath
+	 * @param offset
+	 * @param digester   if not null, the whole file is digested, including the
+	 *                   first offset bytes, which are not uploaded
+	 * @param listener   if not null, it receives the bytes uploaded
+	 * @return the number of bytes uploaded
+	 * @throws IOException
+	 */
+	public long upload(FTPClient ftp, File file, String remotePath, long offset, StreamDigester digester,
+			ProgressListener listener) throws IOException {
+		final SocketChannel dataChannel = openDataChannel(ftp);
+		try {
+			final int reply = offset > 0 ? ftp.appe(remotePath) : ftp.stor(remotePath);
+			if (!FTPReply.isPositivePreliminary(reply)) {
+				throw new IOException("Cannot upload '" + remotePath + "': " + ftp.getReplyString());
+			}
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel fileChannel = randomAccessFile.getChannel();
+				if (digester == null) {
+					return transferTo(fileChannel, offset, dataChannel, listener);
+				}
+				final OutputStream digesterSink = digester.wrap(NullOutputStream.NULL_OUTPUT_STREAM);
+				try {
+					return copyWithDirectBuffer(fileChannel, offset, dataChannel, digesterSink, listener);
+				} finally {
+					digesterSink.close();
+				}
+			} finally {
+				randomAccessFile.close();
+			}
+		} finally {
+			dataChannel.close();
+		}
+	}
+
+	private long transferTo(FileChannel fileChannel, long offset, SocketChannel dataChannel,
+			ProgressListener listener) throws IOException {
+		final long size = fileChannel.size();
+		long position = offset;
+		while (position < size) {
+			final long transferred = fileChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position),
+					dataChannel);
+			position += transferred;
+			if (listener != null) {
+				listener.bytesWritten(transferred);
+			}
+		}
+		return position - offset;
+	}
+
+	/**
+	 * Reads the whole file into a direct buffer, digesting it, and writes to
+	 * the data connection the part from offset
+	 */
+	private long copyWithDirectBuffer(FileChannel fileChannel, long offset, SocketChannel dataChannel,
+			OutputStream digesterSink, ProgressListener listener) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+		final byte[] heapBuffer = new byte[bufferSize];
+		long position = 0l;
+		long written = 0l;
+		while (fileChannel.read(buffer, position) != -1) {
+			buffer.flip();
+			final int length = buffer.remaining();
+			buffer.get(heapBuffer, 0, length);
+			digesterSink.write(heapBuffer, 0, length);
+			if (position + length > offset) {
+				buffer.position((int) Math.max(0l, offset - position));
+				while (buffer.hasRemaining()) {
+					final int n = dataChannel.write(buffer);
+					written += n;
+					if (listener != null) {
+						listener.bytesWritten(n);
+					}
+				}
+			}
+			position += length;
+			buffer.clear();
+		}
+		return written;
+	}
+
+	/**
+	 * Sends PASV and connects to the address in the reply. If the server
+	 * replies with a private address that is not the one of the control
+	 * connection, the address of the control connection is used, as
+	 * {@link FTPClient} does behind a NAT.
+	 *
+	 * @param ftp
+	 * @return
+	 * @throws IOException
+	 */
+	private SocketChannel openDataChannel(FTPClient ftp) throws IOException {
+		if (ftp.pasv() != FTPReply.ENTERING_PASSIVE_MODE) {
+			throw new IOException("Cannot enter passive mode: " + ftp.getReplyString());
+		}
+		final Matcher matcher = PASSIVE_ADDRESS.matcher(ftp.getReplyString());
+		if (!matcher.find()) {
+			throw new IOException("Cannot parse passive mode reply: " + ftp.getReplyString());
+		}
+		InetAddress host = InetAddress.getByName(
+				matcher.group(1) + "." + matcher.group(2) + "." + matcher.group(3) + "." + matcher.group(4));
+		final int port = (Integer.valueOf(matcher.group(5)) << 8) + Integer.valueOf(matcher.group(6));
+		final InetAddress controlHost = ftp.getRemoteAddress();
+		if (host.isSiteLocalAddress() && !controlHost.isSiteLocalAddress()) {
+			log.debug("Using " + controlHost + " instead of passive address " + host);
+			host = controlHost;
+		}
+		final SocketChannel dataChannel = SocketChannel.open();
+		try {
+			dataChannel.socket().connect(new InetSocketAddress(host, port), ftp.getConnectTimeout());
+		} catch (final IOException e) {
+			dataChannel.close();
+			throw e;
+		}
+		return dataChannel;
+	}
+}
@@ -0,0 +1,143 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedFtpServer;
+
+/**
+ * Checksum manifests of the datasets, that have to keep the checksums of the
+ * files that were transferred in previous runs and leave out the ones of the
+ * files whose checksums were not computed
+ *
+ * @author salvador
+ *
+ */
+public class ChecksumManifestTest {
+	private static final int[] FILE_SIZES = { 1000, 3 * 1024 * 1024, 2000 };
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private TransferTestProject project;
+	private File massiveFolder;
+	private UploadRecordingFileSystemFactory massiveFileSystem;
+	private EmbeddedFtpServer massiveServer;
+	private File propertiesFile;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new TransferTestProject(temporaryFolder.newFolder("project"), FILE_SIZES);
+		massiveFolder = temporaryFolder.newFolder("massive");
+		massiveFileSystem = new UploadRecordingFileSystemFactory();
+		massiveServer = new EmbeddedFtpServer(massiveFolder, 16, massiveFileSystem);
+		final Properties properties = project.getMassiveProperties(massiveServer);
+		properties.setProperty(IP2ToMassive.TRANSFER_THREADS, "1");
+		// without the journal, the previous checksums are only in the manifest
+		properties.setProperty(IP2ToMassive.TRANSFER_JOURNAL, "false");
+		propertiesFile = project.writeProperties(properties, "massive");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		massiveServer.stop();
+		project.stop();
+	}
+
+	@Test
+	public void testMerge() {
+		final ChecksumManifest previous = new ChecksumManifest();
+		previous.add("MS2/a.ms2", "md5a", "sha256a");
+		previous.add("MS2/b.ms2", "md5b", "sha256b");
+		previous.add("MS2/c.ms2", "md5c", "sha256c");
+
+		final ChecksumManifest manifest = new ChecksumManifest();
+		manifest.add("MS2/a.ms2", "md5a2", "sha256a2");
+		manifest.addWithoutChecksums("MS2/b.ms2");
+		assertEquals(1, manifest.merge(previous.getMd5Text(), previous.getSha256Text()));
+		assertEquals("md5a2  MS2/a.ms2\nmd5c  MS2/c.ms2\n", manifest.getMd5Text());
+		assertEquals("sha256a2  MS2/a.ms2\nsha256c  MS2/c.ms2\n", manifest.getSha256Text());
+		assertEquals(Collections.singleton("MS2/b.ms2"), manifest.getPathsWithoutChecksums());
+		assertEquals(0, manifest.merge(null, null));
+	}
+
+	@Test
+	public void testManifestKeepsTheFilesOfPreviousRuns() throws Exception {
+		project.transferToMassive(propertiesFile);
+		assertEquals(getExpectedMd5Text(null), readManifest());
+
+		FileUtils.forceDelete(getFileInMassive(1));
+		project.transferToMassive(propertiesFile);
+		assertEquals(getExpectedMd5Text(null), readManifest());
+	}
+
+	@Test
+	public void testManifestLeavesOutFilesWithoutChecksums() throws Exception {
+		project.transferToMassive(propertiesFile);
+		assertEquals(getExpectedMd5Text(null), readManifest());
+
+		// the file is resumed in the next run, so its checksums are not computed
+		FileUtils.forceDelete(getFileInMassive(1));
+		massiveFileSystem.dropNextUploadAfter(1024 * 1024l);
+		project.transferToMassive(propertiesFile);
+		assertTrue(getFileInMassive(1).length() < FILE_SIZES[1]);
+		project.transferToMassive(propertiesFile);
+		assertEquals(FILE_SIZES[1], getFileInMassive(1).length());
+
+		final String md5Text = readManifest();
+		assertEquals(getExpectedMd5Text(getFileName(1)), md5Text);
+		assertFalse(md5Text.contains(getFileName(1)));
+	}
+
+	private String readManifest() throws IOException {
+		final File datasetFolder = getFileInMassive(0).getParentFile().getParentFile();
+		return FileUtils.readFileToString(new File(datasetFolder, ChecksumManifest.MD5_FILE_NAME),
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 *
+	 * @param excludedFileName file that must not be in the manifest, or null
+	 * @return the content of the MD5 manifest of the dataset
+	 */
+	private String getExpectedMd5Text(String excludedFileName) throws NoSuchAlgorithmException {
+		final ChecksumManifest manifest = new ChecksumManifest();
+		for (final Map.Entry<String, byte[]> entry : project.getContentsByFileName().entrySet()) {
+			if (!entry.getKey().equals(excludedFileName)) {
+				manifest.add(FileType.MS2.name() + "/" + entry.getKey(), getMd5(entry.getValue()), "");
+			}
+		}
+		return manifest.getMd5Text();
+	}
+
+	private String getMd5(byte[] content) throws NoSuchAlgorithmException {
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : MessageDigest.getInstance("MD5").digest(content)) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private String getFileName(int index) {
+		return project.getContentsByFileName().keySet().toArray(new String[0])[index];
+	}
+
+	private File getFileInMassive(int index) {
+		return new File(massiveFolder, project.getPathInDestination(getFileName(index)));
+	}
+}
@@ -0,0 +1,141 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Adjustments of the limit of the {@link ConcurrencyController}, that are done
+ * here by calling {@link ConcurrencyController#adjust()} instead of waiting for
+ * the interval
+ *
+ * @author salvador
+ *
+ */
+public class ConcurrencyControllerTest {
+	private static final long NEVER = TimeUnit.DAYS.toMillis(1);
+	private ConcurrencyController controller;
+
+	@After
+	public void tearDown() {
+		if (controller != null) {
+			controller.close();
+		}
+	}
+
+	@Test
+	public void testIncreaseWhenSaturated() throws InterruptedException {
+		controller = new ConcurrencyController(1, 8, 2, NEVER);
+		acquire(2);
+		adjust(1000000l);
+		assertEquals(3, controller.getLimit());
+		assertEquals(1, controller.getNumIncreases());
+	}
+
+	@Test
+	public void testKeptWhenNotSaturated() throws InterruptedException {
+		controller = new ConcurrencyController(1, 8, 3, NEVER);
+		acquire(2);
+		adjust(1000000l);
+		assertEquals(3, controller.getLimit());
+		assertEquals(0, controller.getNumIncreases());
+		assertEquals(0, controller.getNumDecreases());
+	}
+
+	@Test
+	public void testIncreaseWhileThroughputImproves() throws InterruptedException {
+		controller = new ConcurrencyController(1, 8, 2, NEVER);
+		acquire(2);
+		adjust(1000000l);
+		acquire(1);
+		adjust(1000000000l);
+		assertEquals(4, controller.getLimit());
+		assertEquals(2, controller.getNumIncreases());
+	}
+
+	@Test
+	public void testDecreaseOnPlateau() throws InterruptedException {
+		controller = new ConcurrencyController(1, 8, 4, NEVER);
+		acquire(4);
+		adjust(1000000000l);
+		assertEquals(5, controller.getLimit());
+		acquire(1);
+		adjust(1000l);
+		// a quarter less
+		assertEquals(3, controller.getLimit());
+		assertEquals(1, controller.getNumDecreases());
+	}
+
+	@Test
+	public void testHalvedOnErrors() throws InterruptedException {
+		controller = new ConcurrencyController(3, 16, 8, NEVER);
+		acquire(8);
+		controller.recordError();
+		adjust(1000000l);
+		assertEquals(4, controller.getLimit());
+		controller.recordError();
+		adjust(1000000l);
+		// not below the minimum
+		assertEquals(3, controller.getLimit());
+		assertEquals(2, controller.getNumDecreases());
+	}
+
+	@Test
+	public void testNotAboveMaximum() throws InterruptedException {
+		controller = new ConcurrencyController(1, 2, 2, NEVER);
+		acquire(2);
+		adjust(1000000l);
+		assertEquals(2, controller.getLimit());
+		assertEquals(0, controller.getNumIncreases());
+	}
+
+	@Test
+	public void testAcquireWaitsForTheLimit() throws InterruptedException {
+		controller = new ConcurrencyController(1, 8, 1, NEVER);
+		acquire(1);
+		final CountDownLatch acquired = new CountDownLatch(1);
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					controller.acquire();
+					acquired.countDown();
+				} catch (final InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.start();
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		// an increase of the limit lets it start
+		adjust(1000000l);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		assertEquals(2, controller.getActive());
+		thread.join();
+	}
+
+	private void acquire(int numTransfers) throws InterruptedException {
+		for (int i = 0; i < numTransfers; i++) {
+			controller.acquire();
+		}
+	}
+
+	/**
+	 * Reports the bytes transferred in an interval of about 10 ms and adjusts
+	 * the limit
+	 *
+	 * @param numBytes
+	 * @throws InterruptedException
+	 */
+	private void adjust(long numBytes) throws InterruptedException {
+		Thread.sleep(10);
+		controller.addBytes(numBytes);
+		controller.adjust();
+	}
+}
@@ -0,0 +1,103 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedFtpServer;
+
+/**
+ * Clients borrowed from the {@link FTPClientPool} by several threads, and idle
+ * clients that are discarded when they are broken
+ *
+ * @author salvador
+ *
+ */
+public class FTPClientPoolTest {
+	private static final int MAX_CONNECTIONS = 2;
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private EmbeddedFtpServer server;
+	private FTPClientPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new EmbeddedFtpServer(temporaryFolder.newFolder("massive"), 16);
+		pool = FTPClientPool.getInstance(server.getHost(), server.getPort(), EmbeddedFtpServer.USER_NAME,
+				EmbeddedFtpServer.PASSWORD, MAX_CONNECTIONS, MAX_CONNECTIONS, 60 * 1000l);
+	}
+
+	@After
+	public void tearDown() {
+		pool.close();
+		server.stop();
+	}
+
+	@Test
+	public void testBrokenIdleClientDiscarded() throws Exception {
+		final FTPClient client = pool.borrowClient();
+		pool.releaseClient(client);
+		// the connection is lost while the client is idle
+		client.disconnect();
+
+		final FTPClient nextClient = pool.borrowClient();
+		try {
+			assertNotSame(client, nextClient);
+			assertTrue(nextClient.sendNoOp());
+			assertEquals(2, pool.getNumLogins());
+		} finally {
+			pool.releaseClient(nextClient);
+		}
+	}
+
+	@Test
+	public void testConcurrentBorrows() throws Exception {
+		final AtomicInteger numErrors = new AtomicInteger();
+		final AtomicInteger numBorrowed = new AtomicInteger();
+		final AtomicInteger maxBorrowed = new AtomicInteger();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 10; j++) {
+							final FTPClient client = pool.borrowClient();
+							maxBorrowed.accumulateAndGet(numBorrowed.incrementAndGet(), Math::max);
+							final boolean noOp = client.sendNoOp();
+							numBorrowed.decrementAndGet();
+							if (noOp) {
+								pool.releaseClient(client);
+							} else {
+								numErrors.incrementAndGet();
+								pool.invalidateClient(client);
+							}
+						}
+					} catch (final Exception e) {
+						e.printStackTrace();
+						numErrors.incrementAndGet();
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, numErrors.get());
+		assertTrue(maxBorrowed.get() <= MAX_CONNECTIONS);
+		assertTrue(pool.getNumLogins() <= MAX_CONNECTIONS);
+	}
+}
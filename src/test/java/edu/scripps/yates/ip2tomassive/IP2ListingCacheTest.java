@@ -0,0 +1,163 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jcraft.jsch.ChannelSftp;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedSftpServer;
+
+/**
+ * Listings of a folder served from the {@link IP2ListingCache} within its TTL,
+ * revalidated with the modification time of the folder after it, and kept in
+ * its file between runs
+ *
+ * @author salvador
+ *
+ */
+public class IP2ListingCacheTest {
+	private static final String FOLDER = "/data";
+	private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private File folder;
+	private File cacheFile;
+	private EmbeddedSftpServer server;
+	private SftpChannelPool pool;
+	private ChannelSftp channel;
+	private final AtomicInteger numListings = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		final File root = temporaryFolder.newFolder("ip2");
+		folder = new File(root, FOLDER);
+		FileUtils.writeStringToFile(new File(folder, "a.raw"), "a", "UTF-8");
+		FileUtils.writeStringToFile(new File(folder, "b.raw"), "bb", "UTF-8");
+		// a folder modified in the same second in which it is listed is always
+		// listed again
+		setModified(folder, System.currentTimeMillis() - ONE_HOUR);
+		cacheFile = new File(temporaryFolder.getRoot(), "listings.txt");
+		server = new EmbeddedSftpServer(root);
+		server.addSftpEventListener(new SftpEventListener() {
+
+			@Override
+			public void received(ServerSession session, int type, int id) {
+				if (type == SftpConstants.SSH_FXP_OPENDIR) {
+					numListings.incrementAndGet();
+				}
+			}
+		});
+		pool = SftpChannelPool.getInstance(server.getHost(), EmbeddedSftpServer.USER_NAME,
+				EmbeddedSftpServer.PASSWORD, server.getPort(), 1, 1, 60 * 1000l);
+		channel = pool.borrowChannel();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.releaseChannel(channel);
+		pool.close();
+		server.stop();
+	}
+
+	@Test
+	public void testFromCacheWithinTtl() throws Exception {
+		final IP2ListingCache cache = new IP2ListingCache(cacheFile, ONE_HOUR);
+		assertEquals("[a.raw, b.raw]", getNames(cache.list(channel, FOLDER)));
+		addFile("c.raw");
+		assertEquals("[a.raw, b.raw]", getNames(cache.list(channel, FOLDER + "/")));
+		assertEquals(1, numListings.get());
+	}
+
+	@Test
+	public void testRevalidatedAfterTtl() throws Exception {
+		final IP2ListingCache cache = new IP2ListingCache(cacheFile, 0l);
+		cache.list(channel, FOLDER);
+		// a file rewritten doesn't change the modification time of the folder
+		FileUtils.writeStringToFile(new File(folder, "a.raw"), "aaa", "UTF-8");
+		assertEquals("[a.raw, b.raw]", getNames(cache.list(channel, FOLDER)));
+		assertEquals(1, numListings.get());
+	}
+
+	@Test
+	public void testListedAgainWhenChangedAfterTtl() throws Exception {
+		final IP2ListingCache cache = new IP2ListingCache(cacheFile, 0l);
+		cache.list(channel, FOLDER);
+		addFile("c.raw");
+		assertEquals("[a.raw, b.raw, c.raw]", getNames(cache.list(channel, FOLDER)));
+		assertEquals(2, numListings.get());
+	}
+
+	@Test
+	public void testKeptBetweenRuns() throws Exception {
+		final IP2ListingCache cache = new IP2ListingCache(cacheFile, ONE_HOUR);
+		cache.list(channel, FOLDER);
+		cache.save();
+		assertTrue(cacheFile.exists());
+
+		final IP2ListingCache nextRun = new IP2ListingCache(cacheFile, ONE_HOUR);
+		final List<IP2ListingCache.Entry> entries = nextRun.list(channel, FOLDER);
+		assertEquals("[a.raw, b.raw]", getNames(entries));
+		for (final IP2ListingCache.Entry entry : entries) {
+			assertEquals(new File(folder, entry.getFilename()).length(), entry.getSize());
+		}
+		assertEquals(1, numListings.get());
+
+		// after the TTL, it is revalidated with the folder in IP2
+		addFile("c.raw");
+		assertEquals("[a.raw, b.raw, c.raw]",
+				getNames(new IP2ListingCache(cacheFile, 0l).list(channel, FOLDER)));
+		assertEquals(2, numListings.get());
+	}
+
+	@Test
+	public void testWithoutCacheFile() throws Exception {
+		final IP2ListingCache cache = new IP2ListingCache(null, ONE_HOUR);
+		cache.list(channel, FOLDER);
+		cache.list(channel, FOLDER);
+		assertEquals(2, numListings.get());
+		cache.save();
+		assertEquals(0, temporaryFolder.getRoot().listFiles((dir, name) -> name.startsWith("listings")).length);
+	}
+
+	/**
+	 * Adds a file to the folder, changing its modification time to another one
+	 * in the past
+	 *
+	 * @param fileName
+	 * @throws Exception
+	 */
+	private void addFile(String fileName) throws Exception {
+		FileUtils.writeStringToFile(new File(folder, fileName), fileName, "UTF-8");
+		setModified(folder, System.currentTimeMillis() - ONE_HOUR / 2);
+	}
+
+	private void setModified(File file, long millis) {
+		assertTrue(file.setLastModified(millis));
+	}
+
+	private String getNames(List<IP2ListingCache.Entry> entries) {
+		final List<String> ret = new ArrayList<String>();
+		for (final IP2ListingCache.Entry entry : entries) {
+			ret.add(entry.getFilename());
+		}
+		Collections.sort(ret);
+		return ret.toString();
+	}
+}
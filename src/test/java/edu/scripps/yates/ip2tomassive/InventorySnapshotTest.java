@@ -0,0 +1,195 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Snapshot of the experiments of a project, and the remote paths files
+ * generated incrementally by {@link InputFileGenerator} with it, that only have
+ * the files that are new or changed since the previous run
+ *
+ * @author salvador
+ *
+ */
+public class InventorySnapshotTest {
+	private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		final ExperimentScan scan = new ExperimentScan("/project/exp1_10001");
+		scan.setSpectraMTime(1500000000);
+		scan.addPath(FileType.MS2, "/project/exp1_10001/spectra/a.ms2");
+		scan.addPath(FileType.RAW, "/project/exp1_10001/spectra/a.raw");
+		scan.addSearch(new Search(5, "/project/exp1_10001/search/search_5/DTASelect-filter.txt", "-p 1 -y 2", 1234l,
+				1500000001));
+		final File snapshotFile = new File(temporaryFolder.getRoot(), "snapshot.txt");
+		InventorySnapshot.write(snapshotFile, Arrays.asList(scan));
+
+		final InventorySnapshot snapshot = new InventorySnapshot(snapshotFile);
+		final ExperimentScan readScan = snapshot.getExperimentScan("/project/exp1_10001");
+		assertEquals(1500000000, readScan.getSpectraMTime());
+		assertEquals(scan.getPaths(FileType.MS2), readScan.getPaths(FileType.MS2));
+		assertEquals(scan.getPaths(FileType.RAW), readScan.getPaths(FileType.RAW));
+		final Search search = snapshot.getSearch("/project/exp1_10001/search/search_5/DTASelect-filter.txt");
+		assertSame(readScan.getSearches().get(0), search);
+		assertEquals(5, search.getId());
+		assertEquals("-p 1 -y 2", search.getParameters());
+		assertEquals(1234l, search.getSize());
+		assertEquals(1500000001, search.getMTime());
+		assertNull(snapshot.getExperimentScan("/project/exp2_10002"));
+	}
+
+	@Test
+	public void testMalformed() throws IOException {
+		final File snapshotFile = new File(temporaryFolder.getRoot(), "snapshot.txt");
+		FileUtils.writeStringToFile(snapshotFile, "E\t/project/exp1_10001\tnot a time\n", StandardCharsets.UTF_8);
+		try {
+			new InventorySnapshot(snapshotFile);
+			fail("a malformed snapshot must not be read");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().contains("line 1"));
+		}
+	}
+
+	@Test
+	public void testIncrementalRemotePaths() throws Exception {
+		final TransferTestProject project = new TransferTestProject(temporaryFolder.newFolder("project"), 1000, 2000);
+		final AtomicInteger numOpens = new AtomicInteger();
+		project.getIP2Server().addSftpEventListener(new SftpEventListener() {
+
+			@Override
+			public void received(ServerSession session, int type, int id) {
+				if (type == SftpConstants.SSH_FXP_OPEN) {
+					numOpens.incrementAndGet();
+				}
+			}
+		});
+		try {
+			final String ms2Path1 = project.getPathInIP2(TransferTestProject.DATASET_NAME + "_1.ms2");
+			final String ms2Path2 = project.getPathInIP2(TransferTestProject.DATASET_NAME + "_2.ms2");
+			final File spectraFolder = project.getFileInIP2(FilenameUtils.getFullPathNoEndSeparator(ms2Path1));
+			final String experimentPath = FilenameUtils.getFullPathNoEndSeparator(FilenameUtils
+					.getFullPathNoEndSeparator(ms2Path1));
+			final String dtaSelectPath = experimentPath + "/search/search_5/"
+					+ FileType.DTASELECT.getDefaultFileName();
+			// the parameters of an empty DTASelect file are the project name
+			final File dtaSelectFile = project.getFileInIP2(dtaSelectPath);
+			FileUtils.touch(dtaSelectFile);
+			// modification times in the same second in which they are read are not
+			// trusted
+			setModified(dtaSelectFile, System.currentTimeMillis() - ONE_HOUR);
+			setModified(spectraFolder, System.currentTimeMillis() - ONE_HOUR);
+
+			final Properties properties = project.getProperties();
+			properties.setProperty(IP2ToMassive.INCREMENTAL_PATHS, "true");
+			final File propertiesFile = project.writeProperties(properties, "generator");
+			final InputFileGenerator generator = new InputFileGenerator(propertiesFile, true, true);
+
+			File newPathsFile = generator.run();
+			assertEquals("generator_paths_new.txt", newPathsFile.getName());
+			assertEquals(getPaths(ms2Path1, ms2Path2, dtaSelectPath), readPaths(newPathsFile));
+			assertEquals(1, numOpens.get());
+			final File remotePathsFile = new File(propertiesFile.getParentFile(), "generator_paths.txt");
+			assertTrue(InventorySnapshot.getSnapshotFile(remotePathsFile).exists());
+
+			// nothing changed, so nothing is new and the DTASelect file is not read
+			// again
+			newPathsFile = generator.run();
+			assertEquals(getPaths(), readPaths(newPathsFile));
+			assertEquals(1, numOpens.get());
+
+			// a new file in the spectra folder, and the DTASelect file rewritten
+			final String ms2Path3 = project.getPathInIP2(TransferTestProject.DATASET_NAME + "_3.ms2");
+			FileUtils.writeStringToFile(project.getFileInIP2(ms2Path3), "3", StandardCharsets.UTF_8);
+			setModified(spectraFolder, System.currentTimeMillis() - ONE_HOUR / 2);
+			setModified(dtaSelectFile, System.currentTimeMillis() - ONE_HOUR / 2);
+			newPathsFile = generator.run();
+			assertEquals(getPaths(ms2Path3, dtaSelectPath), readPaths(newPathsFile));
+			assertEquals(2, numOpens.get());
+
+			// the complete remote paths file has all of them
+			assertEquals(getPaths(ms2Path1, ms2Path2, ms2Path3, dtaSelectPath),
+					readPaths(remotePathsFile));
+		} finally {
+			project.stop();
+		}
+	}
+
+	@Test
+	public void testFailedIncrementalRun() throws Exception {
+		final TransferTestProject project = new TransferTestProject(temporaryFolder.newFolder("project"), 1000);
+		final Properties properties = project.getProperties();
+		properties.setProperty(IP2ToMassive.INCREMENTAL_PATHS, "true");
+		final File propertiesFile = project.writeProperties(properties, "generator");
+		final InputFileGenerator generator = new InputFileGenerator(propertiesFile, true, true);
+		final File newPathsFile;
+		try {
+			newPathsFile = generator.run();
+		} finally {
+			project.stop();
+		}
+		final File remotePathsFile = new File(propertiesFile.getParentFile(), "generator_paths.txt");
+		final String remotePaths = FileUtils.readFileToString(remotePathsFile, StandardCharsets.UTF_8);
+
+		// IP2 is not there anymore
+		try {
+			generator.run();
+			fail("a failed incremental run must not return the previous remote paths file");
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		assertEquals(remotePaths, FileUtils.readFileToString(remotePathsFile, StandardCharsets.UTF_8));
+		assertFalse(newPathsFile.exists());
+		assertFalse(new File(remotePathsFile.getAbsolutePath() + ".tmp").exists());
+	}
+
+	private void setModified(File file, long millis) {
+		assertTrue(file.setLastModified(millis));
+	}
+
+	private Set<String> getPaths(String... paths) {
+		return new TreeSet<String>(Arrays.asList(paths));
+	}
+
+	/**
+	 *
+	 * @param remotePathsFile
+	 * @return the paths in the first column of the remote paths file, sorted,
+	 *         as the files of a folder are in the order in which they are listed
+	 * @throws IOException
+	 */
+	private Set<String> readPaths(File remotePathsFile) throws IOException {
+		final Set<String> ret = new TreeSet<String>();
+		for (final String line : FileUtils.readLines(remotePathsFile, StandardCharsets.UTF_8)) {
+			if (line.startsWith("/")) {
+				ret.add(line.split("\t")[0]);
+			}
+		}
+		return ret;
+	}
+}
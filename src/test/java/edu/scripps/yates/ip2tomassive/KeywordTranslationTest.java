@@ -0,0 +1,88 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedSftpServer;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Translation of the keywords of the names of the files of the remote paths
+ * file transferred to a SFTP server, directly and through a fan-out, that has
+ * to be done only once even if the translation has its own keyword
+ *
+ * @author salvador
+ *
+ */
+public class KeywordTranslationTest {
+	private static final String KEYWORD = TransferTestProject.DATASET_NAME + "_";
+	private static final String TRANSLATION = KEYWORD + "translated_";
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private TransferTestProject project;
+	private File sftpFolder;
+	private EmbeddedSftpServer sftpServer;
+	private File propertiesFile;
+	private Map<String, String> keywordTranslations;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new TransferTestProject(temporaryFolder.newFolder("project"), 1000, 2000);
+		sftpFolder = temporaryFolder.newFolder("sftp");
+		sftpServer = new EmbeddedSftpServer(sftpFolder);
+		propertiesFile = project.writeProperties(project.getSftpProperties(sftpServer), "sftp");
+		keywordTranslations = new THashMap<String, String>();
+		keywordTranslations.put(KEYWORD, TRANSLATION);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sftpServer.stop();
+		project.stop();
+	}
+
+	@Test
+	public void testSftp() throws Exception {
+		final MultipleProjectIP2ToSftp transfer = new MultipleProjectIP2ToSftp(new MySftpProgressMonitor(System.out),
+				propertiesFile, keywordTranslations, project.getRemotePathsFile());
+		transfer.transferDatasets();
+		assertTransferredWithTranslatedNames();
+	}
+
+	@Test
+	public void testFanOut() throws Exception {
+		final MultipleProjectIP2ToSftp destination = new MultipleProjectIP2ToSftp(
+				new MySftpProgressMonitor(System.out), propertiesFile, keywordTranslations, null);
+		final MultipleProjectIP2FanOut transfer = new MultipleProjectIP2FanOut(new MySftpProgressMonitor(System.out),
+				propertiesFile, keywordTranslations, project.getRemotePathsFile(),
+				Collections.<MultipleProjectIP2ToMassive>singletonList(destination));
+		transfer.transferDatasets();
+		assertTransferredWithTranslatedNames();
+	}
+
+	private void assertTransferredWithTranslatedNames() throws Exception {
+		for (final Map.Entry<String, byte[]> entry : project.getContentsByFileName().entrySet()) {
+			final String fileName = entry.getKey();
+			assertFalse(new File(sftpFolder, project.getPathInDestination(fileName)).exists());
+			final File file = new File(sftpFolder,
+					project.getPathInDestination(fileName.replace(KEYWORD, TRANSLATION)));
+			assertTrue(file.getAbsolutePath() + " was not transferred", file.exists());
+			assertArrayEquals(entry.getValue(), FileUtils.readFileToByteArray(file));
+		}
+		assertEquals(project.getContentsByFileName().size(), FileUtils.listFiles(sftpFolder,
+				new String[] { FileType.MS2.getExtension() }, true).size());
+	}
+}
@@ -0,0 +1,103 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jcraft.jsch.ChannelSftp;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedSftpServer;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Uploads to a SFTP server that fail while reading the file from IP2, after
+ * which the channel to the SFTP server has to be closed instead of going back
+ * to the pool
+ *
+ * @author salvador
+ *
+ */
+public class SftpUploadFailureTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private TransferTestProject project;
+	private File sftpFolder;
+	private EmbeddedSftpServer sftpServer;
+	private MultipleProjectIP2ToSftp transfer;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new TransferTestProject(temporaryFolder.newFolder("project"), 1000);
+		sftpFolder = temporaryFolder.newFolder("sftp");
+		sftpServer = new EmbeddedSftpServer(sftpFolder);
+		final File propertiesFile = project.writeProperties(project.getSftpProperties(sftpServer), "sftp");
+		transfer = new MultipleProjectIP2ToSftp(new MySftpProgressMonitor(System.out), propertiesFile,
+				new THashMap<String, String>(), project.getRemotePathsFile());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		transfer.closeConnectionPools();
+		sftpServer.stop();
+		project.stop();
+	}
+
+	@Test
+	public void testChannelInvalidatedAfterFailedUpload() throws Exception {
+		final SftpChannelPool pool = transfer.getSftpChannelPool();
+		// the idle channel is the one that the upload takes
+		final ChannelSftp channel = pool.borrowChannel();
+		pool.releaseChannel(channel);
+
+		final String fileName = project.getContentsByFileName().keySet().iterator().next();
+		// the folder of the dataset is there, so that the upload fails reading
+		// from IP2 and not opening the file
+		final File fileInSftp = new File(sftpFolder, project.getPathInDestination(fileName));
+		assertTrue(fileInSftp.getParentFile().mkdirs());
+		try {
+			transfer.uploadToDestination(project.getPathInIP2(fileName), fileName, FileType.MS2,
+					new Dataset(TransferTestProject.DATASET_NAME), getFailingInputStream(), 0l);
+			fail("the upload must fail when the file cannot be read from IP2");
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		assertTrue(fileInSftp.exists());
+
+		assertFalse(channel.isConnected());
+		final ChannelSftp nextChannel = pool.borrowChannel();
+		try {
+			assertNotSame(channel, nextChannel);
+			assertTrue(nextChannel.isConnected());
+		} finally {
+			pool.releaseChannel(nextChannel);
+		}
+	}
+
+	/**
+	 *
+	 * @return a stream that fails after some bytes, as the one of a file in IP2
+	 *         whose connection is lost
+	 */
+	private InputStream getFailingInputStream() {
+		return new SequenceInputStream(new ByteArrayInputStream(new byte[100]), new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Connection to IP2 lost");
+			}
+		});
+	}
+}
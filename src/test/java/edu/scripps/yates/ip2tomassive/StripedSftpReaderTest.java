@@ -0,0 +1,114 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedSftpServer;
+
+/**
+ * Reads of a file over several channels of a {@link SftpChannelPool}
+ *
+ * @author salvador
+ *
+ */
+public class StripedSftpReaderTest {
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final String FILE_NAME = "file.raw";
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private byte[] content;
+	private EmbeddedSftpServer server;
+	private SftpChannelPool pool;
+	private volatile long failReadsFrom = Long.MAX_VALUE;
+
+	@Before
+	public void setUp() throws Exception {
+		final File folder = temporaryFolder.newFolder("ip2");
+		content = new byte[10 * CHUNK_SIZE + 1234];
+		new Random(0).nextBytes(content);
+		FileUtils.writeByteArrayToFile(new File(folder, FILE_NAME), content);
+		server = new EmbeddedSftpServer(folder);
+		server.addSftpEventListener(new SftpEventListener() {
+
+			@Override
+			public void reading(ServerSession session, String remoteHandle, FileHandle localHandle, long offset,
+					byte[] data, int dataOffset, int dataLen) throws IOException {
+				if (offset >= failReadsFrom) {
+					throw new IOException("Read error at " + offset);
+				}
+			}
+		});
+		pool = SftpChannelPool.getInstance(server.getHost(), EmbeddedSftpServer.USER_NAME,
+				EmbeddedSftpServer.PASSWORD, server.getPort(), 1, 3, 60 * 1000l);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+		server.stop();
+	}
+
+	@Test
+	public void testReadFromOffset() throws Exception {
+		final long offset = 3 * CHUNK_SIZE + 17;
+		final ChannelSftp channel = pool.borrowChannel();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final long written = new StripedSftpReader(pool, 3, CHUNK_SIZE).read(channel, FILE_NAME, offset,
+				content.length, out, null);
+		pool.releaseChannel(channel);
+
+		assertEquals(content.length - offset, written);
+		assertArrayEquals(Arrays.copyOfRange(content, (int) offset, content.length), out.toByteArray());
+	}
+
+	@Test
+	public void testReadErrorClosesTheAdditionalChannels() throws Exception {
+		final ChannelSftp channel = pool.borrowChannel();
+		// the additional channels are taken from the idle ones
+		final ChannelSftp idle1 = pool.borrowChannel();
+		final ChannelSftp idle2 = pool.borrowChannel();
+		pool.releaseChannel(idle1);
+		pool.releaseChannel(idle2);
+		failReadsFrom = 5 * CHUNK_SIZE;
+		try {
+			new StripedSftpReader(pool, 3, CHUNK_SIZE).read(channel, FILE_NAME, 0l, content.length,
+					new ByteArrayOutputStream(), null);
+			fail("the read error was not reported");
+		} catch (final SftpException e) {
+			// expected, so that the caller doesn't reuse its channel
+		}
+		pool.invalidateChannel(channel);
+		failReadsFrom = Long.MAX_VALUE;
+
+		final ChannelSftp channel1 = pool.borrowChannel();
+		final ChannelSftp channel2 = pool.borrowChannel();
+		for (final ChannelSftp newChannel : Arrays.asList(channel1, channel2)) {
+			assertNotSame(idle1, newChannel);
+			assertNotSame(idle2, newChannel);
+		}
+		assertEquals(content.length, channel1.lstat(FILE_NAME).getSize());
+		pool.releaseChannel(channel1);
+		pool.releaseChannel(channel2);
+	}
+}
@@ -0,0 +1,109 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedFtpServer;
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedSftpServer;
+
+/**
+ * Replay of the {@link TransferJournal}, and transfers of the same remote paths
+ * file to two destinations, each one with its own journal
+ *
+ * @author salvador
+ *
+ */
+public class TransferJournalTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testReplay() throws IOException {
+		final File journalFile = new File(temporaryFolder.getRoot(), "journal.txt");
+		final Dataset dataset = new Dataset("dataset1");
+		final TransferTask done = new TransferTask(dataset, FileType.MS2, "/path/done.ms2", "done.ms2");
+		final TransferTask planned = new TransferTask(dataset, FileType.MS2, "/path/planned.ms2", "planned.ms2");
+		TransferJournal journal = new TransferJournal(journalFile);
+		journal.taskPlanned(done);
+		journal.taskPlanned(planned);
+		journal.fileStarted("dataset1/MS2/done.ms2", 0l);
+		journal.fileDone("dataset1/MS2/done.ms2", 10l, "checksum1");
+		journal.taskDone(done, 10l);
+		journal.fileDone("dataset1/MS2/restarted.ms2", 20l, "checksum2");
+		journal.fileStarted("dataset1/MS2/restarted.ms2", 0l);
+		journal.fileStarted("dataset1/MS2/planned.ms2", 0l);
+		journal.close();
+
+		journal = new TransferJournal(journalFile);
+		try {
+			assertEquals(10l, journal.getDoneSize(done));
+			assertEquals(-1l, journal.getDoneSize(planned));
+			assertEquals(10l, journal.getFileDoneSize("dataset1/MS2/done.ms2"));
+			assertEquals("checksum1", journal.getFileChecksum("dataset1/MS2/done.ms2"));
+			// started again after it was done, so it is not complete anymore
+			assertEquals(-1l, journal.getFileDoneSize("dataset1/MS2/restarted.ms2"));
+			assertNull(journal.getFileChecksum("dataset1/MS2/restarted.ms2"));
+			assertEquals(-1l, journal.getFileDoneSize("dataset1/MS2/planned.ms2"));
+			final Map<String, String> checksums = journal.getFileChecksumsUnder("dataset1/MS2");
+			assertEquals(1, checksums.size());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testJournalFilePerDestination() {
+		final File remotePathsFile = new File(temporaryFolder.getRoot(), "project_paths.txt");
+		final File massiveJournal = TransferJournal.getJournalFile(remotePathsFile, "massive_host_21");
+		final File sftpJournal = TransferJournal.getJournalFile(remotePathsFile, "sftp_host_22/data/out");
+		assertFalse(massiveJournal.equals(sftpJournal));
+		assertEquals(temporaryFolder.getRoot().getAbsoluteFile(), sftpJournal.getParentFile());
+		assertEquals("project_paths_journal_sftp_host_22_data_out.txt", sftpJournal.getName());
+	}
+
+	@Test
+	public void testSamePathsFileToTwoDestinations() throws Exception {
+		final TransferTestProject project = new TransferTestProject(temporaryFolder.newFolder("project"), 1000, 2000,
+				3000);
+		final File massiveFolder = temporaryFolder.newFolder("massive");
+		final EmbeddedFtpServer massiveServer = new EmbeddedFtpServer(massiveFolder, 16);
+		final File sftpFolder = temporaryFolder.newFolder("sftp");
+		final EmbeddedSftpServer sftpServer = new EmbeddedSftpServer(sftpFolder);
+		try {
+			project.transferToMassive(
+					project.writeProperties(project.getMassiveProperties(massiveServer), "massive"));
+			assertTransferred(project, massiveFolder);
+
+			project.transferToSftp(project.writeProperties(project.getSftpProperties(sftpServer), "sftp"));
+			assertTransferred(project, sftpFolder);
+
+			final File[] journals = project.getRemotePathsFile().getParentFile()
+					.listFiles((dir, name) -> name.contains("_journal_"));
+			assertEquals(2, journals.length);
+		} finally {
+			sftpServer.stop();
+			massiveServer.stop();
+			project.stop();
+		}
+	}
+
+	private void assertTransferred(TransferTestProject project, File destinationFolder) throws IOException {
+		for (final Map.Entry<String, byte[]> entry : project.getContentsByFileName().entrySet()) {
+			final File file = new File(destinationFolder, project.getPathInDestination(entry.getKey()));
+			assertTrue(file.getAbsolutePath() + " was not transferred", file.exists());
+			assertArrayEquals(entry.getValue(), FileUtils.readFileToByteArray(file));
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Streams read through a {@link TransferPipeline}, whose statistics are
+ * exported by the {@link MetricsRegistry}
+ *
+ * @author salvador
+ *
+ */
+public class TransferPipelineTest {
+
+	@Test
+	public void testStatisticsExported() throws IOException {
+		final MetricsRegistry metrics = MetricsRegistry.getInstance();
+		final long numProducerStalls = metrics.pipelineStallSeconds.getCount("producer");
+		final long numConsumerStalls = metrics.pipelineStallSeconds.getCount("consumer");
+		final byte[] content = new byte[100 * 1024];
+		new Random(1).nextBytes(content);
+		final InputStream inputStream = new TransferPipeline("test", 4, 1024)
+				.wrap(new ByteArrayInputStream(content));
+		try {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		} finally {
+			inputStream.close();
+		}
+		assertEquals(numProducerStalls + 1, metrics.pipelineStallSeconds.getCount("producer"));
+		assertEquals(numConsumerStalls + 1, metrics.pipelineStallSeconds.getCount("consumer"));
+		final StringWriter writer = new StringWriter();
+		metrics.write(writer);
+		assertTrue(writer.toString().contains("ip2_transfer_pipeline_buffers_high_water "));
+		assertTrue(writer.toString().contains("ip2_transfer_pipeline_stall_seconds_count{side=\"producer\"}"));
+	}
+
+	@Test
+	public void testCloseBeforeTheEnd() throws IOException {
+		final AtomicBoolean sourceClosed = new AtomicBoolean();
+		final InputStream source = new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				return 0;
+			}
+
+			@Override
+			public void close() throws IOException {
+				sourceClosed.set(true);
+			}
+		};
+		final InputStream inputStream = new TransferPipeline("test", 2, 1024).wrap(source);
+		assertEquals(1024, IOUtils.read(inputStream, new byte[1024]));
+		// as when the upload fails, the source is closed and not read anymore
+		inputStream.close();
+		assertTrue(sourceClosed.get());
+	}
+}
@@ -0,0 +1,167 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scripps.yates.ip2tomassive.UploadRecordingFileSystemFactory.Upload;
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedFtpServer;
+
+/**
+ * Transfers to the FTP server standing in for MassIVE in which the connection
+ * to MassIVE or to IP2 is dropped in the middle of the file, checking that the
+ * next run sends only the bytes that are missing and that the file ends up
+ * being identical to the one in IP2
+ *
+ * @author salvador
+ *
+ */
+public class TransferResumeTest {
+	private static final int FILE_SIZE = 3 * 1024 * 1024;
+	private static final long DROP_AFTER = 1024 * 1024l;
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private TransferTestProject project;
+	private File massiveFolder;
+	private UploadRecordingFileSystemFactory massiveFileSystem;
+	private EmbeddedFtpServer massiveServer;
+	private ReadRecorder ip2Reads;
+	private File propertiesFile;
+
+	/**
+	 * Records the reads of the files of IP2, and can drop the connection when a
+	 * read reaches an offset
+	 */
+	private static class ReadRecorder implements SftpEventListener {
+		private final List<long[]> reads = Collections.synchronizedList(new ArrayList<long[]>());
+		private final AtomicBoolean dropped = new AtomicBoolean();
+		private volatile long dropAt = -1l;
+
+		@Override
+		public void reading(ServerSession session, String remoteHandle, FileHandle localHandle, long offset,
+				byte[] data, int dataOffset, int dataLen) throws IOException {
+			if (dropAt >= 0 && offset >= dropAt && dropped.compareAndSet(false, true)) {
+				session.close(true);
+				throw new IOException("Connection dropped at " + offset);
+			}
+		}
+
+		@Override
+		public void read(ServerSession session, String remoteHandle, FileHandle localHandle, long offset,
+				byte[] data, int dataOffset, int dataLen, int readLen, Throwable thrown) throws IOException {
+			if (thrown == null && readLen > 0) {
+				reads.add(new long[] { offset, readLen });
+			}
+		}
+
+		private long getFirstOffset() {
+			long ret = Long.MAX_VALUE;
+			synchronized (reads) {
+				for (final long[] read : reads) {
+					ret = Math.min(ret, read[0]);
+				}
+			}
+			return ret;
+		}
+
+		private long getBytesRead() {
+			long ret = 0l;
+			synchronized (reads) {
+				for (final long[] read : reads) {
+					ret += read[1];
+				}
+			}
+			return ret;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		project = new TransferTestProject(temporaryFolder.newFolder("project"), FILE_SIZE);
+		ip2Reads = new ReadRecorder();
+		project.getIP2Server().addSftpEventListener(ip2Reads);
+		massiveFolder = temporaryFolder.newFolder("massive");
+		massiveFileSystem = new UploadRecordingFileSystemFactory();
+		massiveServer = new EmbeddedFtpServer(massiveFolder, 16, massiveFileSystem);
+		final Properties properties = project.getMassiveProperties(massiveServer);
+		properties.setProperty(IP2ToMassive.TRANSFER_THREADS, "1");
+		propertiesFile = project.writeProperties(properties, "massive");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		massiveServer.stop();
+		project.stop();
+	}
+
+	@Test
+	public void testResumeAfterDroppedUpload() throws IOException {
+		massiveFileSystem.dropNextUploadAfter(DROP_AFTER);
+		project.transferToMassive(propertiesFile);
+		final File fileInMassive = getFileInMassive();
+		assertEquals(DROP_AFTER, fileInMassive.length());
+
+		assertResumedFrom(DROP_AFTER);
+	}
+
+	@Test
+	public void testResumeAfterDroppedDownload() throws IOException {
+		ip2Reads.dropAt = DROP_AFTER;
+		project.transferToMassive(propertiesFile);
+		final long partialSize = getFileInMassive().length();
+		assertTrue("nothing was uploaded before the connection to IP2 was dropped", partialSize > 0);
+		assertTrue(partialSize < FILE_SIZE);
+
+		assertResumedFrom(partialSize);
+	}
+
+	/**
+	 * Transfers the project again, checking that the file is read from IP2 and
+	 * appended to MassIVE only from the offset, and that it ends up complete
+	 *
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void assertResumedFrom(long offset) throws IOException {
+		massiveFileSystem.clearUploads();
+		ip2Reads.reads.clear();
+		project.transferToMassive(propertiesFile);
+
+		final List<Upload> uploads = new ArrayList<Upload>();
+		for (final Upload upload : massiveFileSystem.getUploads()) {
+			if (upload.getPath().endsWith(getFileInMassive().getName())) {
+				uploads.add(upload);
+			}
+		}
+		assertEquals(1, uploads.size());
+		assertEquals(offset, uploads.get(0).getOffset());
+		assertEquals(FILE_SIZE - offset, uploads.get(0).getBytesWritten());
+		assertEquals(offset, ip2Reads.getFirstOffset());
+		assertEquals(FILE_SIZE - offset, ip2Reads.getBytesRead());
+		final byte[] content = project.getContentsByFileName().values().iterator().next();
+		assertArrayEquals(content, FileUtils.readFileToByteArray(getFileInMassive()));
+	}
+
+	private File getFileInMassive() {
+		final String fileName = project.getContentsByFileName().keySet().iterator().next();
+		return new File(massiveFolder, project.getPathInDestination(fileName));
+	}
+}
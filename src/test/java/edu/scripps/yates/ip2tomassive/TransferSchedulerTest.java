@@ -0,0 +1,140 @@
+package edu.scripps.yates.ip2tomassive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Order of the transfers given by the {@link TransferScheduler}, and the sizes
+ * of the files in IP2 that it needs
+ *
+ * @author salvador
+ *
+ */
+public class TransferSchedulerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testLargestFirst() {
+		final List<TransferTask> tasks = getTasks(5, 20, -1, 20, 10);
+		final List<TransferTask> scheduled = new TransferScheduler(TransferScheduler.Policy.LARGEST_FIRST)
+				.schedule(tasks);
+		// tasks of the same size keep the file order, and unknown sizes go last
+		assertEquals(Arrays.asList(tasks.get(1), tasks.get(3), tasks.get(4), tasks.get(0), tasks.get(2)),
+				scheduled);
+	}
+
+	@Test
+	public void testSmallestFirst() {
+		final List<TransferTask> tasks = getTasks(5, 20, -1, 10);
+		final List<TransferTask> scheduled = new TransferScheduler(TransferScheduler.Policy.SMALLEST_FIRST)
+				.schedule(tasks);
+		assertEquals(Arrays.asList(tasks.get(2), tasks.get(0), tasks.get(3), tasks.get(1)), scheduled);
+	}
+
+	@Test
+	public void testDatasetRoundRobin() {
+		final Dataset dataset1 = new Dataset("dataset1");
+		final Dataset dataset2 = new Dataset("dataset2");
+		final List<TransferTask> tasks = new ArrayList<TransferTask>();
+		tasks.add(new TransferTask(dataset1, FileType.MS2, "/a.ms2", "a.ms2"));
+		tasks.add(new TransferTask(dataset1, FileType.MS2, "/b.ms2", "b.ms2"));
+		tasks.add(new TransferTask(dataset1, FileType.MS2, "/c.ms2", "c.ms2"));
+		tasks.add(new TransferTask(dataset2, FileType.MS2, "/d.ms2", "d.ms2"));
+		final List<TransferTask> scheduled = new TransferScheduler(TransferScheduler.Policy.DATASET_ROUND_ROBIN)
+				.schedule(tasks);
+		assertEquals(Arrays.asList(tasks.get(0), tasks.get(3), tasks.get(1), tasks.get(2)), scheduled);
+	}
+
+	@Test
+	public void testSizesFromOneListingPerFolder() throws Exception {
+		final int[] fileSizes = { 1000, 3000, 2000, 4000 };
+		final TransferTestProject project = new TransferTestProject(temporaryFolder.newFolder("project"),
+				fileSizes);
+		final AtomicInteger numStats = new AtomicInteger();
+		final AtomicInteger numListings = new AtomicInteger();
+		project.getIP2Server().addSftpEventListener(new SftpEventListener() {
+
+			@Override
+			public void received(ServerSession session, int type, int id) {
+				if (type == SftpConstants.SSH_FXP_STAT || type == SftpConstants.SSH_FXP_LSTAT) {
+					numStats.incrementAndGet();
+				} else if (type == SftpConstants.SSH_FXP_OPENDIR) {
+					numListings.incrementAndGet();
+				}
+			}
+		});
+		try {
+			final Properties properties = project.getProperties();
+			properties.setProperty(IP2ToMassive.TRANSFER_THREADS, "4");
+			final MultipleProjectIP2ToMassive transfer = getTransfer(project, properties);
+			final List<TransferTask> scheduled = transfer
+					.scheduleTransferTasks(transfer.getTransferTasks(TransferTestProject.DATASET_NAME));
+			assertEquals(1, numListings.get());
+			// JSch checks the folder before listing it, but the files are not checked
+			assertTrue(numStats.get() <= numListings.get());
+			final long[] sizes = new long[scheduled.size()];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = scheduled.get(i).getSize();
+			}
+			assertEquals(Arrays.toString(new long[] { 4000, 3000, 2000, 1000 }), Arrays.toString(sizes));
+		} finally {
+			project.stop();
+		}
+	}
+
+	@Test
+	public void testFileOrderWithOneTransferThread() throws Exception {
+		final TransferTestProject project = new TransferTestProject(temporaryFolder.newFolder("project"), 1000,
+				3000, 2000);
+		try {
+			final Properties properties = project.getProperties();
+			properties.setProperty(IP2ToMassive.TRANSFER_THREADS, "1");
+			final MultipleProjectIP2ToMassive transfer = getTransfer(project, properties);
+			final List<TransferTask> tasks = transfer.getTransferTasks(TransferTestProject.DATASET_NAME);
+			final List<TransferTask> scheduled = transfer.scheduleTransferTasks(tasks);
+			assertEquals(tasks, scheduled);
+			// the sizes are not collected
+			for (final TransferTask task : scheduled) {
+				assertEquals(-1l, task.getSize());
+			}
+		} finally {
+			project.stop();
+		}
+	}
+
+	private MultipleProjectIP2ToMassive getTransfer(TransferTestProject project, Properties properties)
+			throws Exception {
+		final File propertiesFile = project.writeProperties(properties, "scheduler");
+		return new MultipleProjectIP2ToMassive(new MySftpProgressMonitor(System.out), propertiesFile,
+				new THashMap<String, String>(), project.getRemotePathsFile());
+	}
+
+	private List<TransferTask> getTasks(long... sizes) {
+		final Dataset dataset = new Dataset("dataset1");
+		final List<TransferTask> ret = new ArrayList<TransferTask>();
+		for (int i = 0; i < sizes.length; i++) {
+			final TransferTask task = new TransferTask(dataset, FileType.MS2, "/file" + i + ".ms2",
+					"file" + i + ".ms2");
+			task.setSize(sizes[i]);
+			ret.add(task);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,205 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedFtpServer;
+import edu.scripps.yates.ip2tomassive.benchmark.EmbeddedSftpServer;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * A project with a dataset of MS2 files in a local folder, served by an
+ * {@link EmbeddedSftpServer} standing in for IP2, with its remote paths file,
+ * to run the transfers in the tests
+ *
+ * @author salvador
+ *
+ */
+public class TransferTestProject {
+	public static final String PROJECT_NAME = "test";
+	public static final String DATASET_NAME = "dataset1";
+	private static final String PROJECT_PATH = "/ip2_data/test/project";
+	private static final String EXPERIMENT_PATH = PROJECT_PATH + "/" + DATASET_NAME + "_10000/spectra";
+	private final File folder;
+	private final File ip2Folder;
+	private final File remotePathsFile;
+	private final Map<String, byte[]> contentsByFileName = new LinkedHashMap<String, byte[]>();
+	private final EmbeddedSftpServer ip2Server;
+
+	/**
+	 *
+	 * @param folder    folder where the project and the files of the transfer
+	 *                  are written
+	 * @param fileSizes sizes of the files of the dataset
+	 * @throws IOException
+	 */
+	public TransferTestProject(File folder, int... fileSizes) throws IOException {
+		this.folder = folder;
+		ip2Folder = new File(folder, "ip2");
+		final File experimentFolder = new File(ip2Folder, EXPERIMENT_PATH);
+		if (!experimentFolder.mkdirs()) {
+			throw new IOException("Cannot create " + experimentFolder.getAbsolutePath());
+		}
+		remotePathsFile = new File(folder, PROJECT_NAME + "_paths.txt");
+		final Writer writer = new FileWriter(remotePathsFile);
+		try {
+			writer.write("DATASET\t" + DATASET_NAME + "\n");
+			writer.write(FileType.MS2.getDescription() + "\n");
+			final Random random = new Random(fileSizes.length);
+			for (int i = 0; i < fileSizes.length; i++) {
+				final String fileName = DATASET_NAME + "_" + (i + 1) + ".ms2";
+				final byte[] content = new byte[fileSizes[i]];
+				random.nextBytes(content);
+				FileUtils.writeByteArrayToFile(new File(experimentFolder, fileName), content);
+				contentsByFileName.put(fileName, content);
+				writer.write(getPathInIP2(fileName) + "\t" + fileName + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		ip2Server = new EmbeddedSftpServer(ip2Folder);
+	}
+
+	public EmbeddedSftpServer getIP2Server() {
+		return ip2Server;
+	}
+
+	public File getRemotePathsFile() {
+		return remotePathsFile;
+	}
+
+	/**
+	 *
+	 * @return the contents of the files of the dataset by their names
+	 */
+	public Map<String, byte[]> getContentsByFileName() {
+		return contentsByFileName;
+	}
+
+	/**
+	 *
+	 * @param fileName
+	 * @return the path of a file of the dataset in IP2
+	 */
+	public String getPathInIP2(String fileName) {
+		return EXPERIMENT_PATH + "/" + fileName;
+	}
+
+	/**
+	 *
+	 * @param pathInIP2
+	 * @return the local file served by IP2 in that path
+	 */
+	public File getFileInIP2(String pathInIP2) {
+		return new File(ip2Folder, pathInIP2);
+	}
+
+	/**
+	 *
+	 * @param fileName
+	 * @return the path in which a file of the dataset is uploaded, relative to
+	 *         the root folder of the destination, in the submission folder named
+	 *         as the project
+	 */
+	public String getPathInDestination(String fileName) {
+		return PROJECT_NAME + "/" + DATASET_NAME + "/" + FileType.MS2.name() + "/" + fileName;
+	}
+
+	/**
+	 *
+	 * @return the properties to read the project from IP2, without a destination
+	 */
+	public Properties getProperties() {
+		final Properties properties = new Properties();
+		properties.setProperty("ip2_server_url", ip2Server.getHost());
+		properties.setProperty("ip2_server_user_name", EmbeddedSftpServer.USER_NAME);
+		properties.setProperty("ip2_server_password", EmbeddedSftpServer.PASSWORD);
+		properties.setProperty("ip2_server_connection_port", String.valueOf(ip2Server.getPort()));
+		properties.setProperty(IP2ToMassive.IP2_SERVER_PROJECT_BASE_PATH, PROJECT_PATH);
+		properties.setProperty(IP2ToMassive.PROJECT_NAME, PROJECT_NAME);
+		return properties;
+	}
+
+	/**
+	 *
+	 * @param massiveServer
+	 * @return the properties to transfer the project to the FTP server standing
+	 *         in for MassIVE
+	 */
+	public Properties getMassiveProperties(EmbeddedFtpServer massiveServer) {
+		final Properties properties = getProperties();
+		properties.setProperty("massive_server_url", massiveServer.getHost());
+		properties.setProperty(IP2ToMassive.MASSIVE_SERVER_PORT, String.valueOf(massiveServer.getPort()));
+		properties.setProperty("massive_server_user_name", EmbeddedFtpServer.USER_NAME);
+		properties.setProperty("massive_server_password", EmbeddedFtpServer.PASSWORD);
+		return properties;
+	}
+
+	/**
+	 *
+	 * @param sftpServer
+	 * @return the properties to transfer the project to a SFTP server
+	 */
+	public Properties getSftpProperties(EmbeddedSftpServer sftpServer) {
+		final Properties properties = getProperties();
+		properties.setProperty(IP2ToMassive.SFTP_SERVER_URL, sftpServer.getHost());
+		properties.setProperty(IP2ToMassive.SFTP_SERVER_PORT, String.valueOf(sftpServer.getPort()));
+		properties.setProperty(IP2ToMassive.SFTP_SERVER_USER_NAME, EmbeddedSftpServer.USER_NAME);
+		properties.setProperty(IP2ToMassive.SFTP_SERVER_PASSWORD, EmbeddedSftpServer.PASSWORD);
+		return properties;
+	}
+
+	/**
+	 * Writes the properties file of a transfer
+	 *
+	 * @param properties
+	 * @param name       name of the file, without extension
+	 * @return
+	 * @throws IOException
+	 */
+	public File writeProperties(Properties properties, String name) throws IOException {
+		final File propertiesFile = new File(folder, name + ".properties");
+		final Writer writer = new FileWriter(propertiesFile);
+		try {
+			properties.store(writer, "test transfer");
+		} finally {
+			writer.close();
+		}
+		return propertiesFile;
+	}
+
+	/**
+	 * Transfers the project to MassIVE with the settings of the properties file
+	 *
+	 * @param propertiesFile
+	 * @throws IOException
+	 */
+	public void transferToMassive(File propertiesFile) throws IOException {
+		new MultipleProjectIP2ToMassive(new MySftpProgressMonitor(System.out), propertiesFile,
+				new THashMap<String, String>(), remotePathsFile).transferDatasets();
+	}
+
+	/**
+	 * Transfers the project to a SFTP server with the settings of the properties
+	 * file
+	 *
+	 * @param propertiesFile
+	 * @throws IOException
+	 */
+	public void transferToSftp(File propertiesFile) throws IOException {
+		new MultipleProjectIP2ToSftp(new MySftpProgressMonitor(System.out), propertiesFile,
+				new THashMap<String, String>(), remotePathsFile).transferDatasets();
+	}
+
+	public void stop() throws IOException {
+		ip2Server.stop();
+	}
+}
@@ -0,0 +1,153 @@
+package edu.scripps.yates.ip2tomassive;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.ftplet.FileSystemFactory;
+import org.apache.ftpserver.ftplet.FileSystemView;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.User;
+
+/**
+ * File system of the FTP server standing in for MassIVE that records the
+ * uploads, and that can drop the first one after a number of bytes as if the
+ * connection was lost
+ *
+ * @author salvador
+ *
+ */
+public class UploadRecordingFileSystemFactory implements FileSystemFactory {
+	private final FileSystemFactory fileSystemFactory = new NativeFileSystemFactory();
+	private final List<Upload> uploads = Collections.synchronizedList(new ArrayList<Upload>());
+	private final AtomicBoolean dropped = new AtomicBoolean();
+	private volatile long dropAfter = -1l;
+
+	/**
+	 * An upload of a file, either from the beginning or from an offset, as with
+	 * APPE or REST and STOR
+	 */
+	public static class Upload {
+		private final String path;
+		private final long offset;
+		private long bytesWritten = 0l;
+
+		private Upload(String path, long offset) {
+			this.path = path;
+			this.offset = offset;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public synchronized long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		private synchronized void addBytesWritten(long bytes) {
+			bytesWritten += bytes;
+		}
+	}
+
+	/**
+	 * Makes the next upload fail after writing that number of bytes
+	 *
+	 * @param bytes
+	 */
+	public void dropNextUploadAfter(long bytes) {
+		dropAfter = bytes;
+		dropped.set(false);
+	}
+
+	public List<Upload> getUploads() {
+		synchronized (uploads) {
+			return new ArrayList<Upload>(uploads);
+		}
+	}
+
+	public void clearUploads() {
+		uploads.clear();
+	}
+
+	@Override
+	public FileSystemView createFileSystemView(User user) throws FtpException {
+		final FileSystemView view = fileSystemFactory.createFileSystemView(user);
+		return (FileSystemView) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { FileSystemView.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						final Object ret = invokeOn(view, method, args);
+						if (ret instanceof FtpFile) {
+							return getRecordingFile((FtpFile) ret);
+						}
+						return ret;
+					}
+				});
+	}
+
+	private FtpFile getRecordingFile(final FtpFile file) {
+		return (FtpFile) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { FtpFile.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if ("createOutputStream".equals(method.getName())) {
+							final long offset = (Long) args[0];
+							final Upload upload = new Upload(file.getAbsolutePath(), offset);
+							uploads.add(upload);
+							return getRecordingOutputStream(file.createOutputStream(offset), upload);
+						}
+						return invokeOn(file, method, args);
+					}
+				});
+	}
+
+	private OutputStream getRecordingOutputStream(OutputStream out, final Upload upload) {
+		final long limit = dropAfter >= 0 && dropped.compareAndSet(false, true) ? dropAfter : -1l;
+		return new FilterOutputStream(out) {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				int toWrite = len;
+				if (limit >= 0 && upload.getBytesWritten() + len > limit) {
+					toWrite = (int) (limit - upload.getBytesWritten());
+				}
+				out.write(b, off, toWrite);
+				upload.addBytesWritten(toWrite);
+				if (toWrite < len) {
+					out.close();
+					throw new IOException("Connection dropped after " + limit + " bytes");
+				}
+			}
+		};
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}